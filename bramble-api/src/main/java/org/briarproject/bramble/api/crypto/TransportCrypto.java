@@ -64,4 +64,14 @@ public interface TransportCrypto {
 	 */
 	void encodeTag(byte[] tag, SecretKey tagKey, int protocolVersion,
 			long streamNumber);
+
+	/**
+	 * Encodes the tags for a range of consecutive stream numbers, starting
+	 * with the given stream number, into the given buffer. The tag for
+	 * stream number {@code firstStreamNumber + i} is written at offset
+	 * {@code i * TAG_LENGTH}. This is faster than calling
+	 * {@link #encodeTag(byte[], SecretKey, int, long)} for each stream number.
+	 */
+	void encodeTags(byte[] tags, SecretKey tagKey, int protocolVersion,
+			long firstStreamNumber, int count);
 }
@@ -3,6 +3,7 @@ package org.briarproject.bramble.api.data;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 @NotNullByDefault
 public interface BdfReader {
@@ -48,6 +49,13 @@ public interface BdfReader {
 
 	byte[] readRaw() throws IOException;
 
+	/**
+	 * Reads a raw value and returns it as a read-only buffer. Readers that
+	 * read from a byte array return a view of the array rather than a copy,
+	 * in which case the buffer is only valid while the array isn't modified.
+	 */
+	ByteBuffer readRawView() throws IOException;
+
 	void skipRaw() throws IOException;
 
 	boolean hasList() throws IOException;
@@ -3,6 +3,7 @@ package org.briarproject.bramble.api.data;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 @NotNullByDefault
 public interface BdfReaderFactory {
@@ -11,4 +12,25 @@ public interface BdfReaderFactory {
 
 	BdfReader createReader(InputStream in, int nestedLimit,
 			int maxBufferSize);
+
+	/**
+	 * Returns a reader that reads directly from the given slice of a byte
+	 * array, which must not be modified while the reader is in use.
+	 */
+	BdfReader createReader(byte[] b, int off, int len);
+
+	/**
+	 * Returns a reader that reads directly from the given slice of a byte
+	 * array, which must not be modified while the reader is in use.
+	 */
+	BdfReader createReader(byte[] b, int off, int len, int nestedLimit,
+			int maxBufferSize);
+
+	/**
+	 * Returns a reader that reads the remaining bytes of the given buffer,
+	 * which must not be modified while the reader is in use. The buffer's
+	 * position isn't changed. A buffer that isn't backed by an accessible
+	 * array is copied.
+	 */
+	BdfReader createReader(ByteBuffer buf);
 }
@@ -26,4 +26,20 @@ public interface DatabaseConfig {
 	 */
 	@Nullable
 	KeyStrengthener getKeyStrengthener();
+
+	/**
+	 * Returns true if transactions that are scoped to a contact should only
+	 * lock that contact's data, allowing transactions for different contacts
+	 * to run concurrently. Transactions without a scope still lock the whole
+	 * database. The database must detect conflicts
+	 * between concurrent transactions, for example with row locks or
+	 * deadlock detection, so that conflicting transactions can be retried.
+	 */
+	boolean isStripedLockingEnabled();
+
+	/**
+	 * Returns the number of threads that may run tasks on the
+	 * {@link ReadOnlyDatabaseExecutor} concurrently.
+	 */
+	int getReadOnlyExecutorThreads();
 }
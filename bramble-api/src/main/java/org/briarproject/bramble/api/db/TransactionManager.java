@@ -1,5 +1,6 @@
 package org.briarproject.bramble.api.db;
 
+import org.briarproject.bramble.api.contact.ContactId;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
 
 import javax.annotation.Nullable;
@@ -17,6 +18,29 @@ public interface TransactionManager {
 	 */
 	Transaction startTransaction(boolean readOnly) throws DbException;
 
+	/**
+	 * Starts a new transaction that will only modify data belonging to the
+	 * given contact, such as the contact's sync state, and returns an object
+	 * representing it.
+	 * <p/>
+	 * If striped locking is enabled, the transaction only excludes other
+	 * transactions for the same contact (or for contacts sharing its lock
+	 * stripe), and transactions without a scope. Otherwise this method is
+	 * equivalent to {@link #startTransaction(boolean)}.
+	 * <p/>
+	 * Transactions for different contacts may still conflict in the
+	 * database. The methods that run a task within a scoped transaction
+	 * retry the task if it fails because of such a conflict.
+	 * <p/>
+	 * This method acquires locks, so it must not be called while holding a
+	 * lock.
+	 *
+	 * @param readOnly true if the transaction will only be used for reading.
+	 * @param scope the contact whose data the transaction will modify.
+	 */
+	Transaction startTransaction(boolean readOnly, ContactId scope)
+			throws DbException;
+
 	/**
 	 * Commits a transaction to the database.
 	 */
@@ -36,6 +60,15 @@ public interface TransactionManager {
 	<E extends Exception> void transaction(boolean readOnly,
 			DbRunnable<E> task) throws DbException, E;
 
+	/**
+	 * Runs the given task within a transaction that will only modify data
+	 * belonging to the given contact.
+	 *
+	 * @see #startTransaction(boolean, ContactId)
+	 */
+	<E extends Exception> void transaction(boolean readOnly,
+			ContactId scope, DbRunnable<E> task) throws DbException, E;
+
 	/**
 	 * Runs the given task within a transaction and returns the result of the
 	 * task.
@@ -43,6 +76,15 @@ public interface TransactionManager {
 	<R, E extends Exception> R transactionWithResult(boolean readOnly,
 			DbCallable<R, E> task) throws DbException, E;
 
+	/**
+	 * Runs the given task within a transaction that will only modify data
+	 * belonging to the given contact, and returns the result of the task.
+	 *
+	 * @see #startTransaction(boolean, ContactId)
+	 */
+	<R, E extends Exception> R transactionWithResult(boolean readOnly,
+			ContactId scope, DbCallable<R, E> task) throws DbException, E;
+
 	/**
 	 * Runs the given task within a transaction and returns the result of the
 	 * task, which may be null.
@@ -51,4 +93,16 @@ public interface TransactionManager {
 	<R, E extends Exception> R transactionWithNullableResult(boolean readOnly,
 			NullableDbCallable<R, E> task) throws DbException, E;
 
+	/**
+	 * Runs the given task within a transaction that will only modify data
+	 * belonging to the given contact, and returns the result of the task,
+	 * which may be null.
+	 *
+	 * @see #startTransaction(boolean, ContactId)
+	 */
+	@Nullable
+	<R, E extends Exception> R transactionWithNullableResult(boolean readOnly,
+			ContactId scope, NullableDbCallable<R, E> task)
+			throws DbException, E;
+
 }
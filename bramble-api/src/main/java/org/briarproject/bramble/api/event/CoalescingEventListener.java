@@ -0,0 +1,29 @@
+package org.briarproject.bramble.api.event;
+
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import javax.annotation.Nullable;
+
+/**
+ * An event listener that's notified on its own executor and can tell the
+ * {@link EventBus} which waiting events can be coalesced.
+ *
+ * @see EventBus#addListener(CoalescingEventListener,
+ * java.util.concurrent.Executor, int, java.util.Collection)
+ */
+@NotNullByDefault
+public interface CoalescingEventListener extends EventListener {
+
+	/**
+	 * Returns a key for the given event, or null if the event must be
+	 * delivered. If an event with an equal key is already waiting to be
+	 * delivered, the new event is discarded, so events should only have
+	 * equal keys if handling one of them has the same effect as handling
+	 * all of them.
+	 * <p>
+	 * This method is called on the thread that broadcasts the event, so it
+	 * must be thread-safe and must not block.
+	 */
+	@Nullable
+	Object getCoalescingKey(Event e);
+}
@@ -2,6 +2,9 @@ package org.briarproject.bramble.api.event;
 
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
 
+import java.util.Collection;
+import java.util.concurrent.Executor;
+
 @NotNullByDefault
 public interface EventBus {
 
@@ -10,6 +13,48 @@ public interface EventBus {
 	 */
 	void addListener(EventListener l);
 
+	/**
+	 * Adds a listener to be notified when events of the given types occur.
+	 * The listener is only notified of events that are instances of the
+	 * given types, which is cheaper than notifying the listener of all
+	 * events and letting it ignore the ones it's not interested in.
+	 * <p>
+	 * If no event types are given, the listener is notified of all events.
+	 */
+	void addListener(EventListener l,
+			Collection<Class<? extends Event>> eventTypes);
+
+	/**
+	 * Adds a listener to be notified when events occur. The listener is
+	 * notified on the given executor rather than the {@link EventExecutor},
+	 * so a slow listener doesn't delay other listeners, and vice versa.
+	 * <p>
+	 * Events for the listener are queued in a mailbox, and the listener is
+	 * notified of them one at a time in the order they were broadcast.
+	 * Events are never coalesced or dropped.
+	 * <p>
+	 * If any event types are given, the listener is only notified of events
+	 * that are instances of those types.
+	 * <p>
+	 * Listeners added with this method must be thread-safe.
+	 */
+	void addListener(EventListener l, Executor executor,
+			Collection<Class<? extends Event>> eventTypes);
+
+	/**
+	 * Adds a listener to be notified when events occur, on the given
+	 * executor, as for
+	 * {@link #addListener(EventListener, Executor, Collection)}.
+	 * <p>
+	 * An event whose coalescing key is equal to the key of an event already
+	 * waiting in the listener's mailbox is coalesced with the waiting event.
+	 * At most the given number of events with coalescing keys can be
+	 * waiting; if there are more, the new event is dropped. Events without
+	 * coalescing keys are never coalesced or dropped.
+	 */
+	void addListener(CoalescingEventListener l, Executor executor,
+			int capacity, Collection<Class<? extends Event>> eventTypes);
+
 	/**
 	 * Removes a listener.
 	 */
@@ -17,7 +62,8 @@ public interface EventBus {
 
 	/**
 	 * Asynchronously notifies all listeners of an event. Listeners are
-	 * notified on the {@link EventExecutor}.
+	 * notified on the {@link EventExecutor}, or on the executor given when
+	 * they were added.
 	 * <p>
 	 * This method can safely be called while holding a lock.
 	 */
@@ -0,0 +1,28 @@
+package org.briarproject.bramble.api.record;
+
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A view of a record whose payload is held in a buffer owned by a
+ * {@link RecordReader}. The buffer is reused for the next record, so the view
+ * is only valid until the reader reads another record, and callers that need
+ * to keep any part of the payload must copy it.
+ */
+@NotThreadSafe
+@NotNullByDefault
+public interface BufferedRecord {
+
+	byte getProtocolVersion();
+
+	byte getRecordType();
+
+	/**
+	 * Returns the buffer holding the payload, which starts at offset zero.
+	 * The buffer may be longer than the payload.
+	 */
+	byte[] getPayloadBuffer();
+
+	int getPayloadLength();
+}
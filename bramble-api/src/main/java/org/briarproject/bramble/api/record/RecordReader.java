@@ -35,5 +35,24 @@ public interface RecordReader {
 	Record readRecord(Predicate<Record> accept, Predicate<Record> ignore)
 			throws IOException;
 
+	/**
+	 * Reads the next record matching the 'accept' predicate into a buffer
+	 * that's reused for subsequent records, skipping any records that match
+	 * the 'ignore' predicate. Returns null if no record matching the 'accept'
+	 * predicate is found before the end of the stream.
+	 * <p/>
+	 * Unlike {@link #readRecord(Predicate, Predicate)}, this method doesn't
+	 * allocate memory for each record. The returned record is only valid
+	 * until the next call to any of this reader's read methods.
+	 *
+	 * @throws EOFException If the end of the stream is reached without
+	 * reading a complete record
+	 * @throws FormatException If a record is read that does not match the
+	 * 'accept' or 'ignore' predicates
+	 */
+	@Nullable
+	BufferedRecord readBufferedRecord(Predicate<BufferedRecord> accept,
+			Predicate<BufferedRecord> ignore) throws IOException;
+
 	void close() throws IOException;
 }
@@ -9,5 +9,12 @@ public interface MessageFactory {
 
 	Message createMessage(byte[] raw);
 
+	/**
+	 * Creates a message from the raw bytes at the given offset in the given
+	 * buffer. The message doesn't keep a reference to the buffer, so the
+	 * buffer may be reused.
+	 */
+	Message createMessage(byte[] buf, int off, int len);
+
 	byte[] getRawMessage(Message m);
 }
@@ -96,10 +96,8 @@ public interface KeyManager {
 
 	/**
 	 * Looks up the given tag and returns a {@link StreamContext} for reading
-	 * from the corresponding stream, or null if an error occurs or the tag was
-	 * unexpected.
+	 * from the corresponding stream, or null if the tag was unexpected.
 	 */
 	@Nullable
-	StreamContext getStreamContext(TransportId t, byte[] tag)
-			throws DbException;
+	StreamContext getStreamContext(TransportId t, byte[] tag);
 }
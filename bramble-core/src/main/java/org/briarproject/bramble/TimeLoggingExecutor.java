@@ -6,15 +6,24 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.INFO;
 import static org.briarproject.bramble.util.LogUtils.now;
 
+/**
+ * A {@link ThreadPoolExecutor} that keeps track of how long tasks wait in
+ * the queue, and logs the time each task spends queued and executing.
+ */
 @NotNullByDefault
 public class TimeLoggingExecutor extends ThreadPoolExecutor {
 
 	private final Logger log;
+	private final AtomicLong tasks = new AtomicLong(0);
+	private final AtomicLong totalQueueTime = new AtomicLong(0);
+	private final AtomicLong maxQueueTime = new AtomicLong(0);
 
 	public TimeLoggingExecutor(String tag, int corePoolSize, int maxPoolSize,
 			long keepAliveTime, TimeUnit unit,
@@ -27,18 +36,69 @@ public class TimeLoggingExecutor extends ThreadPoolExecutor {
 
 	@Override
 	public void execute(Runnable r) {
-		if (log.isLoggable(FINE)) {
-			long submitted = now();
-			super.execute(() -> {
-				long started = now();
-				long queued = started - submitted;
+		long submitted = now();
+		super.execute(() -> {
+			long started = now();
+			long queued = started - submitted;
+			recordQueueTime(queued);
+			if (log.isLoggable(FINE))
 				log.fine("Queue time " + queued + " ms");
-				r.run();
+			r.run();
+			if (log.isLoggable(FINE)) {
 				long executing = now() - started;
 				log.fine("Execution time " + executing + " ms");
-			});
-		} else {
-			super.execute(r);
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of tasks that are waiting to run.
+	 */
+	public int getQueueDepth() {
+		return getQueue().size();
+	}
+
+	/**
+	 * Returns the number of tasks that have started running.
+	 */
+	public long getTasksStarted() {
+		return tasks.get();
+	}
+
+	/**
+	 * Returns the mean time in milliseconds that tasks have waited in the
+	 * queue before starting to run.
+	 */
+	public long getMeanQueueTime() {
+		long n = tasks.get();
+		return n == 0 ? 0 : totalQueueTime.get() / n;
+	}
+
+	/**
+	 * Returns the longest time in milliseconds that any task has waited in
+	 * the queue before starting to run.
+	 */
+	public long getMaxQueueTime() {
+		return maxQueueTime.get();
+	}
+
+	@Override
+	protected void terminated() {
+		super.terminated();
+		if (log.isLoggable(INFO)) {
+			log.info(getTasksStarted() + " tasks, mean queue time "
+					+ getMeanQueueTime() + " ms, max queue time "
+					+ getMaxQueueTime() + " ms");
+		}
+	}
+
+	private void recordQueueTime(long queued) {
+		tasks.incrementAndGet();
+		totalQueueTime.addAndGet(queued);
+		while (true) {
+			long max = maxQueueTime.get();
+			if (queued <= max || maxQueueTime.compareAndSet(max, queued))
+				return;
 		}
 	}
 }
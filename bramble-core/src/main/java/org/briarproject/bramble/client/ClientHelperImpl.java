@@ -28,7 +28,6 @@ import org.briarproject.bramble.api.sync.Message;
 import org.briarproject.bramble.api.sync.MessageFactory;
 import org.briarproject.bramble.api.sync.MessageId;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
@@ -175,11 +174,7 @@ class ClientHelperImpl implements ClientHelper {
 	@Override
 	public Map<MessageId, BdfDictionary> getMessageMetadataAsDictionary(
 			Transaction txn, GroupId g) throws DbException, FormatException {
-		Map<MessageId, Metadata> raw = db.getMessageMetadata(txn, g);
-		Map<MessageId, BdfDictionary> parsed = new HashMap<>(raw.size());
-		for (Entry<MessageId, Metadata> e : raw.entrySet())
-			parsed.put(e.getKey(), metadataParser.parse(e.getValue()));
-		return parsed;
+		return parseMetadata(db.getMessageMetadata(txn, g));
 	}
 
 	@Override
@@ -195,7 +190,11 @@ class ClientHelperImpl implements ClientHelper {
 			Transaction txn, GroupId g, BdfDictionary query) throws DbException,
 			FormatException {
 		Metadata metadata = metadataEncoder.encode(query);
-		Map<MessageId, Metadata> raw = db.getMessageMetadata(txn, g, metadata);
+		return parseMetadata(db.getMessageMetadata(txn, g, metadata));
+	}
+
+	private Map<MessageId, BdfDictionary> parseMetadata(
+			Map<MessageId, Metadata> raw) throws FormatException {
 		Map<MessageId, BdfDictionary> parsed = new HashMap<>(raw.size());
 		for (Entry<MessageId, Metadata> e : raw.entrySet())
 			parsed.put(e.getKey(), metadataParser.parse(e.getValue()));
@@ -257,8 +256,7 @@ class ClientHelperImpl implements ClientHelper {
 	@Override
 	public BdfDictionary toDictionary(byte[] b, int off, int len)
 			throws FormatException {
-		ByteArrayInputStream in = new ByteArrayInputStream(b, off, len);
-		BdfReader reader = bdfReaderFactory.createReader(in);
+		BdfReader reader = bdfReaderFactory.createReader(b, off, len);
 		try {
 			BdfDictionary dictionary = reader.readDictionary();
 			if (!reader.eof()) throw new FormatException();
@@ -286,8 +284,7 @@ class ClientHelperImpl implements ClientHelper {
 
 	@Override
 	public BdfList toList(byte[] b, int off, int len) throws FormatException {
-		ByteArrayInputStream in = new ByteArrayInputStream(b, off, len);
-		BdfReader reader = bdfReaderFactory.createReader(in);
+		BdfReader reader = bdfReaderFactory.createReader(b, off, len);
 		try {
 			BdfList list = reader.readList();
 			if (!reader.eof()) throw new FormatException();
@@ -2,6 +2,9 @@ package org.briarproject.bramble.client;
 
 import org.briarproject.bramble.api.client.ClientHelper;
 import org.briarproject.bramble.api.client.ContactGroupFactory;
+import org.briarproject.bramble.api.event.EventBus;
+
+import javax.inject.Singleton;
 
 import dagger.Module;
 import dagger.Provides;
@@ -15,8 +18,11 @@ public class ClientModule {
 	}
 
 	@Provides
-	ContactGroupFactory provideContactGroupFactory(
+	@Singleton
+	ContactGroupFactory provideContactGroupFactory(EventBus eventBus,
 			ContactGroupFactoryImpl contactGroupFactory) {
+		eventBus.addListener(contactGroupFactory,
+				ContactGroupFactoryImpl.EVENT_TYPES);
 		return contactGroupFactory;
 	}
 
@@ -4,25 +4,60 @@ import org.briarproject.bramble.api.FormatException;
 import org.briarproject.bramble.api.client.ClientHelper;
 import org.briarproject.bramble.api.client.ContactGroupFactory;
 import org.briarproject.bramble.api.contact.Contact;
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.contact.event.ContactRemovedEvent;
 import org.briarproject.bramble.api.data.BdfList;
+import org.briarproject.bramble.api.event.Event;
+import org.briarproject.bramble.api.event.EventListener;
 import org.briarproject.bramble.api.identity.AuthorId;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
 import org.briarproject.bramble.api.sync.ClientId;
 import org.briarproject.bramble.api.sync.Group;
 import org.briarproject.bramble.api.sync.GroupFactory;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 
-@Immutable
+import static java.util.Collections.singletonList;
+
+/**
+ * Creating a contact group involves encoding and hashing a descriptor, and
+ * clients look up contact groups on every poll, listing and incoming
+ * message, so the groups created for contacts are cached. Calls that visit
+ * every contact look up every contact's group for a client in turn, so the
+ * cache isn't bounded: it holds a group for each contact and client, and
+ * the groups created for a contact are removed when the contact is removed.
+ * A group is only cached if no contacts were removed while it was being
+ * created, so groups aren't cached for contacts that have been removed.
+ * Groups created from a pair of authors are only returned from the cache if
+ * they were created for a contact, as the authors may not be contacts.
+ */
+@ThreadSafe
 @NotNullByDefault
-class ContactGroupFactoryImpl implements ContactGroupFactory {
+class ContactGroupFactoryImpl implements ContactGroupFactory, EventListener {
+
+	static final List<Class<? extends Event>> EVENT_TYPES =
+			singletonList(ContactRemovedEvent.class);
 
 	private static final byte[] LOCAL_GROUP_DESCRIPTOR = new byte[0];
 
 	private final GroupFactory groupFactory;
 	private final ClientHelper clientHelper;
 
+	private final Object lock = new Object();
+	@GuardedBy("lock")
+	private final Map<CacheKey, CachedGroup> cache = new HashMap<>();
+	// The number of contacts that have been removed
+	@GuardedBy("lock")
+	private long removals = 0;
+
 	@Inject
 	ContactGroupFactoryImpl(GroupFactory groupFactory,
 			ClientHelper clientHelper) {
@@ -41,17 +76,58 @@ class ContactGroupFactoryImpl implements ContactGroupFactory {
 			Contact contact) {
 		AuthorId local = contact.getLocalAuthorId();
 		AuthorId remote = contact.getAuthor().getId();
-		byte[] descriptor = createGroupDescriptor(local, remote);
-		return groupFactory.createGroup(clientId, majorVersion, descriptor);
+		CacheKey key = new CacheKey(clientId, majorVersion, local, remote);
+		long removalsBefore;
+		synchronized (lock) {
+			CachedGroup cached = cache.get(key);
+			if (cached != null) return cached.group;
+			removalsBefore = removals;
+		}
+		Group g = createGroup(clientId, majorVersion, local, remote);
+		synchronized (lock) {
+			// Don't cache the group if any contacts were removed while it was
+			// being created, as the contact may have been one of them
+			if (removals == removalsBefore)
+				cache.put(key, new CachedGroup(g, contact.getId()));
+		}
+		return g;
 	}
 
 	@Override
 	public Group createContactGroup(ClientId clientId, int majorVersion,
 			AuthorId authorId1, AuthorId authorId2) {
+		CacheKey key =
+				new CacheKey(clientId, majorVersion, authorId1, authorId2);
+		synchronized (lock) {
+			CachedGroup cached = cache.get(key);
+			if (cached != null) return cached.group;
+		}
+		return createGroup(clientId, majorVersion, authorId1, authorId2);
+	}
+
+	@Override
+	public void eventOccurred(Event e) {
+		if (e instanceof ContactRemovedEvent) {
+			removeContact(((ContactRemovedEvent) e).getContactId());
+		}
+	}
+
+	private Group createGroup(ClientId clientId, int majorVersion,
+			AuthorId authorId1, AuthorId authorId2) {
 		byte[] descriptor = createGroupDescriptor(authorId1, authorId2);
 		return groupFactory.createGroup(clientId, majorVersion, descriptor);
 	}
 
+	private void removeContact(ContactId c) {
+		synchronized (lock) {
+			removals++;
+			Iterator<CachedGroup> it = cache.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().contactId.equals(c)) it.remove();
+			}
+		}
+	}
+
 	private byte[] createGroupDescriptor(AuthorId local, AuthorId remote) {
 		try {
 			if (local.compareTo(remote) < 0)
@@ -61,4 +137,62 @@ class ContactGroupFactoryImpl implements ContactGroupFactory {
 			throw new RuntimeException(e);
 		}
 	}
+
+	/**
+	 * Identifies a contact group by its client, major version and the
+	 * authors it's shared between, in either order.
+	 */
+	@Immutable
+	@NotNullByDefault
+	private static class CacheKey {
+
+		private final ClientId clientId;
+		private final int majorVersion;
+		private final AuthorId first, second;
+
+		private CacheKey(ClientId clientId, int majorVersion,
+				AuthorId authorId1, AuthorId authorId2) {
+			this.clientId = clientId;
+			this.majorVersion = majorVersion;
+			if (authorId1.compareTo(authorId2) < 0) {
+				first = authorId1;
+				second = authorId2;
+			} else {
+				first = authorId2;
+				second = authorId1;
+			}
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof CacheKey) {
+				CacheKey k = (CacheKey) o;
+				return majorVersion == k.majorVersion &&
+						clientId.equals(k.clientId) &&
+						first.equals(k.first) && second.equals(k.second);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = clientId.hashCode();
+			hash = 31 * hash + majorVersion;
+			hash = 31 * hash + first.hashCode();
+			return 31 * hash + second.hashCode();
+		}
+	}
+
+	@Immutable
+	@NotNullByDefault
+	private static class CachedGroup {
+
+		private final Group group;
+		private final ContactId contactId;
+
+		private CachedGroup(Group group, ContactId contactId) {
+			this.group = group;
+			this.contactId = contactId;
+		}
+	}
 }
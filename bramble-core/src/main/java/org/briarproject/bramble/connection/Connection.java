@@ -1,7 +1,6 @@
 package org.briarproject.bramble.connection;
 
 import org.briarproject.bramble.api.connection.ConnectionRegistry;
-import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
 import org.briarproject.bramble.api.plugin.TransportConnectionReader;
 import org.briarproject.bramble.api.plugin.TransportConnectionWriter;
@@ -49,7 +48,7 @@ abstract class Connection {
 		try {
 			byte[] tag = readTag(reader.getInputStream());
 			return keyManager.getStreamContext(transportId, tag);
-		} catch (IOException | DbException e) {
+		} catch (IOException e) {
 			logException(LOG, WARNING, e);
 			return null;
 		}
@@ -45,9 +45,14 @@ public class CryptoExecutorModule {
 		// Discard tasks that are submitted during shutdown
 		RejectedExecutionHandler policy =
 				new ThreadPoolExecutor.DiscardPolicy();
-		// Create a limited # of threads and keep them in the pool for 60 secs
-		cryptoExecutor = new TimeLoggingExecutor("CryptoExecutor", 0,
-				MAX_EXECUTOR_THREADS, 60, SECONDS, queue, policy);
+		// Create a limited # of threads and keep them in the pool for 60 secs.
+		// With an unbounded queue, the pool never grows beyond its core
+		// size, so the core threads are allowed to time out instead
+		ThreadPoolExecutor executor = new TimeLoggingExecutor(
+				"CryptoExecutor", MAX_EXECUTOR_THREADS, MAX_EXECUTOR_THREADS,
+				60, SECONDS, queue, policy);
+		executor.allowCoreThreadTimeOut(true);
+		cryptoExecutor = executor;
 	}
 
 	@Provides
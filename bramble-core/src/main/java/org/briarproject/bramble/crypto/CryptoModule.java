@@ -32,6 +32,12 @@ public class CryptoModule {
 		return new CryptoComponentImpl(secureRandomProvider, passwordBasedKdf);
 	}
 
+	@Provides
+	@Singleton
+	FrameBufferPool provideFrameBufferPool() {
+		return new FrameBufferPool();
+	}
+
 	@Provides
 	PasswordStrengthEstimator providePasswordStrengthEstimator() {
 		return new PasswordStrengthEstimatorImpl();
@@ -45,16 +51,18 @@ public class CryptoModule {
 
 	@Provides
 	StreamDecrypterFactory provideStreamDecrypterFactory(
-			Provider<AuthenticatedCipher> cipherProvider) {
-		return new StreamDecrypterFactoryImpl(cipherProvider);
+			Provider<AuthenticatedCipher> cipherProvider,
+			FrameBufferPool bufferPool) {
+		return new StreamDecrypterFactoryImpl(cipherProvider, bufferPool);
 	}
 
 	@Provides
 	StreamEncrypterFactory provideStreamEncrypterFactory(
 			CryptoComponent crypto, TransportCrypto transportCrypto,
-			Provider<AuthenticatedCipher> cipherProvider) {
+			Provider<AuthenticatedCipher> cipherProvider,
+			FrameBufferPool bufferPool) {
 		return new StreamEncrypterFactoryImpl(crypto, transportCrypto,
-				cipherProvider);
+				cipherProvider, bufferPool);
 	}
 
 	@Provides
@@ -0,0 +1,57 @@
+package org.briarproject.bramble.crypto;
+
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static org.briarproject.bramble.api.transport.TransportConstants.MAX_FRAME_LENGTH;
+
+/**
+ * A pool of buffers that are big enough to hold a full-size frame. Stream
+ * encrypters and decrypters borrow buffers for the duration of a single
+ * frame, so the number of buffers needed depends on how many frames are
+ * being processed at once rather than how many streams are open.
+ * <p/>
+ * A buffer must not be used after it's been returned to the pool.
+ */
+@ThreadSafe
+@NotNullByDefault
+class FrameBufferPool {
+
+	/**
+	 * The maximum number of idle buffers to keep.
+	 */
+	private static final int MAX_IDLE_BUFFERS = 64;
+
+	private final Object lock = new Object();
+	@GuardedBy("lock")
+	private final Deque<byte[]> idle = new ArrayDeque<>();
+
+	/**
+	 * Returns a buffer of length {@link
+	 * org.briarproject.bramble.api.transport.TransportConstants#MAX_FRAME_LENGTH
+	 * MAX_FRAME_LENGTH}. The contents of the buffer are undefined.
+	 */
+	byte[] acquire() {
+		synchronized (lock) {
+			byte[] buffer = idle.pollFirst();
+			if (buffer != null) return buffer;
+		}
+		return new byte[MAX_FRAME_LENGTH];
+	}
+
+	/**
+	 * Returns a buffer to the pool.
+	 */
+	void release(byte[] buffer) {
+		if (buffer.length != MAX_FRAME_LENGTH)
+			throw new IllegalArgumentException();
+		synchronized (lock) {
+			if (idle.size() < MAX_IDLE_BUFFERS) idle.addFirst(buffer);
+		}
+	}
+}
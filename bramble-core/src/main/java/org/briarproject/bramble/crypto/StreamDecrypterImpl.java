@@ -18,7 +18,6 @@ import static org.briarproject.bramble.api.transport.TransportConstants.FRAME_HE
 import static org.briarproject.bramble.api.transport.TransportConstants.FRAME_HEADER_PLAINTEXT_LENGTH;
 import static org.briarproject.bramble.api.transport.TransportConstants.FRAME_NONCE_LENGTH;
 import static org.briarproject.bramble.api.transport.TransportConstants.MAC_LENGTH;
-import static org.briarproject.bramble.api.transport.TransportConstants.MAX_FRAME_LENGTH;
 import static org.briarproject.bramble.api.transport.TransportConstants.MAX_PAYLOAD_LENGTH;
 import static org.briarproject.bramble.api.transport.TransportConstants.PROTOCOL_VERSION;
 import static org.briarproject.bramble.api.transport.TransportConstants.STREAM_HEADER_LENGTH;
@@ -33,9 +32,10 @@ class StreamDecrypterImpl implements StreamDecrypter {
 
 	private final InputStream in;
 	private final AuthenticatedCipher cipher;
+	private final FrameBufferPool bufferPool;
 	private final long streamNumber;
 	private final SecretKey streamHeaderKey;
-	private final byte[] frameNonce, frameHeader, frameCiphertext;
+	private final byte[] frameNonce, frameHeader;
 
 	@Nullable
 	private SecretKey frameKey;
@@ -43,14 +43,15 @@ class StreamDecrypterImpl implements StreamDecrypter {
 	private boolean finalFrame;
 
 	StreamDecrypterImpl(InputStream in, AuthenticatedCipher cipher,
-			long streamNumber, SecretKey streamHeaderKey) {
+			FrameBufferPool bufferPool, long streamNumber,
+			SecretKey streamHeaderKey) {
 		this.in = in;
 		this.cipher = cipher;
+		this.bufferPool = bufferPool;
 		this.streamNumber = streamNumber;
 		this.streamHeaderKey = streamHeaderKey;
 		frameNonce = new byte[FRAME_NONCE_LENGTH];
 		frameHeader = new byte[FRAME_HEADER_PLAINTEXT_LENGTH];
-		frameCiphertext = new byte[MAX_FRAME_LENGTH];
 		frameKey = null;
 		frameNumber = 0;
 		finalFrame = false;
@@ -66,6 +67,19 @@ class StreamDecrypterImpl implements StreamDecrypter {
 		if (frameNumber < 0) throw new IOException();
 		// Read the stream header if required
 		if (frameKey == null) readStreamHeader();
+		// Borrow a buffer for reading the frame
+		byte[] frameCiphertext = bufferPool.acquire();
+		try {
+			int payloadLength = readFrame(payload, frameCiphertext);
+			frameNumber++;
+			return payloadLength;
+		} finally {
+			bufferPool.release(frameCiphertext);
+		}
+	}
+
+	private int readFrame(byte[] payload, byte[] frameCiphertext)
+			throws IOException {
 		// Read the frame header
 		int offset = 0;
 		while (offset < FRAME_HEADER_LENGTH) {
@@ -113,7 +127,6 @@ class StreamDecrypterImpl implements StreamDecrypter {
 		// If there's any padding it must be all zeroes
 		for (int i = 0; i < paddingLength; i++)
 			if (payload[payloadLength + i] != 0) throw new FormatException();
-		frameNumber++;
 		return payloadLength;
 	}
 
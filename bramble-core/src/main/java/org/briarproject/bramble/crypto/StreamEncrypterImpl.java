@@ -8,6 +8,7 @@ import org.briarproject.bramble.util.ByteUtils;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
@@ -16,7 +17,6 @@ import static org.briarproject.bramble.api.transport.TransportConstants.FRAME_HE
 import static org.briarproject.bramble.api.transport.TransportConstants.FRAME_HEADER_PLAINTEXT_LENGTH;
 import static org.briarproject.bramble.api.transport.TransportConstants.FRAME_NONCE_LENGTH;
 import static org.briarproject.bramble.api.transport.TransportConstants.MAC_LENGTH;
-import static org.briarproject.bramble.api.transport.TransportConstants.MAX_FRAME_LENGTH;
 import static org.briarproject.bramble.api.transport.TransportConstants.MAX_PAYLOAD_LENGTH;
 import static org.briarproject.bramble.api.transport.TransportConstants.PROTOCOL_VERSION;
 import static org.briarproject.bramble.api.transport.TransportConstants.STREAM_HEADER_LENGTH;
@@ -31,22 +31,24 @@ class StreamEncrypterImpl implements StreamEncrypter {
 
 	private final OutputStream out;
 	private final AuthenticatedCipher cipher;
+	private final FrameBufferPool bufferPool;
 	private final SecretKey streamHeaderKey, frameKey;
 	private final long streamNumber;
 	@Nullable
 	private final byte[] tag;
 	private final byte[] streamHeaderNonce;
 	private final byte[] frameNonce, frameHeader;
-	private final byte[] framePlaintext, frameCiphertext;
 
 	private long frameNumber;
 	private boolean writeTag, writeStreamHeader;
 
 	StreamEncrypterImpl(OutputStream out, AuthenticatedCipher cipher,
-			long streamNumber, @Nullable byte[] tag, byte[] streamHeaderNonce,
-			SecretKey streamHeaderKey, SecretKey frameKey) {
+			FrameBufferPool bufferPool, long streamNumber, @Nullable byte[] tag,
+			byte[] streamHeaderNonce, SecretKey streamHeaderKey,
+			SecretKey frameKey) {
 		this.out = out;
 		this.cipher = cipher;
+		this.bufferPool = bufferPool;
 		this.streamNumber = streamNumber;
 		this.tag = tag;
 		this.streamHeaderNonce = streamHeaderNonce;
@@ -54,8 +56,6 @@ class StreamEncrypterImpl implements StreamEncrypter {
 		this.frameKey = frameKey;
 		frameNonce = new byte[FRAME_NONCE_LENGTH];
 		frameHeader = new byte[FRAME_HEADER_PLAINTEXT_LENGTH];
-		framePlaintext = new byte[MAX_PAYLOAD_LENGTH];
-		frameCiphertext = new byte[MAX_FRAME_LENGTH];
 		frameNumber = 0;
 		writeTag = (tag != null);
 		writeStreamHeader = true;
@@ -74,6 +74,24 @@ class StreamEncrypterImpl implements StreamEncrypter {
 		if (writeTag) writeTag();
 		// Write the stream header if required
 		if (writeStreamHeader) writeStreamHeader();
+		// Borrow buffers for encrypting the frame
+		byte[] framePlaintext = bufferPool.acquire();
+		byte[] frameCiphertext = bufferPool.acquire();
+		try {
+			writeFrame(payload, payloadLength, paddingLength, finalFrame,
+					framePlaintext, frameCiphertext);
+		} finally {
+			// Don't leave the plaintext lying around in the pool
+			Arrays.fill(framePlaintext, 0, payloadLength, (byte) 0);
+			bufferPool.release(framePlaintext);
+			bufferPool.release(frameCiphertext);
+		}
+		frameNumber++;
+	}
+
+	private void writeFrame(byte[] payload, int payloadLength,
+			int paddingLength, boolean finalFrame, byte[] framePlaintext,
+			byte[] frameCiphertext) throws IOException {
 		// Encode the frame header
 		FrameEncoder.encodeHeader(frameHeader, finalFrame, payloadLength,
 				paddingLength);
@@ -106,7 +124,6 @@ class StreamEncrypterImpl implements StreamEncrypter {
 		// Write the frame
 		out.write(frameCiphertext, 0, FRAME_HEADER_LENGTH + payloadLength
 				+ paddingLength + MAC_LENGTH);
-		frameNumber++;
 	}
 
 	private void writeTag() throws IOException {
@@ -276,4 +276,37 @@ class TransportCryptoImpl implements TransportCrypto {
 		// The output is the first TAG_LENGTH bytes of the MAC
 		arraycopy(mac, 0, tag, 0, TAG_LENGTH);
 	}
+
+	@Override
+	public void encodeTags(byte[] tags, SecretKey tagKey, int protocolVersion,
+			long firstStreamNumber, int count) {
+		if (count < 0) throw new IllegalArgumentException();
+		if (tags.length < count * TAG_LENGTH)
+			throw new IllegalArgumentException();
+		if (protocolVersion < 0 || protocolVersion > MAX_16_BIT_UNSIGNED)
+			throw new IllegalArgumentException();
+		if (firstStreamNumber < 0 ||
+				firstStreamNumber + count - 1 > MAX_32_BIT_UNSIGNED)
+			throw new IllegalArgumentException();
+		// Initialise the PRF and feed it the part of the input that's the
+		// same for every tag. This processes the key block, so copies of the
+		// PRF only need to process the stream number
+		Blake2bDigest prefix = new Blake2bDigest(tagKey.getBytes(), 32, null,
+				null);
+		int macLength = prefix.getDigestSize();
+		if (macLength < TAG_LENGTH) throw new IllegalStateException();
+		byte[] protocolVersionBytes = new byte[INT_16_BYTES];
+		writeUint16(protocolVersion, protocolVersionBytes, 0);
+		prefix.update(protocolVersionBytes, 0, protocolVersionBytes.length);
+		byte[] streamNumberBytes = new byte[INT_64_BYTES];
+		byte[] mac = new byte[macLength];
+		for (int i = 0; i < count; i++) {
+			Digest prf = new Blake2bDigest(prefix);
+			writeUint64(firstStreamNumber + i, streamNumberBytes, 0);
+			prf.update(streamNumberBytes, 0, streamNumberBytes.length);
+			prf.doFinal(mac, 0);
+			// Each tag is the first TAG_LENGTH bytes of the MAC
+			arraycopy(mac, 0, tags, i * TAG_LENGTH, TAG_LENGTH);
+		}
+	}
 }
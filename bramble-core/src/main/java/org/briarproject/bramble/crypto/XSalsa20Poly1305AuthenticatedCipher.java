@@ -10,7 +10,9 @@ import org.spongycastle.crypto.params.KeyParameter;
 import org.spongycastle.crypto.params.ParametersWithIV;
 
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 
 import static org.briarproject.bramble.api.transport.TransportConstants.MAC_LENGTH;
@@ -38,20 +40,31 @@ class XSalsa20Poly1305AuthenticatedCipher implements AuthenticatedCipher {
 
 	private final XSalsa20Engine xSalsa20Engine;
 	private final Poly1305 poly1305;
+	// Reused between calls to avoid allocating them for every frame
+	private final byte[] zero, subKey, mac;
 
 	private boolean encrypting;
+	// The key parameter for the most recently used key, which is reused if
+	// the same key is used again
+	@Nullable
+	private SecretKey lastKey = null;
+	@Nullable
+	private KeyParameter lastKeyParameter = null;
 
 	XSalsa20Poly1305AuthenticatedCipher() {
 		xSalsa20Engine = new XSalsa20Engine();
 		poly1305 = new Poly1305();
+		zero = new byte[SUBKEY_LENGTH];
+		subKey = new byte[SUBKEY_LENGTH];
+		mac = new byte[MAC_LENGTH];
 	}
 
 	@Override
 	public void init(boolean encrypt, SecretKey key, byte[] iv)
 			throws GeneralSecurityException {
 		encrypting = encrypt;
-		KeyParameter k = new KeyParameter(key.getBytes());
-		ParametersWithIV params = new ParametersWithIV(k, iv);
+		ParametersWithIV params = new ParametersWithIV(getKeyParameter(key),
+				iv);
 		try {
 			xSalsa20Engine.init(encrypt, params);
 		} catch (IllegalArgumentException e) {
@@ -66,8 +79,6 @@ class XSalsa20Poly1305AuthenticatedCipher implements AuthenticatedCipher {
 			throw new GeneralSecurityException("Invalid MAC");
 		try {
 			// Generate the Poly1305 subkey from an empty array
-			byte[] zero = new byte[SUBKEY_LENGTH];
-			byte[] subKey = new byte[SUBKEY_LENGTH];
 			xSalsa20Engine.processBytes(zero, 0, SUBKEY_LENGTH, subKey, 0);
 
 			// Clamp the subkey
@@ -79,7 +90,6 @@ class XSalsa20Poly1305AuthenticatedCipher implements AuthenticatedCipher {
 
 			// If we are decrypting, verify the MAC
 			if (!encrypting) {
-				byte[] mac = new byte[MAC_LENGTH];
 				poly1305.update(input, inputOff + MAC_LENGTH, len - MAC_LENGTH);
 				poly1305.doFinal(mac, 0);
 				// Constant-time comparison
@@ -105,6 +115,10 @@ class XSalsa20Poly1305AuthenticatedCipher implements AuthenticatedCipher {
 			return encrypting ? processed + MAC_LENGTH : processed;
 		} catch (DataLengthException e) {
 			throw new GeneralSecurityException(e.getMessage());
+		} finally {
+			// Don't keep the one-time Poly1305 key or the MAC in memory
+			Arrays.fill(subKey, (byte) 0);
+			Arrays.fill(mac, (byte) 0);
 		}
 	}
 
@@ -112,4 +126,13 @@ class XSalsa20Poly1305AuthenticatedCipher implements AuthenticatedCipher {
 	public int getMacBytes() {
 		return MAC_LENGTH;
 	}
+
+	private KeyParameter getKeyParameter(SecretKey key) {
+		// Stream encrypters and decrypters use the same key for every frame
+		if (key != lastKey || lastKeyParameter == null) {
+			lastKeyParameter = new KeyParameter(key.getBytes());
+			lastKey = key;
+		}
+		return lastKeyParameter;
+	}
 }
@@ -0,0 +1,410 @@
+package org.briarproject.bramble.data;
+
+import org.briarproject.bramble.api.FormatException;
+import org.briarproject.bramble.api.data.BdfDictionary;
+import org.briarproject.bramble.api.data.BdfList;
+import org.briarproject.bramble.api.data.BdfReader;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import java.nio.ByteBuffer;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import static java.lang.System.arraycopy;
+import static org.briarproject.bramble.api.data.BdfDictionary.NULL_VALUE;
+import static org.briarproject.bramble.data.Types.DICTIONARY;
+import static org.briarproject.bramble.data.Types.END;
+import static org.briarproject.bramble.data.Types.FALSE;
+import static org.briarproject.bramble.data.Types.FLOAT_64;
+import static org.briarproject.bramble.data.Types.INT_16;
+import static org.briarproject.bramble.data.Types.INT_32;
+import static org.briarproject.bramble.data.Types.INT_64;
+import static org.briarproject.bramble.data.Types.INT_8;
+import static org.briarproject.bramble.data.Types.LIST;
+import static org.briarproject.bramble.data.Types.NULL;
+import static org.briarproject.bramble.data.Types.RAW_16;
+import static org.briarproject.bramble.data.Types.RAW_32;
+import static org.briarproject.bramble.data.Types.RAW_8;
+import static org.briarproject.bramble.data.Types.STRING_16;
+import static org.briarproject.bramble.data.Types.STRING_32;
+import static org.briarproject.bramble.data.Types.STRING_8;
+import static org.briarproject.bramble.data.Types.TRUE;
+import static org.briarproject.bramble.util.StringUtils.fromUtf8;
+
+/**
+ * A {@link BdfReader} that reads from a slice of a byte array. Unlike
+ * {@link BdfReaderImpl} it doesn't need to copy the input into a buffer:
+ * strings are decoded directly from the array, values are skipped by moving
+ * a cursor, and {@link #readRawView()} returns raw values without copying
+ * them.
+ */
+@NotThreadSafe
+@NotNullByDefault
+class BdfBufferReader implements BdfReader {
+
+	private static final byte[] EMPTY_BUFFER = new byte[0];
+
+	private final byte[] data;
+	private final int end, nestedLimit, maxBufferSize;
+
+	private int pos;
+
+	BdfBufferReader(byte[] data, int off, int len, int nestedLimit,
+			int maxBufferSize) {
+		if (off < 0 || len < 0 || off + len > data.length)
+			throw new IllegalArgumentException();
+		this.data = data;
+		this.nestedLimit = nestedLimit;
+		this.maxBufferSize = maxBufferSize;
+		pos = off;
+		end = off + len;
+	}
+
+	private boolean hasType() {
+		return pos < end;
+	}
+
+	/**
+	 * Checks that the given number of bytes are available after the type
+	 * byte at the cursor.
+	 */
+	private void checkAvailable(int length) throws FormatException {
+		if (length < 0 || length > end - pos - 1) throw new FormatException();
+	}
+
+	private int readInt8At(int off) {
+		return data[off];
+	}
+
+	private short readInt16At(int off) {
+		return (short) (((data[off] & 0xFF) << 8) + (data[off + 1] & 0xFF));
+	}
+
+	private int readInt32At(int off) {
+		int value = 0;
+		for (int i = 0; i < 4; i++)
+			value |= (data[off + i] & 0xFF) << (24 - i * 8);
+		return value;
+	}
+
+	private long readInt64At(int off) {
+		long value = 0;
+		for (int i = 0; i < 8; i++)
+			value |= (data[off + i] & 0xFFL) << (56 - i * 8);
+		return value;
+	}
+
+	private Object readObject(int level) throws FormatException {
+		if (hasNull()) {
+			readNull();
+			return NULL_VALUE;
+		}
+		if (hasBoolean()) return readBoolean();
+		if (hasLong()) return readLong();
+		if (hasDouble()) return readDouble();
+		if (hasString()) return readString();
+		if (hasRaw()) return readRaw();
+		if (hasList()) return readList(level);
+		if (hasDictionary()) return readDictionary(level);
+		throw new FormatException();
+	}
+
+	private void skipObject() throws FormatException {
+		if (hasNull()) skipNull();
+		else if (hasBoolean()) skipBoolean();
+		else if (hasLong()) skipLong();
+		else if (hasDouble()) skipDouble();
+		else if (hasString()) skipString();
+		else if (hasRaw()) skipRaw();
+		else if (hasList()) skipList();
+		else if (hasDictionary()) skipDictionary();
+		else throw new FormatException();
+	}
+
+	@Override
+	public boolean eof() {
+		return !hasType();
+	}
+
+	@Override
+	public void close() {
+		// Nothing to close
+	}
+
+	@Override
+	public boolean hasNull() {
+		return hasType() && data[pos] == NULL;
+	}
+
+	@Override
+	public void readNull() throws FormatException {
+		if (!hasNull()) throw new FormatException();
+		pos++;
+	}
+
+	@Override
+	public void skipNull() throws FormatException {
+		readNull();
+	}
+
+	@Override
+	public boolean hasBoolean() {
+		return hasType() && (data[pos] == FALSE || data[pos] == TRUE);
+	}
+
+	@Override
+	public boolean readBoolean() throws FormatException {
+		if (!hasBoolean()) throw new FormatException();
+		return data[pos++] == TRUE;
+	}
+
+	@Override
+	public void skipBoolean() throws FormatException {
+		readBoolean();
+	}
+
+	@Override
+	public boolean hasLong() {
+		if (!hasType()) return false;
+		byte next = data[pos];
+		return next == INT_8 || next == INT_16 || next == INT_32 ||
+				next == INT_64;
+	}
+
+	@Override
+	public long readLong() throws FormatException {
+		if (!hasLong()) throw new FormatException();
+		byte next = data[pos];
+		long value;
+		int length;
+		if (next == INT_8) {
+			checkAvailable(length = 1);
+			value = readInt8At(pos + 1);
+		} else if (next == INT_16) {
+			checkAvailable(length = 2);
+			value = readInt16At(pos + 1);
+		} else if (next == INT_32) {
+			checkAvailable(length = 4);
+			value = readInt32At(pos + 1);
+		} else {
+			checkAvailable(length = 8);
+			value = readInt64At(pos + 1);
+		}
+		pos += 1 + length;
+		return value;
+	}
+
+	@Override
+	public void skipLong() throws FormatException {
+		readLong();
+	}
+
+	@Override
+	public boolean hasDouble() {
+		return hasType() && data[pos] == FLOAT_64;
+	}
+
+	@Override
+	public double readDouble() throws FormatException {
+		if (!hasDouble()) throw new FormatException();
+		checkAvailable(8);
+		long value = readInt64At(pos + 1);
+		pos += 9;
+		return Double.longBitsToDouble(value);
+	}
+
+	@Override
+	public void skipDouble() throws FormatException {
+		readDouble();
+	}
+
+	@Override
+	public boolean hasString() {
+		if (!hasType()) return false;
+		byte next = data[pos];
+		return next == STRING_8 || next == STRING_16 || next == STRING_32;
+	}
+
+	@Override
+	public String readString() throws FormatException {
+		if (!hasString()) throw new FormatException();
+		int length = readLength(STRING_8, STRING_16, STRING_32);
+		if (length > maxBufferSize) throw new FormatException();
+		String s = length == 0 ? "" : fromUtf8(data, pos, length);
+		pos += length;
+		return s;
+	}
+
+	/**
+	 * Reads the type and length of a string or raw value, checks that the
+	 * value is available, and leaves the cursor at the start of the value.
+	 */
+	private int readLength(byte type8, byte type16, byte type32)
+			throws FormatException {
+		byte next = data[pos];
+		int length, lengthBytes;
+		if (next == type8) {
+			checkAvailable(lengthBytes = 1);
+			length = readInt8At(pos + 1);
+		} else if (next == type16) {
+			checkAvailable(lengthBytes = 2);
+			length = readInt16At(pos + 1);
+		} else if (next == type32) {
+			checkAvailable(lengthBytes = 4);
+			length = readInt32At(pos + 1);
+		} else {
+			throw new FormatException();
+		}
+		if (length < 0) throw new FormatException();
+		checkAvailable(lengthBytes + length);
+		pos += 1 + lengthBytes;
+		return length;
+	}
+
+	@Override
+	public void skipString() throws FormatException {
+		if (!hasString()) throw new FormatException();
+		int length = readLength(STRING_8, STRING_16, STRING_32);
+		pos += length;
+	}
+
+	@Override
+	public boolean hasRaw() {
+		if (!hasType()) return false;
+		byte next = data[pos];
+		return next == RAW_8 || next == RAW_16 || next == RAW_32;
+	}
+
+	@Override
+	public byte[] readRaw() throws FormatException {
+		if (!hasRaw()) throw new FormatException();
+		int length = readLength(RAW_8, RAW_16, RAW_32);
+		if (length > maxBufferSize) throw new FormatException();
+		if (length == 0) return EMPTY_BUFFER;
+		byte[] b = new byte[length];
+		arraycopy(data, pos, b, 0, length);
+		pos += length;
+		return b;
+	}
+
+	/**
+	 * Returns a read-only view of the raw value at the cursor, without
+	 * copying it. The view shares the underlying array, so it's only valid
+	 * while the array isn't modified.
+	 */
+	@Override
+	public ByteBuffer readRawView() throws FormatException {
+		if (!hasRaw()) throw new FormatException();
+		int length = readLength(RAW_8, RAW_16, RAW_32);
+		if (length > maxBufferSize) throw new FormatException();
+		ByteBuffer view = ByteBuffer.wrap(data, pos, length).slice();
+		pos += length;
+		return view.asReadOnlyBuffer();
+	}
+
+	@Override
+	public void skipRaw() throws FormatException {
+		if (!hasRaw()) throw new FormatException();
+		int length = readLength(RAW_8, RAW_16, RAW_32);
+		pos += length;
+	}
+
+	@Override
+	public boolean hasList() {
+		return hasType() && data[pos] == LIST;
+	}
+
+	@Override
+	public BdfList readList() throws FormatException {
+		return readList(1);
+	}
+
+	private BdfList readList(int level) throws FormatException {
+		if (!hasList()) throw new FormatException();
+		if (level > nestedLimit) throw new FormatException();
+		BdfList list = new BdfList();
+		readListStart();
+		while (!hasListEnd()) list.add(readObject(level + 1));
+		readListEnd();
+		return list;
+	}
+
+	@Override
+	public void readListStart() throws FormatException {
+		if (!hasList()) throw new FormatException();
+		pos++;
+	}
+
+	@Override
+	public boolean hasListEnd() {
+		return hasEnd();
+	}
+
+	private boolean hasEnd() {
+		return hasType() && data[pos] == END;
+	}
+
+	@Override
+	public void readListEnd() throws FormatException {
+		readEnd();
+	}
+
+	private void readEnd() throws FormatException {
+		if (!hasEnd()) throw new FormatException();
+		pos++;
+	}
+
+	@Override
+	public void skipList() throws FormatException {
+		readListStart();
+		while (!hasListEnd()) skipObject();
+		pos++;
+	}
+
+	@Override
+	public boolean hasDictionary() {
+		return hasType() && data[pos] == DICTIONARY;
+	}
+
+	@Override
+	public BdfDictionary readDictionary() throws FormatException {
+		return readDictionary(1);
+	}
+
+	private BdfDictionary readDictionary(int level) throws FormatException {
+		if (!hasDictionary()) throw new FormatException();
+		if (level > nestedLimit) throw new FormatException();
+		BdfDictionary dictionary = new BdfDictionary();
+		readDictionaryStart();
+		while (!hasDictionaryEnd())
+			dictionary.put(readString(), readObject(level + 1));
+		readDictionaryEnd();
+		return dictionary;
+	}
+
+	@Override
+	public void readDictionaryStart() throws FormatException {
+		if (!hasDictionary()) throw new FormatException();
+		pos++;
+	}
+
+	@Override
+	public boolean hasDictionaryEnd() {
+		return hasEnd();
+	}
+
+	@Override
+	public void readDictionaryEnd() throws FormatException {
+		readEnd();
+	}
+
+	@Override
+	public void skipDictionary() throws FormatException {
+		readDictionaryStart();
+		while (!hasDictionaryEnd()) {
+			skipString();
+			skipObject();
+		}
+		pos++;
+	}
+}
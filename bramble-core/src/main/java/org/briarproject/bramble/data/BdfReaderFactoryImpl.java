@@ -5,6 +5,7 @@ import org.briarproject.bramble.api.data.BdfReaderFactory;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import javax.annotation.concurrent.Immutable;
 
@@ -26,4 +27,27 @@ class BdfReaderFactoryImpl implements BdfReaderFactory {
 			int maxBufferSize) {
 		return new BdfReaderImpl(in, nestedLimit, maxBufferSize);
 	}
+
+	@Override
+	public BdfReader createReader(byte[] b, int off, int len) {
+		return new BdfBufferReader(b, off, len, DEFAULT_NESTED_LIMIT,
+				DEFAULT_MAX_BUFFER_SIZE);
+	}
+
+	@Override
+	public BdfReader createReader(byte[] b, int off, int len,
+			int nestedLimit, int maxBufferSize) {
+		return new BdfBufferReader(b, off, len, nestedLimit, maxBufferSize);
+	}
+
+	@Override
+	public BdfReader createReader(ByteBuffer buf) {
+		if (buf.hasArray()) {
+			return createReader(buf.array(),
+					buf.arrayOffset() + buf.position(), buf.remaining());
+		}
+		byte[] b = new byte[buf.remaining()];
+		buf.duplicate().get(b);
+		return createReader(b, 0, b.length);
+	}
 }
@@ -32,6 +32,7 @@ import org.briarproject.bramble.api.transport.KeySetId;
 import org.briarproject.bramble.api.transport.TransportKeySet;
 import org.briarproject.bramble.api.transport.TransportKeys;
 
+import java.io.InputStream;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -85,6 +86,14 @@ interface Database<T> {
 	 */
 	void commitTransaction(T txn) throws DbException;
 
+	/**
+	 * Returns true if the given exception was thrown because a transaction
+	 * conflicted with a concurrent transaction, for example by waiting too
+	 * long for a lock or by deadlocking. The transaction may succeed if it's
+	 * aborted and retried.
+	 */
+	boolean isConflict(DbException e);
+
 	/**
 	 * Stores a contact associated with the given local and remote pseudonyms,
 	 * and returns an ID for the contact.
@@ -340,6 +349,27 @@ interface Database<T> {
 	 */
 	Message getMessage(T txn, MessageId m) throws DbException;
 
+	/**
+	 * Returns the messages with the given IDs, in the same order as the IDs.
+	 * <p/>
+	 * Read-only.
+	 *
+	 * @throws MessageDeletedException if any of the messages has been deleted
+	 */
+	List<Message> getMessages(T txn, Collection<MessageId> ids)
+			throws DbException;
+
+	/**
+	 * Returns a stream for reading the body of the message with the given
+	 * ID. Large bodies are decrypted as they're read rather than being loaded
+	 * into memory. The caller is responsible for closing the stream.
+	 * <p/>
+	 * Read-only.
+	 *
+	 * @throws MessageDeletedException if the message has been deleted
+	 */
+	InputStream getMessageBody(T txn, MessageId m) throws DbException;
+
 	/**
 	 * Returns the IDs and states of all dependencies of the given message.
 	 * For missing dependencies and dependencies in other groups, the state
@@ -738,6 +768,14 @@ interface Database<T> {
 	void updateExpiryTimeAndEta(T txn, ContactId c, MessageId m, int maxLatency)
 			throws DbException;
 
+	/**
+	 * Updates the transmission counts, expiry times and estimated times of
+	 * arrival of the given messages with respect to the given contact, using
+	 * the latency of the transport over which they were sent.
+	 */
+	void updateExpiryTimeAndEta(T txn, ContactId c, Collection<MessageId> ids,
+			int maxLatency) throws DbException;
+
 	/**
 	 * Stores the given transport keys, deleting any keys they have replaced.
 	 */
@@ -71,6 +71,7 @@ import org.briarproject.bramble.api.transport.KeySetId;
 import org.briarproject.bramble.api.transport.TransportKeySet;
 import org.briarproject.bramble.api.transport.TransportKeys;
 
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -78,7 +79,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
@@ -92,9 +92,8 @@ import static org.briarproject.bramble.api.sync.Group.Visibility.SHARED;
 import static org.briarproject.bramble.api.sync.validation.MessageState.DELIVERED;
 import static org.briarproject.bramble.api.sync.validation.MessageState.UNKNOWN;
 import static org.briarproject.bramble.db.DatabaseConstants.MAX_OFFERED_MESSAGES;
-import static org.briarproject.bramble.util.LogUtils.logDuration;
+import static org.briarproject.bramble.db.DatabaseConstants.MAX_TRANSACTION_RETRIES;
 import static org.briarproject.bramble.util.LogUtils.logException;
-import static org.briarproject.bramble.util.LogUtils.now;
 
 @ThreadSafe
 @NotNullByDefault
@@ -108,20 +107,20 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 	private final EventBus eventBus;
 	private final Executor eventExecutor;
 	private final ShutdownManager shutdownManager;
+	private final TransactionLock lock;
 	private final AtomicBoolean closed = new AtomicBoolean(false);
-	private final ReentrantReadWriteLock lock =
-			new ReentrantReadWriteLock(true);
 	private final Visitor visitor = new CommitActionVisitor();
 
 	@Inject
 	DatabaseComponentImpl(Database<T> db, Class<T> txnClass, EventBus eventBus,
 			@EventExecutor Executor eventExecutor,
-			ShutdownManager shutdownManager) {
+			ShutdownManager shutdownManager, TransactionLock lock) {
 		this.db = db;
 		this.txnClass = txnClass;
 		this.eventBus = eventBus;
 		this.eventExecutor = eventExecutor;
 		this.shutdownManager = shutdownManager;
+		this.lock = lock;
 	}
 
 	@Override
@@ -146,22 +145,22 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 
 	@Override
 	public Transaction startTransaction(boolean readOnly) throws DbException {
-		// Don't allow reentrant locking
-		if (lock.getReadHoldCount() > 0) throw new IllegalStateException();
-		if (lock.getWriteHoldCount() > 0) throw new IllegalStateException();
-		long start = now();
-		if (readOnly) {
-			lock.readLock().lock();
-			logDuration(LOG, "Waiting for read lock", start);
-		} else {
-			lock.writeLock().lock();
-			logDuration(LOG, "Waiting for write lock", start);
-		}
+		return start(readOnly, null);
+	}
+
+	@Override
+	public Transaction startTransaction(boolean readOnly, ContactId scope)
+			throws DbException {
+		return start(readOnly, scope);
+	}
+
+	private Transaction start(boolean readOnly, @Nullable ContactId scope)
+			throws DbException {
+		lock.lock(readOnly, scope);
 		try {
 			return new Transaction(db.startTransaction(), readOnly);
 		} catch (DbException | RuntimeException e) {
-			if (readOnly) lock.readLock().unlock();
-			else lock.writeLock().unlock();
+			lock.unlock(readOnly);
 			throw e;
 		}
 	}
@@ -185,8 +184,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 				db.abortTransaction(txn);
 			}
 		} finally {
-			if (transaction.isReadOnly()) lock.readLock().unlock();
-			else lock.writeLock().unlock();
+			lock.unlock(transaction.isReadOnly());
 		}
 	}
 
@@ -202,6 +200,15 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		}
 	}
 
+	@Override
+	public <E extends Exception> void transaction(boolean readOnly,
+			ContactId scope, DbRunnable<E> task) throws DbException, E {
+		scopedTransaction(readOnly, scope, txn -> {
+			task.run(txn);
+			return null;
+		});
+	}
+
 	@Override
 	public <R, E extends Exception> R transactionWithResult(boolean readOnly,
 			DbCallable<R, E> task) throws DbException, E {
@@ -215,6 +222,12 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		}
 	}
 
+	@Override
+	public <R, E extends Exception> R transactionWithResult(boolean readOnly,
+			ContactId scope, DbCallable<R, E> task) throws DbException, E {
+		return scopedTransaction(readOnly, scope, task::call);
+	}
+
 	@Override
 	public <R, E extends Exception> R transactionWithNullableResult(
 			boolean readOnly, NullableDbCallable<R, E> task)
@@ -229,6 +242,46 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		}
 	}
 
+	@Override
+	public <R, E extends Exception> R transactionWithNullableResult(
+			boolean readOnly, ContactId scope,
+			NullableDbCallable<R, E> task) throws DbException, E {
+		return scopedTransaction(readOnly, scope, task);
+	}
+
+	/**
+	 * Runs the given task within a transaction scoped to the given contact.
+	 * Transactions for different contacts may run concurrently, so if the
+	 * task fails because it conflicts with a concurrent transaction, the
+	 * transaction is aborted and the task is retried. Failures while
+	 * committing aren't retried.
+	 */
+	@Nullable
+	private <R, E extends Exception> R scopedTransaction(boolean readOnly,
+			ContactId scope, NullableDbCallable<R, E> task)
+			throws DbException, E {
+		for (int retries = 0; ; retries++) {
+			Transaction txn = startTransaction(readOnly, scope);
+			try {
+				R result;
+				try {
+					result = task.call(txn);
+				} catch (DbException e) {
+					if (retries == MAX_TRANSACTION_RETRIES ||
+							!db.isConflict(e)) {
+						throw e;
+					}
+					LOG.info("Transaction conflicted, retrying");
+					continue;
+				}
+				commitTransaction(txn);
+				return result;
+			} finally {
+				endTransaction(txn);
+			}
+		}
+	}
+
 	private T unbox(Transaction transaction) {
 		if (transaction.isCommitted()) throw new IllegalStateException();
 		return txnClass.cast(transaction.unbox());
@@ -413,12 +466,9 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 			throw new NoSuchContactException();
 		Collection<MessageId> ids =
 				db.getMessagesToSend(txn, c, maxLength, maxLatency);
-		List<Message> messages = new ArrayList<>(ids.size());
-		for (MessageId m : ids) {
-			messages.add(db.getMessage(txn, m));
-			db.updateExpiryTimeAndEta(txn, c, m, maxLatency);
-		}
 		if (ids.isEmpty()) return null;
+		List<Message> messages = db.getMessages(txn, ids);
+		db.updateExpiryTimeAndEta(txn, c, ids, maxLatency);
 		db.lowerRequestedFlag(txn, c, ids);
 		transaction.attach(new MessagesSentEvent(c, ids));
 		return messages;
@@ -435,8 +485,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		Collection<MessageId> ids =
 				db.getMessagesToOffer(txn, c, maxMessages, maxLatency);
 		if (ids.isEmpty()) return null;
-		for (MessageId m : ids)
-			db.updateExpiryTimeAndEta(txn, c, m, maxLatency);
+		db.updateExpiryTimeAndEta(txn, c, ids, maxLatency);
 		return new Offer(ids);
 	}
 
@@ -465,12 +514,9 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 			throw new NoSuchContactException();
 		Collection<MessageId> ids =
 				db.getRequestedMessagesToSend(txn, c, maxLength, maxLatency);
-		List<Message> messages = new ArrayList<>(ids.size());
-		for (MessageId m : ids) {
-			messages.add(db.getMessage(txn, m));
-			db.updateExpiryTimeAndEta(txn, c, m, maxLatency);
-		}
 		if (ids.isEmpty()) return null;
+		List<Message> messages = db.getMessages(txn, ids);
+		db.updateExpiryTimeAndEta(txn, c, ids, maxLatency);
 		db.lowerRequestedFlag(txn, c, ids);
 		transaction.attach(new MessagesSentEvent(c, ids));
 		return messages;
@@ -567,6 +613,15 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		return db.getMessage(txn, m);
 	}
 
+	@Override
+	public InputStream getMessageBody(Transaction transaction, MessageId m)
+			throws DbException {
+		T txn = unbox(transaction);
+		if (!db.containsMessage(txn, m))
+			throw new NoSuchMessageException();
+		return db.getMessageBody(txn, m);
+	}
+
 	@Override
 	public Collection<MessageId> getMessageIds(Transaction transaction,
 			GroupId g) throws DbException {
@@ -37,4 +37,32 @@ interface DatabaseConstants {
 	 * has passed since the last compaction.
 	 */
 	long MAX_COMPACTION_INTERVAL_MS = DAYS.toMillis(30);
+
+	/**
+	 * The number of lock stripes used when striped locking is enabled.
+	 * Transactions for contacts that map onto different stripes can run
+	 * concurrently.
+	 */
+	int LOCK_STRIPES = 64;
+
+	/**
+	 * The number of times a scoped transaction is retried if it conflicts
+	 * with a concurrent transaction. Scoped write transactions can run
+	 * concurrently when striped locking is enabled, so the database may
+	 * abort one of them if they wait for each other's row or table locks.
+	 */
+	int MAX_TRANSACTION_RETRIES = 3;
+
+	/**
+	 * The maximum number of prepared statements cached by each database
+	 * connection. This is enough to hold every statement on the sync path.
+	 */
+	int MAX_CACHED_STATEMENTS = 100;
+
+	/**
+	 * The maximum length in bytes of a raw message that's stored in the
+	 * database. Longer messages are stored in the segment store when one is
+	 * available, so the messages table only holds small rows.
+	 */
+	int MAX_INLINE_MESSAGE_LENGTH = 4096;
 }
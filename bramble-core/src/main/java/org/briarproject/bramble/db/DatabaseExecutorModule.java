@@ -1,7 +1,9 @@
 package org.briarproject.bramble.db;
 
 import org.briarproject.bramble.TimeLoggingExecutor;
+import org.briarproject.bramble.api.db.DatabaseConfig;
 import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.ReadOnlyDatabaseExecutor;
 import org.briarproject.bramble.api.lifecycle.LifecycleManager;
 
 import java.util.concurrent.BlockingQueue;
@@ -26,6 +28,9 @@ public class DatabaseExecutorModule {
 		@Inject
 		@DatabaseExecutor
 		ExecutorService executorService;
+		@Inject
+		@ReadOnlyDatabaseExecutor
+		ExecutorService readOnlyExecutorService;
 	}
 
 	private final ExecutorService databaseExecutor;
@@ -57,4 +62,32 @@ public class DatabaseExecutorModule {
 			@DatabaseExecutor ExecutorService dbExecutor) {
 		return dbExecutor;
 	}
+
+	@Provides
+	@Singleton
+	@ReadOnlyDatabaseExecutor
+	ExecutorService provideReadOnlyDatabaseExecutorService(
+			DatabaseConfig config, LifecycleManager lifecycleManager) {
+		int threads = config.getReadOnlyExecutorThreads();
+		// Use an unbounded queue
+		BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+		// Discard tasks that are submitted during shutdown
+		RejectedExecutionHandler policy =
+				new ThreadPoolExecutor.DiscardPolicy();
+		// Use a fixed number of threads and let them time out after 60 secs
+		ThreadPoolExecutor readOnlyExecutor = new TimeLoggingExecutor(
+				"ReadOnlyDatabaseExecutor", threads, threads, 60, SECONDS,
+				queue, policy);
+		readOnlyExecutor.allowCoreThreadTimeOut(true);
+		lifecycleManager.registerForShutdown(readOnlyExecutor);
+		return readOnlyExecutor;
+	}
+
+	@Provides
+	@Singleton
+	@ReadOnlyDatabaseExecutor
+	Executor provideReadOnlyDatabaseExecutor(
+			@ReadOnlyDatabaseExecutor ExecutorService readOnlyExecutor) {
+		return readOnlyExecutor;
+	}
 }
@@ -1,5 +1,6 @@
 package org.briarproject.bramble.db;
 
+import org.briarproject.bramble.api.crypto.CryptoComponent;
 import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.DatabaseConfig;
 import org.briarproject.bramble.api.db.TransactionManager;
@@ -8,7 +9,10 @@ import org.briarproject.bramble.api.event.EventExecutor;
 import org.briarproject.bramble.api.lifecycle.ShutdownManager;
 import org.briarproject.bramble.api.sync.MessageFactory;
 import org.briarproject.bramble.api.system.Clock;
+import org.briarproject.bramble.api.transport.StreamReaderFactory;
+import org.briarproject.bramble.api.transport.StreamWriterFactory;
 
+import java.io.File;
 import java.sql.Connection;
 import java.util.concurrent.Executor;
 
@@ -17,23 +21,35 @@ import javax.inject.Singleton;
 import dagger.Module;
 import dagger.Provides;
 
+import static org.briarproject.bramble.db.DatabaseConstants.LOCK_STRIPES;
+
 @Module
 public class DatabaseModule {
 
 	@Provides
 	@Singleton
 	Database<Connection> provideDatabase(DatabaseConfig config,
-			MessageFactory messageFactory, Clock clock) {
-		return new H2Database(config, messageFactory, clock);
+			MessageFactory messageFactory, Clock clock, CryptoComponent crypto,
+			StreamReaderFactory streamReaderFactory,
+			StreamWriterFactory streamWriterFactory) {
+		File segmentDir = new File(config.getDatabaseDirectory(), "segments");
+		SegmentStore segmentStore = new SegmentStore(segmentDir, crypto,
+				streamReaderFactory, streamWriterFactory);
+		return new H2Database(config, messageFactory, clock, segmentStore);
 	}
 
 	@Provides
 	@Singleton
 	DatabaseComponent provideDatabaseComponent(Database<Connection> db,
-			EventBus eventBus, @EventExecutor Executor eventExecutor,
+			DatabaseConfig config, EventBus eventBus,
+			@EventExecutor Executor eventExecutor,
 			ShutdownManager shutdownManager) {
+		TransactionLock lock;
+		if (config.isStripedLockingEnabled())
+			lock = new StripedTransactionLock(LOCK_STRIPES);
+		else lock = new GlobalTransactionLock();
 		return new DatabaseComponentImpl<>(db, Connection.class, eventBus,
-				eventExecutor, shutdownManager);
+				eventExecutor, shutdownManager, lock);
 	}
 
 	@Provides
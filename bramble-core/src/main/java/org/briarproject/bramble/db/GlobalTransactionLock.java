@@ -0,0 +1,50 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.logging.Logger.getLogger;
+import static org.briarproject.bramble.util.LogUtils.logDuration;
+import static org.briarproject.bramble.util.LogUtils.now;
+
+/**
+ * A {@link TransactionLock} that ignores transaction scopes and uses a
+ * single fair read-write lock for the whole database.
+ */
+@ThreadSafe
+@NotNullByDefault
+class GlobalTransactionLock implements TransactionLock {
+
+	private static final Logger LOG =
+			getLogger(GlobalTransactionLock.class.getName());
+
+	private final ReentrantReadWriteLock lock =
+			new ReentrantReadWriteLock(true);
+
+	@Override
+	public void lock(boolean readOnly, @Nullable ContactId scope) {
+		// Don't allow reentrant locking
+		if (lock.getReadHoldCount() > 0) throw new IllegalStateException();
+		if (lock.getWriteHoldCount() > 0) throw new IllegalStateException();
+		long start = now();
+		if (readOnly) {
+			lock.readLock().lock();
+			logDuration(LOG, "Waiting for read lock", start);
+		} else {
+			lock.writeLock().lock();
+			logDuration(LOG, "Waiting for write lock", start);
+		}
+	}
+
+	@Override
+	public void unlock(boolean readOnly) {
+		if (readOnly) lock.readLock().unlock();
+		else lock.writeLock().unlock();
+	}
+}
@@ -44,6 +44,10 @@ class H2Database extends JdbcDatabase {
 	private static final DatabaseTypes dbTypes = new DatabaseTypes(HASH_TYPE,
 			SECRET_TYPE, BINARY_TYPE, COUNTER_TYPE, STRING_TYPE);
 
+	// SQL states for lock timeouts and concurrent updates of the same row
+	private static final String LOCK_TIMEOUT = "HYT00";
+	private static final String CONCURRENT_UPDATE = "90131";
+
 	private final DatabaseConfig config;
 	private final String url;
 
@@ -53,7 +57,12 @@ class H2Database extends JdbcDatabase {
 	@Inject
 	H2Database(DatabaseConfig config, MessageFactory messageFactory,
 			Clock clock) {
-		super(dbTypes, messageFactory, clock);
+		this(config, messageFactory, clock, null);
+	}
+
+	H2Database(DatabaseConfig config, MessageFactory messageFactory,
+			Clock clock, @Nullable SegmentStore segmentStore) {
+		super(dbTypes, messageFactory, clock, segmentStore);
 		this.config = config;
 		File dir = config.getDatabaseDirectory();
 		String path = new File(dir, "db").getAbsolutePath();
@@ -91,6 +100,13 @@ class H2Database extends JdbcDatabase {
 		}
 	}
 
+	@Override
+	public boolean isConflict(DbException e) {
+		if (super.isConflict(e)) return true;
+		String state = getSqlState(e);
+		return LOCK_TIMEOUT.equals(state) || CONCURRENT_UPDATE.equals(state);
+	}
+
 	@Override
 	protected Connection createConnection() throws DbException, SQLException {
 		SecretKey key = this.key;
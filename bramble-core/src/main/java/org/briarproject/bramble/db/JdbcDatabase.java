@@ -40,13 +40,17 @@ import org.briarproject.bramble.api.transport.KeySetId;
 import org.briarproject.bramble.api.transport.OutgoingKeys;
 import org.briarproject.bramble.api.transport.TransportKeySet;
 import org.briarproject.bramble.api.transport.TransportKeys;
+import org.briarproject.bramble.db.SegmentStore.Location;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -64,11 +68,13 @@ import java.util.logging.Logger;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
+import static java.sql.Types.BIGINT;
 import static java.sql.Types.BINARY;
 import static java.sql.Types.BOOLEAN;
 import static java.sql.Types.INTEGER;
 import static java.sql.Types.VARCHAR;
 import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
 import static java.util.logging.Logger.getLogger;
@@ -82,7 +88,9 @@ import static org.briarproject.bramble.api.sync.validation.MessageState.PENDING;
 import static org.briarproject.bramble.api.sync.validation.MessageState.UNKNOWN;
 import static org.briarproject.bramble.db.DatabaseConstants.DB_SETTINGS_NAMESPACE;
 import static org.briarproject.bramble.db.DatabaseConstants.LAST_COMPACTED_KEY;
+import static org.briarproject.bramble.db.DatabaseConstants.MAX_CACHED_STATEMENTS;
 import static org.briarproject.bramble.db.DatabaseConstants.MAX_COMPACTION_INTERVAL_MS;
+import static org.briarproject.bramble.db.DatabaseConstants.MAX_INLINE_MESSAGE_LENGTH;
 import static org.briarproject.bramble.db.DatabaseConstants.SCHEMA_VERSION_KEY;
 import static org.briarproject.bramble.db.ExponentialBackoff.calculateExpiry;
 import static org.briarproject.bramble.db.JdbcUtils.tryToClose;
@@ -98,13 +106,22 @@ import static org.briarproject.bramble.util.LogUtils.now;
 abstract class JdbcDatabase implements Database<Connection> {
 
 	// Package access for testing
-	static final int CODE_SCHEMA_VERSION = 47;
+	static final int CODE_SCHEMA_VERSION = 49;
 
 	// Time period offsets for incoming transport keys
 	private static final int OFFSET_PREV = -1;
 	private static final int OFFSET_CURR = 0;
 	private static final int OFFSET_NEXT = 1;
 
+	/**
+	 * The number of message IDs in the IN list of a query that looks up
+	 * several messages at once. Shorter lists are padded by repeating the
+	 * last ID, so every query uses the same prepared statement.
+	 */
+	private static final int IDS_PER_QUERY = 64;
+
+	private static final String ID_LIST = createParameterList(IDS_PER_QUERY);
+
 	private static final String CREATE_SETTINGS =
 			"CREATE TABLE settings"
 					+ " (namespace _STRING NOT NULL,"
@@ -181,7 +198,14 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " shared BOOLEAN NOT NULL,"
 					+ " temporary BOOLEAN NOT NULL,"
 					+ " length INT NOT NULL,"
-					+ " raw BLOB," // Null if message has been deleted
+					// Null if message has been deleted or is stored in a
+					// segment
+					+ " raw BLOB,"
+					// The location of the encrypted body if it's stored in a
+					// segment, otherwise null
+					+ " segment INT,"
+					+ " segmentOffset BIGINT,"
+					+ " segmentLength INT,"
 					+ " PRIMARY KEY (messageId),"
 					+ " FOREIGN KEY (groupId)"
 					+ " REFERENCES groups (groupId)"
@@ -255,6 +279,23 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " REFERENCES groups (groupId)"
 					+ " ON DELETE CASCADE)";
 
+	// Status rows that are eligible to be offered or sent to the contact,
+	// kept up to date whenever the eligibility of a status row changes
+	private static final String CREATE_SENDABLE_STATUSES =
+			"CREATE TABLE sendableStatuses"
+					+ " (messageId _HASH NOT NULL,"
+					+ " contactId INT NOT NULL,"
+					+ " groupId _HASH NOT NULL," // Denormalised
+					+ " timestamp BIGINT NOT NULL," // Denormalised
+					+ " length INT NOT NULL," // Denormalised
+					+ " requested BOOLEAN NOT NULL," // Denormalised
+					+ " expiry BIGINT NOT NULL," // Denormalised
+					+ " eta BIGINT NOT NULL," // Denormalised
+					+ " PRIMARY KEY (messageId, contactId),"
+					+ " FOREIGN KEY (messageId, contactId)"
+					+ " REFERENCES statuses (messageId, contactId)"
+					+ " ON DELETE CASCADE)";
+
 	private static final String CREATE_TRANSPORTS =
 			"CREATE TABLE transports"
 					+ " (transportId _STRING NOT NULL,"
@@ -332,16 +373,41 @@ abstract class JdbcDatabase implements Database<Connection> {
 			"CREATE INDEX IF NOT EXISTS statusesByContactIdGroupId"
 					+ " ON statuses (contactId, groupId)";
 
+	private static final String INDEX_MESSAGES_BY_SEGMENT =
+			"CREATE INDEX IF NOT EXISTS messagesBySegment"
+					+ " ON messages (segment)";
+
 	private static final String INDEX_STATUSES_BY_CONTACT_ID_TIMESTAMP =
 			"CREATE INDEX IF NOT EXISTS statusesByContactIdTimestamp"
 					+ " ON statuses (contactId, timestamp)";
 
+	private static final String INDEX_SENDABLE_STATUSES_BY_CONTACT_ID_TIMESTAMP =
+			"CREATE INDEX IF NOT EXISTS sendableStatusesByContactIdTimestamp"
+					+ " ON sendableStatuses (contactId, timestamp)";
+
+	// Copies any status rows that are eligible to be offered or sent into
+	// the sendableStatuses table
+	private static final String INSERT_SENDABLE_STATUSES =
+			"INSERT INTO sendableStatuses (messageId, contactId, groupId,"
+					+ " timestamp, length, requested, expiry, eta)"
+					+ " SELECT messageId, contactId, groupId, timestamp,"
+					+ " length, requested, expiry, eta"
+					+ " FROM statuses"
+					+ " WHERE state = ?"
+					+ " AND groupShared = TRUE AND messageShared = TRUE"
+					+ " AND deleted = FALSE AND seen = FALSE";
+
 	private static final Logger LOG =
 			getLogger(JdbcDatabase.class.getName());
 
 	private final MessageFactory messageFactory;
 	private final Clock clock;
 	private final DatabaseTypes dbTypes;
+	@Nullable
+	private final SegmentStore segmentStore;
+
+	private final PreparedStatementCache statementCache =
+			new PreparedStatementCache(MAX_CACHED_STATEMENTS);
 
 	private final Lock connectionsLock = new ReentrantLock();
 	private final Condition connectionsChanged = connectionsLock.newCondition();
@@ -361,13 +427,23 @@ abstract class JdbcDatabase implements Database<Connection> {
 
 	JdbcDatabase(DatabaseTypes databaseTypes, MessageFactory messageFactory,
 			Clock clock) {
+		this(databaseTypes, messageFactory, clock, null);
+	}
+
+	/**
+	 * @param segmentStore A store for large message bodies, or null if all
+	 * message bodies should be stored in the database
+	 */
+	JdbcDatabase(DatabaseTypes databaseTypes, MessageFactory messageFactory,
+			Clock clock, @Nullable SegmentStore segmentStore) {
 		this.dbTypes = databaseTypes;
 		this.messageFactory = messageFactory;
 		this.clock = clock;
+		this.segmentStore = segmentStore;
 	}
 
 	protected void open(String driverClass, boolean reopen,
-			@SuppressWarnings("unused") SecretKey key,
+			SecretKey key,
 			@Nullable MigrationListener listener) throws DbException {
 		// Load the JDBC driver
 		try {
@@ -388,6 +464,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 				compact = false;
 			}
 			createIndexes(txn);
+			if (segmentStore != null) {
+				segmentStore.open(key, getReferencedSegments(txn));
+				compactSegments(txn);
+			}
 			commitTransaction(txn);
 		} catch (DbException e) {
 			abortTransaction(txn);
@@ -463,7 +543,9 @@ abstract class JdbcDatabase implements Database<Connection> {
 				new Migration43_44(dbTypes),
 				new Migration44_45(),
 				new Migration45_46(),
-				new Migration46_47(dbTypes)
+				new Migration46_47(dbTypes),
+				new Migration47_48(dbTypes),
+				new Migration48_49()
 		);
 	}
 
@@ -510,6 +592,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			s.executeUpdate(dbTypes.replaceTypes(CREATE_MESSAGE_DEPENDENCIES));
 			s.executeUpdate(dbTypes.replaceTypes(CREATE_OFFERS));
 			s.executeUpdate(dbTypes.replaceTypes(CREATE_STATUSES));
+			s.executeUpdate(dbTypes.replaceTypes(CREATE_SENDABLE_STATUSES));
 			s.executeUpdate(dbTypes.replaceTypes(CREATE_TRANSPORTS));
 			s.executeUpdate(dbTypes.replaceTypes(CREATE_PENDING_CONTACTS));
 			s.executeUpdate(dbTypes.replaceTypes(CREATE_OUTGOING_KEYS));
@@ -529,8 +612,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 			s.executeUpdate(INDEX_GROUPS_BY_CLIENT_ID_MAJOR_VERSION);
 			s.executeUpdate(INDEX_MESSAGE_METADATA_BY_GROUP_ID_STATE);
 			s.executeUpdate(INDEX_MESSAGE_DEPENDENCIES_BY_DEPENDENCY_ID);
+			s.executeUpdate(INDEX_MESSAGES_BY_SEGMENT);
 			s.executeUpdate(INDEX_STATUSES_BY_CONTACT_ID_GROUP_ID);
 			s.executeUpdate(INDEX_STATUSES_BY_CONTACT_ID_TIMESTAMP);
+			s.executeUpdate(INDEX_SENDABLE_STATUSES_BY_CONTACT_ID_TIMESTAMP);
 			s.close();
 		} catch (SQLException e) {
 			tryToClose(s, LOG, WARNING);
@@ -538,6 +623,26 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	private Collection<Integer> getReferencedSegments(Connection txn)
+			throws DbException {
+		Statement s = null;
+		ResultSet rs = null;
+		try {
+			s = txn.createStatement();
+			rs = s.executeQuery("SELECT DISTINCT segment FROM messages"
+					+ " WHERE segment IS NOT NULL");
+			Set<Integer> segments = new HashSet<>();
+			while (rs.next()) segments.add(rs.getInt(1));
+			rs.close();
+			s.close();
+			return segments;
+		} catch (SQLException e) {
+			tryToClose(rs, LOG, WARNING);
+			tryToClose(s, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+
 	@Override
 	public Connection startTransaction() throws DbException {
 		Connection txn;
@@ -550,8 +655,8 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 		try {
 			if (txn == null) {
-				// Open a new connection
-				txn = createConnection();
+				// Open a new connection with its own statement cache
+				txn = statementCache.wrap(createConnection());
 				txn.setAutoCommit(false);
 				connectionsLock.lock();
 				try {
@@ -594,6 +699,9 @@ abstract class JdbcDatabase implements Database<Connection> {
 
 	@Override
 	public void commitTransaction(Connection txn) throws DbException {
+		// The transaction may refer to bodies appended to the segment store,
+		// so make sure they're on disk first
+		if (segmentStore != null) segmentStore.sync();
 		try {
 			txn.commit();
 		} catch (SQLException e) {
@@ -608,6 +716,25 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	@Override
+	public boolean isConflict(DbException e) {
+		String state = getSqlState(e);
+		// Class 40 covers deadlocks and serialisation failures
+		return state != null && state.startsWith("40");
+	}
+
+	/**
+	 * Returns the SQL state of the SQLException that caused the given
+	 * exception, or null if the exception wasn't caused by an SQLException.
+	 */
+	@Nullable
+	String getSqlState(DbException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof SQLException)
+			return ((SQLException) cause).getSQLState();
+		return null;
+	}
+
 	void closeAllConnections() throws SQLException {
 		boolean interrupted = false;
 		connectionsLock.lock();
@@ -630,7 +757,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 		} finally {
 			connectionsLock.unlock();
 		}
-
+		if (LOG.isLoggable(INFO)) {
+			LOG.info("Prepared statement cache: "
+					+ statementCache.getHits() + " hits, "
+					+ statementCache.getMisses() + " misses");
+		}
 		if (interrupted) Thread.currentThread().interrupt();
 	}
 
@@ -726,7 +857,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT messageId, timestamp, state, shared,"
-					+ " length, raw IS NULL"
+					+ " length, raw IS NULL AND segment IS NULL"
 					+ " FROM messages"
 					+ " WHERE groupId = ?";
 			ps = txn.prepareStatement(sql);
@@ -788,8 +919,9 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		try {
 			String sql = "INSERT INTO messages (messageId, groupId, timestamp,"
-					+ " state, shared, temporary, length, raw)"
-					+ " VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+					+ " state, shared, temporary, length, raw, segment,"
+					+ " segmentOffset, segmentLength)"
+					+ " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
 			ps = txn.prepareStatement(sql);
 			ps.setBytes(1, m.getId().getBytes());
 			ps.setBytes(2, m.getGroupId().getBytes());
@@ -799,7 +931,21 @@ abstract class JdbcDatabase implements Database<Connection> {
 			ps.setBoolean(6, temporary);
 			byte[] raw = messageFactory.getRawMessage(m);
 			ps.setInt(7, raw.length);
-			ps.setBytes(8, raw);
+			if (segmentStore == null
+					|| raw.length <= MAX_INLINE_MESSAGE_LENGTH) {
+				ps.setBytes(8, raw);
+				ps.setNull(9, INTEGER);
+				ps.setNull(10, BIGINT);
+				ps.setNull(11, INTEGER);
+			} else {
+				// Store the message out of line - if the transaction aborts,
+				// nothing will refer to the appended bytes
+				Location loc = segmentStore.append(raw);
+				ps.setNull(8, BINARY);
+				ps.setInt(9, loc.getSegment());
+				ps.setLong(10, loc.getOffset());
+				ps.setInt(11, loc.getLength());
+			}
 			int affected = ps.executeUpdate();
 			if (affected != 1) throw new DbStateException();
 			ps.close();
@@ -887,6 +1033,22 @@ abstract class JdbcDatabase implements Database<Connection> {
 			int affected = ps.executeUpdate();
 			if (affected != 1) throw new DbStateException();
 			ps.close();
+			if (state == DELIVERED && groupShared && messageShared && !deleted
+					&& !seen) {
+				sql = "INSERT INTO sendableStatuses (messageId, contactId,"
+						+ " groupId, timestamp, length, requested, expiry,"
+						+ " eta)"
+						+ " VALUES (?, ?, ?, ?, ?, FALSE, 0, 0)";
+				ps = txn.prepareStatement(sql);
+				ps.setBytes(1, m.getBytes());
+				ps.setInt(2, c.getInt());
+				ps.setBytes(3, g.getBytes());
+				ps.setLong(4, timestamp);
+				ps.setInt(5, length);
+				affected = ps.executeUpdate();
+				if (affected != 1) throw new DbStateException();
+				ps.close();
+			}
 		} catch (SQLException e) {
 			tryToClose(ps, LOG, WARNING);
 			throw new DbException(e);
@@ -1290,7 +1452,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 	public void deleteMessage(Connection txn, MessageId m) throws DbException {
 		PreparedStatement ps = null;
 		try {
-			String sql = "UPDATE messages SET raw = NULL WHERE messageId = ?";
+			String sql = "UPDATE messages"
+					+ " SET raw = NULL, segment = NULL, segmentOffset = NULL,"
+					+ " segmentLength = NULL"
+					+ " WHERE messageId = ?";
 			ps = txn.prepareStatement(sql);
 			ps.setBytes(1, m.getBytes());
 			int affected = ps.executeUpdate();
@@ -1304,6 +1469,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 			affected = ps.executeUpdate();
 			if (affected < 0) throw new DbStateException();
 			ps.close();
+			// The message can no longer be sent to anyone
+			sql = "DELETE FROM sendableStatuses WHERE messageId = ?";
+			ps = txn.prepareStatement(sql);
+			ps.setBytes(1, m.getBytes());
+			affected = ps.executeUpdate();
+			if (affected < 0) throw new DbStateException();
+			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps, LOG, WARNING);
 			throw new DbException(e);
@@ -1692,7 +1864,9 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			String sql = "SELECT groupId, timestamp, raw FROM messages"
+			String sql = "SELECT groupId, timestamp, raw, segment,"
+					+ " segmentOffset, segmentLength"
+					+ " FROM messages"
 					+ " WHERE messageId = ?";
 			ps = txn.prepareStatement(sql);
 			ps.setBytes(1, m.getBytes());
@@ -1701,14 +1875,224 @@ abstract class JdbcDatabase implements Database<Connection> {
 			GroupId g = new GroupId(rs.getBytes(1));
 			long timestamp = rs.getLong(2);
 			byte[] raw = rs.getBytes(3);
+			Location loc = getLocation(rs, 4);
 			if (rs.next()) throw new DbStateException();
 			rs.close();
 			ps.close();
+			if (raw == null && loc != null)
+				raw = getSegmentStore().readFully(loc);
 			if (raw == null) throw new MessageDeletedException();
-			if (raw.length <= MESSAGE_HEADER_LENGTH) throw new AssertionError();
-			byte[] body = new byte[raw.length - MESSAGE_HEADER_LENGTH];
-			System.arraycopy(raw, MESSAGE_HEADER_LENGTH, body, 0, body.length);
-			return new Message(m, g, timestamp, body);
+			return createMessage(m, g, timestamp, raw);
+		} catch (SQLException e) {
+			tryToClose(rs, LOG, WARNING);
+			tryToClose(ps, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+
+	@Override
+	public List<Message> getMessages(Connection txn, Collection<MessageId> ids)
+			throws DbException {
+		List<MessageId> idList = new ArrayList<>(ids);
+		Map<MessageId, Message> messages = new HashMap<>();
+		// Messages stored in segments are read after the query has finished
+		Map<MessageId, GroupId> groupIds = new HashMap<>();
+		Map<MessageId, Long> timestamps = new HashMap<>();
+		Map<MessageId, Location> locations = new HashMap<>();
+		boolean deleted = false;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT messageId, groupId, timestamp, raw, segment,"
+					+ " segmentOffset, segmentLength"
+					+ " FROM messages"
+					+ " WHERE messageId IN " + ID_LIST;
+			ps = txn.prepareStatement(sql);
+			for (int i = 0; i < idList.size(); i += IDS_PER_QUERY) {
+				setIds(ps, 1, idList, i);
+				rs = ps.executeQuery();
+				while (rs.next()) {
+					MessageId m = new MessageId(rs.getBytes(1));
+					GroupId g = new GroupId(rs.getBytes(2));
+					long timestamp = rs.getLong(3);
+					byte[] raw = rs.getBytes(4);
+					Location loc = getLocation(rs, 5);
+					if (raw != null) {
+						messages.put(m, createMessage(m, g, timestamp, raw));
+					} else if (loc != null) {
+						groupIds.put(m, g);
+						timestamps.put(m, timestamp);
+						locations.put(m, loc);
+					} else {
+						deleted = true;
+					}
+				}
+				rs.close();
+			}
+			ps.close();
+		} catch (SQLException e) {
+			tryToClose(rs, LOG, WARNING);
+			tryToClose(ps, LOG, WARNING);
+			throw new DbException(e);
+		}
+		if (deleted) throw new MessageDeletedException();
+		for (Entry<MessageId, Location> e : locations.entrySet()) {
+			MessageId m = e.getKey();
+			byte[] raw = getSegmentStore().readFully(e.getValue());
+			messages.put(m, createMessage(m, groupIds.get(m),
+					timestamps.get(m), raw));
+		}
+		List<Message> result = new ArrayList<>(idList.size());
+		for (MessageId m : idList) {
+			Message message = messages.get(m);
+			if (message == null) throw new DbStateException();
+			result.add(message);
+		}
+		return result;
+	}
+
+	private Message createMessage(MessageId m, GroupId g, long timestamp,
+			byte[] raw) {
+		if (raw.length <= MESSAGE_HEADER_LENGTH) throw new AssertionError();
+		byte[] body = new byte[raw.length - MESSAGE_HEADER_LENGTH];
+		System.arraycopy(raw, MESSAGE_HEADER_LENGTH, body, 0, body.length);
+		return new Message(m, g, timestamp, body);
+	}
+
+	@Override
+	public InputStream getMessageBody(Connection txn, MessageId m)
+			throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT raw, segment, segmentOffset, segmentLength"
+					+ " FROM messages"
+					+ " WHERE messageId = ?";
+			ps = txn.prepareStatement(sql);
+			ps.setBytes(1, m.getBytes());
+			rs = ps.executeQuery();
+			if (!rs.next()) throw new DbStateException();
+			byte[] raw = rs.getBytes(1);
+			Location loc = getLocation(rs, 2);
+			if (rs.next()) throw new DbStateException();
+			rs.close();
+			ps.close();
+			if (raw != null) {
+				if (raw.length <= MESSAGE_HEADER_LENGTH)
+					throw new AssertionError();
+				return new ByteArrayInputStream(raw, MESSAGE_HEADER_LENGTH,
+						raw.length - MESSAGE_HEADER_LENGTH);
+			}
+			if (loc == null) throw new MessageDeletedException();
+			// Decrypt the body as it's read
+			return getSegmentStore().read(loc, MESSAGE_HEADER_LENGTH);
+		} catch (SQLException e) {
+			tryToClose(rs, LOG, WARNING);
+			tryToClose(ps, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+
+	/**
+	 * Reads a segment location from three consecutive columns of the given
+	 * result set, starting at the given column. Returns null if the columns
+	 * are null.
+	 */
+	@Nullable
+	private Location getLocation(ResultSet rs, int column)
+			throws SQLException {
+		int segment = rs.getInt(column);
+		if (rs.wasNull()) return null;
+		long offset = rs.getLong(column + 1);
+		int length = rs.getInt(column + 2);
+		return new Location(segment, offset, length);
+	}
+
+	private SegmentStore getSegmentStore() throws DbStateException {
+		if (segmentStore == null) throw new DbStateException();
+		return segmentStore;
+	}
+
+	/**
+	 * Copies the remaining bodies in each segment that's less than half full
+	 * to the active segment. The old segments are deleted when the database
+	 * is next opened, as long as nothing refers to them.
+	 * <p/>
+	 * This is done when the database is opened, rather than when messages
+	 * are deleted, so that deleting a message doesn't wait for bodies to be
+	 * copied.
+	 */
+	private void compactSegments(Connection txn) throws DbException {
+		SegmentStore store = getSegmentStore();
+		Statement s = null;
+		ResultSet rs = null;
+		try {
+			// Count the bytes in each segment that are still referred to
+			s = txn.createStatement();
+			rs = s.executeQuery("SELECT segment, SUM(segmentLength)"
+					+ " FROM messages"
+					+ " WHERE segment IS NOT NULL"
+					+ " GROUP BY segment");
+			List<Integer> sparse = new ArrayList<>();
+			while (rs.next()) {
+				int segment = rs.getInt(1);
+				long live = rs.getLong(2);
+				if (live * 2 < store.getSegmentLength(segment))
+					sparse.add(segment);
+			}
+			rs.close();
+			s.close();
+			for (int segment : sparse) compactSegment(txn, store, segment);
+		} catch (SQLException e) {
+			tryToClose(rs, LOG, WARNING);
+			tryToClose(s, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+
+	private void compactSegment(Connection txn, SegmentStore store,
+			int segment) throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT messageId, segmentOffset, segmentLength"
+					+ " FROM messages"
+					+ " WHERE segment = ?";
+			ps = txn.prepareStatement(sql);
+			ps.setInt(1, segment);
+			rs = ps.executeQuery();
+			List<MessageId> ids = new ArrayList<>();
+			List<Location> locations = new ArrayList<>();
+			while (rs.next()) {
+				ids.add(new MessageId(rs.getBytes(1)));
+				locations.add(new Location(segment, rs.getLong(2),
+						rs.getInt(3)));
+			}
+			rs.close();
+			ps.close();
+			if (LOG.isLoggable(INFO)) {
+				LOG.info("Compacting segment " + segment + ", "
+						+ ids.size() + " bodies");
+			}
+			List<Location> copied = store.copy(locations);
+			sql = "UPDATE messages SET segment = ?, segmentOffset = ?,"
+					+ " segmentLength = ?"
+					+ " WHERE messageId = ?";
+			ps = txn.prepareStatement(sql);
+			for (int i = 0; i < ids.size(); i++) {
+				Location to = copied.get(i);
+				ps.setInt(1, to.getSegment());
+				ps.setLong(2, to.getOffset());
+				ps.setInt(3, to.getLength());
+				ps.setBytes(4, ids.get(i).getBytes());
+				ps.addBatch();
+			}
+			int[] batchAffected = ps.executeBatch();
+			if (batchAffected.length != ids.size())
+				throw new DbStateException();
+			for (int rows : batchAffected)
+				if (rows != 1) throw new DbStateException();
+			ps.close();
 		} catch (SQLException e) {
 			tryToClose(rs, LOG, WARNING);
 			tryToClose(ps, LOG, WARNING);
@@ -1814,13 +2198,69 @@ abstract class JdbcDatabase implements Database<Connection> {
 	@Override
 	public Map<MessageId, Metadata> getMessageMetadata(Connection txn,
 			GroupId g, Metadata query) throws DbException {
-		// Retrieve the matching message IDs
-		Collection<MessageId> matches = getMessageIds(txn, g, query);
-		if (matches.isEmpty()) return Collections.emptyMap();
-		// Retrieve the metadata for each match
-		Map<MessageId, Metadata> all = new HashMap<>(matches.size());
-		for (MessageId m : matches) all.put(m, getMessageMetadata(txn, m));
-		return all;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql;
+			if (query.isEmpty()) {
+				// Return all delivered messages, including those without
+				// metadata
+				sql = "SELECT m.messageId, md.metaKey, md.value"
+						+ " FROM messages AS m"
+						+ " LEFT OUTER JOIN messageMetadata AS md"
+						+ " ON m.messageId = md.messageId"
+						+ " WHERE m.groupId = ? AND m.state = ?"
+						+ " ORDER BY m.messageId";
+			} else {
+				// Join the metadata once for each query term, using the
+				// primary key to look up the term's key for each message
+				StringBuilder sb = new StringBuilder();
+				sb.append("SELECT md.messageId, md.metaKey, md.value")
+						.append(" FROM messageMetadata AS md");
+				for (int i = 0; i < query.size(); i++) {
+					sb.append(" JOIN messageMetadata AS q").append(i)
+							.append(" ON q").append(i)
+							.append(".messageId = md.messageId")
+							.append(" AND q").append(i).append(".metaKey = ?")
+							.append(" AND q").append(i).append(".value = ?");
+				}
+				sb.append(" WHERE md.groupId = ? AND md.state = ?")
+						.append(" ORDER BY md.messageId");
+				sql = sb.toString();
+			}
+			ps = txn.prepareStatement(sql);
+			int index = 1;
+			for (Entry<String, byte[]> e : query.entrySet()) {
+				ps.setString(index++, e.getKey());
+				ps.setBytes(index++, e.getValue());
+			}
+			ps.setBytes(index++, g.getBytes());
+			ps.setInt(index, DELIVERED.getValue());
+			rs = ps.executeQuery();
+			// The rows are ordered by message, so each message's metadata
+			// can be built without looking it up in the map
+			Map<MessageId, Metadata> all = new HashMap<>();
+			byte[] lastId = null;
+			Metadata metadata = null;
+			while (rs.next()) {
+				byte[] id = rs.getBytes(1);
+				if (metadata == null || !Arrays.equals(id, lastId)) {
+					lastId = id;
+					metadata = new Metadata();
+					all.put(new MessageId(id), metadata);
+				}
+				String key = rs.getString(2);
+				// The key is null if a message has no metadata
+				if (key != null) metadata.put(key, rs.getBytes(3));
+			}
+			rs.close();
+			ps.close();
+			return all;
+		} catch (SQLException e) {
+			tryToClose(rs, LOG, WARNING);
+			tryToClose(ps, LOG, WARNING);
+			throw new DbException(e);
+		}
 	}
 
 	@Override
@@ -2074,19 +2514,15 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			String sql = "SELECT messageId FROM statuses"
-					+ " WHERE contactId = ? AND state = ?"
-					+ " AND groupShared = TRUE AND messageShared = TRUE"
-					+ " AND deleted = FALSE"
-					+ " AND seen = FALSE AND requested = FALSE"
+			String sql = "SELECT messageId FROM sendableStatuses"
+					+ " WHERE contactId = ? AND requested = FALSE"
 					+ " AND (expiry <= ? OR eta > ?)"
 					+ " ORDER BY timestamp LIMIT ?";
 			ps = txn.prepareStatement(sql);
 			ps.setInt(1, c.getInt());
-			ps.setInt(2, DELIVERED.getValue());
-			ps.setLong(3, now);
-			ps.setLong(4, eta);
-			ps.setInt(5, maxMessages);
+			ps.setLong(2, now);
+			ps.setLong(3, eta);
+			ps.setInt(4, maxMessages);
 			rs = ps.executeQuery();
 			List<MessageId> ids = new ArrayList<>();
 			while (rs.next()) ids.add(new MessageId(rs.getBytes(1)));
@@ -2133,18 +2569,14 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			String sql = "SELECT length, messageId FROM statuses"
-					+ " WHERE contactId = ? AND state = ?"
-					+ " AND groupShared = TRUE AND messageShared = TRUE"
-					+ " AND deleted = FALSE"
-					+ " AND seen = FALSE"
+			String sql = "SELECT length, messageId FROM sendableStatuses"
+					+ " WHERE contactId = ?"
 					+ " AND (expiry <= ? OR eta > ?)"
 					+ " ORDER BY timestamp";
 			ps = txn.prepareStatement(sql);
 			ps.setInt(1, c.getInt());
-			ps.setInt(2, DELIVERED.getValue());
-			ps.setLong(3, now);
-			ps.setLong(4, eta);
+			ps.setLong(2, now);
+			ps.setLong(3, eta);
 			rs = ps.executeQuery();
 			List<MessageId> ids = new ArrayList<>();
 			int total = 0;
@@ -2182,7 +2614,8 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT messageId FROM messages"
-					+ " WHERE state = ? AND raw IS NOT NULL";
+					+ " WHERE state = ?"
+					+ " AND (raw IS NOT NULL OR segment IS NOT NULL)";
 			ps = txn.prepareStatement(sql);
 			ps.setInt(1, state.getValue());
 			rs = ps.executeQuery();
@@ -2232,14 +2665,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			String sql = "SELECT expiry FROM statuses"
-					+ " WHERE contactId = ? AND state = ?"
-					+ " AND groupShared = TRUE AND messageShared = TRUE"
-					+ " AND deleted = FALSE AND seen = FALSE"
+			String sql = "SELECT expiry FROM sendableStatuses"
+					+ " WHERE contactId = ?"
 					+ " ORDER BY expiry LIMIT 1";
 			ps = txn.prepareStatement(sql);
 			ps.setInt(1, c.getInt());
-			ps.setInt(2, DELIVERED.getValue());
 			rs = ps.executeQuery();
 			long nextSendTime = Long.MAX_VALUE;
 			if (rs.next()) {
@@ -2317,18 +2747,14 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			String sql = "SELECT length, messageId FROM statuses"
-					+ " WHERE contactId = ? AND state = ?"
-					+ " AND groupShared = TRUE AND messageShared = TRUE"
-					+ " AND deleted = FALSE"
-					+ " AND seen = FALSE AND requested = TRUE"
+			String sql = "SELECT length, messageId FROM sendableStatuses"
+					+ " WHERE contactId = ? AND requested = TRUE"
 					+ " AND (expiry <= ? OR eta > ?)"
 					+ " ORDER BY timestamp";
 			ps = txn.prepareStatement(sql);
 			ps.setInt(1, c.getInt());
-			ps.setInt(2, DELIVERED.getValue());
-			ps.setLong(3, now);
-			ps.setLong(4, eta);
+			ps.setLong(2, now);
+			ps.setLong(3, eta);
 			rs = ps.executeQuery();
 			List<MessageId> ids = new ArrayList<>();
 			int total = 0;
@@ -2542,6 +2968,23 @@ abstract class JdbcDatabase implements Database<Connection> {
 				if (rows > 1) throw new DbStateException();
 			}
 			ps.close();
+			// Update denormalised column in sendableStatuses
+			sql = "UPDATE sendableStatuses SET requested = FALSE"
+					+ " WHERE messageId = ? AND contactId = ?";
+			ps = txn.prepareStatement(sql);
+			ps.setInt(2, c.getInt());
+			for (MessageId m : requested) {
+				ps.setBytes(1, m.getBytes());
+				ps.addBatch();
+			}
+			batchAffected = ps.executeBatch();
+			if (batchAffected.length != requested.size())
+				throw new DbStateException();
+			for (int rows : batchAffected) {
+				if (rows < 0) throw new DbStateException();
+				if (rows > 1) throw new DbStateException();
+			}
+			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps, LOG, WARNING);
 			throw new DbException(e);
@@ -2769,6 +3212,15 @@ abstract class JdbcDatabase implements Database<Connection> {
 			int affected = ps.executeUpdate();
 			if (affected < 0 || affected > 1) throw new DbStateException();
 			ps.close();
+			// Update denormalised column in sendableStatuses
+			sql = "UPDATE sendableStatuses SET requested = TRUE"
+					+ " WHERE messageId = ? AND contactId = ?";
+			ps = txn.prepareStatement(sql);
+			ps.setBytes(1, m.getBytes());
+			ps.setInt(2, c.getInt());
+			affected = ps.executeUpdate();
+			if (affected < 0 || affected > 1) throw new DbStateException();
+			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps, LOG, WARNING);
 			throw new DbException(e);
@@ -2788,6 +3240,15 @@ abstract class JdbcDatabase implements Database<Connection> {
 			int affected = ps.executeUpdate();
 			if (affected < 0 || affected > 1) throw new DbStateException();
 			ps.close();
+			// The contact has the message, so it no longer needs to be sent
+			sql = "DELETE FROM sendableStatuses"
+					+ " WHERE messageId = ? AND contactId = ?";
+			ps = txn.prepareStatement(sql);
+			ps.setBytes(1, m.getBytes());
+			ps.setInt(2, c.getInt());
+			affected = ps.executeUpdate();
+			if (affected < 0 || affected > 1) throw new DbStateException();
+			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps, LOG, WARNING);
 			throw new DbException(e);
@@ -3015,6 +3476,15 @@ abstract class JdbcDatabase implements Database<Connection> {
 			int affected = ps.executeUpdate();
 			if (affected < 0 || affected > 1) throw new DbStateException();
 			ps.close();
+			// Update denormalised column in sendableStatuses
+			sql = "UPDATE sendableStatuses SET expiry = 0"
+					+ " WHERE messageId = ? AND contactId = ?";
+			ps = txn.prepareStatement(sql);
+			ps.setBytes(1, m.getBytes());
+			ps.setInt(2, c.getInt());
+			affected = ps.executeUpdate();
+			if (affected < 0 || affected > 1) throw new DbStateException();
+			ps.close();
 		} catch (SQLException e) {
 			tryToClose(ps, LOG, WARNING);
 			throw new DbException(e);
@@ -3082,6 +3552,26 @@ abstract class JdbcDatabase implements Database<Connection> {
 			affected = ps.executeUpdate();
 			if (affected < 0) throw new DbStateException();
 			ps.close();
+			// Update the sendable status rows for the messages in the group
+			sql = "DELETE FROM sendableStatuses"
+					+ " WHERE contactId = ? AND groupId = ?";
+			ps = txn.prepareStatement(sql);
+			ps.setInt(1, c.getInt());
+			ps.setBytes(2, g.getBytes());
+			affected = ps.executeUpdate();
+			if (affected < 0) throw new DbStateException();
+			ps.close();
+			if (shared) {
+				sql = INSERT_SENDABLE_STATUSES
+						+ " AND contactId = ? AND groupId = ?";
+				ps = txn.prepareStatement(sql);
+				ps.setInt(1, DELIVERED.getValue());
+				ps.setInt(2, c.getInt());
+				ps.setBytes(3, g.getBytes());
+				affected = ps.executeUpdate();
+				if (affected < 0) throw new DbStateException();
+				ps.close();
+			}
 		} catch (SQLException e) {
 			tryToClose(ps, LOG, WARNING);
 			throw new DbException(e);
@@ -3147,6 +3637,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			affected = ps.executeUpdate();
 			if (affected < 0) throw new DbStateException();
 			ps.close();
+			updateSendableStatuses(txn, m);
 		} catch (SQLException e) {
 			tryToClose(ps, LOG, WARNING);
 			throw new DbException(e);
@@ -3181,6 +3672,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			affected = ps.executeUpdate();
 			if (affected < 0) throw new DbStateException();
 			ps.close();
+			updateSendableStatuses(txn, m);
 			// Update denormalised column in messageDependencies
 			sql = "UPDATE messageDependencies SET messageState = ?"
 					+ " WHERE messageId = ?";
@@ -3272,35 +3764,105 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	/**
+	 * Replaces the sendable status rows for the given message with any of
+	 * its status rows that are currently eligible to be offered or sent.
+	 */
+	private void updateSendableStatuses(Connection txn, MessageId m)
+			throws DbException {
+		PreparedStatement ps = null;
+		try {
+			String sql = "DELETE FROM sendableStatuses WHERE messageId = ?";
+			ps = txn.prepareStatement(sql);
+			ps.setBytes(1, m.getBytes());
+			int affected = ps.executeUpdate();
+			if (affected < 0) throw new DbStateException();
+			ps.close();
+			sql = INSERT_SENDABLE_STATUSES + " AND messageId = ?";
+			ps = txn.prepareStatement(sql);
+			ps.setInt(1, DELIVERED.getValue());
+			ps.setBytes(2, m.getBytes());
+			affected = ps.executeUpdate();
+			if (affected < 0) throw new DbStateException();
+			ps.close();
+		} catch (SQLException e) {
+			tryToClose(ps, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+
 	@Override
 	public void updateExpiryTimeAndEta(Connection txn, ContactId c, MessageId m,
 			int maxLatency) throws DbException {
+		updateExpiryTimeAndEta(txn, c, singletonList(m), maxLatency);
+	}
+
+	@Override
+	public void updateExpiryTimeAndEta(Connection txn, ContactId c,
+			Collection<MessageId> ids, int maxLatency) throws DbException {
+		List<MessageId> idList = new ArrayList<>(ids);
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			String sql = "SELECT txCount FROM statuses"
-					+ " WHERE messageId = ? AND contactId = ?";
+			// Get the transmission count of each message
+			String sql = "SELECT messageId, txCount FROM statuses"
+					+ " WHERE contactId = ? AND messageId IN " + ID_LIST;
 			ps = txn.prepareStatement(sql);
-			ps.setBytes(1, m.getBytes());
-			ps.setInt(2, c.getInt());
-			rs = ps.executeQuery();
-			if (!rs.next()) throw new DbStateException();
-			int txCount = rs.getInt(1);
-			if (rs.next()) throw new DbStateException();
-			rs.close();
+			ps.setInt(1, c.getInt());
+			Map<MessageId, Integer> txCounts = new HashMap<>();
+			for (int i = 0; i < idList.size(); i += IDS_PER_QUERY) {
+				setIds(ps, 2, idList, i);
+				rs = ps.executeQuery();
+				while (rs.next()) {
+					MessageId m = new MessageId(rs.getBytes(1));
+					txCounts.put(m, rs.getInt(2));
+				}
+				rs.close();
+			}
 			ps.close();
+			if (txCounts.size() != idList.size()) throw new DbStateException();
+			long now = clock.currentTimeMillis();
+			long eta = now + maxLatency;
+			long[] expiries = new long[idList.size()];
+			for (int i = 0; i < expiries.length; i++) {
+				int txCount = txCounts.get(idList.get(i));
+				expiries[i] = calculateExpiry(now, maxLatency, txCount);
+			}
 			sql = "UPDATE statuses"
 					+ " SET expiry = ?, txCount = txCount + 1, eta = ?"
 					+ " WHERE messageId = ? AND contactId = ?";
 			ps = txn.prepareStatement(sql);
-			long now = clock.currentTimeMillis();
-			long eta = now + maxLatency;
-			ps.setLong(1, calculateExpiry(now, maxLatency, txCount));
 			ps.setLong(2, eta);
-			ps.setBytes(3, m.getBytes());
 			ps.setInt(4, c.getInt());
-			int affected = ps.executeUpdate();
-			if (affected != 1) throw new DbStateException();
+			for (int i = 0; i < expiries.length; i++) {
+				ps.setLong(1, expiries[i]);
+				ps.setBytes(3, idList.get(i).getBytes());
+				ps.addBatch();
+			}
+			int[] batchAffected = ps.executeBatch();
+			if (batchAffected.length != idList.size())
+				throw new DbStateException();
+			for (int rows : batchAffected)
+				if (rows != 1) throw new DbStateException();
+			ps.close();
+			// Update denormalised columns in sendableStatuses
+			sql = "UPDATE sendableStatuses SET expiry = ?, eta = ?"
+					+ " WHERE messageId = ? AND contactId = ?";
+			ps = txn.prepareStatement(sql);
+			ps.setLong(2, eta);
+			ps.setInt(4, c.getInt());
+			for (int i = 0; i < expiries.length; i++) {
+				ps.setLong(1, expiries[i]);
+				ps.setBytes(3, idList.get(i).getBytes());
+				ps.addBatch();
+			}
+			batchAffected = ps.executeBatch();
+			if (batchAffected.length != idList.size())
+				throw new DbStateException();
+			for (int rows : batchAffected) {
+				if (rows < 0) throw new DbStateException();
+				if (rows > 1) throw new DbStateException();
+			}
 			ps.close();
 		} catch (SQLException e) {
 			tryToClose(rs, LOG, WARNING);
@@ -3309,6 +3871,30 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	/**
+	 * Sets the parameters of an IN list of {@link #IDS_PER_QUERY} message
+	 * IDs, starting at the given parameter index, to the IDs in the given
+	 * list starting at the given offset. If fewer IDs remain than the length
+	 * of the IN list, the last ID is repeated.
+	 */
+	private void setIds(PreparedStatement ps, int parameterIndex,
+			List<MessageId> ids, int offset) throws SQLException {
+		int last = Math.min(offset + IDS_PER_QUERY, ids.size()) - 1;
+		for (int i = 0; i < IDS_PER_QUERY; i++) {
+			MessageId m = ids.get(Math.min(offset + i, last));
+			ps.setBytes(parameterIndex + i, m.getBytes());
+		}
+	}
+
+	private static String createParameterList(int length) {
+		StringBuilder sb = new StringBuilder("(");
+		for (int i = 0; i < length; i++) {
+			if (i > 0) sb.append(", ");
+			sb.append('?');
+		}
+		return sb.append(')').toString();
+	}
+
 	@Override
 	public void updateTransportKeys(Connection txn, TransportKeySet ks)
 			throws DbException {
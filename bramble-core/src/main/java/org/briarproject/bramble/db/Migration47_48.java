@@ -0,0 +1,75 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.db.DbException;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+import static org.briarproject.bramble.api.sync.validation.MessageState.DELIVERED;
+import static org.briarproject.bramble.db.JdbcUtils.tryToClose;
+
+class Migration47_48 implements Migration<Connection> {
+
+	private static final Logger LOG = getLogger(Migration47_48.class.getName());
+
+	private final DatabaseTypes dbTypes;
+
+	Migration47_48(DatabaseTypes dbTypes) {
+		this.dbTypes = dbTypes;
+	}
+
+	@Override
+	public int getStartVersion() {
+		return 47;
+	}
+
+	@Override
+	public int getEndVersion() {
+		return 48;
+	}
+
+	@Override
+	public void migrate(Connection txn) throws DbException {
+		Statement s = null;
+		PreparedStatement ps = null;
+		try {
+			s = txn.createStatement();
+			s.execute(dbTypes.replaceTypes("CREATE TABLE sendableStatuses"
+					+ " (messageId _HASH NOT NULL,"
+					+ " contactId INT NOT NULL,"
+					+ " groupId _HASH NOT NULL,"
+					+ " timestamp BIGINT NOT NULL,"
+					+ " length INT NOT NULL,"
+					+ " requested BOOLEAN NOT NULL,"
+					+ " expiry BIGINT NOT NULL,"
+					+ " eta BIGINT NOT NULL,"
+					+ " PRIMARY KEY (messageId, contactId),"
+					+ " FOREIGN KEY (messageId, contactId)"
+					+ " REFERENCES statuses (messageId, contactId)"
+					+ " ON DELETE CASCADE)"));
+			s.close();
+			ps = txn.prepareStatement("INSERT INTO sendableStatuses"
+					+ " (messageId, contactId, groupId, timestamp, length,"
+					+ " requested, expiry, eta)"
+					+ " SELECT messageId, contactId, groupId, timestamp,"
+					+ " length, requested, expiry, eta"
+					+ " FROM statuses"
+					+ " WHERE state = ?"
+					+ " AND groupShared = TRUE AND messageShared = TRUE"
+					+ " AND deleted = FALSE AND seen = FALSE");
+			ps.setInt(1, DELIVERED.getValue());
+			int affected = ps.executeUpdate();
+			if (affected < 0) throw new DbStateException();
+			ps.close();
+		} catch (SQLException e) {
+			tryToClose(ps, LOG, WARNING);
+			tryToClose(s, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+}
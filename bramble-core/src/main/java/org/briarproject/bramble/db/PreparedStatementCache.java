@@ -0,0 +1,206 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+import static org.briarproject.bramble.db.JdbcUtils.tryToClose;
+
+/**
+ * Wraps JDBC connections so that each connection keeps a bounded LRU cache
+ * of prepared statements, keyed by their SQL.
+ * <p/>
+ * Closing a cached statement returns it to the cache instead of closing it,
+ * so callers can keep using the usual prepare, execute and close pattern.
+ * If a statement is prepared while an earlier statement with the same SQL
+ * is still open on the same connection, the new statement isn't cached.
+ * Closing a wrapped connection closes all its cached statements.
+ */
+@ThreadSafe
+@NotNullByDefault
+class PreparedStatementCache {
+
+	private static final Logger LOG =
+			getLogger(PreparedStatementCache.class.getName());
+
+	private final int maxStatementsPerConnection;
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+
+	PreparedStatementCache(int maxStatementsPerConnection) {
+		this.maxStatementsPerConnection = maxStatementsPerConnection;
+	}
+
+	/**
+	 * Returns a connection that delegates to the given connection and
+	 * caches the statements prepared through it. Like the underlying
+	 * connection, the returned connection must only be used by one thread
+	 * at a time.
+	 */
+	Connection wrap(Connection c) {
+		return (Connection) Proxy.newProxyInstance(getClassLoader(),
+				new Class<?>[] {Connection.class}, new ConnectionHandler(c));
+	}
+
+	/**
+	 * Returns the number of times a cached statement has been reused.
+	 */
+	long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of times a statement has been prepared because
+	 * no cached statement was available.
+	 */
+	long getMisses() {
+		return misses.get();
+	}
+
+	private ClassLoader getClassLoader() {
+		return PreparedStatementCache.class.getClassLoader();
+	}
+
+	@Nullable
+	private static Object invoke(Object target, Method method,
+			@Nullable Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	@NotThreadSafe
+	private class ConnectionHandler implements InvocationHandler {
+
+		private final Connection connection;
+		private final Map<String, CachedStatement> statements =
+				new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+					@Override
+					protected boolean removeEldestEntry(
+							Map.Entry<String, CachedStatement> eldest) {
+						if (size() <= maxStatementsPerConnection) return false;
+						eldest.getValue().evict();
+						return true;
+					}
+				};
+
+		private ConnectionHandler(Connection connection) {
+			this.connection = connection;
+		}
+
+		@Nullable
+		@Override
+		public Object invoke(Object proxy, Method method,
+				@Nullable Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("prepareStatement") && args != null
+					&& args.length == 1) {
+				return prepareStatement((String) args[0]);
+			} else if (name.equals("close")) {
+				for (CachedStatement s : statements.values()) s.evict();
+				statements.clear();
+			}
+			return PreparedStatementCache.invoke(connection, method, args);
+		}
+
+		private PreparedStatement prepareStatement(String sql)
+				throws SQLException {
+			CachedStatement cached = statements.get(sql);
+			if (cached != null && cached.evicted) {
+				// The statement was closed after failing to reset
+				statements.remove(sql);
+				cached = null;
+			}
+			if (cached != null && !cached.inUse) {
+				hits.incrementAndGet();
+				cached.inUse = true;
+				return cached.proxy;
+			}
+			misses.incrementAndGet();
+			PreparedStatement ps = connection.prepareStatement(sql);
+			// Don't replace a cached statement that's still in use
+			if (cached != null) return ps;
+			cached = new CachedStatement(ps);
+			statements.put(sql, cached);
+			return cached.proxy;
+		}
+	}
+
+	@NotThreadSafe
+	private class CachedStatement implements InvocationHandler {
+
+		private final PreparedStatement statement;
+		private final PreparedStatement proxy;
+
+		private boolean inUse = true, evicted = false;
+
+		private CachedStatement(PreparedStatement statement) {
+			this.statement = statement;
+			proxy = (PreparedStatement) Proxy.newProxyInstance(
+					getClassLoader(), new Class<?>[] {PreparedStatement.class},
+					this);
+		}
+
+		@Nullable
+		@Override
+		public Object invoke(Object proxy, Method method,
+				@Nullable Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				release();
+				return null;
+			} else if (name.equals("isClosed")) {
+				return !inUse || statement.isClosed();
+			}
+			return PreparedStatementCache.invoke(statement, method, args);
+		}
+
+		/**
+		 * Returns the statement to the cache, or closes it if it has been
+		 * evicted from the cache while in use.
+		 */
+		private void release() throws SQLException {
+			if (!inUse) return;
+			inUse = false;
+			if (evicted) {
+				statement.close();
+				return;
+			}
+			try {
+				statement.clearParameters();
+				statement.clearBatch();
+			} catch (SQLException e) {
+				evicted = true;
+				statement.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Removes the statement from the cache, closing it unless it's in
+		 * use, in which case it will be closed when it's released.
+		 */
+		private void evict() {
+			evicted = true;
+			if (!inUse) tryToClose(statement, LOG, WARNING);
+		}
+	}
+}
@@ -0,0 +1,383 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.crypto.CryptoComponent;
+import org.briarproject.bramble.api.crypto.SecretKey;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.transport.StreamReaderFactory;
+import org.briarproject.bramble.api.transport.StreamWriter;
+import org.briarproject.bramble.api.transport.StreamWriterFactory;
+import org.briarproject.bramble.util.IoUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.Collections.singletonList;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+import static org.briarproject.bramble.util.IoUtils.tryToClose;
+
+/**
+ * An append-only store for message bodies that are too large to be kept in
+ * the database efficiently. Bodies are appended to numbered segment files,
+ * each body encrypted and authenticated as a separate stream so that it can
+ * be read without reading the rest of its segment.
+ * <p/>
+ * Appended bodies aren't synced to disk until {@link #sync()} is called,
+ * which the database does once before committing each transaction, rather
+ * than once per body.
+ * <p/>
+ * The database records the location of each body. A segment file is never
+ * modified after it stops being the active segment, and it's deleted when the
+ * database is next opened if no body in the database refers to it.
+ */
+@ThreadSafe
+@NotNullByDefault
+class SegmentStore {
+
+	private static final Logger LOG = getLogger(SegmentStore.class.getName());
+
+	static final String SEGMENT_KEY_LABEL =
+			"org.briarproject.bramble.db/SEGMENT_KEY";
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	/**
+	 * The length in bytes after which a new segment is started.
+	 */
+	private static final long MAX_SEGMENT_LENGTH = 16 * 1024 * 1024;
+
+	private final File dir;
+	private final CryptoComponent crypto;
+	private final StreamReaderFactory streamReaderFactory;
+	private final StreamWriterFactory streamWriterFactory;
+
+	private final Object lock = new Object();
+	@GuardedBy("lock")
+	@Nullable
+	private SecretKey key = null;
+	@GuardedBy("lock")
+	private int activeSegment = 0;
+	@GuardedBy("lock")
+	private long activeLength = 0;
+	// Segments that have been appended to since they were last synced
+	@GuardedBy("lock")
+	private final Set<Integer> unsynced = new HashSet<>();
+
+	SegmentStore(File dir, CryptoComponent crypto,
+			StreamReaderFactory streamReaderFactory,
+			StreamWriterFactory streamWriterFactory) {
+		this.dir = dir;
+		this.crypto = crypto;
+		this.streamReaderFactory = streamReaderFactory;
+		this.streamWriterFactory = streamWriterFactory;
+	}
+
+	/**
+	 * Opens the store, deleting any segments that aren't in the given
+	 * collection of segments referred to by the database. New bodies are
+	 * appended to a new segment.
+	 */
+	void open(SecretKey databaseKey, Collection<Integer> referenced)
+			throws DbException {
+		synchronized (lock) {
+			if (!dir.exists() && !dir.mkdirs()) throw new DbException();
+			int highest = 0;
+			File[] files = dir.listFiles();
+			if (files == null) throw new DbException();
+			for (File f : files) {
+				int segment = parseSegmentNumber(f.getName());
+				if (segment == -1) continue;
+				if (referenced.contains(segment)) {
+					highest = Math.max(highest, segment);
+				} else if (f.delete()) {
+					if (LOG.isLoggable(INFO))
+						LOG.info("Deleted unused segment " + segment);
+				} else {
+					LOG.warning("Could not delete unused segment");
+					highest = Math.max(highest, segment);
+				}
+			}
+			key = crypto.deriveKey(SEGMENT_KEY_LABEL, databaseKey);
+			activeSegment = highest + 1;
+			activeLength = 0;
+			// Don't sync segments that may have been deleted
+			unsynced.clear();
+		}
+	}
+
+	/**
+	 * Returns the number of the segment that new bodies are appended to.
+	 */
+	int getActiveSegment() {
+		synchronized (lock) {
+			return activeSegment;
+		}
+	}
+
+	/**
+	 * Returns the length of the given segment in bytes.
+	 */
+	long getSegmentLength(int segment) {
+		return getFile(segment).length();
+	}
+
+	/**
+	 * Encrypts the given body and appends it to the active segment.
+	 */
+	Location append(byte[] body) throws DbException {
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		try {
+			StreamWriter w = streamWriterFactory
+					.createContactExchangeStreamWriter(encrypted, getKey());
+			w.getOutputStream().write(body);
+			w.sendEndOfStream();
+		} catch (IOException e) {
+			throw new DbException(e);
+		}
+		return appendEncrypted(singletonList(encrypted.toByteArray())).get(0);
+	}
+
+	/**
+	 * Copies encrypted bodies from their current locations to the active
+	 * segment and returns their new locations, in the same order.
+	 */
+	List<Location> copy(List<Location> from) throws DbException {
+		List<byte[]> bodies = new ArrayList<>(from.size());
+		for (Location loc : from) {
+			byte[] encrypted = new byte[loc.getLength()];
+			InputStream in = null;
+			try {
+				in = openSegment(loc);
+				IoUtils.read(in, encrypted);
+				in.close();
+			} catch (IOException e) {
+				tryToClose(in, LOG, WARNING);
+				throw new DbException(e);
+			}
+			bodies.add(encrypted);
+		}
+		return appendEncrypted(bodies);
+	}
+
+	/**
+	 * Returns a stream for reading the decrypted body at the given location,
+	 * starting after the given number of bytes. The body is decrypted as it's
+	 * read, so it doesn't need to fit in memory. The caller is responsible
+	 * for closing the stream.
+	 */
+	InputStream read(Location location, int skip) throws DbException {
+		InputStream in = null;
+		try {
+			in = streamReaderFactory.createContactExchangeStreamReader(
+					openSegment(location), getKey());
+			if (skip > 0) IoUtils.read(in, new byte[skip]);
+			return in;
+		} catch (IOException e) {
+			tryToClose(in, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+
+	/**
+	 * Returns the decrypted body at the given location.
+	 */
+	byte[] readFully(Location location) throws DbException {
+		InputStream in = read(location, 0);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int read;
+			while ((read = in.read(buf)) != -1) out.write(buf, 0, read);
+			in.close();
+			return out.toByteArray();
+		} catch (IOException e) {
+			tryToClose(in, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+
+	/**
+	 * Syncs any segments that bodies have been appended to since they were
+	 * last synced. This must be called before committing a transaction that
+	 * refers to appended bodies.
+	 */
+	void sync() throws DbException {
+		synchronized (lock) {
+			for (Iterator<Integer> it = unsynced.iterator(); it.hasNext(); ) {
+				FileOutputStream out = null;
+				try {
+					out = new FileOutputStream(getFile(it.next()), true);
+					out.getFD().sync();
+					out.close();
+				} catch (IOException e) {
+					tryToClose(out, LOG, WARNING);
+					throw new DbException(e);
+				}
+				it.remove();
+			}
+		}
+	}
+
+	private SecretKey getKey() throws DbException {
+		synchronized (lock) {
+			if (key == null) throw new DbException();
+			return key;
+		}
+	}
+
+	private List<Location> appendEncrypted(List<byte[]> bodies)
+			throws DbException {
+		synchronized (lock) {
+			if (activeLength >= MAX_SEGMENT_LENGTH) {
+				activeSegment++;
+				activeLength = 0;
+			}
+			File f = getFile(activeSegment);
+			FileOutputStream out = null;
+			try {
+				out = new FileOutputStream(f, true);
+				long offset = out.getChannel().size();
+				List<Location> locations = new ArrayList<>(bodies.size());
+				for (byte[] encrypted : bodies) {
+					out.write(encrypted);
+					locations.add(new Location(activeSegment, offset,
+							encrypted.length));
+					offset += encrypted.length;
+				}
+				out.close();
+				activeLength = offset;
+				unsynced.add(activeSegment);
+				return locations;
+			} catch (IOException e) {
+				tryToClose(out, LOG, WARNING);
+				throw new DbException(e);
+			}
+		}
+	}
+
+	private InputStream openSegment(Location location) throws IOException {
+		InputStream in = new FileInputStream(getFile(location.getSegment()));
+		try {
+			long remaining = location.getOffset();
+			while (remaining > 0) {
+				long skipped = in.skip(remaining);
+				if (skipped <= 0) throw new EOFException();
+				remaining -= skipped;
+			}
+		} catch (IOException e) {
+			tryToClose(in, LOG, WARNING);
+			throw e;
+		}
+		return new BoundedInputStream(in, location.getLength());
+	}
+
+	private File getFile(int segment) {
+		return new File(dir, segment + SEGMENT_SUFFIX);
+	}
+
+	private static int parseSegmentNumber(String name) {
+		if (!name.endsWith(SEGMENT_SUFFIX)) return -1;
+		try {
+			int segment = Integer.parseInt(name.substring(0,
+					name.length() - SEGMENT_SUFFIX.length()));
+			return segment > 0 ? segment : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * The location of an encrypted body in the store.
+	 */
+	@Immutable
+	@NotNullByDefault
+	static class Location {
+
+		private final int segment, length;
+		private final long offset;
+
+		Location(int segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		int getSegment() {
+			return segment;
+		}
+
+		long getOffset() {
+			return offset;
+		}
+
+		int getLength() {
+			return length;
+		}
+	}
+
+	/**
+	 * Stops reading at the end of a body, so a corrupt body can't cause the
+	 * next body in the segment to be read.
+	 */
+	private static class BoundedInputStream extends FilterInputStream {
+
+		private long remaining;
+
+		private BoundedInputStream(InputStream in, long length) {
+			super(in);
+			remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining == 0) return -1;
+			int b = super.read();
+			if (b != -1) remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0) return -1;
+			int read = super.read(b, off, (int) Math.min(len, remaining));
+			if (read > 0) remaining -= read;
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(Math.min(n, remaining));
+			if (skipped > 0) remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.logging.Logger.getLogger;
+import static org.briarproject.bramble.util.LogUtils.logDuration;
+import static org.briarproject.bramble.util.LogUtils.now;
+
+/**
+ * A {@link TransactionLock} that maps the contact in each transaction's
+ * scope onto one of a fixed number of stripes, so transactions for
+ * different contacts can run concurrently.
+ * <p/>
+ * A fair global lock sits above the stripes. Scoped transactions hold it
+ * for reading, while unscoped write transactions hold it for writing and
+ * therefore exclude all other transactions. Unscoped read-only transactions
+ * hold it for reading and don't take any stripes.
+ */
+@ThreadSafe
+@NotNullByDefault
+class StripedTransactionLock implements TransactionLock {
+
+	private static final Logger LOG =
+			getLogger(StripedTransactionLock.class.getName());
+
+	private final ReentrantReadWriteLock globalLock =
+			new ReentrantReadWriteLock(true);
+	private final ReentrantReadWriteLock[] stripes;
+	// The stripe held by each thread, or null if the thread holds no stripe
+	private final ThreadLocal<Integer> heldStripe = new ThreadLocal<>();
+
+	StripedTransactionLock(int numStripes) {
+		if (numStripes < 1) throw new IllegalArgumentException();
+		stripes = new ReentrantReadWriteLock[numStripes];
+		for (int i = 0; i < numStripes; i++)
+			stripes[i] = new ReentrantReadWriteLock(true);
+	}
+
+	@Override
+	public void lock(boolean readOnly, @Nullable ContactId scope) {
+		// Don't allow reentrant locking
+		if (globalLock.getReadHoldCount() > 0)
+			throw new IllegalStateException();
+		if (globalLock.getWriteHoldCount() > 0)
+			throw new IllegalStateException();
+		long start = now();
+		if (scope == null) {
+			if (readOnly) {
+				globalLock.readLock().lock();
+				logDuration(LOG, "Waiting for read lock", start);
+			} else {
+				globalLock.writeLock().lock();
+				logDuration(LOG, "Waiting for write lock", start);
+			}
+			return;
+		}
+		int i = getStripeIndex(scope);
+		globalLock.readLock().lock();
+		if (readOnly) stripes[i].readLock().lock();
+		else stripes[i].writeLock().lock();
+		heldStripe.set(i);
+		logDuration(LOG, "Waiting for stripe", start);
+	}
+
+	@Override
+	public void unlock(boolean readOnly) {
+		Integer i = heldStripe.get();
+		if (i == null) {
+			if (readOnly) globalLock.readLock().unlock();
+			else globalLock.writeLock().unlock();
+			return;
+		}
+		heldStripe.remove();
+		if (readOnly) stripes[i].readLock().unlock();
+		else stripes[i].writeLock().unlock();
+		globalLock.readLock().unlock();
+	}
+
+	private int getStripeIndex(ContactId c) {
+		return (c.getInt() & 0x7FFFFFFF) % stripes.length;
+	}
+}
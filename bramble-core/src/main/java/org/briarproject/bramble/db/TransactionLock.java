@@ -0,0 +1,30 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import javax.annotation.Nullable;
+
+/**
+ * Controls which database transactions may run concurrently.
+ */
+@NotNullByDefault
+interface TransactionLock {
+
+	/**
+	 * Acquires the locks needed by a transaction that only modifies the
+	 * given contact's data, or by a transaction that may access the whole
+	 * database if the scope is null. Locks are not reentrant: the calling
+	 * thread must not already hold a transaction lock.
+	 *
+	 * @throws IllegalStateException if the calling thread already holds a
+	 * transaction lock.
+	 */
+	void lock(boolean readOnly, @Nullable ContactId scope);
+
+	/**
+	 * Releases the locks acquired by the calling thread's most recent call
+	 * to {@link #lock(boolean, ContactId)}.
+	 */
+	void unlock(boolean readOnly);
+}
@@ -1,26 +1,46 @@
 package org.briarproject.bramble.event;
 
+import org.briarproject.bramble.api.event.CoalescingEventListener;
 import org.briarproject.bramble.api.event.Event;
 import org.briarproject.bramble.api.event.EventBus;
 import org.briarproject.bramble.api.event.EventExecutor;
 import org.briarproject.bramble.api.event.EventListener;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 
+import static java.util.Collections.emptyList;
+
 @ThreadSafe
 @NotNullByDefault
 class EventBusImpl implements EventBus {
 
-	private final Collection<EventListener> listeners =
-			new CopyOnWriteArrayList<>();
 	private final Executor eventExecutor;
 
+	private final Object lock = new Object();
+	@GuardedBy("lock")
+	private final List<Subscription> subscriptions = new ArrayList<>();
+	@GuardedBy("lock")
+	private final List<Mailbox> mailboxes = new ArrayList<>();
+
+	/**
+	 * A snapshot of the current subscriptions, replaced whenever a listener
+	 * is added or removed.
+	 */
+	private volatile DispatchTable dispatchTable =
+			new DispatchTable(emptyList(), emptyList());
+
 	@Inject
 	EventBusImpl(@EventExecutor Executor eventExecutor) {
 		this.eventExecutor = eventExecutor;
@@ -28,18 +48,159 @@ class EventBusImpl implements EventBus {
 
 	@Override
 	public void addListener(EventListener l) {
-		listeners.add(l);
+		addListener(l, emptyList());
+	}
+
+	@Override
+	public void addListener(EventListener l,
+			Collection<Class<? extends Event>> eventTypes) {
+		synchronized (lock) {
+			subscriptions.add(new Subscription(l, eventTypes));
+			updateDispatchTable();
+		}
+	}
+
+	@Override
+	public void addListener(EventListener l, Executor executor,
+			Collection<Class<? extends Event>> eventTypes) {
+		addMailbox(new Mailbox(l, executor, eventTypes));
+	}
+
+	@Override
+	public void addListener(CoalescingEventListener l, Executor executor,
+			int capacity, Collection<Class<? extends Event>> eventTypes) {
+		addMailbox(new Mailbox(l, executor, capacity, eventTypes));
 	}
 
 	@Override
 	public void removeListener(EventListener l) {
-		listeners.remove(l);
+		Mailbox removed = null;
+		synchronized (lock) {
+			for (Iterator<Subscription> it = subscriptions.iterator();
+					it.hasNext(); ) {
+				if (it.next().listener.equals(l)) {
+					it.remove();
+					break;
+				}
+			}
+			for (Iterator<Mailbox> it = mailboxes.iterator(); it.hasNext(); ) {
+				Mailbox m = it.next();
+				if (m.getListener().equals(l)) {
+					it.remove();
+					removed = m;
+					break;
+				}
+			}
+			updateDispatchTable();
+		}
+		if (removed != null) removed.close();
 	}
 
 	@Override
 	public void broadcast(Event e) {
+		Class<? extends Event> type = e.getClass();
+		Route route = dispatchTable.getRoute(type);
+		for (Mailbox m : route.mailboxes) m.add(e);
+		if (route.listeners.isEmpty()) return;
 		eventExecutor.execute(() -> {
-			for (EventListener l : listeners) l.eventOccurred(e);
+			// Look up the listeners again in case any have been removed
+			for (EventListener l : dispatchTable.getRoute(type).listeners)
+				l.eventOccurred(e);
 		});
 	}
+
+	private void addMailbox(Mailbox m) {
+		synchronized (lock) {
+			mailboxes.add(m);
+			updateDispatchTable();
+		}
+	}
+
+	@GuardedBy("lock")
+	private void updateDispatchTable() {
+		dispatchTable = new DispatchTable(new ArrayList<>(subscriptions),
+				new ArrayList<>(mailboxes));
+	}
+
+	@Immutable
+	@NotNullByDefault
+	private static class Subscription {
+
+		private final EventListener listener;
+		private final List<Class<? extends Event>> eventTypes;
+
+		private Subscription(EventListener listener,
+				Collection<Class<? extends Event>> eventTypes) {
+			this.listener = listener;
+			this.eventTypes = new ArrayList<>(eventTypes);
+		}
+
+		private boolean accepts(Class<? extends Event> type) {
+			if (eventTypes.isEmpty()) return true;
+			for (Class<? extends Event> t : eventTypes) {
+				if (t.isAssignableFrom(type)) return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * The listeners and mailboxes interested in a given type of event.
+	 */
+	@Immutable
+	@NotNullByDefault
+	private static class Route {
+
+		private final List<EventListener> listeners;
+		private final List<Mailbox> mailboxes;
+
+		private Route(List<EventListener> listeners, List<Mailbox> mailboxes) {
+			this.listeners = listeners;
+			this.mailboxes = mailboxes;
+		}
+	}
+
+	/**
+	 * Maps each type of event that has been broadcast to the listeners and
+	 * mailboxes interested in it, so that broadcasting an event only costs
+	 * time proportional to the number of interested listeners. Routes are
+	 * computed the first time each type of event is broadcast.
+	 */
+	@ThreadSafe
+	@NotNullByDefault
+	private static class DispatchTable {
+
+		private final List<Subscription> subscriptions;
+		private final List<Mailbox> mailboxes;
+		private final ConcurrentMap<Class<? extends Event>, Route> routes =
+				new ConcurrentHashMap<>();
+
+		private DispatchTable(List<Subscription> subscriptions,
+				List<Mailbox> mailboxes) {
+			this.subscriptions = subscriptions;
+			this.mailboxes = mailboxes;
+		}
+
+		private Route getRoute(Class<? extends Event> type) {
+			Route route = routes.get(type);
+			if (route == null) {
+				route = createRoute(type);
+				Route existing = routes.putIfAbsent(type, route);
+				if (existing != null) route = existing;
+			}
+			return route;
+		}
+
+		private Route createRoute(Class<? extends Event> type) {
+			List<EventListener> l = new ArrayList<>();
+			for (Subscription s : subscriptions) {
+				if (s.accepts(type)) l.add(s.listener);
+			}
+			List<Mailbox> m = new ArrayList<>();
+			for (Mailbox mailbox : mailboxes) {
+				if (mailbox.accepts(type)) m.add(mailbox);
+			}
+			return new Route(l, m);
+		}
+	}
 }
@@ -0,0 +1,253 @@
+package org.briarproject.bramble.event;
+
+import org.briarproject.bramble.api.event.CoalescingEventListener;
+import org.briarproject.bramble.api.event.Event;
+import org.briarproject.bramble.api.event.EventListener;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+import static org.briarproject.bramble.util.LogUtils.logException;
+import static org.briarproject.bramble.util.LogUtils.now;
+
+/**
+ * A queue of events for a listener that's notified on its own executor.
+ * Events are delivered one at a time in the order they were queued. If
+ * the listener throws an exception, the exception is logged and the next
+ * event is delivered.
+ * <p/>
+ * If the listener is a {@link CoalescingEventListener}, an event whose
+ * coalescing key is equal to the key of a queued event is coalesced with
+ * it. The number of queued events with coalescing keys is bounded, and an
+ * event with a coalescing key that arrives when the bound is reached is
+ * dropped. Events without coalescing keys, such as events that tell the
+ * listener to stop, are never coalesced or dropped.
+ */
+@ThreadSafe
+@NotNullByDefault
+class Mailbox {
+
+	private static final Logger LOG = getLogger(Mailbox.class.getName());
+
+	private final EventListener listener;
+	private final Executor executor;
+	private final int capacity;
+	private final Collection<Class<? extends Event>> eventTypes;
+	@Nullable
+	private final CoalescingEventListener coalescingListener;
+
+	private final Object lock = new Object();
+	// Maps the coalescing key of each queued event, or a unique key if the
+	// event can't be coalesced, to the event
+	@GuardedBy("lock")
+	private final Map<Object, QueuedEvent> queue = new LinkedHashMap<>();
+	@GuardedBy("lock")
+	private int queuedWithKeys = 0;
+	@GuardedBy("lock")
+	private boolean scheduled = false, closed = false;
+
+	private final AtomicLong delivered = new AtomicLong(0);
+	private final AtomicLong coalesced = new AtomicLong(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+	private final AtomicLong totalLag = new AtomicLong(0);
+	private final AtomicLong maxLag = new AtomicLong(0);
+
+	/**
+	 * Creates a mailbox for a listener whose events are never coalesced or
+	 * dropped.
+	 */
+	Mailbox(EventListener listener, Executor executor,
+			Collection<Class<? extends Event>> eventTypes) {
+		this(listener, null, executor, 0, eventTypes);
+	}
+
+	/**
+	 * Creates a mailbox for a listener whose events may be coalesced, and
+	 * that holds at most the given number of events with coalescing keys.
+	 */
+	Mailbox(CoalescingEventListener listener, Executor executor,
+			int capacity, Collection<Class<? extends Event>> eventTypes) {
+		this(listener, listener, executor, capacity, eventTypes);
+		if (capacity < 1) throw new IllegalArgumentException();
+	}
+
+	private Mailbox(EventListener listener,
+			@Nullable CoalescingEventListener coalescingListener,
+			Executor executor, int capacity,
+			Collection<Class<? extends Event>> eventTypes) {
+		this.listener = listener;
+		this.coalescingListener = coalescingListener;
+		this.executor = executor;
+		this.capacity = capacity;
+		this.eventTypes = new ArrayList<>(eventTypes);
+	}
+
+	EventListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Returns true if the listener is interested in events of the given
+	 * type.
+	 */
+	boolean accepts(Class<? extends Event> type) {
+		if (eventTypes.isEmpty()) return true;
+		for (Class<? extends Event> t : eventTypes) {
+			if (t.isAssignableFrom(type)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Queues the given event for delivery to the listener.
+	 */
+	void add(Event e) {
+		Object key = coalescingListener == null ? null :
+				coalescingListener.getCoalescingKey(e);
+		synchronized (lock) {
+			if (closed) return;
+			if (key == null) {
+				queue.put(new Object(), new QueuedEvent(e, now(), false));
+			} else if (queue.containsKey(key)) {
+				coalesced.incrementAndGet();
+				return;
+			} else if (queuedWithKeys >= capacity) {
+				long count = dropped.incrementAndGet();
+				if (LOG.isLoggable(WARNING)) {
+					LOG.warning("Mailbox for " + getListenerName()
+							+ " is full, dropped " + count + " events");
+				}
+				return;
+			} else {
+				queue.put(key, new QueuedEvent(e, now(), true));
+				queuedWithKeys++;
+			}
+			if (scheduled) return;
+			scheduled = true;
+		}
+		executor.execute(this::deliver);
+	}
+
+	/**
+	 * Discards any queued events and stops delivering events to the
+	 * listener.
+	 */
+	void close() {
+		synchronized (lock) {
+			closed = true;
+			queue.clear();
+			queuedWithKeys = 0;
+		}
+		if (LOG.isLoggable(INFO)) {
+			LOG.info(getListenerName() + ": " + delivered.get()
+					+ " events delivered, " + coalesced.get()
+					+ " coalesced, " + dropped.get() + " dropped, mean lag "
+					+ getMeanLag() + " ms, max lag " + maxLag.get() + " ms");
+		}
+	}
+
+	/**
+	 * Returns the number of events that have been delivered.
+	 */
+	long getDeliveredEvents() {
+		return delivered.get();
+	}
+
+	/**
+	 * Returns the number of events that were coalesced with queued events.
+	 */
+	long getCoalescedEvents() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Returns the number of events with coalescing keys that were dropped
+	 * because the mailbox was full.
+	 */
+	long getDroppedEvents() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the mean time in milliseconds between an event being queued
+	 * and the listener being notified.
+	 */
+	long getMeanLag() {
+		long n = delivered.get();
+		return n == 0 ? 0 : totalLag.get() / n;
+	}
+
+	/**
+	 * Returns the longest time in milliseconds between an event being
+	 * queued and the listener being notified.
+	 */
+	long getMaxLag() {
+		return maxLag.get();
+	}
+
+	private void deliver() {
+		while (true) {
+			QueuedEvent next;
+			synchronized (lock) {
+				Iterator<QueuedEvent> it = queue.values().iterator();
+				if (closed || !it.hasNext()) {
+					scheduled = false;
+					return;
+				}
+				next = it.next();
+				it.remove();
+				if (next.hasKey) queuedWithKeys--;
+			}
+			recordLag(now() - next.queued);
+			try {
+				listener.eventOccurred(next.event);
+			} catch (RuntimeException e) {
+				// Keep delivering events to the listener
+				logException(LOG, WARNING, e);
+			}
+		}
+	}
+
+	private void recordLag(long lag) {
+		delivered.incrementAndGet();
+		totalLag.addAndGet(lag);
+		while (true) {
+			long max = maxLag.get();
+			if (lag <= max || maxLag.compareAndSet(max, lag)) return;
+		}
+	}
+
+	private String getListenerName() {
+		return listener.getClass().getSimpleName();
+	}
+
+	@Immutable
+	@NotNullByDefault
+	private static class QueuedEvent {
+
+		private final Event event;
+		private final long queued;
+		private final boolean hasKey;
+
+		private QueuedEvent(Event event, long queued, boolean hasKey) {
+			this.event = event;
+			this.queued = queued;
+			this.hasKey = hasKey;
+		}
+	}
+}
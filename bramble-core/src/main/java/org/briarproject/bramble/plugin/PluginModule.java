@@ -1,11 +1,14 @@
 package org.briarproject.bramble.plugin;
 
 import org.briarproject.bramble.api.event.EventBus;
+import org.briarproject.bramble.api.lifecycle.IoExecutor;
 import org.briarproject.bramble.api.lifecycle.LifecycleManager;
 import org.briarproject.bramble.api.plugin.BackoffFactory;
 import org.briarproject.bramble.api.plugin.PluginConfig;
 import org.briarproject.bramble.api.plugin.PluginManager;
 
+import java.util.concurrent.Executor;
+
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
@@ -38,8 +41,11 @@ public class PluginModule {
 	@Provides
 	@Singleton
 	Poller providePoller(PluginConfig config, EventBus eventBus,
-			PollerImpl poller) {
-		if (config.shouldPoll()) eventBus.addListener(poller);
+			@IoExecutor Executor ioExecutor, PollerImpl poller) {
+		if (config.shouldPoll()) {
+			// Don't let slow listeners on the event executor delay polling
+			eventBus.addListener(poller, ioExecutor, PollerImpl.EVENT_TYPES);
+		}
 		return poller;
 	}
 }
@@ -35,6 +35,7 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.Executor;
@@ -46,6 +47,7 @@ import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 
+import static java.util.Arrays.asList;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
@@ -58,6 +60,14 @@ class PollerImpl implements Poller, EventListener {
 
 	private static final Logger LOG = getLogger(PollerImpl.class.getName());
 
+	/**
+	 * The types of event the poller handles.
+	 */
+	static final List<Class<? extends Event>> EVENT_TYPES = asList(
+			ContactAddedEvent.class, ConnectionClosedEvent.class,
+			ConnectionOpenedEvent.class, TransportActiveEvent.class,
+			TransportInactiveEvent.class);
+
 	private final Executor ioExecutor, wakefulIoExecutor;
 	private final TaskScheduler scheduler;
 	private final ConnectionManager connectionManager;
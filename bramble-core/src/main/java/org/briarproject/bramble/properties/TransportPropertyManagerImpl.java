@@ -36,7 +36,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 
 import static org.briarproject.bramble.api.properties.TransportPropertyConstants.GROUP_KEY_DISCOVERED;
@@ -46,7 +47,7 @@ import static org.briarproject.bramble.api.properties.TransportPropertyConstants
 import static org.briarproject.bramble.api.properties.TransportPropertyConstants.REFLECTED_PROPERTY_PREFIX;
 import static org.briarproject.bramble.util.StringUtils.isNullOrEmpty;
 
-@Immutable
+@ThreadSafe
 @NotNullByDefault
 class TransportPropertyManagerImpl implements TransportPropertyManager,
 		OpenDatabaseHook, ContactHook, ClientVersioningHook,
@@ -60,6 +61,24 @@ class TransportPropertyManagerImpl implements TransportPropertyManager,
 	private final Clock clock;
 	private final Group localGroup;
 
+	private final Object cacheLock = new Object();
+	/**
+	 * The latest remote properties of every contact, for each transport
+	 * whose properties have been loaded since they last changed.
+	 */
+	@GuardedBy("cacheLock")
+	private final Map<TransportId, Map<ContactId, TransportProperties>>
+			remoteCache = new HashMap<>();
+	@GuardedBy("cacheLock")
+	private final Map<TransportId, TransportProperties> localCache =
+			new HashMap<>();
+	/**
+	 * Incremented whenever the cache is invalidated, so properties loaded
+	 * before a change aren't added to the cache after the change.
+	 */
+	@GuardedBy("cacheLock")
+	private long cacheGeneration = 0;
+
 	@Inject
 	TransportPropertyManagerImpl(DatabaseComponent db,
 			ClientHelper clientHelper,
@@ -99,11 +118,13 @@ class TransportPropertyManagerImpl implements TransportPropertyManager,
 			storeMessage(txn, g.getId(), e.getKey(), e.getValue(), 1,
 					true, true);
 		}
+		invalidateRemoteProperties(txn, null);
 	}
 
 	@Override
 	public void removingContact(Transaction txn, Contact c) throws DbException {
 		db.removeGroup(txn, getContactGroup(c));
+		invalidateRemoteProperties(txn, null);
 	}
 
 	@Override
@@ -134,6 +155,8 @@ class TransportPropertyManagerImpl implements TransportPropertyManager,
 					return false;
 				}
 			}
+			// Invalidate the cache before listeners are told about the update
+			invalidateRemoteProperties(txn, t);
 			txn.attach(new RemoteTransportPropertiesUpdatedEvent(t));
 		} catch (FormatException e) {
 			throw new InvalidMessageException(e);
@@ -148,6 +171,7 @@ class TransportPropertyManagerImpl implements TransportPropertyManager,
 		for (Entry<TransportId, TransportProperties> e : props.entrySet()) {
 			storeMessage(txn, g.getId(), e.getKey(), e.getValue(), 0,
 					false, false);
+			invalidateRemoteProperties(txn, e.getKey());
 		}
 	}
 
@@ -177,6 +201,8 @@ class TransportPropertyManagerImpl implements TransportPropertyManager,
 					meta.put(GROUP_KEY_DISCOVERED, merged);
 					clientHelper.mergeGroupMetadata(txn, g.getId(), meta);
 					updateLocalProperties(txn, contact, t);
+					// Discovered properties are merged into remote properties
+					invalidateRemoteProperties(txn, null);
 				}
 			});
 		} catch (FormatException e) {
@@ -212,6 +238,22 @@ class TransportPropertyManagerImpl implements TransportPropertyManager,
 	@Override
 	public TransportProperties getLocalProperties(TransportId t)
 			throws DbException {
+		TransportProperties cached;
+		long generation;
+		synchronized (cacheLock) {
+			cached = localCache.get(t);
+			generation = cacheGeneration;
+		}
+		if (cached != null) return new TransportProperties(cached);
+		TransportProperties local = loadLocalProperties(t);
+		synchronized (cacheLock) {
+			if (cacheGeneration == generation) localCache.put(t, local);
+		}
+		return new TransportProperties(local);
+	}
+
+	private TransportProperties loadLocalProperties(TransportId t)
+			throws DbException {
 		try {
 			return db.transactionWithResult(true, txn -> {
 				TransportProperties p = null;
@@ -234,12 +276,76 @@ class TransportPropertyManagerImpl implements TransportPropertyManager,
 	@Override
 	public Map<ContactId, TransportProperties> getRemoteProperties(
 			TransportId t) throws DbException {
-		return db.transactionWithResult(true, txn -> {
-			Map<ContactId, TransportProperties> remote = new HashMap<>();
-			for (Contact c : db.getContacts(txn))
-				remote.put(c.getId(), getRemoteProperties(txn, c, t));
-			return remote;
-		});
+		Map<ContactId, TransportProperties> remote = new HashMap<>();
+		for (Entry<ContactId, TransportProperties> e :
+				getCachedRemoteProperties(t).entrySet()) {
+			remote.put(e.getKey(), new TransportProperties(e.getValue()));
+		}
+		return remote;
+	}
+
+	/**
+	 * Returns the remote properties of every contact for the given
+	 * transport, loading them from the database if they're not cached.
+	 * The returned map and properties must not be modified.
+	 */
+	private Map<ContactId, TransportProperties> getCachedRemoteProperties(
+			TransportId t) throws DbException {
+		Map<ContactId, TransportProperties> cached;
+		long generation;
+		synchronized (cacheLock) {
+			cached = remoteCache.get(t);
+			generation = cacheGeneration;
+		}
+		if (cached != null) return cached;
+		Map<ContactId, TransportProperties> remote =
+				db.transactionWithResult(true, txn -> {
+					Map<ContactId, TransportProperties> m = new HashMap<>();
+					for (Contact c : db.getContacts(txn))
+						m.put(c.getId(), getRemoteProperties(txn, c, t));
+					return m;
+				});
+		synchronized (cacheLock) {
+			if (cacheGeneration == generation) remoteCache.put(t, remote);
+		}
+		return remote;
+	}
+
+	/**
+	 * Removes the remote properties for the given transport, or for all
+	 * transports if the transport is null, from the cache. The cache is
+	 * invalidated immediately and again when the transaction commits, in
+	 * case properties were loaded from the database before the commit.
+	 */
+	private void invalidateRemoteProperties(Transaction txn,
+			@Nullable TransportId t) {
+		invalidateRemoteProperties(t);
+		txn.attach(() -> invalidateRemoteProperties(t));
+	}
+
+	private void invalidateRemoteProperties(@Nullable TransportId t) {
+		synchronized (cacheLock) {
+			cacheGeneration++;
+			if (t == null) remoteCache.clear();
+			else remoteCache.remove(t);
+		}
+	}
+
+	/**
+	 * Removes the local properties for the given transport from the cache.
+	 * The cache is invalidated immediately and again when the transaction
+	 * commits.
+	 */
+	private void invalidateLocalProperties(Transaction txn, TransportId t) {
+		invalidateLocalProperties(t);
+		txn.attach(() -> invalidateLocalProperties(t));
+	}
+
+	private void invalidateLocalProperties(TransportId t) {
+		synchronized (cacheLock) {
+			cacheGeneration++;
+			localCache.remove(t);
+		}
 	}
 
 	private void updateLocalProperties(Transaction txn, Contact c,
@@ -293,6 +399,12 @@ class TransportPropertyManagerImpl implements TransportPropertyManager,
 	@Override
 	public TransportProperties getRemoteProperties(ContactId c, TransportId t)
 			throws DbException {
+		TransportProperties cached;
+		synchronized (cacheLock) {
+			Map<ContactId, TransportProperties> remote = remoteCache.get(t);
+			cached = remote == null ? null : remote.get(c);
+		}
+		if (cached != null) return new TransportProperties(cached);
 		return db.transactionWithResult(true, txn ->
 				getRemoteProperties(txn, db.getContact(txn, c), t));
 	}
@@ -333,6 +445,7 @@ class TransportPropertyManagerImpl implements TransportPropertyManager,
 							true, false);
 					// Delete the previous update, if any
 					if (latest != null) db.removeMessage(txn, latest.messageId);
+					invalidateLocalProperties(txn, t);
 					// Store the merged properties in each contact's group
 					for (Contact c : db.getContacts(txn)) {
 						storeLocalProperties(txn, c, t, merged);
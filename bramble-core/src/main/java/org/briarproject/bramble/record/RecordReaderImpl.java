@@ -3,6 +3,7 @@ package org.briarproject.bramble.record;
 import org.briarproject.bramble.api.FormatException;
 import org.briarproject.bramble.api.Predicate;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+import org.briarproject.bramble.api.record.BufferedRecord;
 import org.briarproject.bramble.api.record.Record;
 import org.briarproject.bramble.api.record.RecordReader;
 import org.briarproject.bramble.util.ByteUtils;
@@ -15,6 +16,8 @@ import java.io.InputStream;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 
+import static java.lang.Math.max;
+import static java.lang.Math.min;
 import static org.briarproject.bramble.api.record.Record.MAX_RECORD_PAYLOAD_BYTES;
 import static org.briarproject.bramble.api.record.Record.RECORD_HEADER_BYTES;
 
@@ -24,6 +27,7 @@ class RecordReaderImpl implements RecordReader {
 
 	private final DataInputStream in;
 	private final byte[] header = new byte[RECORD_HEADER_BYTES];
+	private final ReusableRecord buffered = new ReusableRecord();
 
 	RecordReaderImpl(InputStream in) {
 		if (!in.markSupported()) in = new BufferedInputStream(in, 1);
@@ -32,15 +36,10 @@ class RecordReaderImpl implements RecordReader {
 
 	@Override
 	public Record readRecord() throws IOException {
-		in.readFully(header);
-		byte protocolVersion = header[0];
-		byte recordType = header[1];
-		int payloadLength = ByteUtils.readUint16(header, 2);
-		if (payloadLength < 0 || payloadLength > MAX_RECORD_PAYLOAD_BYTES)
-			throw new FormatException();
+		int payloadLength = readHeader();
 		byte[] payload = new byte[payloadLength];
 		in.readFully(payload);
-		return new Record(protocolVersion, recordType, payload);
+		return new Record(header[0], header[1], payload);
 	}
 
 	@Nullable
@@ -55,6 +54,18 @@ class RecordReaderImpl implements RecordReader {
 		}
 	}
 
+	@Nullable
+	@Override
+	public BufferedRecord readBufferedRecord(Predicate<BufferedRecord> accept,
+			Predicate<BufferedRecord> ignore) throws IOException {
+		while (true) {
+			if (eof()) return null;
+			buffered.read(readHeader());
+			if (accept.test(buffered)) return buffered;
+			if (!ignore.test(buffered)) throw new FormatException();
+		}
+	}
+
 	@Override
 	public void close() throws IOException {
 		in.close();
@@ -66,4 +77,59 @@ class RecordReaderImpl implements RecordReader {
 		in.reset();
 		return next == -1;
 	}
+
+	/**
+	 * Reads the next record header into the header buffer and returns the
+	 * payload length.
+	 */
+	private int readHeader() throws IOException {
+		in.readFully(header);
+		int payloadLength = ByteUtils.readUint16(header, 2);
+		if (payloadLength < 0 || payloadLength > MAX_RECORD_PAYLOAD_BYTES)
+			throw new FormatException();
+		return payloadLength;
+	}
+
+	/**
+	 * The record returned by {@link #readBufferedRecord(Predicate, Predicate)}.
+	 * The payload buffer grows as needed, so a reader that only sees small
+	 * records doesn't hold a buffer big enough for the largest record.
+	 */
+	private class ReusableRecord implements BufferedRecord {
+
+		private byte[] payload = new byte[0];
+		private int payloadLength = 0;
+
+		private void read(int length) throws IOException {
+			if (length > payload.length) {
+				int capacity = min(max(length, payload.length * 2),
+						MAX_RECORD_PAYLOAD_BYTES);
+				payload = new byte[capacity];
+			}
+			// Invalidate the previous record in case the payload's truncated
+			payloadLength = 0;
+			in.readFully(payload, 0, length);
+			payloadLength = length;
+		}
+
+		@Override
+		public byte getProtocolVersion() {
+			return header[0];
+		}
+
+		@Override
+		public byte getRecordType() {
+			return header[1];
+		}
+
+		@Override
+		public byte[] getPayloadBuffer() {
+			return payload;
+		}
+
+		@Override
+		public int getPayloadLength() {
+			return payloadLength;
+		}
+	}
 }
@@ -5,9 +5,9 @@ import org.briarproject.bramble.api.contact.event.ContactRemovedEvent;
 import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.DatabaseExecutor;
 import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.event.CoalescingEventListener;
 import org.briarproject.bramble.api.event.Event;
 import org.briarproject.bramble.api.event.EventBus;
-import org.briarproject.bramble.api.event.EventListener;
 import org.briarproject.bramble.api.lifecycle.IoExecutor;
 import org.briarproject.bramble.api.lifecycle.event.LifecycleEvent;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
@@ -32,16 +32,19 @@ import org.briarproject.bramble.api.transport.StreamWriter;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 
+import static java.util.Arrays.asList;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
@@ -60,11 +63,38 @@ import static org.briarproject.bramble.util.LogUtils.logException;
  */
 @ThreadSafe
 @NotNullByDefault
-class DuplexOutgoingSession implements SyncSession, EventListener {
+class DuplexOutgoingSession implements SyncSession, CoalescingEventListener {
 
 	private static final Logger LOG =
 			getLogger(DuplexOutgoingSession.class.getName());
 
+	/**
+	 * The maximum number of events with coalescing keys that can be waiting
+	 * for the session to handle them. There are only as many keys as
+	 * {@link Trigger} values, so this limit is never reached.
+	 */
+	private static final int MAX_QUEUED_EVENTS = 1000;
+
+	/**
+	 * The maximum number of batches that can be waiting for the writer. While
+	 * fewer batches than this are waiting, the next batch is generated as
+	 * soon as the previous one has been generated, so database reads overlap
+	 * with writing to the transport.
+	 * <p/>
+	 * The messages in a batch are marked as sent when the batch is generated.
+	 * If the session ends before a waiting batch is written, its messages
+	 * aren't sent again until their retransmission time, so this limit is
+	 * kept small to bound that delay to a few batches per connection.
+	 */
+	static final int MAX_QUEUED_BATCHES = 4;
+
+	private static final List<Class<? extends Event>> EVENT_TYPES = asList(
+			ContactRemovedEvent.class, MessageSharedEvent.class,
+			GroupVisibilityUpdatedEvent.class, MessageRequestedEvent.class,
+			MessageToAckEvent.class, MessageToRequestEvent.class,
+			LifecycleEvent.class, CloseSyncConnectionsEvent.class,
+			TransportInactiveEvent.class);
+
 	private static final ThrowingRunnable<IOException> CLOSE = () -> {
 	};
 	private static final ThrowingRunnable<IOException>
@@ -72,7 +102,7 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 	};
 
 	private final DatabaseComponent db;
-	private final Executor dbExecutor;
+	private final Executor dbExecutor, ioExecutor;
 	private final EventBus eventBus;
 	private final Clock clock;
 	private final ContactId contactId;
@@ -89,17 +119,19 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 	private final AtomicBoolean generateOfferQueued = new AtomicBoolean(false);
 	private final AtomicBoolean generateRequestQueued =
 			new AtomicBoolean(false);
+	private final AtomicInteger queuedBatches = new AtomicInteger(0);
 	private final AtomicLong nextSendTime = new AtomicLong(Long.MAX_VALUE);
 
 	private volatile boolean interrupted = false;
 
 	DuplexOutgoingSession(DatabaseComponent db, Executor dbExecutor,
-			EventBus eventBus, Clock clock, ContactId contactId,
-			TransportId transportId, int maxLatency, int maxIdleTime,
-			StreamWriter streamWriter, SyncRecordWriter recordWriter,
-			@Nullable Priority priority) {
+			Executor ioExecutor, EventBus eventBus, Clock clock,
+			ContactId contactId, TransportId transportId, int maxLatency,
+			int maxIdleTime, StreamWriter streamWriter,
+			SyncRecordWriter recordWriter, @Nullable Priority priority) {
 		this.db = db;
 		this.dbExecutor = dbExecutor;
+		this.ioExecutor = ioExecutor;
 		this.eventBus = eventBus;
 		this.clock = clock;
 		this.contactId = contactId;
@@ -115,7 +147,8 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 	@IoExecutor
 	@Override
 	public void run() throws IOException {
-		eventBus.addListener(this);
+		// Don't let slow listeners on the event executor delay this session
+		eventBus.addListener(this, ioExecutor, MAX_QUEUED_EVENTS, EVENT_TYPES);
 		try {
 			// Send our supported protocol versions
 			recordWriter.writeVersions(new Versions(SUPPORTED_VERSIONS));
@@ -188,6 +221,9 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 	}
 
 	private void generateBatch() {
+		// If the writer already has enough batches waiting, the next batch
+		// will be generated when the writer has written one of them
+		if (queuedBatches.get() >= MAX_QUEUED_BATCHES) return;
 		if (generateBatchQueued.compareAndSet(false, true))
 			dbExecutor.execute(new GenerateBatch());
 	}
@@ -213,6 +249,36 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 		writerTasks.add(CLOSE);
 	}
 
+	/**
+	 * Events that only trigger a query are coalesced by the query they
+	 * trigger. Events that interrupt the session are never coalesced.
+	 */
+	@Nullable
+	@Override
+	public Object getCoalescingKey(Event e) {
+		if (e instanceof MessageSharedEvent) {
+			return Trigger.OFFER;
+		} else if (e instanceof GroupVisibilityUpdatedEvent) {
+			GroupVisibilityUpdatedEvent g = (GroupVisibilityUpdatedEvent) e;
+			if (g.getAffectedContacts().contains(contactId))
+				return Trigger.OFFER;
+			return Trigger.NONE;
+		} else if (e instanceof MessageRequestedEvent) {
+			if (((MessageRequestedEvent) e).getContactId().equals(contactId))
+				return Trigger.BATCH;
+			return Trigger.NONE;
+		} else if (e instanceof MessageToAckEvent) {
+			if (((MessageToAckEvent) e).getContactId().equals(contactId))
+				return Trigger.ACK;
+			return Trigger.NONE;
+		} else if (e instanceof MessageToRequestEvent) {
+			if (((MessageToRequestEvent) e).getContactId().equals(contactId))
+				return Trigger.REQUEST;
+			return Trigger.NONE;
+		}
+		return null;
+	}
+
 	@Override
 	public void eventOccurred(Event e) {
 		if (e instanceof ContactRemovedEvent) {
@@ -253,8 +319,8 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 			if (interrupted) return;
 			if (!generateAckQueued.getAndSet(false)) throw new AssertionError();
 			try {
-				Ack a = db.transactionWithNullableResult(false, txn ->
-						db.generateAck(txn, contactId, MAX_MESSAGE_IDS));
+				Ack a = db.transactionWithNullableResult(false, contactId,
+						txn -> db.generateAck(txn, contactId, MAX_MESSAGE_IDS));
 				if (LOG.isLoggable(INFO))
 					LOG.info("Generated ack: " + (a != null));
 				if (a != null) writerTasks.add(new WriteAck(a));
@@ -293,7 +359,8 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 				throw new AssertionError();
 			try {
 				Collection<Message> b =
-						db.transactionWithNullableResult(false, txn -> {
+						db.transactionWithNullableResult(false,
+								contactId, txn -> {
 							Collection<Message> batch =
 									db.generateRequestedBatch(txn, contactId,
 											MAX_RECORD_PAYLOAD_BYTES,
@@ -303,7 +370,12 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 						});
 				if (LOG.isLoggable(INFO))
 					LOG.info("Generated batch: " + (b != null));
-				if (b != null) writerTasks.add(new WriteBatch(b));
+				if (b != null) {
+					queuedBatches.incrementAndGet();
+					writerTasks.add(new WriteBatch(b));
+					// Prefetch the next batch while this one is written
+					generateBatch();
+				}
 			} catch (DbException e) {
 				logException(LOG, WARNING, e);
 				interrupt();
@@ -322,6 +394,8 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 		@IoExecutor
 		@Override
 		public void run() throws IOException {
+			// The batch is no longer waiting, even if it isn't written
+			queuedBatches.decrementAndGet();
 			if (interrupted) return;
 			for (Message m : batch) recordWriter.writeMessage(m);
 			LOG.info("Sent batch");
@@ -338,7 +412,8 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 			if (!generateOfferQueued.getAndSet(false))
 				throw new AssertionError();
 			try {
-				Offer o = db.transactionWithNullableResult(false, txn -> {
+				Offer o = db.transactionWithNullableResult(false, contactId,
+						txn -> {
 					Offer offer = db.generateOffer(txn, contactId,
 							MAX_MESSAGE_IDS, maxLatency);
 					setNextSendTime(db.getNextSendTime(txn, contactId));
@@ -381,8 +456,9 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 			if (!generateRequestQueued.getAndSet(false))
 				throw new AssertionError();
 			try {
-				Request r = db.transactionWithNullableResult(false, txn ->
-						db.generateRequest(txn, contactId, MAX_MESSAGE_IDS));
+				Request r = db.transactionWithNullableResult(false, contactId,
+						txn -> db.generateRequest(txn, contactId,
+								MAX_MESSAGE_IDS));
 				if (LOG.isLoggable(INFO))
 					LOG.info("Generated request: " + (r != null));
 				if (r != null) writerTasks.add(new WriteRequest(r));
@@ -410,4 +486,11 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 			generateRequest();
 		}
 	}
+
+	/**
+	 * The query triggered by an event, used as the event's coalescing key.
+	 */
+	private enum Trigger {
+		ACK, BATCH, OFFER, REQUEST, NONE
+	}
 }
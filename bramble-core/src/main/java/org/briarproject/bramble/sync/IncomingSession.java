@@ -29,6 +29,7 @@ import java.util.logging.Logger;
 
 import javax.annotation.concurrent.ThreadSafe;
 
+import static java.util.Arrays.asList;
 import static java.util.logging.Level.WARNING;
 import static java.util.logging.Logger.getLogger;
 import static org.briarproject.bramble.api.lifecycle.LifecycleManager.LifecycleState.STOPPING;
@@ -44,6 +45,9 @@ class IncomingSession implements SyncSession, EventListener {
 	private static final Logger LOG =
 			getLogger(IncomingSession.class.getName());
 
+	private static final List<Class<? extends Event>> EVENT_TYPES =
+			asList(ContactRemovedEvent.class, LifecycleEvent.class);
+
 	private final DatabaseComponent db;
 	private final Executor dbExecutor;
 	private final EventBus eventBus;
@@ -67,7 +71,7 @@ class IncomingSession implements SyncSession, EventListener {
 	@IoExecutor
 	@Override
 	public void run() throws IOException {
-		eventBus.addListener(this);
+		eventBus.addListener(this, EVENT_TYPES);
 		try {
 			// Read records until interrupted or EOF
 			while (!interrupted) {
@@ -132,7 +136,7 @@ class IncomingSession implements SyncSession, EventListener {
 		@Override
 		public void run() {
 			try {
-				db.transaction(false, txn ->
+				db.transaction(false, contactId, txn ->
 						db.receiveAck(txn, contactId, ack));
 			} catch (DbException e) {
 				logException(LOG, WARNING, e);
@@ -153,6 +157,8 @@ class IncomingSession implements SyncSession, EventListener {
 		@Override
 		public void run() {
 			try {
+				// Adding the message may create statuses for every contact
+				// the group is shared with, so the transaction isn't scoped
 				db.transaction(false, txn ->
 						db.receiveMessage(txn, contactId, message));
 			} catch (DbException e) {
@@ -174,7 +180,7 @@ class IncomingSession implements SyncSession, EventListener {
 		@Override
 		public void run() {
 			try {
-				db.transaction(false, txn ->
+				db.transaction(false, contactId, txn ->
 						db.receiveOffer(txn, contactId, offer));
 			} catch (DbException e) {
 				logException(LOG, WARNING, e);
@@ -195,7 +201,7 @@ class IncomingSession implements SyncSession, EventListener {
 		@Override
 		public void run() {
 			try {
-				db.transaction(false, txn ->
+				db.transaction(false, contactId, txn ->
 						db.receiveRequest(txn, contactId, request));
 			} catch (DbException e) {
 				logException(LOG, WARNING, e);
@@ -217,7 +223,7 @@ class IncomingSession implements SyncSession, EventListener {
 		public void run() {
 			try {
 				List<Byte> supported = versions.getSupportedVersions();
-				db.transaction(false,
+				db.transaction(false, contactId,
 						txn -> db.setSyncVersions(txn, contactId, supported));
 			} catch (DbException e) {
 				logException(LOG, WARNING, e);
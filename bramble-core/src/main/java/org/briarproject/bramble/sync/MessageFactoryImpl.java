@@ -55,16 +55,22 @@ class MessageFactoryImpl implements MessageFactory {
 
 	@Override
 	public Message createMessage(byte[] raw) {
-		if (raw.length <= MESSAGE_HEADER_LENGTH)
-			throw new IllegalArgumentException();
-		if (raw.length > MAX_MESSAGE_LENGTH)
+		return createMessage(raw, 0, raw.length);
+	}
+
+	@Override
+	public Message createMessage(byte[] buf, int off, int len) {
+		if (len <= MESSAGE_HEADER_LENGTH) throw new IllegalArgumentException();
+		if (len > MAX_MESSAGE_LENGTH) throw new IllegalArgumentException();
+		if (off < 0 || off > buf.length - len)
 			throw new IllegalArgumentException();
 		byte[] groupId = new byte[UniqueId.LENGTH];
-		System.arraycopy(raw, 0, groupId, 0, UniqueId.LENGTH);
+		System.arraycopy(buf, off, groupId, 0, UniqueId.LENGTH);
 		GroupId g = new GroupId(groupId);
-		long timestamp = ByteUtils.readUint64(raw, UniqueId.LENGTH);
-		byte[] body = new byte[raw.length - MESSAGE_HEADER_LENGTH];
-		System.arraycopy(raw, MESSAGE_HEADER_LENGTH, body, 0, body.length);
+		long timestamp = ByteUtils.readUint64(buf, off + UniqueId.LENGTH);
+		byte[] body = new byte[len - MESSAGE_HEADER_LENGTH];
+		System.arraycopy(buf, off + MESSAGE_HEADER_LENGTH, body, 0,
+				body.length);
 		MessageId id = getMessageId(g, timestamp, body);
 		return new Message(id, g, timestamp, body);
 	}
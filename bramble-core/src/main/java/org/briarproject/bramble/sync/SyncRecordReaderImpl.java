@@ -4,7 +4,7 @@ import org.briarproject.bramble.api.FormatException;
 import org.briarproject.bramble.api.Predicate;
 import org.briarproject.bramble.api.UniqueId;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
-import org.briarproject.bramble.api.record.Record;
+import org.briarproject.bramble.api.record.BufferedRecord;
 import org.briarproject.bramble.api.record.RecordReader;
 import org.briarproject.bramble.api.sync.Ack;
 import org.briarproject.bramble.api.sync.Message;
@@ -19,6 +19,7 @@ import org.briarproject.bramble.util.ByteUtils;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.annotation.Nullable;
@@ -40,12 +41,12 @@ import static org.briarproject.bramble.api.sync.SyncConstants.PROTOCOL_VERSION;
 class SyncRecordReaderImpl implements SyncRecordReader {
 
 	// Accept records with current protocol version, known record type
-	private static final Predicate<Record> ACCEPT = r ->
+	private static final Predicate<BufferedRecord> ACCEPT = r ->
 			r.getProtocolVersion() == PROTOCOL_VERSION &&
 					isKnownRecordType(r.getRecordType());
 
 	// Ignore records with current protocol version, unknown record type
-	private static final Predicate<Record> IGNORE = r ->
+	private static final Predicate<BufferedRecord> IGNORE = r ->
 			r.getProtocolVersion() == PROTOCOL_VERSION &&
 					!isKnownRecordType(r.getRecordType());
 
@@ -57,8 +58,9 @@ class SyncRecordReaderImpl implements SyncRecordReader {
 	private final MessageFactory messageFactory;
 	private final RecordReader reader;
 
+	// The payload of this record is only valid until the next read
 	@Nullable
-	private Record nextRecord = null;
+	private BufferedRecord nextRecord = null;
 	private boolean eof = false;
 
 	SyncRecordReaderImpl(MessageFactory messageFactory, RecordReader reader) {
@@ -83,7 +85,7 @@ class SyncRecordReaderImpl implements SyncRecordReader {
 	public boolean eof() throws IOException {
 		if (nextRecord != null) return false;
 		if (eof) return true;
-		nextRecord = reader.readRecord(ACCEPT, IGNORE);
+		nextRecord = reader.readBufferedRecord(ACCEPT, IGNORE);
 		if (nextRecord == null) eof = true;
 		return eof;
 	}
@@ -101,11 +103,13 @@ class SyncRecordReaderImpl implements SyncRecordReader {
 
 	private List<MessageId> readMessageIds() throws IOException {
 		if (nextRecord == null) throw new AssertionError();
-		byte[] payload = nextRecord.getPayload();
-		if (payload.length == 0) throw new FormatException();
-		if (payload.length % UniqueId.LENGTH != 0) throw new FormatException();
-		List<MessageId> ids = new ArrayList<>(payload.length / UniqueId.LENGTH);
-		for (int off = 0; off < payload.length; off += UniqueId.LENGTH) {
+		// Decode the IDs directly from the reader's buffer
+		byte[] payload = nextRecord.getPayloadBuffer();
+		int length = nextRecord.getPayloadLength();
+		if (length == 0) throw new FormatException();
+		if (length % UniqueId.LENGTH != 0) throw new FormatException();
+		List<MessageId> ids = new ArrayList<>(length / UniqueId.LENGTH);
+		for (int off = 0; off < length; off += UniqueId.LENGTH) {
 			byte[] id = new byte[UniqueId.LENGTH];
 			System.arraycopy(payload, off, id, 0, UniqueId.LENGTH);
 			ids.add(new MessageId(id));
@@ -123,14 +127,14 @@ class SyncRecordReaderImpl implements SyncRecordReader {
 	public Message readMessage() throws IOException {
 		if (!hasMessage()) throw new FormatException();
 		if (nextRecord == null) throw new AssertionError();
-		byte[] payload = nextRecord.getPayload();
-		if (payload.length <= MESSAGE_HEADER_LENGTH)
-			throw new FormatException();
+		byte[] payload = nextRecord.getPayloadBuffer();
+		int length = nextRecord.getPayloadLength();
+		if (length <= MESSAGE_HEADER_LENGTH) throw new FormatException();
 		// Validate timestamp
 		long timestamp = ByteUtils.readUint64(payload, UniqueId.LENGTH);
 		if (timestamp < 0) throw new FormatException();
 		nextRecord = null;
-		return messageFactory.createMessage(payload);
+		return messageFactory.createMessage(payload, 0, length);
 	}
 
 	@Override
@@ -168,12 +172,12 @@ class SyncRecordReaderImpl implements SyncRecordReader {
 
 	private List<Byte> readSupportedVersions() throws IOException {
 		if (nextRecord == null) throw new AssertionError();
-		byte[] payload = nextRecord.getPayload();
-		if (payload.length == 0) throw new FormatException();
-		if (payload.length > MAX_SUPPORTED_VERSIONS)
-			throw new FormatException();
-		List<Byte> supported = new ArrayList<>(payload.length);
-		for (byte b : payload) supported.add(b);
+		byte[] payload = nextRecord.getPayloadBuffer();
+		int length = nextRecord.getPayloadLength();
+		if (length == 0) throw new FormatException();
+		if (length > MAX_SUPPORTED_VERSIONS) throw new FormatException();
+		List<Byte> supported = new ArrayList<>(length);
+		for (int i = 0; i < length; i++) supported.add(payload[i]);
 		nextRecord = null;
 		return supported;
 	}
@@ -191,9 +195,11 @@ class SyncRecordReaderImpl implements SyncRecordReader {
 
 	private byte[] readNonce() throws IOException {
 		if (nextRecord == null) throw new AssertionError();
-		byte[] payload = nextRecord.getPayload();
-		if (payload.length != PRIORITY_NONCE_BYTES) throw new FormatException();
+		if (nextRecord.getPayloadLength() != PRIORITY_NONCE_BYTES)
+			throw new FormatException();
+		byte[] nonce = Arrays.copyOf(nextRecord.getPayloadBuffer(),
+				PRIORITY_NONCE_BYTES);
 		nextRecord = null;
-		return payload;
+		return nonce;
 	}
 }
@@ -4,6 +4,7 @@ import org.briarproject.bramble.api.contact.ContactId;
 import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.DatabaseExecutor;
 import org.briarproject.bramble.api.event.EventBus;
+import org.briarproject.bramble.api.lifecycle.IoExecutor;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
 import org.briarproject.bramble.api.plugin.TransportId;
 import org.briarproject.bramble.api.sync.Priority;
@@ -30,7 +31,7 @@ import javax.inject.Inject;
 class SyncSessionFactoryImpl implements SyncSessionFactory {
 
 	private final DatabaseComponent db;
-	private final Executor dbExecutor;
+	private final Executor dbExecutor, ioExecutor;
 	private final EventBus eventBus;
 	private final Clock clock;
 	private final SyncRecordReaderFactory recordReaderFactory;
@@ -38,11 +39,13 @@ class SyncSessionFactoryImpl implements SyncSessionFactory {
 
 	@Inject
 	SyncSessionFactoryImpl(DatabaseComponent db,
-			@DatabaseExecutor Executor dbExecutor, EventBus eventBus,
-			Clock clock, SyncRecordReaderFactory recordReaderFactory,
+			@DatabaseExecutor Executor dbExecutor,
+			@IoExecutor Executor ioExecutor, EventBus eventBus, Clock clock,
+			SyncRecordReaderFactory recordReaderFactory,
 			SyncRecordWriterFactory recordWriterFactory) {
 		this.db = db;
 		this.dbExecutor = dbExecutor;
+		this.ioExecutor = ioExecutor;
 		this.eventBus = eventBus;
 		this.clock = clock;
 		this.recordReaderFactory = recordReaderFactory;
@@ -75,7 +78,8 @@ class SyncSessionFactoryImpl implements SyncSessionFactory {
 		OutputStream out = streamWriter.getOutputStream();
 		SyncRecordWriter recordWriter =
 				recordWriterFactory.createRecordWriter(out);
-		return new DuplexOutgoingSession(db, dbExecutor, eventBus, clock, c, t,
-				maxLatency, maxIdleTime, streamWriter, recordWriter, priority);
+		return new DuplexOutgoingSession(db, dbExecutor, ioExecutor, eventBus,
+				clock, c, t, maxLatency, maxIdleTime, streamWriter, recordWriter,
+				priority);
 	}
 }
@@ -14,6 +14,7 @@ import org.briarproject.bramble.api.lifecycle.Service;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
 import org.briarproject.bramble.api.sync.ClientId;
 import org.briarproject.bramble.api.sync.Group;
+import org.briarproject.bramble.api.sync.GroupId;
 import org.briarproject.bramble.api.sync.InvalidMessageException;
 import org.briarproject.bramble.api.sync.Message;
 import org.briarproject.bramble.api.sync.MessageContext;
@@ -25,19 +26,26 @@ import org.briarproject.bramble.api.sync.validation.MessageValidator;
 import org.briarproject.bramble.api.sync.validation.ValidationManager;
 import org.briarproject.bramble.api.versioning.ClientMajorVersion;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 
+import static java.util.Collections.singletonList;
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
 import static org.briarproject.bramble.api.sync.validation.MessageState.DELIVERED;
@@ -53,11 +61,26 @@ class ValidationManagerImpl implements ValidationManager, Service,
 	private static final Logger LOG =
 			Logger.getLogger(ValidationManagerImpl.class.getName());
 
+	/**
+	 * The types of event the validation manager handles.
+	 */
+	static final List<Class<? extends Event>> EVENT_TYPES =
+			singletonList(MessageAddedEvent.class);
+
+	/**
+	 * The maximum number of messages loaded, stored or delivered in a
+	 * single transaction.
+	 */
+	private static final int MAX_BATCH_SIZE = 64;
+
 	private final DatabaseComponent db;
 	private final Executor dbExecutor, validationExecutor;
 	private final Map<ClientMajorVersion, MessageValidator> validators;
 	private final Map<ClientMajorVersion, IncomingMessageHook> hooks;
 	private final AtomicBoolean used = new AtomicBoolean(false);
+	private final Queue<ValidationResult> validated =
+			new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean storing = new AtomicBoolean(false);
 
 	@Inject
 	ValidationManagerImpl(DatabaseComponent db,
@@ -103,37 +126,64 @@ class ValidationManagerImpl implements ValidationManager, Service,
 		try {
 			Queue<MessageId> unvalidated = new LinkedList<>(
 					db.transactionWithResult(true, db::getMessagesToValidate));
-			validateNextMessageAsync(unvalidated);
+			validateNextBatchAsync(unvalidated);
 		} catch (DbException e) {
 			logException(LOG, WARNING, e);
 		}
 	}
 
-	private void validateNextMessageAsync(Queue<MessageId> unvalidated) {
+	private void validateNextBatchAsync(Queue<MessageId> unvalidated) {
 		if (unvalidated.isEmpty()) return;
-		dbExecutor.execute(() -> validateNextMessage(unvalidated));
+		dbExecutor.execute(() -> validateNextBatch(unvalidated));
 	}
 
+	/**
+	 * Loads the next batch of unvalidated messages in a single transaction
+	 * and hands them to the validation executor, which may validate them
+	 * in parallel.
+	 */
 	@DatabaseExecutor
-	private void validateNextMessage(Queue<MessageId> unvalidated) {
+	private void validateNextBatch(Queue<MessageId> unvalidated) {
 		try {
-			Pair<Message, Group> mg = db.transactionWithResult(true, txn -> {
-				MessageId id = unvalidated.poll();
-				if (id == null) throw new AssertionError();
-				Message m = db.getMessage(txn, id);
-				Group g = db.getGroup(txn, m.getGroupId());
-				return new Pair<>(m, g);
-			});
-			validateMessageAsync(mg.getFirst(), mg.getSecond());
-			validateNextMessageAsync(unvalidated);
+			List<Pair<Message, Group>> batch =
+					db.transactionWithResult(true, txn -> {
+						List<Pair<Message, Group>> loaded = new ArrayList<>();
+						Map<GroupId, Group> groups = new HashMap<>();
+						while (loaded.size() < MAX_BATCH_SIZE) {
+							MessageId id = unvalidated.poll();
+							if (id == null) break;
+							Pair<Message, Group> mg =
+									loadMessageAndGroup(txn, id, groups);
+							if (mg != null) loaded.add(mg);
+						}
+						return loaded;
+					});
+			for (Pair<Message, Group> mg : batch)
+				validateMessageAsync(mg.getFirst(), mg.getSecond());
+			validateNextBatchAsync(unvalidated);
+		} catch (DbException e) {
+			logException(LOG, WARNING, e);
+		}
+	}
+
+	@Nullable
+	@DatabaseExecutor
+	private Pair<Message, Group> loadMessageAndGroup(Transaction txn,
+			MessageId id, Map<GroupId, Group> groups) throws DbException {
+		try {
+			Message m = db.getMessage(txn, id);
+			Group g = groups.get(m.getGroupId());
+			if (g == null) {
+				g = db.getGroup(txn, m.getGroupId());
+				groups.put(g.getId(), g);
+			}
+			return new Pair<>(m, g);
 		} catch (NoSuchMessageException e) {
 			LOG.info("Message removed before validation");
-			validateNextMessageAsync(unvalidated);
+			return null;
 		} catch (NoSuchGroupException e) {
 			LOG.info("Group removed before validation");
-			validateNextMessageAsync(unvalidated);
-		} catch (DbException e) {
-			logException(LOG, WARNING, e);
+			return null;
 		}
 	}
 
@@ -146,73 +196,117 @@ class ValidationManagerImpl implements ValidationManager, Service,
 		try {
 			Queue<MessageId> pending = new LinkedList<>(
 					db.transactionWithResult(true, db::getPendingMessages));
-			deliverNextPendingMessageAsync(pending);
+			deliverNextPendingBatchAsync(pending);
 		} catch (DbException e) {
 			logException(LOG, WARNING, e);
 		}
 	}
 
-	private void deliverNextPendingMessageAsync(Queue<MessageId> pending) {
+	private void deliverNextPendingBatchAsync(Queue<MessageId> pending) {
 		if (pending.isEmpty()) return;
-		dbExecutor.execute(() -> deliverNextPendingMessage(pending));
+		dbExecutor.execute(() -> deliverNextPendingBatch(pending));
+	}
+
+	@DatabaseExecutor
+	private void deliverNextPendingBatch(Queue<MessageId> pending) {
+		// A message may be queued more than once if it has several
+		// dependencies that were delivered at the same time
+		Collection<MessageId> batch = new LinkedHashSet<>();
+		while (batch.size() < MAX_BATCH_SIZE) {
+			MessageId id = pending.poll();
+			if (id == null) break;
+			batch.add(id);
+		}
+		if (batch.size() == 1) {
+			tryToDeliverPendingMessage(batch.iterator().next(), pending);
+		} else {
+			try {
+				deliverPendingMessages(batch, pending);
+			} catch (DbException e) {
+				// Deliver the messages one at a time so a message that can't
+				// be delivered doesn't hold up the rest
+				logException(LOG, INFO, e);
+				for (MessageId id : batch)
+					tryToDeliverPendingMessage(id, pending);
+			}
+		}
+		deliverNextPendingBatchAsync(pending);
 	}
 
 	@DatabaseExecutor
-	private void deliverNextPendingMessage(Queue<MessageId> pending) {
+	private void tryToDeliverPendingMessage(MessageId id,
+			Queue<MessageId> pending) {
 		try {
-			Queue<MessageId> toShare = new LinkedList<>();
-			Queue<MessageId> invalidate = new LinkedList<>();
-			db.transaction(false, txn -> {
-				boolean anyInvalid = false, allDelivered = true;
-				MessageId id = pending.poll();
-				if (id == null) throw new AssertionError();
-				// Check if message is still pending
-				if (db.getMessageState(txn, id) == PENDING) {
-					// Check if dependencies are valid and delivered
-					Map<MessageId, MessageState> states =
-							db.getMessageDependencies(txn, id);
-					for (Entry<MessageId, MessageState> e : states.entrySet()) {
-						if (e.getValue() == INVALID) anyInvalid = true;
-						if (e.getValue() != DELIVERED) allDelivered = false;
-					}
-					if (anyInvalid) {
-						invalidateMessage(txn, id);
-						addDependentsToInvalidate(txn, id, invalidate);
-					} else if (allDelivered) {
-						Message m = db.getMessage(txn, id);
-						Group g = db.getGroup(txn, m.getGroupId());
-						ClientId c = g.getClientId();
-						int majorVersion = g.getMajorVersion();
-						Metadata meta =
-								db.getMessageMetadataForValidator(txn, id);
-						DeliveryResult result =
-								deliverMessage(txn, m, c, majorVersion, meta);
-						if (result.valid) {
-							addPendingDependents(txn, id, pending);
-							if (result.share) {
-								db.setMessageShared(txn, id);
-								toShare.addAll(states.keySet());
-							}
-						} else {
-							addDependentsToInvalidate(txn, id, invalidate);
-						}
-					}
-				}
-			});
-			if (!invalidate.isEmpty()) invalidateNextMessageAsync(invalidate);
-			if (!toShare.isEmpty()) shareNextMessageAsync(toShare);
-			deliverNextPendingMessageAsync(pending);
+			deliverPendingMessages(singletonList(id), pending);
 		} catch (NoSuchMessageException e) {
 			LOG.info("Message removed before delivery");
-			deliverNextPendingMessageAsync(pending);
 		} catch (NoSuchGroupException e) {
 			LOG.info("Group removed before delivery");
-			deliverNextPendingMessageAsync(pending);
 		} catch (DbException e) {
 			logException(LOG, WARNING, e);
 		}
 	}
 
+	/**
+	 * Delivers any of the given messages that are still pending and have all
+	 * their dependencies delivered, in a single transaction. Any pending
+	 * dependents of the delivered messages are added to the pending queue
+	 * after the transaction commits.
+	 */
+	@DatabaseExecutor
+	private void deliverPendingMessages(Collection<MessageId> ids,
+			Queue<MessageId> pending) throws DbException {
+		Queue<MessageId> dependents = new LinkedList<>();
+		Queue<MessageId> toShare = new LinkedList<>();
+		Queue<MessageId> invalidate = new LinkedList<>();
+		db.transaction(false, txn -> {
+			for (MessageId id : ids) {
+				deliverPendingMessage(txn, id, dependents, toShare,
+						invalidate);
+			}
+		});
+		pending.addAll(dependents);
+		if (!invalidate.isEmpty()) invalidateNextMessageAsync(invalidate);
+		if (!toShare.isEmpty()) shareNextMessageAsync(toShare);
+	}
+
+	@DatabaseExecutor
+	private void deliverPendingMessage(Transaction txn, MessageId id,
+			Queue<MessageId> pending, Queue<MessageId> toShare,
+			Queue<MessageId> invalidate) throws DbException {
+		boolean anyInvalid = false, allDelivered = true;
+		// Check if message is still pending
+		if (db.getMessageState(txn, id) != PENDING) return;
+		// Check if dependencies are valid and delivered
+		Map<MessageId, MessageState> states =
+				db.getMessageDependencies(txn, id);
+		for (Entry<MessageId, MessageState> e : states.entrySet()) {
+			if (e.getValue() == INVALID) anyInvalid = true;
+			if (e.getValue() != DELIVERED) allDelivered = false;
+		}
+		if (anyInvalid) {
+			invalidateMessage(txn, id);
+			addDependentsToInvalidate(txn, id, invalidate);
+		} else if (allDelivered) {
+			Message m = db.getMessage(txn, id);
+			Group g = db.getGroup(txn, m.getGroupId());
+			ClientId c = g.getClientId();
+			int majorVersion = g.getMajorVersion();
+			Metadata meta = db.getMessageMetadataForValidator(txn, id);
+			DeliveryResult result =
+					deliverMessage(txn, m, c, majorVersion, meta);
+			if (result.valid) {
+				addPendingDependents(txn, id, pending);
+				if (result.share) {
+					db.setMessageShared(txn, id);
+					toShare.addAll(states.keySet());
+				}
+			} else {
+				addDependentsToInvalidate(txn, id, invalidate);
+			}
+		}
+	}
+
 	private void validateMessageAsync(Message m, Group g) {
 		validationExecutor.execute(() -> validateMessage(m, g));
 	}
@@ -225,81 +319,143 @@ class ValidationManagerImpl implements ValidationManager, Service,
 		if (v == null) {
 			if (LOG.isLoggable(WARNING)) LOG.warning("No validator for " + cv);
 		} else {
+			MessageContext context;
 			try {
-				MessageContext context = v.validateMessage(m, g);
-				storeMessageContextAsync(m, g.getClientId(),
-						g.getMajorVersion(), context);
+				context = v.validateMessage(m, g);
 			} catch (InvalidMessageException e) {
 				logException(LOG, INFO, e);
-				Queue<MessageId> invalidate = new LinkedList<>();
-				invalidate.add(m.getId());
-				invalidateNextMessageAsync(invalidate);
+				context = null;
 			}
+			storeResultAsync(new ValidationResult(m, g.getClientId(),
+					g.getMajorVersion(), context));
 		}
 	}
 
-	private void storeMessageContextAsync(Message m, ClientId c,
-			int majorVersion, MessageContext result) {
-		dbExecutor.execute(() ->
-				storeMessageContext(m, c, majorVersion, result));
+	/**
+	 * Queues a validation result to be stored. Results that arrive while
+	 * earlier results are waiting to be stored are stored together.
+	 */
+	private void storeResultAsync(ValidationResult result) {
+		validated.add(result);
+		if (!storing.getAndSet(true))
+			dbExecutor.execute(this::storeNextBatch);
 	}
 
 	@DatabaseExecutor
-	private void storeMessageContext(Message m, ClientId c, int majorVersion,
-			MessageContext context) {
+	private void storeNextBatch() {
+		List<ValidationResult> batch = new ArrayList<>();
+		while (batch.size() < MAX_BATCH_SIZE) {
+			ValidationResult result = validated.poll();
+			if (result == null) break;
+			batch.add(result);
+		}
 		try {
-			MessageId id = m.getId();
-			Queue<MessageId> invalidate = new LinkedList<>();
-			Queue<MessageId> pending = new LinkedList<>();
-			Queue<MessageId> toShare = new LinkedList<>();
-			db.transaction(false, txn -> {
-				boolean anyInvalid = false, allDelivered = true;
-				// Check if message has any dependencies
-				Collection<MessageId> dependencies = context.getDependencies();
-				if (!dependencies.isEmpty()) {
-					db.addMessageDependencies(txn, m, dependencies);
-					// Check if dependencies are valid and delivered
-					Map<MessageId, MessageState> states =
-							db.getMessageDependencies(txn, id);
-					for (Entry<MessageId, MessageState> e : states.entrySet()) {
-						if (e.getValue() == INVALID) anyInvalid = true;
-						if (e.getValue() != DELIVERED) allDelivered = false;
-					}
+			if (batch.size() == 1) {
+				tryToStoreResult(batch.get(0));
+			} else {
+				try {
+					storeResults(batch);
+				} catch (DbException e) {
+					// Store the results one at a time so a result that can't
+					// be stored doesn't cause the rest to be lost
+					logException(LOG, INFO, e);
+					for (ValidationResult result : batch)
+						tryToStoreResult(result);
 				}
-				if (anyInvalid) {
+			}
+		} finally {
+			storing.set(false);
+			if (!validated.isEmpty() && !storing.getAndSet(true))
+				dbExecutor.execute(this::storeNextBatch);
+		}
+	}
+
+	@DatabaseExecutor
+	private void tryToStoreResult(ValidationResult result) {
+		try {
+			storeResults(singletonList(result));
+		} catch (NoSuchMessageException e) {
+			LOG.info("Message removed during validation");
+		} catch (NoSuchGroupException e) {
+			LOG.info("Group removed during validation");
+		} catch (DbException e) {
+			logException(LOG, WARNING, e);
+		}
+	}
+
+	/**
+	 * Stores the given validation results in a single transaction,
+	 * delivering any valid messages that have all their dependencies
+	 * delivered.
+	 */
+	@DatabaseExecutor
+	private void storeResults(Collection<ValidationResult> results)
+			throws DbException {
+		Queue<MessageId> invalidate = new LinkedList<>();
+		Queue<MessageId> pending = new LinkedList<>();
+		Queue<MessageId> toShare = new LinkedList<>();
+		db.transaction(false, txn -> {
+			for (ValidationResult result : results) {
+				if (result.context == null) {
+					MessageId id = result.message.getId();
 					if (db.getMessageState(txn, id) != INVALID) {
 						invalidateMessage(txn, id);
 						addDependentsToInvalidate(txn, id, invalidate);
 					}
 				} else {
-					Metadata meta = context.getMetadata();
-					db.mergeMessageMetadata(txn, id, meta);
-					if (allDelivered) {
-						DeliveryResult result =
-								deliverMessage(txn, m, c, majorVersion, meta);
-						if (result.valid) {
-							addPendingDependents(txn, id, pending);
-							if (result.share) {
-								db.setMessageShared(txn, id);
-								toShare.addAll(dependencies);
-							}
-						} else {
-							addDependentsToInvalidate(txn, id, invalidate);
-						}
-					} else {
-						db.setMessageState(txn, id, PENDING);
+					storeMessageContext(txn, result.message, result.clientId,
+							result.majorVersion, result.context, invalidate,
+							pending, toShare);
+				}
+			}
+		});
+		if (!invalidate.isEmpty()) invalidateNextMessageAsync(invalidate);
+		if (!pending.isEmpty()) deliverNextPendingBatchAsync(pending);
+		if (!toShare.isEmpty()) shareNextMessageAsync(toShare);
+	}
+
+	@DatabaseExecutor
+	private void storeMessageContext(Transaction txn, Message m, ClientId c,
+			int majorVersion, MessageContext context,
+			Queue<MessageId> invalidate, Queue<MessageId> pending,
+			Queue<MessageId> toShare) throws DbException {
+		MessageId id = m.getId();
+		boolean anyInvalid = false, allDelivered = true;
+		// Check if message has any dependencies
+		Collection<MessageId> dependencies = context.getDependencies();
+		if (!dependencies.isEmpty()) {
+			db.addMessageDependencies(txn, m, dependencies);
+			// Check if dependencies are valid and delivered
+			Map<MessageId, MessageState> states =
+					db.getMessageDependencies(txn, id);
+			for (Entry<MessageId, MessageState> e : states.entrySet()) {
+				if (e.getValue() == INVALID) anyInvalid = true;
+				if (e.getValue() != DELIVERED) allDelivered = false;
+			}
+		}
+		if (anyInvalid) {
+			if (db.getMessageState(txn, id) != INVALID) {
+				invalidateMessage(txn, id);
+				addDependentsToInvalidate(txn, id, invalidate);
+			}
+		} else {
+			Metadata meta = context.getMetadata();
+			db.mergeMessageMetadata(txn, id, meta);
+			if (allDelivered) {
+				DeliveryResult result =
+						deliverMessage(txn, m, c, majorVersion, meta);
+				if (result.valid) {
+					addPendingDependents(txn, id, pending);
+					if (result.share) {
+						db.setMessageShared(txn, id);
+						toShare.addAll(dependencies);
 					}
+				} else {
+					addDependentsToInvalidate(txn, id, invalidate);
 				}
-			});
-			if (!invalidate.isEmpty()) invalidateNextMessageAsync(invalidate);
-			if (!pending.isEmpty()) deliverNextPendingMessageAsync(pending);
-			if (!toShare.isEmpty()) shareNextMessageAsync(toShare);
-		} catch (NoSuchMessageException e) {
-			LOG.info("Message removed during validation");
-		} catch (NoSuchGroupException e) {
-			LOG.info("Group removed during validation");
-		} catch (DbException e) {
-			logException(LOG, WARNING, e);
+			} else {
+				db.setMessageState(txn, id, PENDING);
+			}
 		}
 	}
 
@@ -448,6 +604,23 @@ class ValidationManagerImpl implements ValidationManager, Service,
 		}
 	}
 
+	private static class ValidationResult {
+
+		private final Message message;
+		private final ClientId clientId;
+		private final int majorVersion;
+		@Nullable
+		private final MessageContext context; // Null if the message is invalid
+
+		private ValidationResult(Message message, ClientId clientId,
+				int majorVersion, @Nullable MessageContext context) {
+			this.message = message;
+			this.clientId = clientId;
+			this.majorVersion = majorVersion;
+			this.context = context;
+		}
+	}
+
 	private static class DeliveryResult {
 
 		private final boolean valid, share;
@@ -38,7 +38,8 @@ public class ValidationModule {
 			LifecycleManager lifecycleManager, EventBus eventBus,
 			ValidationManagerImpl validationManager) {
 		lifecycleManager.registerService(validationManager);
-		eventBus.addListener(validationManager);
+		eventBus.addListener(validationManager,
+				ValidationManagerImpl.EVENT_TYPES);
 		return validationManager;
 	}
 
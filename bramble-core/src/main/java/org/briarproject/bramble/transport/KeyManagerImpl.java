@@ -28,6 +28,7 @@ import org.briarproject.bramble.api.transport.StreamContext;
 
 import java.security.GeneralSecurityException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
@@ -39,6 +40,7 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 
+import static java.util.Arrays.asList;
 import static java.util.logging.Level.INFO;
 
 @ThreadSafe
@@ -48,6 +50,12 @@ class KeyManagerImpl implements KeyManager, Service, EventListener {
 	private static final Logger LOG =
 			Logger.getLogger(KeyManagerImpl.class.getName());
 
+	/**
+	 * The types of event the key manager handles.
+	 */
+	static final List<Class<? extends Event>> EVENT_TYPES = asList(
+			ContactRemovedEvent.class, PendingContactRemovedEvent.class);
+
 	private final DatabaseComponent db;
 	private final Executor dbExecutor;
 	private final PluginConfig pluginConfig;
@@ -97,7 +105,17 @@ class KeyManagerImpl implements KeyManager, Service, EventListener {
 	}
 
 	@Override
-	public void stopService() {
+	public void stopService() throws ServiceException {
+		// Save any changes that are waiting to be written to the DB
+		if (managers.isEmpty()) return;
+		try {
+			db.transaction(false, txn -> {
+				for (TransportKeyManager m : managers.values())
+					m.saveChanges(txn);
+			});
+		} catch (DbException e) {
+			throw new ServiceException(e);
+		}
 	}
 
 	@Override
@@ -190,11 +208,13 @@ class KeyManagerImpl implements KeyManager, Service, EventListener {
 	}
 
 	@Override
-	public StreamContext getStreamContext(TransportId t, byte[] tag)
-			throws DbException {
-		return withManager(t, m ->
-				db.transactionWithNullableResult(false, txn ->
-						m.getStreamContext(txn, tag)));
+	public StreamContext getStreamContext(TransportId t, byte[] tag) {
+		TransportKeyManager m = managers.get(t);
+		if (m == null) {
+			if (LOG.isLoggable(INFO)) LOG.info("No key manager for " + t);
+			return null;
+		}
+		return m.getStreamContext(tag);
 	}
 
 	@Override
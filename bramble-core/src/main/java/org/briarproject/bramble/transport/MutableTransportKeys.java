@@ -3,6 +3,7 @@ package org.briarproject.bramble.transport;
 import org.briarproject.bramble.api.crypto.SecretKey;
 import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
 import org.briarproject.bramble.api.plugin.TransportId;
+import org.briarproject.bramble.api.transport.IncomingKeys;
 import org.briarproject.bramble.api.transport.TransportKeys;
 
 import javax.annotation.Nullable;
@@ -34,6 +35,36 @@ class MutableTransportKeys {
 		}
 	}
 
+	/**
+	 * Creates mutable state for the given keys, which are an update of the
+	 * given mutable state. The incoming keys for any time periods the two
+	 * have in common are reused, along with their reordering windows.
+	 */
+	MutableTransportKeys(TransportKeys k, MutableTransportKeys old) {
+		transportId = k.getTransportId();
+		inPrev = old.getIncomingKeys(k.getPreviousIncomingKeys());
+		inCurr = old.getIncomingKeys(k.getCurrentIncomingKeys());
+		inNext = old.getIncomingKeys(k.getNextIncomingKeys());
+		outCurr = new MutableOutgoingKeys(k.getCurrentOutgoingKeys());
+		// The old keys may have been activated since the update was derived
+		if (old.outCurr.isActive()) outCurr.activate();
+		if (k.isHandshakeMode()) {
+			rootKey = k.getRootKey();
+			alice = k.isAlice();
+		} else {
+			rootKey = null;
+			alice = false;
+		}
+	}
+
+	private MutableIncomingKeys getIncomingKeys(IncomingKeys in) {
+		long timePeriod = in.getTimePeriod();
+		if (inPrev.getTimePeriod() == timePeriod) return inPrev;
+		if (inCurr.getTimePeriod() == timePeriod) return inCurr;
+		if (inNext.getTimePeriod() == timePeriod) return inNext;
+		return new MutableIncomingKeys(in);
+	}
+
 	TransportKeys snapshot() {
 		if (rootKey == null) {
 			return new TransportKeys(transportId, inPrev.snapshot(),
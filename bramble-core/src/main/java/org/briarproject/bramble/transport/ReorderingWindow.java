@@ -10,58 +10,84 @@ import javax.annotation.concurrent.NotThreadSafe;
 
 import static org.briarproject.bramble.util.ByteUtils.MAX_32_BIT_UNSIGNED;
 
+/**
+ * A window of stream numbers, recording which of them have been seen. The
+ * window is stored as a bitset of long words, with the first element of the
+ * window in the most significant bit of the first word, so the bitset can
+ * be converted directly to and from the byte-oriented bitmap stored in the
+ * DB.
+ */
 @NotThreadSafe
 @NotNullByDefault
 class ReorderingWindow {
 
+	private final int size;
+	private final long[] words;
 	private long base;
-	private boolean[] seen;
 
 	ReorderingWindow(long base, byte[] bitmap) {
 		if (base < 0) throw new IllegalArgumentException();
 		if (base > MAX_32_BIT_UNSIGNED + 1)
 			throw new IllegalArgumentException();
 		this.base = base;
-		seen = new boolean[bitmap.length * 8];
-		for (int i = 0; i < bitmap.length; i++) {
-			for (int j = 0; j < 8; j++) {
-				if ((bitmap[i] & (128 >> j)) != 0) seen[i * 8 + j] = true;
-			}
-		}
+		size = bitmap.length * 8;
+		words = new long[(bitmap.length + 7) / 8];
+		for (int i = 0; i < bitmap.length; i++)
+			words[i >> 3] |= (bitmap[i] & 0xFFL) << (56 - 8 * (i & 7));
 	}
 
 	long getBase() {
 		return base;
 	}
 
+	int getSize() {
+		return size;
+	}
+
 	byte[] getBitmap() {
-		byte[] bitmap = new byte[seen.length / 8];
-		for (int i = 0; i < bitmap.length; i++) {
-			for (int j = 0; j < 8; j++) {
-				if (seen[i * 8 + j]) bitmap[i] |= 128 >> j;
-			}
-		}
+		byte[] bitmap = new byte[size / 8];
+		for (int i = 0; i < bitmap.length; i++)
+			bitmap[i] = (byte) (words[i >> 3] >>> (56 - 8 * (i & 7)));
 		return bitmap;
 	}
 
-	List<Long> getUnseen() {
-		List<Long> unseen = new ArrayList<>(seen.length);
-		for (int i = 0; i < seen.length; i++)
-			if (!seen[i]) unseen.add(base + i);
-		return unseen;
+	/**
+	 * Returns the lowest unseen element of the window that's greater than
+	 * or equal to the given element, or -1 if there's no such element. The
+	 * unseen elements can be visited without allocating by starting from
+	 * the base of the window:
+	 * <pre>
+	 * for (long i = w.getNextUnseen(w.getBase()); i != -1;
+	 *         i = w.getNextUnseen(i + 1)) { ... }
+	 * </pre>
+	 */
+	long getNextUnseen(long index) {
+		if (index < base) index = base;
+		if (index - base >= size) return -1;
+		int offset = (int) (index - base);
+		int word = offset >> 6;
+		// Ignore the elements below the offset
+		long unseen = ~words[word] & (-1L >>> (offset & 63));
+		while (unseen == 0) {
+			if (++word == words.length) return -1;
+			unseen = ~words[word];
+		}
+		offset = (word << 6) + Long.numberOfLeadingZeros(unseen);
+		// Bits beyond the end of the window are always clear
+		return offset < size ? base + offset : -1;
 	}
 
 	Change setSeen(long index) {
 		if (index < base) throw new IllegalArgumentException();
-		if (index >= base + seen.length) throw new IllegalArgumentException();
+		if (index >= base + size) throw new IllegalArgumentException();
 		if (index > MAX_32_BIT_UNSIGNED) throw new IllegalArgumentException();
 		int offset = (int) (index - base);
-		if (seen[offset]) throw new IllegalArgumentException();
-		seen[offset] = true;
+		if (isSeen(offset)) throw new IllegalArgumentException();
+		words[offset >> 6] |= Long.MIN_VALUE >>> (offset & 63);
 		// Rule 1: Slide until all elements above the midpoint are unseen
-		int slide = Math.max(0, offset + 1 - seen.length / 2);
+		int slide = Math.max(0, offset + 1 - size / 2);
 		// Rule 2: Slide until the lowest element is unseen
-		while (seen[slide]) slide++;
+		while (isSeen(slide)) slide++;
 		// If the window doesn't need to slide, return
 		if (slide == 0) {
 			List<Long> added = Collections.emptyList();
@@ -72,17 +98,38 @@ class ReorderingWindow {
 		List<Long> added = new ArrayList<>(slide);
 		List<Long> removed = new ArrayList<>(slide);
 		for (int i = 0; i < slide; i++) {
-			if (!seen[i]) removed.add(base + i);
-			added.add(base + seen.length + i);
+			if (!isSeen(i)) removed.add(base + i);
+			added.add(base + size + i);
 		}
 		removed.add(index);
 		// Update the window
 		base += slide;
-		for (int i = 0; i + slide < seen.length; i++) seen[i] = seen[i + slide];
-		for (int i = seen.length - slide; i < seen.length; i++) seen[i] = false;
+		shift(slide);
 		return new Change(added, removed);
 	}
 
+	private boolean isSeen(int offset) {
+		return (words[offset >> 6] & (Long.MIN_VALUE >>> (offset & 63))) != 0;
+	}
+
+	/**
+	 * Shifts the bitset towards the first element by the given number of
+	 * bits, clearing the bits that are shifted in.
+	 */
+	private void shift(int bits) {
+		int wordShift = bits >> 6, bitShift = bits & 63;
+		for (int i = 0; i < words.length; i++) {
+			int src = i + wordShift;
+			long hi = src < words.length ? words[src] : 0;
+			if (bitShift == 0) {
+				words[i] = hi;
+			} else {
+				long lo = src + 1 < words.length ? words[src + 1] : 0;
+				words[i] = (hi << bitShift) | (lo >>> (64 - bitShift));
+			}
+		}
+	}
+
 	static class Change {
 
 		private final List<Long> added, removed;
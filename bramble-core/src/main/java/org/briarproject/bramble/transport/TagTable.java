@@ -0,0 +1,231 @@
+package org.briarproject.bramble.transport;
+
+import org.briarproject.bramble.api.Predicate;
+import org.briarproject.bramble.api.nullsafety.NotNullByDefault;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import static org.briarproject.bramble.api.transport.TransportConstants.TAG_LENGTH;
+import static org.briarproject.bramble.util.ByteUtils.INT_64_BYTES;
+import static org.briarproject.bramble.util.ByteUtils.readUint64;
+
+/**
+ * A hash table that maps tags to values, using open addressing with linear
+ * probing. Each tag is stored inline as two longs, so looking up a tag
+ * doesn't allocate. Tags are pseudo-random, so their leading bits are used
+ * as the hash.
+ * <p/>
+ * Modifications must be synchronized externally, but {@link #get(byte[])}
+ * may be called concurrently with modifications without locking. Readers
+ * check a version number that's incremented before and after each
+ * modification, and retry if the table was modified while they were
+ * reading it.
+ */
+@NotThreadSafe
+@NotNullByDefault
+class TagTable<V> {
+
+	private static final int MIN_CAPACITY = 16;
+
+	// Odd while the table is being modified
+	private volatile int version = 0;
+	private volatile Slots slots = new Slots(MIN_CAPACITY);
+	private int size = 0;
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the value mapped to the given tag, if any. This method may be
+	 * called concurrently with modifications.
+	 */
+	@Nullable
+	V get(byte[] tag) {
+		if (tag.length != TAG_LENGTH) throw new IllegalArgumentException();
+		long hi = readUint64(tag, 0), lo = readUint64(tag, INT_64_BYTES);
+		while (true) {
+			int before = version;
+			if ((before & 1) == 0) {
+				Slots s = slots;
+				int slot = s.find(hi, lo);
+				V value = slot == -1 ? null : s.getValue(slot);
+				if (version == before) return value;
+			}
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Maps the given tag to the given value and returns the value that was
+	 * previously mapped to the tag, if any.
+	 */
+	@Nullable
+	V put(byte[] tag, V value) {
+		if (tag.length != TAG_LENGTH) throw new IllegalArgumentException();
+		return put(readUint64(tag, 0), readUint64(tag, INT_64_BYTES), value);
+	}
+
+	/**
+	 * Maps the tag at the given offset in the given buffer to the given value
+	 * and returns the value that was previously mapped to the tag, if any.
+	 */
+	@Nullable
+	V put(byte[] tags, int offset, V value) {
+		if (offset < 0 || offset > tags.length - TAG_LENGTH)
+			throw new IllegalArgumentException();
+		return put(readUint64(tags, offset),
+				readUint64(tags, offset + INT_64_BYTES), value);
+	}
+
+	@Nullable
+	private V put(long hi, long lo, V value) {
+		Slots s = slots;
+		int slot = s.find(hi, lo);
+		if (slot != -1) {
+			V old = s.getValue(slot);
+			s.values.set(slot, value);
+			return old;
+		}
+		version++;
+		s.insert(hi, lo, value);
+		size++;
+		// Keep the load factor at or below 1/2
+		if (size * 2 > s.capacity) slots = s.copy(s.capacity * 2);
+		version++;
+		return null;
+	}
+
+	/**
+	 * Removes the given tag and returns the value that was mapped to it, if
+	 * any.
+	 */
+	@Nullable
+	V remove(byte[] tag) {
+		if (tag.length != TAG_LENGTH) throw new IllegalArgumentException();
+		long hi = readUint64(tag, 0), lo = readUint64(tag, INT_64_BYTES);
+		Slots s = slots;
+		int slot = s.find(hi, lo);
+		if (slot == -1) return null;
+		V old = s.getValue(slot);
+		version++;
+		s.delete(slot);
+		size--;
+		version++;
+		return old;
+	}
+
+	/**
+	 * Removes all tags whose values match the given predicate and returns
+	 * the number of tags removed. This takes time proportional to the
+	 * capacity of the table rather than the number of tags removed.
+	 */
+	int removeIf(Predicate<V> p) {
+		Slots s = slots;
+		int removed = 0;
+		version++;
+		for (int slot = 0; slot < s.capacity; slot++) {
+			V value = s.getValue(slot);
+			if (value != null && p.test(value)) {
+				s.values.set(slot, null);
+				removed++;
+			}
+		}
+		if (removed > 0) {
+			size -= removed;
+			// Reinsert the remaining tags, shrinking the table if it's sparse
+			int capacity = s.capacity;
+			while (capacity > MIN_CAPACITY && size * 8 < capacity)
+				capacity /= 2;
+			slots = s.copy(capacity);
+		}
+		version++;
+		return removed;
+	}
+
+	private static int hash(long hi) {
+		return (int) (hi >>> 32);
+	}
+
+	/**
+	 * The slots of the table. Atomic arrays are used so that concurrent
+	 * readers see a consistent view of each slot once they've checked the
+	 * table's version number.
+	 */
+	private static class Slots {
+
+		private final int capacity, mask;
+		// The tag in slot i is stored at indices 2 * i and 2 * i + 1
+		private final AtomicLongArray tags;
+		// A slot is empty if its value is null
+		private final AtomicReferenceArray<Object> values;
+
+		private Slots(int capacity) {
+			this.capacity = capacity;
+			mask = capacity - 1;
+			tags = new AtomicLongArray(capacity * 2);
+			values = new AtomicReferenceArray<>(capacity);
+		}
+
+		private int find(long hi, long lo) {
+			int slot = hash(hi) & mask;
+			while (values.get(slot) != null) {
+				if (tags.get(2 * slot) == hi && tags.get(2 * slot + 1) == lo)
+					return slot;
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Nullable
+		private <V> V getValue(int slot) {
+			return (V) values.get(slot);
+		}
+
+		private void insert(long hi, long lo, Object value) {
+			int slot = hash(hi) & mask;
+			while (values.get(slot) != null) slot = (slot + 1) & mask;
+			tags.set(2 * slot, hi);
+			tags.set(2 * slot + 1, lo);
+			values.set(slot, value);
+		}
+
+		/**
+		 * Empties the given slot, moving later tags in the same probe
+		 * sequence back so that lookups don't need tombstones.
+		 */
+		private void delete(int slot) {
+			int next = slot;
+			while (true) {
+				next = (next + 1) & mask;
+				if (values.get(next) == null) break;
+				int home = hash(tags.get(2 * next)) & mask;
+				// The tag can stay if its home slot is cyclically in
+				// (slot, next]
+				boolean stay = slot <= next ? slot < home && home <= next
+						: slot < home || home <= next;
+				if (stay) continue;
+				tags.set(2 * slot, tags.get(2 * next));
+				tags.set(2 * slot + 1, tags.get(2 * next + 1));
+				values.set(slot, values.get(next));
+				slot = next;
+			}
+			values.set(slot, null);
+		}
+
+		private Slots copy(int capacity) {
+			Slots copy = new Slots(capacity);
+			for (int i = 0; i < this.capacity; i++) {
+				Object value = values.get(i);
+				if (value != null)
+					copy.insert(tags.get(2 * i), tags.get(2 * i + 1), value);
+			}
+			return copy;
+		}
+	}
+}
@@ -44,8 +44,19 @@ interface TransportKeyManager {
 	StreamContext getStreamContext(Transaction txn, PendingContactId p)
 			throws DbException;
 
+	/**
+	 * Returns a {@link StreamContext} for receiving a stream with the given
+	 * tag, or null if the tag isn't recognised. The updated reordering
+	 * window is saved later by a background task, or by
+	 * {@link #saveChanges(Transaction)}.
+	 */
 	@Nullable
-	StreamContext getStreamContext(Transaction txn, byte[] tag)
-			throws DbException;
+	StreamContext getStreamContext(byte[] tag);
+
+	/**
+	 * Writes any reordering windows and key activations that haven't yet
+	 * been saved to the DB.
+	 */
+	void saveChanges(Transaction txn) throws DbException;
 
 }
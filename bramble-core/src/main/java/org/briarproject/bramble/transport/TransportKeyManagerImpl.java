@@ -1,8 +1,8 @@
 package org.briarproject.bramble.transport;
 
-import org.briarproject.bramble.api.Bytes;
 import org.briarproject.bramble.api.contact.ContactId;
 import org.briarproject.bramble.api.contact.PendingContactId;
+import org.briarproject.bramble.api.crypto.CryptoExecutor;
 import org.briarproject.bramble.api.crypto.SecretKey;
 import org.briarproject.bramble.api.crypto.TransportCrypto;
 import org.briarproject.bramble.api.db.DatabaseComponent;
@@ -14,6 +14,7 @@ import org.briarproject.bramble.api.plugin.TransportId;
 import org.briarproject.bramble.api.system.Clock;
 import org.briarproject.bramble.api.system.TaskScheduler;
 import org.briarproject.bramble.api.system.Wakeful;
+import org.briarproject.bramble.api.transport.IncomingKeys;
 import org.briarproject.bramble.api.transport.KeySetId;
 import org.briarproject.bramble.api.transport.StreamContext;
 import org.briarproject.bramble.api.transport.TransportKeySet;
@@ -21,12 +22,17 @@ import org.briarproject.bramble.api.transport.TransportKeys;
 import org.briarproject.bramble.transport.ReorderingWindow.Change;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
@@ -34,6 +40,8 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.logging.Level.WARNING;
 import static java.util.logging.Logger.getLogger;
@@ -42,7 +50,9 @@ import static org.briarproject.bramble.api.transport.TransportConstants.MAX_CLOC
 import static org.briarproject.bramble.api.transport.TransportConstants.PROTOCOL_VERSION;
 import static org.briarproject.bramble.api.transport.TransportConstants.TAG_LENGTH;
 import static org.briarproject.bramble.util.ByteUtils.MAX_32_BIT_UNSIGNED;
+import static org.briarproject.bramble.util.LogUtils.logDuration;
 import static org.briarproject.bramble.util.LogUtils.logException;
+import static org.briarproject.bramble.util.LogUtils.now;
 
 @ThreadSafe
 @NotNullByDefault
@@ -53,7 +63,7 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 
 	private final DatabaseComponent db;
 	private final TransportCrypto transportCrypto;
-	private final Executor dbExecutor;
+	private final Executor dbExecutor, cryptoExecutor;
 	private final TaskScheduler scheduler;
 	private final Clock clock;
 	private final TransportId transportId;
@@ -64,17 +74,26 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 	@GuardedBy("lock")
 	private final Map<KeySetId, MutableTransportKeySet> keys = new HashMap<>();
 	@GuardedBy("lock")
-	private final Map<Bytes, TagContext> inContexts = new HashMap<>();
+	private final TagTable<TagContext> inContexts = new TagTable<>();
 	@GuardedBy("lock")
 	private final Map<ContactId, MutableTransportKeySet>
 			contactOutContexts = new HashMap<>();
 	@GuardedBy("lock")
 	private final Map<PendingContactId, MutableTransportKeySet>
 			pendingContactOutContexts = new HashMap<>();
+	// Reordering windows and activated keys that haven't been saved yet
+	@GuardedBy("lock")
+	private final Map<MutableIncomingKeys, KeySetId> unsavedWindows =
+			new HashMap<>();
+	@GuardedBy("lock")
+	private final Set<KeySetId> unsavedActivations = new HashSet<>();
+	@GuardedBy("lock")
+	private boolean saveScheduled = false;
 
 	TransportKeyManagerImpl(DatabaseComponent db,
 			TransportCrypto transportCrypto,
 			Executor dbExecutor,
+			Executor cryptoExecutor,
 			TaskScheduler scheduler,
 			Clock clock,
 			TransportId transportId,
@@ -82,6 +101,7 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 		this.db = db;
 		this.transportCrypto = transportCrypto;
 		this.dbExecutor = dbExecutor;
+		this.cryptoExecutor = cryptoExecutor;
 		this.scheduler = scheduler;
 		this.clock = clock;
 		this.transportId = transportId;
@@ -162,13 +182,44 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 	private void encodeTags(KeySetId keySetId, @Nullable ContactId contactId,
 			@Nullable PendingContactId pendingContactId,
 			MutableIncomingKeys inKeys, boolean handshakeMode) {
-		for (long streamNumber : inKeys.getWindow().getUnseen()) {
+		EncodedTags tags = encodeTags(inKeys.getTagKey(), inKeys.getWindow());
+		addTags(tags, keySetId, contactId, pendingContactId, inKeys,
+				handshakeMode);
+	}
+
+	/**
+	 * Encodes the tags for the unseen stream numbers in the given window in a
+	 * single batch, which covers every stream number from the first unseen
+	 * stream number to the end of the window.
+	 */
+	private EncodedTags encodeTags(SecretKey tagKey, ReorderingWindow window) {
+		long first = window.getNextUnseen(window.getBase());
+		// Stream numbers are limited to 32 bits
+		long end = Math.min(window.getBase() + window.getSize(),
+				MAX_32_BIT_UNSIGNED + 1);
+		if (first == -1 || first >= end)
+			return new EncodedTags(new byte[0], 0, 0);
+		int count = (int) (end - first);
+		byte[] tags = new byte[count * TAG_LENGTH];
+		transportCrypto.encodeTags(tags, tagKey, PROTOCOL_VERSION, first,
+				count);
+		return new EncodedTags(tags, first, count);
+	}
+
+	@GuardedBy("lock")
+	private void addTags(EncodedTags tags, KeySetId keySetId,
+			@Nullable ContactId contactId,
+			@Nullable PendingContactId pendingContactId,
+			MutableIncomingKeys inKeys, boolean handshakeMode) {
+		ReorderingWindow window = inKeys.getWindow();
+		long first = tags.firstStreamNumber, end = first + tags.count;
+		for (long streamNumber = window.getNextUnseen(first);
+				streamNumber != -1 && streamNumber < end;
+				streamNumber = window.getNextUnseen(streamNumber + 1)) {
 			TagContext tagCtx = new TagContext(keySetId, contactId,
 					pendingContactId, inKeys, streamNumber, handshakeMode);
-			byte[] tag = new byte[TAG_LENGTH];
-			transportCrypto.encodeTag(tag, inKeys.getTagKey(), PROTOCOL_VERSION,
-					streamNumber);
-			inContexts.put(new Bytes(tag), tagCtx);
+			int offset = (int) (streamNumber - first) * TAG_LENGTH;
+			inContexts.put(tags.tags, offset, tagCtx);
 		}
 	}
 
@@ -206,11 +257,64 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 	@DatabaseExecutor
 	@Wakeful
 	private void updateKeys() {
+		long timePeriod = clock.currentTimeMillis() / timePeriodLength;
+		// Take a snapshot of the keys
+		Map<MutableTransportKeySet, TransportKeys> snapshot;
+		lock.lock();
+		try {
+			snapshot = new HashMap<>(keys.size());
+			for (MutableTransportKeySet ks : keys.values())
+				snapshot.put(ks, ks.getKeys().snapshot());
+		} finally {
+			lock.unlock();
+		}
+		if (snapshot.isEmpty()) {
+			saveKeyUpdates(emptyList());
+			return;
+		}
+		// Derive the updated keys and their tags on the crypto executor,
+		// spreading the key sets across its threads, without holding the
+		// lock, a transaction or the DB thread, so incoming streams can be
+		// recognised meanwhile. The last task to finish hands the updates
+		// back to the DB executor. Tasks are only discarded by the crypto
+		// executor during shutdown, in which case the update is never
+		// finished and the keys are updated at the next startup instead
+		long start = now();
+		List<KeyUpdate> updates = new ArrayList<>();
+		AtomicInteger remaining = new AtomicInteger(snapshot.size());
+		for (Map.Entry<MutableTransportKeySet, TransportKeys> e :
+				snapshot.entrySet()) {
+			cryptoExecutor.execute(() -> {
+				try {
+					KeyUpdate update = prepareKeyUpdate(e.getKey(),
+							e.getValue(), timePeriod);
+					if (update != null) {
+						synchronized (updates) {
+							updates.add(update);
+						}
+					}
+				} finally {
+					if (remaining.decrementAndGet() == 0) {
+						logDuration(LOG, "Deriving updated keys", start);
+						dbExecutor.execute(() -> saveKeyUpdates(updates));
+					}
+				}
+			});
+		}
+	}
+
+	@DatabaseExecutor
+	@Wakeful
+	private void saveKeyUpdates(List<KeyUpdate> updates) {
 		try {
-			db.transaction(false, this::updateKeys);
+			db.transaction(false, txn -> writeKeyUpdates(txn, updates));
 		} catch (DbException e) {
 			logException(LOG, WARNING, e);
 		}
+		// Schedule the next key update, even if this one failed. The next
+		// update starts again from the keys in memory, which are only
+		// replaced once the updated keys have been committed
+		scheduleKeyUpdate(clock.currentTimeMillis());
 	}
 
 	@Override
@@ -297,13 +401,11 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 		lock.lock();
 		try {
 			// Remove mutable state for the contact
-			Iterator<TagContext> it = inContexts.values().iterator();
-			while (it.hasNext())
-				if (c.equals(it.next().contactId)) it.remove();
+			inContexts.removeIf(tagCtx -> c.equals(tagCtx.contactId));
 			contactOutContexts.remove(c);
-			Iterator<MutableTransportKeySet> it1 = keys.values().iterator();
-			while (it1.hasNext())
-				if (c.equals(it1.next().getContactId())) it1.remove();
+			Iterator<MutableTransportKeySet> it = keys.values().iterator();
+			while (it.hasNext())
+				if (c.equals(it.next().getContactId())) it.remove();
 		} finally {
 			lock.unlock();
 		}
@@ -314,13 +416,11 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 		lock.lock();
 		try {
 			// Remove mutable state for the pending contact
-			Iterator<TagContext> it = inContexts.values().iterator();
-			while (it.hasNext())
-				if (p.equals(it.next().pendingContactId)) it.remove();
+			inContexts.removeIf(tagCtx -> p.equals(tagCtx.pendingContactId));
 			pendingContactOutContexts.remove(p);
-			Iterator<MutableTransportKeySet> it1 = keys.values().iterator();
-			while (it1.hasNext())
-				if (p.equals(it1.next().getPendingContactId())) it1.remove();
+			Iterator<MutableTransportKeySet> it = keys.values().iterator();
+			while (it.hasNext())
+				if (p.equals(it.next().getPendingContactId())) it.remove();
 		} finally {
 			lock.unlock();
 		}
@@ -389,16 +489,20 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 	}
 
 	@Override
-	public StreamContext getStreamContext(Transaction txn, byte[] tag)
-			throws DbException {
+	public StreamContext getStreamContext(byte[] tag) {
+		// Check the tag without taking the lock, so unrecognised tags don't
+		// hold up other lookups
+		if (inContexts.get(tag) == null) return null;
+		StreamContext ctx;
+		boolean scheduleSave;
 		lock.lock();
 		try {
 			// Look up the incoming keys for the tag
-			TagContext tagCtx = inContexts.remove(new Bytes(tag));
+			TagContext tagCtx = inContexts.remove(tag);
 			if (tagCtx == null) return null;
 			MutableIncomingKeys inKeys = tagCtx.inKeys;
 			// Create a stream context
-			StreamContext ctx = new StreamContext(tagCtx.contactId,
+			ctx = new StreamContext(tagCtx.contactId,
 					tagCtx.pendingContactId, transportId,
 					inKeys.getTagKey(), inKeys.getHeaderKey(),
 					tagCtx.streamNumber, tagCtx.handshakeMode);
@@ -413,7 +517,7 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 				TagContext tagCtx1 = new TagContext(tagCtx.keySetId,
 						tagCtx.contactId, tagCtx.pendingContactId, inKeys,
 						streamNumber, tagCtx.handshakeMode);
-				inContexts.put(new Bytes(addTag), tagCtx1);
+				inContexts.put(addTag, tagCtx1);
 			}
 			// Remove tags for any stream numbers removed from the window
 			for (long streamNumber : change.getRemoved()) {
@@ -421,12 +525,10 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 				byte[] removeTag = new byte[TAG_LENGTH];
 				transportCrypto.encodeTag(removeTag, inKeys.getTagKey(),
 						PROTOCOL_VERSION, streamNumber);
-				inContexts.remove(new Bytes(removeTag));
+				inContexts.remove(removeTag);
 			}
-			// Write the window back to the DB
-			db.setReorderingWindow(txn, tagCtx.keySetId, transportId,
-					inKeys.getTimePeriod(), window.getBase(),
-					window.getBitmap());
+			// Save the window later, together with any other changes
+			unsavedWindows.put(inKeys, tagCtx.keySetId);
 			// If the outgoing keys are inactive, activate them
 			MutableTransportKeySet ks = keys.get(tagCtx.keySetId);
 			MutableOutgoingKeys outKeys =
@@ -435,42 +537,192 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 				LOG.info("Activating outgoing keys");
 				outKeys.activate();
 				considerReplacingOutgoingKeys(ks);
-				db.setTransportKeysActive(txn, transportId, tagCtx.keySetId);
+				unsavedActivations.add(tagCtx.keySetId);
 			}
-			return ctx;
+			scheduleSave = !saveScheduled;
+			saveScheduled = true;
 		} finally {
 			lock.unlock();
 		}
+		if (scheduleSave) dbExecutor.execute(this::saveScheduledChanges);
+		return ctx;
+	}
+
+	@DatabaseExecutor
+	private void saveScheduledChanges() {
+		try {
+			db.transaction(false, this::saveChanges);
+		} catch (DbException e) {
+			logException(LOG, WARNING, e);
+		}
+	}
+
+	@Override
+	public void saveChanges(Transaction txn) throws DbException {
+		// Take a snapshot of the changes. This is only called in unscoped
+		// write transactions, which hold the DB's global transaction lock
+		// and therefore exclude all other transactions, so an older
+		// snapshot can't be written over a newer one
+		Map<MutableIncomingKeys, WindowUpdate> windows;
+		Collection<KeySetId> activations;
+		lock.lock();
+		try {
+			saveScheduled = false;
+			windows = new HashMap<>(unsavedWindows.size());
+			for (Map.Entry<MutableIncomingKeys, KeySetId> e :
+					unsavedWindows.entrySet()) {
+				MutableIncomingKeys inKeys = e.getKey();
+				ReorderingWindow window = inKeys.getWindow();
+				windows.put(inKeys, new WindowUpdate(e.getValue(),
+						inKeys.getTimePeriod(), window.getBase(),
+						window.getBitmap()));
+			}
+			activations = new ArrayList<>(unsavedActivations);
+		} finally {
+			lock.unlock();
+		}
+		// Write the changes to the DB
+		for (WindowUpdate w : windows.values()) {
+			db.setReorderingWindow(txn, w.keySetId, transportId,
+					w.timePeriod, w.base, w.bitmap);
+		}
+		for (KeySetId k : activations)
+			db.setTransportKeysActive(txn, transportId, k);
+		// Forget the changes once they've been committed. If the
+		// transaction fails they're saved with the next changes instead
+		txn.attach(() -> removeSavedChanges(windows, activations));
+	}
+
+	private void removeSavedChanges(
+			Map<MutableIncomingKeys, WindowUpdate> windows,
+			Collection<KeySetId> activations) {
+		lock.lock();
+		try {
+			for (Map.Entry<MutableIncomingKeys, WindowUpdate> e :
+					windows.entrySet()) {
+				// Keep any windows that have changed since the snapshot
+				ReorderingWindow window = e.getKey().getWindow();
+				WindowUpdate w = e.getValue();
+				if (window.getBase() == w.base &&
+						Arrays.equals(window.getBitmap(), w.bitmap)) {
+					unsavedWindows.remove(e.getKey());
+				}
+			}
+			unsavedActivations.removeAll(activations);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@CryptoExecutor
+	@Nullable
+	private KeyUpdate prepareKeyUpdate(MutableTransportKeySet ks,
+			TransportKeys k, long timePeriod) {
+		TransportKeys k1 = transportCrypto.updateTransportKeys(k, timePeriod);
+		if (k1.getTimePeriod() <= k.getTimePeriod()) return null;
+		KeyUpdate update = new KeyUpdate(ks, k1);
+		// Only the windows for new time periods need tags
+		encodeTags(update, k, k1.getPreviousIncomingKeys());
+		encodeTags(update, k, k1.getCurrentIncomingKeys());
+		encodeTags(update, k, k1.getNextIncomingKeys());
+		return update;
+	}
+
+	@CryptoExecutor
+	private void encodeTags(KeyUpdate update, TransportKeys old,
+			IncomingKeys in) {
+		long timePeriod = in.getTimePeriod();
+		if (old.getPreviousIncomingKeys().getTimePeriod() == timePeriod ||
+				old.getCurrentIncomingKeys().getTimePeriod() == timePeriod ||
+				old.getNextIncomingKeys().getTimePeriod() == timePeriod) {
+			return;
+		}
+		ReorderingWindow window =
+				new ReorderingWindow(in.getWindowBase(), in.getWindowBitmap());
+		update.newTags.put(timePeriod, encodeTags(in.getTagKey(), window));
 	}
 
 	@DatabaseExecutor
 	@Wakeful
-	private void updateKeys(Transaction txn) throws DbException {
-		long now = clock.currentTimeMillis();
+	private void writeKeyUpdates(Transaction txn, List<KeyUpdate> updates)
+			throws DbException {
+		Collection<TransportKeySet> updated = new ArrayList<>();
 		lock.lock();
 		try {
-			// Update the keys to the current time period
-			Collection<TransportKeySet> snapshot = new ArrayList<>(keys.size());
-			for (MutableTransportKeySet ks : keys.values()) {
-				snapshot.add(new TransportKeySet(ks.getKeySetId(),
-						ks.getContactId(), ks.getPendingContactId(),
-						ks.getKeys().snapshot()));
+			for (KeyUpdate update : updates) {
+				MutableTransportKeySet old = update.old;
+				KeySetId keySetId = old.getKeySetId();
+				// Skip any keys that were removed while preparing the update
+				if (keys.get(keySetId) != old) continue;
+				MutableTransportKeys newKeys =
+						new MutableTransportKeys(update.keys, old.getKeys());
+				updated.add(new TransportKeySet(keySetId, old.getContactId(),
+						old.getPendingContactId(), newKeys.snapshot()));
 			}
-			UpdateResult updateResult = updateKeys(snapshot, now);
-			// Rebuild the mutable state for all contacts
-			inContexts.clear();
-			contactOutContexts.clear();
-			pendingContactOutContexts.clear();
-			keys.clear();
-			addKeys(updateResult.current);
-			// Write any updated keys back to the DB
-			if (!updateResult.updated.isEmpty())
-				db.updateTransportKeys(txn, updateResult.updated);
 		} finally {
 			lock.unlock();
 		}
-		// Schedule the next key update
-		scheduleKeyUpdate(now);
+		if (updated.isEmpty()) return;
+		// Write the updated keys to the DB
+		db.updateTransportKeys(txn, updated);
+		// Replace the keys in memory once the updated keys have been
+		// committed. If the transaction fails, the keys in memory are
+		// left alone and the next update starts again from them
+		txn.attach(() -> applyKeyUpdates(updates));
+	}
+
+	private void applyKeyUpdates(List<KeyUpdate> updates) {
+		lock.lock();
+		try {
+			Set<MutableIncomingKeys> retired = new HashSet<>();
+			for (KeyUpdate update : updates) {
+				MutableTransportKeySet old = update.old;
+				KeySetId keySetId = old.getKeySetId();
+				// Skip any keys that were removed while saving the update
+				if (keys.get(keySetId) != old) continue;
+				MutableTransportKeys oldKeys = old.getKeys();
+				MutableTransportKeys newKeys =
+						new MutableTransportKeys(update.keys, oldKeys);
+				MutableTransportKeySet ks = new MutableTransportKeySet(keySetId,
+						old.getContactId(), old.getPendingContactId(),
+						newKeys);
+				keys.put(keySetId, ks);
+				List<MutableIncomingKeys> oldIn = getIncomingKeys(oldKeys);
+				List<MutableIncomingKeys> newIn = getIncomingKeys(newKeys);
+				// Retire the windows that weren't carried over
+				for (MutableIncomingKeys inKeys : oldIn) {
+					if (!newIn.contains(inKeys)) retired.add(inKeys);
+				}
+				// Add the tags for the windows that are new
+				for (MutableIncomingKeys inKeys : newIn) {
+					if (oldIn.contains(inKeys)) continue;
+					EncodedTags tags =
+							update.newTags.get(inKeys.getTimePeriod());
+					if (tags == null) throw new AssertionError();
+					addTags(tags, keySetId, ks.getContactId(),
+							ks.getPendingContactId(), inKeys,
+							newKeys.isHandshakeMode());
+				}
+				// Replace the outgoing keys if the old keys were in use
+				if (getOutgoingKeySet(ks.getContactId(),
+						ks.getPendingContactId()) == old) {
+					if (ks.getContactId() == null)
+						pendingContactOutContexts.remove(
+								ks.getPendingContactId());
+					else contactOutContexts.remove(ks.getContactId());
+				}
+				considerReplacingOutgoingKeys(ks);
+			}
+			if (!retired.isEmpty())
+				inContexts.removeIf(tagCtx -> retired.contains(tagCtx.inKeys));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private List<MutableIncomingKeys> getIncomingKeys(MutableTransportKeys k) {
+		return asList(k.getPreviousIncomingKeys(),
+				k.getCurrentIncomingKeys(), k.getNextIncomingKeys());
 	}
 
 	private static class TagContext {
@@ -498,6 +750,50 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 		}
 	}
 
+	private static class WindowUpdate {
+
+		private final KeySetId keySetId;
+		private final long timePeriod, base;
+		private final byte[] bitmap;
+
+		private WindowUpdate(KeySetId keySetId, long timePeriod, long base,
+				byte[] bitmap) {
+			this.keySetId = keySetId;
+			this.timePeriod = timePeriod;
+			this.base = base;
+			this.bitmap = bitmap;
+		}
+	}
+
+	private static class KeyUpdate {
+
+		private final MutableTransportKeySet old;
+		private final TransportKeys keys;
+		// Tags for the windows that aren't carried over, keyed by time period
+		private final Map<Long, EncodedTags> newTags = new HashMap<>();
+
+		private KeyUpdate(MutableTransportKeySet old, TransportKeys keys) {
+			this.old = old;
+			this.keys = keys;
+		}
+	}
+
+	/**
+	 * Tags for a range of consecutive stream numbers, stored contiguously.
+	 */
+	private static class EncodedTags {
+
+		private final byte[] tags;
+		private final long firstStreamNumber;
+		private final int count;
+
+		private EncodedTags(byte[] tags, long firstStreamNumber, int count) {
+			this.tags = tags;
+			this.firstStreamNumber = firstStreamNumber;
+			this.count = count;
+		}
+	}
+
 	private static class UpdateResult {
 
 		private final Collection<TransportKeySet> current = new ArrayList<>();
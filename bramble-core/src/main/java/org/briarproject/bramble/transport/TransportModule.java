@@ -45,7 +45,7 @@ public class TransportModule {
 	KeyManager provideKeyManager(LifecycleManager lifecycleManager,
 			EventBus eventBus, KeyManagerImpl keyManager) {
 		lifecycleManager.registerService(keyManager);
-		eventBus.addListener(keyManager);
+		eventBus.addListener(keyManager, KeyManagerImpl.EVENT_TYPES);
 		return keyManager;
 	}
 }
@@ -32,7 +32,6 @@ import org.jmock.Mockery;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
 import java.security.GeneralSecurityException;
 import java.util.Collections;
 import java.util.HashMap;
@@ -521,8 +520,8 @@ public class ClientHelperImplTest extends BrambleTestCase {
 		BdfReader bdfReader = context.mock(BdfReader.class);
 
 		context.checking(new Expectations() {{
-			oneOf(bdfReaderFactory)
-					.createReader(with(any(InputStream.class)));
+			oneOf(bdfReaderFactory).createReader(with(any(byte[].class)),
+					with(0), with(any(Integer.class)));
 			will(returnValue(bdfReader));
 			oneOf(bdfReader).readList();
 			will(returnValue(list));
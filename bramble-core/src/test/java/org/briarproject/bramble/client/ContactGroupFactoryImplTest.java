@@ -0,0 +1,173 @@
+package org.briarproject.bramble.client;
+
+import org.briarproject.bramble.api.client.ClientHelper;
+import org.briarproject.bramble.api.contact.Contact;
+import org.briarproject.bramble.api.contact.event.ContactRemovedEvent;
+import org.briarproject.bramble.api.data.BdfList;
+import org.briarproject.bramble.api.identity.AuthorId;
+import org.briarproject.bramble.api.sync.ClientId;
+import org.briarproject.bramble.api.sync.Group;
+import org.briarproject.bramble.api.sync.GroupFactory;
+import org.briarproject.bramble.test.BrambleMockTestCase;
+import org.hamcrest.Description;
+import org.jmock.Expectations;
+import org.jmock.api.Action;
+import org.jmock.api.Invocation;
+import org.junit.Test;
+
+import static org.briarproject.bramble.test.TestUtils.getClientId;
+import static org.briarproject.bramble.test.TestUtils.getContact;
+import static org.briarproject.bramble.test.TestUtils.getGroup;
+import static org.briarproject.bramble.test.TestUtils.getRandomBytes;
+import static org.junit.Assert.assertSame;
+
+public class ContactGroupFactoryImplTest extends BrambleMockTestCase {
+
+	private final GroupFactory groupFactory = context.mock(GroupFactory.class);
+	private final ClientHelper clientHelper = context.mock(ClientHelper.class);
+
+	private final ClientId clientId = getClientId();
+	private final int majorVersion = 123;
+	private final Contact contact = getContact();
+	private final AuthorId local = contact.getLocalAuthorId();
+	private final AuthorId remote = contact.getAuthor().getId();
+	private final byte[] descriptor = getRandomBytes(123);
+	private final Group group = getGroup(clientId, majorVersion);
+
+	@Test
+	public void testContactGroupIsCached() throws Exception {
+		expectCreateContactGroup(clientId, group);
+
+		ContactGroupFactoryImpl factory =
+				new ContactGroupFactoryImpl(groupFactory, clientHelper);
+		assertSame(group,
+				factory.createContactGroup(clientId, majorVersion, contact));
+		// The group should be returned from the cache, whichever method is
+		// called and whichever order the authors are given in
+		assertSame(group,
+				factory.createContactGroup(clientId, majorVersion, contact));
+		assertSame(group, factory.createContactGroup(clientId, majorVersion,
+				local, remote));
+		assertSame(group, factory.createContactGroup(clientId, majorVersion,
+				remote, local));
+	}
+
+	@Test
+	public void testContactGroupsForDifferentClientsAreCachedSeparately()
+			throws Exception {
+		ClientId clientId1 = getClientId();
+		Group group1 = getGroup(clientId1, majorVersion);
+		expectCreateContactGroup(clientId, group);
+		expectCreateContactGroup(clientId1, group1);
+
+		ContactGroupFactoryImpl factory =
+				new ContactGroupFactoryImpl(groupFactory, clientHelper);
+		assertSame(group,
+				factory.createContactGroup(clientId, majorVersion, contact));
+		assertSame(group1,
+				factory.createContactGroup(clientId1, majorVersion, contact));
+		assertSame(group,
+				factory.createContactGroup(clientId, majorVersion, contact));
+		assertSame(group1,
+				factory.createContactGroup(clientId1, majorVersion, contact));
+	}
+
+	@Test
+	public void testContactGroupIsRemovedFromCacheWhenContactIsRemoved()
+			throws Exception {
+		expectCreateContactGroup(clientId, group);
+		expectCreateContactGroup(clientId, group);
+
+		ContactGroupFactoryImpl factory =
+				new ContactGroupFactoryImpl(groupFactory, clientHelper);
+		assertSame(group,
+				factory.createContactGroup(clientId, majorVersion, contact));
+		// Removing another contact should not affect the cache
+		factory.eventOccurred(
+				new ContactRemovedEvent(getContact().getId()));
+		assertSame(group,
+				factory.createContactGroup(clientId, majorVersion, contact));
+		// Removing the contact should remove the group from the cache
+		factory.eventOccurred(new ContactRemovedEvent(contact.getId()));
+		assertSame(group,
+				factory.createContactGroup(clientId, majorVersion, contact));
+	}
+
+	@Test
+	public void testContactGroupForAuthorsIsNotCached() throws Exception {
+		expectCreateContactGroup(clientId, group);
+		expectCreateContactGroup(clientId, group);
+		expectCreateContactGroup(clientId, group);
+
+		ContactGroupFactoryImpl factory =
+				new ContactGroupFactoryImpl(groupFactory, clientHelper);
+		// The authors may not be contacts, so the group should not be cached
+		assertSame(group, factory.createContactGroup(clientId, majorVersion,
+				local, remote));
+		assertSame(group, factory.createContactGroup(clientId, majorVersion,
+				local, remote));
+		// The group should be cached when it's created for a contact
+		assertSame(group,
+				factory.createContactGroup(clientId, majorVersion, contact));
+		assertSame(group,
+				factory.createContactGroup(clientId, majorVersion, contact));
+	}
+
+	@Test
+	public void testContactGroupIsNotCachedIfContactIsRemovedConcurrently()
+			throws Exception {
+		ContactGroupFactoryImpl factory =
+				new ContactGroupFactoryImpl(groupFactory, clientHelper);
+
+		context.checking(new Expectations() {{
+			// The contact is removed while the group is being created
+			oneOf(clientHelper).toByteArray(with(any(BdfList.class)));
+			will(returnValue(descriptor));
+			oneOf(groupFactory).createGroup(clientId, majorVersion, descriptor);
+			will(new RemoveContactAction(factory, group));
+		}});
+		expectCreateContactGroup(clientId, group);
+
+		assertSame(group,
+				factory.createContactGroup(clientId, majorVersion, contact));
+		// The group should not have been cached for the removed contact
+		assertSame(group,
+				factory.createContactGroup(clientId, majorVersion, contact));
+		// Without a concurrent removal, the group should be cached
+		assertSame(group,
+				factory.createContactGroup(clientId, majorVersion, contact));
+	}
+
+	private void expectCreateContactGroup(ClientId c, Group g)
+			throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(clientHelper).toByteArray(with(any(BdfList.class)));
+			will(returnValue(descriptor));
+			oneOf(groupFactory).createGroup(c, majorVersion, descriptor);
+			will(returnValue(g));
+		}});
+	}
+
+	private class RemoveContactAction implements Action {
+
+		private final ContactGroupFactoryImpl factory;
+		private final Group group;
+
+		private RemoveContactAction(ContactGroupFactoryImpl factory,
+				Group group) {
+			this.factory = factory;
+			this.group = group;
+		}
+
+		@Override
+		public Object invoke(Invocation invocation) {
+			factory.eventOccurred(new ContactRemovedEvent(contact.getId()));
+			return group;
+		}
+
+		@Override
+		public void describeTo(Description description) {
+			description.appendText("removes the contact");
+		}
+	}
+}
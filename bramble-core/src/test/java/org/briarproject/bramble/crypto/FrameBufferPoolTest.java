@@ -0,0 +1,33 @@
+package org.briarproject.bramble.crypto;
+
+import org.briarproject.bramble.test.BrambleTestCase;
+import org.junit.Test;
+
+import static org.briarproject.bramble.api.transport.TransportConstants.MAX_FRAME_LENGTH;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class FrameBufferPoolTest extends BrambleTestCase {
+
+	private final FrameBufferPool pool = new FrameBufferPool();
+
+	@Test
+	public void testReleasedBufferIsReused() {
+		byte[] buffer = pool.acquire();
+		assertEquals(MAX_FRAME_LENGTH, buffer.length);
+		byte[] buffer1 = pool.acquire();
+		assertNotSame(buffer, buffer1);
+		pool.release(buffer);
+		assertSame(buffer, pool.acquire());
+		// The pool is empty again, so a new buffer should be allocated
+		byte[] buffer2 = pool.acquire();
+		assertNotSame(buffer, buffer2);
+		assertNotSame(buffer1, buffer2);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsBufferOfWrongLength() {
+		pool.release(new byte[MAX_FRAME_LENGTH - 1]);
+	}
+}
@@ -22,6 +22,7 @@ import static org.junit.Assert.assertArrayEquals;
 public class StreamDecrypterImplTest extends BrambleTestCase {
 
 	private final AuthenticatedCipher cipher;
+	private final FrameBufferPool bufferPool = new FrameBufferPool();
 	private final SecretKey streamHeaderKey, frameKey;
 	private final byte[] streamHeaderNonce, protocolVersionBytes;
 	private final byte[] streamNumberBytes, payload;
@@ -70,7 +71,7 @@ public class StreamDecrypterImplTest extends BrambleTestCase {
 
 		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
 		StreamDecrypterImpl s = new StreamDecrypterImpl(in, cipher,
-				streamNumber, streamHeaderKey);
+				bufferPool, streamNumber, streamHeaderKey);
 
 		// Read the first frame
 		byte[] buffer = new byte[MAX_PAYLOAD_LENGTH];
@@ -118,7 +119,7 @@ public class StreamDecrypterImplTest extends BrambleTestCase {
 
 		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
 		StreamDecrypterImpl s = new StreamDecrypterImpl(in, cipher,
-				streamNumber, streamHeaderKey);
+				bufferPool, streamNumber, streamHeaderKey);
 
 		// Try to read the first frame
 		byte[] buffer = new byte[MAX_PAYLOAD_LENGTH];
@@ -157,7 +158,7 @@ public class StreamDecrypterImplTest extends BrambleTestCase {
 
 		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
 		StreamDecrypterImpl s = new StreamDecrypterImpl(in, cipher,
-				streamNumber, streamHeaderKey);
+				bufferPool, streamNumber, streamHeaderKey);
 
 		// Try to read the first frame
 		byte[] buffer = new byte[MAX_PAYLOAD_LENGTH];
@@ -183,7 +184,7 @@ public class StreamDecrypterImplTest extends BrambleTestCase {
 
 		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
 		StreamDecrypterImpl s = new StreamDecrypterImpl(in, cipher,
-				streamNumber, streamHeaderKey);
+				bufferPool, streamNumber, streamHeaderKey);
 
 		// Try to read the truncated frame
 		byte[] buffer = new byte[MAX_PAYLOAD_LENGTH];
@@ -213,7 +214,7 @@ public class StreamDecrypterImplTest extends BrambleTestCase {
 
 		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
 		StreamDecrypterImpl s = new StreamDecrypterImpl(in, cipher,
-				streamNumber, streamHeaderKey);
+				bufferPool, streamNumber, streamHeaderKey);
 
 		// Try to read the invalid frame
 		byte[] buffer = new byte[MAX_PAYLOAD_LENGTH];
@@ -242,7 +243,7 @@ public class StreamDecrypterImplTest extends BrambleTestCase {
 
 		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
 		StreamDecrypterImpl s = new StreamDecrypterImpl(in, cipher,
-				streamNumber, streamHeaderKey);
+				bufferPool, streamNumber, streamHeaderKey);
 
 		// Try to read the invalid frame
 		byte[] buffer = new byte[MAX_PAYLOAD_LENGTH];
@@ -270,7 +271,7 @@ public class StreamDecrypterImplTest extends BrambleTestCase {
 
 		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
 		StreamDecrypterImpl s = new StreamDecrypterImpl(in, cipher,
-				streamNumber, streamHeaderKey);
+				bufferPool, streamNumber, streamHeaderKey);
 
 		// Read the first frame
 		byte[] buffer = new byte[MAX_PAYLOAD_LENGTH];
@@ -22,6 +22,7 @@ import static org.junit.Assert.assertEquals;
 public class StreamEncrypterImplTest extends BrambleTestCase {
 
 	private final AuthenticatedCipher cipher;
+	private final FrameBufferPool bufferPool = new FrameBufferPool();
 	private final SecretKey streamHeaderKey, frameKey;
 	private final byte[] tag, streamHeaderNonce, protocolVersionBytes;
 	private final byte[] streamNumberBytes, payload;
@@ -46,8 +47,8 @@ public class StreamEncrypterImplTest extends BrambleTestCase {
 	public void testRejectsNegativePayloadLength() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, cipher,
-				streamNumber, tag, streamHeaderNonce, streamHeaderKey,
-				frameKey);
+				bufferPool, streamNumber, tag, streamHeaderNonce,
+				streamHeaderKey, frameKey);
 
 		s.writeFrame(payload, -1, 0, false);
 	}
@@ -56,8 +57,8 @@ public class StreamEncrypterImplTest extends BrambleTestCase {
 	public void testRejectsNegativePaddingLength() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, cipher,
-				streamNumber, tag, streamHeaderNonce, streamHeaderKey,
-				frameKey);
+				bufferPool, streamNumber, tag, streamHeaderNonce,
+				streamHeaderKey, frameKey);
 
 		s.writeFrame(payload, 0, -1, false);
 	}
@@ -66,8 +67,8 @@ public class StreamEncrypterImplTest extends BrambleTestCase {
 	public void testRejectsMaxPayloadPlusPadding() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, cipher,
-				streamNumber, tag, streamHeaderNonce, streamHeaderKey,
-				frameKey);
+				bufferPool, streamNumber, tag, streamHeaderNonce,
+				streamHeaderKey, frameKey);
 
 		byte[] bigPayload = new byte[MAX_PAYLOAD_LENGTH + 1];
 		s.writeFrame(bigPayload, MAX_PAYLOAD_LENGTH, 1, false);
@@ -77,8 +78,8 @@ public class StreamEncrypterImplTest extends BrambleTestCase {
 	public void testAcceptsMaxPayloadIncludingPadding() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, cipher,
-				streamNumber, tag, streamHeaderNonce, streamHeaderKey,
-				frameKey);
+				bufferPool, streamNumber, tag, streamHeaderNonce,
+				streamHeaderKey, frameKey);
 
 		byte[] bigPayload = new byte[MAX_PAYLOAD_LENGTH];
 		s.writeFrame(bigPayload, MAX_PAYLOAD_LENGTH - 1, 1, false);
@@ -90,8 +91,8 @@ public class StreamEncrypterImplTest extends BrambleTestCase {
 	public void testAcceptsMaxPayloadWithoutPadding() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, cipher,
-				streamNumber, tag, streamHeaderNonce, streamHeaderKey,
-				frameKey);
+				bufferPool, streamNumber, tag, streamHeaderNonce,
+				streamHeaderKey, frameKey);
 
 		byte[] bigPayload = new byte[MAX_PAYLOAD_LENGTH];
 		s.writeFrame(bigPayload, MAX_PAYLOAD_LENGTH, 0, false);
@@ -103,8 +104,8 @@ public class StreamEncrypterImplTest extends BrambleTestCase {
 	public void testWriteUnpaddedNonFinalFrameWithTag() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, cipher,
-				streamNumber, tag, streamHeaderNonce, streamHeaderKey,
-				frameKey);
+				bufferPool, streamNumber, tag, streamHeaderNonce,
+				streamHeaderKey, frameKey);
 
 		s.writeFrame(payload, payloadLength, 0, false);
 
@@ -129,8 +130,8 @@ public class StreamEncrypterImplTest extends BrambleTestCase {
 	public void testWriteUnpaddedFinalFrameWithTag() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, cipher,
-				streamNumber, tag, streamHeaderNonce, streamHeaderKey,
-				frameKey);
+				bufferPool, streamNumber, tag, streamHeaderNonce,
+				streamHeaderKey, frameKey);
 
 		s.writeFrame(payload, payloadLength, 0, true);
 
@@ -155,8 +156,8 @@ public class StreamEncrypterImplTest extends BrambleTestCase {
 	public void testWriteUnpaddedNonFinalFrameWithoutTag() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, cipher,
-				streamNumber, null, streamHeaderNonce, streamHeaderKey,
-				frameKey);
+				bufferPool, streamNumber, null, streamHeaderNonce,
+				streamHeaderKey, frameKey);
 
 		s.writeFrame(payload, payloadLength, 0, false);
 
@@ -180,8 +181,8 @@ public class StreamEncrypterImplTest extends BrambleTestCase {
 	public void testWriteUnpaddedFinalFrameWithoutTag() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, cipher,
-				streamNumber, null, streamHeaderNonce, streamHeaderKey,
-				frameKey);
+				bufferPool, streamNumber, null, streamHeaderNonce,
+				streamHeaderKey, frameKey);
 
 		s.writeFrame(payload, payloadLength, 0, true);
 
@@ -205,8 +206,8 @@ public class StreamEncrypterImplTest extends BrambleTestCase {
 	public void testWritePaddedNonFinalFrameWithTag() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, cipher,
-				streamNumber, tag, streamHeaderNonce, streamHeaderKey,
-				frameKey);
+				bufferPool, streamNumber, tag, streamHeaderNonce,
+				streamHeaderKey, frameKey);
 
 		s.writeFrame(payload, payloadLength, paddingLength, false);
 
@@ -233,8 +234,8 @@ public class StreamEncrypterImplTest extends BrambleTestCase {
 	public void testWritePaddedFinalFrameWithTag() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, cipher,
-				streamNumber, tag, streamHeaderNonce, streamHeaderKey,
-				frameKey);
+				bufferPool, streamNumber, tag, streamHeaderNonce,
+				streamHeaderKey, frameKey);
 
 		s.writeFrame(payload, payloadLength, paddingLength, true);
 
@@ -261,8 +262,8 @@ public class StreamEncrypterImplTest extends BrambleTestCase {
 	public void testWritePaddedNonFinalFrameWithoutTag() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, cipher,
-				streamNumber, null, streamHeaderNonce, streamHeaderKey,
-				frameKey);
+				bufferPool, streamNumber, null, streamHeaderNonce,
+				streamHeaderKey, frameKey);
 
 		s.writeFrame(payload, payloadLength, paddingLength, false);
 
@@ -288,8 +289,8 @@ public class StreamEncrypterImplTest extends BrambleTestCase {
 	public void testWritePaddedFinalFrameWithoutTag() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, cipher,
-				streamNumber, null, streamHeaderNonce, streamHeaderKey,
-				frameKey);
+				bufferPool, streamNumber, null, streamHeaderNonce,
+				streamHeaderKey, frameKey);
 
 		s.writeFrame(payload, payloadLength, paddingLength, true);
 
@@ -315,8 +316,8 @@ public class StreamEncrypterImplTest extends BrambleTestCase {
 	public void testWriteTwoFramesWithTag() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, cipher,
-				streamNumber, tag, streamHeaderNonce, streamHeaderKey,
-				frameKey);
+				bufferPool, streamNumber, tag, streamHeaderNonce,
+				streamHeaderKey, frameKey);
 		int payloadLength1 = 345, paddingLength1 = 456;
 		byte[] payload1 = TestUtils.getRandomBytes(payloadLength1);
 
@@ -355,8 +356,8 @@ public class StreamEncrypterImplTest extends BrambleTestCase {
 			throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, cipher,
-				streamNumber, tag, streamHeaderNonce, streamHeaderKey,
-				frameKey);
+				bufferPool, streamNumber, tag, streamHeaderNonce,
+				streamHeaderKey, frameKey);
 
 		// Flush the stream once
 		s.flush();
@@ -378,8 +379,8 @@ public class StreamEncrypterImplTest extends BrambleTestCase {
 			throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, cipher,
-				streamNumber, tag, streamHeaderNonce, streamHeaderKey,
-				frameKey);
+				bufferPool, streamNumber, tag, streamHeaderNonce,
+				streamHeaderKey, frameKey);
 
 		// Flush the stream twice
 		s.flush();
@@ -401,8 +402,8 @@ public class StreamEncrypterImplTest extends BrambleTestCase {
 	public void testFlushDoesNotWriteTagIfNull() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		StreamEncrypterImpl s = new StreamEncrypterImpl(out, cipher,
-				streamNumber, null, streamHeaderNonce, streamHeaderKey,
-				frameKey);
+				bufferPool, streamNumber, null, streamHeaderNonce,
+				streamHeaderKey, frameKey);
 
 		// Flush the stream once
 		s.flush();
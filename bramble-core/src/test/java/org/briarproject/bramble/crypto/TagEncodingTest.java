@@ -14,6 +14,8 @@ import static junit.framework.TestCase.assertTrue;
 import static org.briarproject.bramble.api.transport.TransportConstants.PROTOCOL_VERSION;
 import static org.briarproject.bramble.api.transport.TransportConstants.TAG_LENGTH;
 import static org.briarproject.bramble.test.TestUtils.getSecretKey;
+import static org.briarproject.bramble.util.ByteUtils.MAX_32_BIT_UNSIGNED;
+import static org.junit.Assert.assertArrayEquals;
 
 public class TagEncodingTest extends BrambleMockTestCase {
 
@@ -57,4 +59,35 @@ public class TagEncodingTest extends BrambleMockTestCase {
 			assertTrue(set.add(new Bytes(tag)));
 		}
 	}
+
+	@Test
+	public void testBatchEncodingMatchesSingleEncoding() throws Exception {
+		int count = 100;
+		byte[] tags = new byte[count * TAG_LENGTH];
+		transportCrypto.encodeTags(tags, tagKey, PROTOCOL_VERSION,
+				streamNumber, count);
+		for (int i = 0; i < count; i++) {
+			byte[] tag = new byte[TAG_LENGTH];
+			transportCrypto.encodeTag(tag, tagKey, PROTOCOL_VERSION,
+					streamNumber + i);
+			byte[] batchTag = new byte[TAG_LENGTH];
+			System.arraycopy(tags, i * TAG_LENGTH, batchTag, 0, TAG_LENGTH);
+			assertArrayEquals(tag, batchTag);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBatchEncodingRejectsShortBuffer() throws Exception {
+		byte[] tags = new byte[10 * TAG_LENGTH - 1];
+		transportCrypto.encodeTags(tags, tagKey, PROTOCOL_VERSION,
+				streamNumber, 10);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBatchEncodingRejectsStreamNumbersOutOfRange()
+			throws Exception {
+		byte[] tags = new byte[2 * TAG_LENGTH];
+		transportCrypto.encodeTags(tags, tagKey, PROTOCOL_VERSION,
+				MAX_32_BIT_UNSIGNED, 2);
+	}
 }
@@ -8,8 +8,11 @@ import org.junit.Test;
 import java.security.GeneralSecurityException;
 import java.util.Random;
 
+import static org.briarproject.bramble.test.TestUtils.getRandomBytes;
+import static org.briarproject.bramble.test.TestUtils.getSecretKey;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 public class XSalsa20Poly1305AuthenticatedCipherTest extends BrambleTestCase {
 
@@ -90,4 +93,36 @@ public class XSalsa20Poly1305AuthenticatedCipherTest extends BrambleTestCase {
 		byte[] output = new byte[TEST_PLAINTEXT.length];
 		cipher.process(input, 0, input.length, output, 0);
 	}
+
+	@Test
+	public void testStateIsNotReusedAcrossKeys() throws Exception {
+		SecretKey k = new SecretKey(TEST_KEY);
+		SecretKey k1 = getSecretKey();
+		AuthenticatedCipher cipher = new XSalsa20Poly1305AuthenticatedCipher();
+		byte[] iv = getRandomBytes(TEST_IV.length);
+		byte[] ciphertext = new byte[TEST_CIPHERTEXT.length];
+		byte[] plaintext = new byte[TEST_PLAINTEXT.length];
+		// Encrypt a message with one key
+		cipher.init(true, k1, iv);
+		cipher.process(TEST_PLAINTEXT, 0, TEST_PLAINTEXT.length, ciphertext, 0);
+		// Using a different key should still produce the expected output
+		cipher.init(true, k, TEST_IV);
+		assertEquals(TEST_CIPHERTEXT.length, cipher.process(TEST_PLAINTEXT, 0,
+				TEST_PLAINTEXT.length, ciphertext, 0));
+		assertArrayEquals(TEST_CIPHERTEXT, ciphertext);
+		// A message encrypted with one key can't be decrypted with another
+		cipher.init(true, k1, iv);
+		cipher.process(TEST_PLAINTEXT, 0, TEST_PLAINTEXT.length, ciphertext, 0);
+		cipher.init(false, k, iv);
+		try {
+			cipher.process(ciphertext, 0, ciphertext.length, plaintext, 0);
+			fail();
+		} catch (GeneralSecurityException expected) {
+			// Expected
+		}
+		cipher.init(false, k1, iv);
+		assertEquals(TEST_PLAINTEXT.length, cipher.process(ciphertext, 0,
+				ciphertext.length, plaintext, 0));
+		assertArrayEquals(TEST_PLAINTEXT, plaintext);
+	}
 }
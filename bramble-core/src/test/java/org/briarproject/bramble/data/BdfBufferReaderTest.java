@@ -0,0 +1,92 @@
+package org.briarproject.bramble.data;
+
+import org.briarproject.bramble.api.FormatException;
+import org.briarproject.bramble.api.data.BdfList;
+import org.briarproject.bramble.api.data.BdfReader;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.briarproject.bramble.api.data.BdfReader.DEFAULT_MAX_BUFFER_SIZE;
+import static org.briarproject.bramble.api.data.BdfReader.DEFAULT_NESTED_LIMIT;
+import static org.briarproject.bramble.util.StringUtils.fromHexString;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the {@link BdfReaderImplTest} tests against {@link BdfBufferReader},
+ * plus some tests for reading from slices and views.
+ */
+public class BdfBufferReaderTest extends BdfReaderImplTest {
+
+	@Override
+	BdfReader createReader(byte[] b, int maxBufferSize) {
+		return new BdfBufferReader(b, 0, b.length, DEFAULT_NESTED_LIMIT,
+				maxBufferSize);
+	}
+
+	@Test
+	public void testReadsOnlyFromSlice() throws Exception {
+		// A list containing 1, preceded and followed by other data
+		byte[] b = fromHexString("FF" + "FF" + "60" + "21" + "01" + "80"
+				+ "FF");
+		BdfReader r = new BdfBufferReader(b, 2, 4, DEFAULT_NESTED_LIMIT,
+				DEFAULT_MAX_BUFFER_SIZE);
+		assertEquals(BdfList.of(1L), r.readList());
+		assertTrue(r.eof());
+	}
+
+	@Test(expected = FormatException.class)
+	public void testDoesNotReadPastEndOfSlice() throws Exception {
+		// A raw value of length 2 with only one byte in the slice
+		byte[] b = fromHexString("51" + "02" + "01" + "02");
+		BdfReader r = new BdfBufferReader(b, 0, 3, DEFAULT_NESTED_LIMIT,
+				DEFAULT_MAX_BUFFER_SIZE);
+		r.readRaw();
+	}
+
+	@Test(expected = FormatException.class)
+	public void testDoesNotSkipPastEndOfSlice() throws Exception {
+		// A string of length 2 with only one byte in the slice
+		byte[] b = fromHexString("41" + "02" + "61" + "62");
+		BdfReader r = new BdfBufferReader(b, 0, 3, DEFAULT_NESTED_LIMIT,
+				DEFAULT_MAX_BUFFER_SIZE);
+		r.skipString();
+	}
+
+	@Test
+	public void testReadRawViewSharesArray() throws Exception {
+		byte[] b = fromHexString("51" + "03" + "010203" + "51" + "00");
+		BdfReader r = new BdfBufferReader(b, 0, b.length,
+				DEFAULT_NESTED_LIMIT, DEFAULT_MAX_BUFFER_SIZE);
+		ByteBuffer view = r.readRawView();
+		assertTrue(view.isReadOnly());
+		assertEquals(3, view.remaining());
+		assertEquals(1, view.get(0));
+		// Changes to the array should be visible through the view
+		b[4] = 4;
+		assertEquals(4, view.get(2));
+		assertEquals(0, r.readRawView().remaining());
+		assertTrue(r.eof());
+	}
+
+	@Test
+	public void testCreateReaderFromByteBuffer() throws Exception {
+		BdfReaderFactoryImpl factory = new BdfReaderFactoryImpl();
+		byte[] b = fromHexString("FF" + "51" + "02" + "0102");
+		ByteBuffer buf = ByteBuffer.wrap(b);
+		buf.get();
+		BdfReader r = factory.createReader(buf);
+		assertArrayEquals(new byte[] {1, 2}, r.readRaw());
+		assertTrue(r.eof());
+		// The buffer's position shouldn't have changed
+		assertEquals(1, buf.position());
+		// A read-only buffer should be copied
+		r = factory.createReader(buf.asReadOnlyBuffer());
+		assertFalse(r.eof());
+		assertArrayEquals(new byte[] {1, 2}, r.readRaw());
+		assertTrue(r.eof());
+	}
+}
@@ -61,8 +61,10 @@ import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static java.util.Arrays.asList;
@@ -77,6 +79,7 @@ import static org.briarproject.bramble.api.sync.validation.MessageState.DELIVERE
 import static org.briarproject.bramble.api.sync.validation.MessageState.UNKNOWN;
 import static org.briarproject.bramble.api.transport.TransportConstants.REORDERING_WINDOW_SIZE;
 import static org.briarproject.bramble.db.DatabaseConstants.MAX_OFFERED_MESSAGES;
+import static org.briarproject.bramble.db.DatabaseConstants.MAX_TRANSACTION_RETRIES;
 import static org.briarproject.bramble.test.TestUtils.getAgreementPrivateKey;
 import static org.briarproject.bramble.test.TestUtils.getAgreementPublicKey;
 import static org.briarproject.bramble.test.TestUtils.getAuthor;
@@ -153,7 +156,7 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			EventBus eventBus, Executor eventExecutor,
 			ShutdownManager shutdownManager) {
 		return new DatabaseComponentImpl<>(database, Object.class, eventBus,
-				eventExecutor, shutdownManager);
+				eventExecutor, shutdownManager, new GlobalTransactionLock());
 	}
 
 	@Test
@@ -290,6 +293,80 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 						temporary));
 	}
 
+	@Test
+	public void testConflictingScopedTransactionIsRetried() throws Exception {
+		DbException conflict = new DbException();
+		context.checking(new Expectations() {{
+			exactly(2).of(database).startTransaction();
+			will(returnValue(txn));
+			// The first attempt conflicts, so it's aborted and retried
+			oneOf(database).isConflict(conflict);
+			will(returnValue(true));
+			oneOf(database).abortTransaction(txn);
+			oneOf(database).commitTransaction(txn);
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				eventExecutor, shutdownManager);
+
+		AtomicInteger attempts = new AtomicInteger(0);
+		int result = db.transactionWithResult(false, contactId,
+				transaction -> {
+					if (attempts.incrementAndGet() == 1) throw conflict;
+					return 123;
+				});
+		assertEquals(123, result);
+		assertEquals(2, attempts.get());
+	}
+
+	@Test
+	public void testScopedTransactionIsNotRetriedAfterMaxRetries()
+			throws Exception {
+		DbException conflict = new DbException();
+		int attempts = MAX_TRANSACTION_RETRIES + 1;
+		context.checking(new Expectations() {{
+			exactly(attempts).of(database).startTransaction();
+			will(returnValue(txn));
+			exactly(MAX_TRANSACTION_RETRIES).of(database).isConflict(conflict);
+			will(returnValue(true));
+			exactly(attempts).of(database).abortTransaction(txn);
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				eventExecutor, shutdownManager);
+
+		try {
+			db.transaction(false, contactId, transaction -> {
+				throw conflict;
+			});
+			fail();
+		} catch (DbException expected) {
+			assertEquals(conflict, expected);
+		}
+	}
+
+	@Test
+	public void testScopedTransactionIsNotRetriedIfItDoesNotConflict()
+			throws Exception {
+		DbException failure = new DbException();
+		context.checking(new Expectations() {{
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).isConflict(failure);
+			will(returnValue(false));
+			oneOf(database).abortTransaction(txn);
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				eventExecutor, shutdownManager);
+
+		try {
+			db.transaction(false, contactId, transaction -> {
+				throw failure;
+			});
+			fail();
+		} catch (DbException expected) {
+			assertEquals(failure, expected);
+		}
+	}
+
 	@Test
 	public void testVariousMethodsThrowExceptionIfContactIsMissing()
 			throws Exception {
@@ -594,11 +671,11 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			throws Exception {
 		context.checking(new Expectations() {{
 			// Check whether the message is in the DB (which it's not)
-			exactly(12).of(database).startTransaction();
+			exactly(13).of(database).startTransaction();
 			will(returnValue(txn));
-			exactly(12).of(database).containsMessage(txn, messageId);
+			exactly(13).of(database).containsMessage(txn, messageId);
 			will(returnValue(false));
-			exactly(12).of(database).abortTransaction(txn);
+			exactly(13).of(database).abortTransaction(txn);
 			// Allow other checks to pass
 			allowing(database).containsContact(txn, contactId);
 			will(returnValue(true));
@@ -630,6 +707,14 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			// Expected
 		}
 
+		try {
+			db.transaction(false, transaction ->
+					db.getMessageBody(transaction, messageId));
+			fail();
+		} catch (NoSuchMessageException expected) {
+			// Expected
+		}
+
 		try {
 			db.transaction(false, transaction ->
 					db.getMessageMetadata(transaction, messageId));
@@ -859,7 +944,7 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 	@Test
 	public void testGenerateBatch() throws Exception {
 		Collection<MessageId> ids = asList(messageId, messageId1);
-		Collection<Message> messages = asList(message, message1);
+		List<Message> messages = asList(message, message1);
 		context.checking(new Expectations() {{
 			oneOf(database).startTransaction();
 			will(returnValue(txn));
@@ -868,13 +953,9 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			oneOf(database).getMessagesToSend(txn, contactId,
 					MAX_MESSAGE_LENGTH * 2, maxLatency);
 			will(returnValue(ids));
-			oneOf(database).getMessage(txn, messageId);
-			will(returnValue(message));
-			oneOf(database).updateExpiryTimeAndEta(txn, contactId, messageId,
-					maxLatency);
-			oneOf(database).getMessage(txn, messageId1);
-			will(returnValue(message1));
-			oneOf(database).updateExpiryTimeAndEta(txn, contactId, messageId1,
+			oneOf(database).getMessages(txn, ids);
+			will(returnValue(messages));
+			oneOf(database).updateExpiryTimeAndEta(txn, contactId, ids,
 					maxLatency);
 			oneOf(database).lowerRequestedFlag(txn, contactId, ids);
 			oneOf(database).commitTransaction(txn);
@@ -899,9 +980,7 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			will(returnValue(true));
 			oneOf(database).getMessagesToOffer(txn, contactId, 123, maxLatency);
 			will(returnValue(ids));
-			oneOf(database).updateExpiryTimeAndEta(txn, contactId, messageId,
-					maxLatency);
-			oneOf(database).updateExpiryTimeAndEta(txn, contactId, messageId1,
+			oneOf(database).updateExpiryTimeAndEta(txn, contactId, ids,
 					maxLatency);
 			oneOf(database).commitTransaction(txn);
 		}});
@@ -942,7 +1021,7 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 	@Test
 	public void testGenerateRequestedBatch() throws Exception {
 		Collection<MessageId> ids = asList(messageId, messageId1);
-		Collection<Message> messages = asList(message, message1);
+		List<Message> messages = asList(message, message1);
 		context.checking(new Expectations() {{
 			oneOf(database).startTransaction();
 			will(returnValue(txn));
@@ -951,13 +1030,9 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			oneOf(database).getRequestedMessagesToSend(txn, contactId,
 					MAX_MESSAGE_LENGTH * 2, maxLatency);
 			will(returnValue(ids));
-			oneOf(database).getMessage(txn, messageId);
-			will(returnValue(message));
-			oneOf(database).updateExpiryTimeAndEta(txn, contactId, messageId,
-					maxLatency);
-			oneOf(database).getMessage(txn, messageId1);
-			will(returnValue(message1));
-			oneOf(database).updateExpiryTimeAndEta(txn, contactId, messageId1,
+			oneOf(database).getMessages(txn, ids);
+			will(returnValue(messages));
+			oneOf(database).updateExpiryTimeAndEta(txn, contactId, ids,
 					maxLatency);
 			oneOf(database).lowerRequestedFlag(txn, contactId, ids);
 			oneOf(database).commitTransaction(txn);
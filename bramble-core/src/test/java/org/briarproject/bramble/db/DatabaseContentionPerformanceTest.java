@@ -0,0 +1,219 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.Metadata;
+import org.briarproject.bramble.api.event.CoalescingEventListener;
+import org.briarproject.bramble.api.event.Event;
+import org.briarproject.bramble.api.event.EventBus;
+import org.briarproject.bramble.api.event.EventListener;
+import org.briarproject.bramble.api.identity.Identity;
+import org.briarproject.bramble.api.lifecycle.ShutdownManager;
+import org.briarproject.bramble.api.sync.Ack;
+import org.briarproject.bramble.api.sync.Group;
+import org.briarproject.bramble.api.sync.Message;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.system.SystemClock;
+import org.briarproject.bramble.test.BrambleMockTestCase;
+import org.briarproject.bramble.test.ImmediateExecutor;
+import org.briarproject.bramble.test.TestDatabaseConfig;
+import org.briarproject.bramble.test.TestMessageFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.logging.Level.OFF;
+import static org.briarproject.bramble.api.record.Record.MAX_RECORD_PAYLOAD_BYTES;
+import static org.briarproject.bramble.api.sync.Group.Visibility.SHARED;
+import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_IDS;
+import static org.briarproject.bramble.db.DatabaseConstants.LOCK_STRIPES;
+import static org.briarproject.bramble.test.TestUtils.deleteTestDirectory;
+import static org.briarproject.bramble.test.TestUtils.getAuthor;
+import static org.briarproject.bramble.test.TestUtils.getClientId;
+import static org.briarproject.bramble.test.TestUtils.getGroup;
+import static org.briarproject.bramble.test.TestUtils.getIdentity;
+import static org.briarproject.bramble.test.TestUtils.getMessage;
+import static org.briarproject.bramble.test.TestUtils.getSecretKey;
+import static org.briarproject.bramble.test.TestUtils.getTestDirectory;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the throughput of concurrent sync sessions with different
+ * contacts, with and without striped locking. Each session runs the
+ * contact-scoped transactions that the sync code uses to generate batches
+ * and receive acks.
+ */
+@Ignore
+public class DatabaseContentionPerformanceTest extends BrambleMockTestCase {
+
+	/**
+	 * How many threads to run concurrently. Each thread syncs with its own
+	 * contact.
+	 */
+	private static final int THREADS = 8;
+
+	/**
+	 * How many messages to share with every contact.
+	 */
+	private static final int MESSAGES = 2000;
+
+	private static final int MESSAGE_BODY_LENGTH = 1024;
+	private static final int MAX_LATENCY = 60 * 1000; // 1 minute
+
+	private final File testDir = getTestDirectory();
+	private final File resultsFile =
+			new File(getClass().getSimpleName() + ".tsv");
+	private final ShutdownManager shutdownManager =
+			context.mock(ShutdownManager.class);
+
+	public DatabaseContentionPerformanceTest() {
+		// Disable logging
+		Logger.getLogger("").setLevel(OFF);
+	}
+
+	@Before
+	public void setUp() {
+		assertTrue(testDir.mkdirs());
+	}
+
+	@After
+	public void tearDown() {
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testGlobalLock() throws Exception {
+		benchmark("Global lock", new GlobalTransactionLock());
+	}
+
+	@Test
+	public void testStripedLock() throws Exception {
+		benchmark("Striped lock", new StripedTransactionLock(LOCK_STRIPES));
+	}
+
+	private void benchmark(String name, TransactionLock lock)
+			throws Exception {
+		deleteTestDirectory(testDir);
+		Database<Connection> database = new H2Database(
+				new TestDatabaseConfig(testDir), new TestMessageFactory(),
+				new SystemClock());
+		database.open(getSecretKey(), null);
+		DatabaseComponent db = new DatabaseComponentImpl<>(database,
+				Connection.class, new NoOpEventBus(), new ImmediateExecutor(),
+				shutdownManager, lock);
+		// Share a group of messages with one contact per thread
+		List<ContactId> contactIds = new ArrayList<>(THREADS);
+		db.transaction(false, txn -> {
+			Identity identity = getIdentity();
+			db.addIdentity(txn, identity);
+			Group g = getGroup(getClientId(), 123);
+			db.addGroup(txn, g);
+			for (int i = 0; i < THREADS; i++) {
+				ContactId c = db.addContact(txn, getAuthor(), identity.getId(),
+						null, true);
+				db.setGroupVisibility(txn, c, g.getId(), SHARED);
+				contactIds.add(c);
+			}
+			for (int i = 0; i < MESSAGES; i++) {
+				db.addLocalMessage(txn,
+						getMessage(g.getId(), MESSAGE_BODY_LENGTH),
+						new Metadata(), true, false);
+			}
+		});
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch finished = new CountDownLatch(THREADS);
+		AtomicInteger transactions = new AtomicInteger(0);
+		AtomicReference<Exception> error = new AtomicReference<>();
+		for (ContactId c : contactIds) {
+			new Thread(() -> {
+				try {
+					start.await();
+					// Send batches and receive acks until every message has
+					// been acked
+					while (true) {
+						Collection<Message> batch =
+								db.transactionWithNullableResult(false, c,
+										txn -> {
+							db.generateAck(txn, c, MAX_MESSAGE_IDS);
+							return db.generateBatch(txn, c,
+									MAX_RECORD_PAYLOAD_BYTES, MAX_LATENCY);
+						});
+						transactions.incrementAndGet();
+						if (batch == null) break;
+						List<MessageId> acked = new ArrayList<>(batch.size());
+						for (Message m : batch) acked.add(m.getId());
+						db.transaction(false, c, txn ->
+								db.receiveAck(txn, c, new Ack(acked)));
+						transactions.incrementAndGet();
+					}
+				} catch (Exception e) {
+					error.compareAndSet(null, e);
+				}
+				finished.countDown();
+			}).start();
+		}
+		long startTime = System.nanoTime();
+		start.countDown();
+		assertTrue(finished.await(10, MINUTES));
+		long duration = System.nanoTime() - startTime;
+		database.close();
+		if (error.get() != null) throw error.get();
+		writeResult(String.format("%s\t%d\t%,d\t%,d", name, THREADS,
+				duration, duration / transactions.get()));
+	}
+
+	private void writeResult(String result) throws IOException {
+		System.out.println(result);
+		PrintWriter out =
+				new PrintWriter(new FileOutputStream(resultsFile, true), true);
+		out.println(new Date() + "\t" + result);
+		out.close();
+	}
+
+	private static class NoOpEventBus implements EventBus {
+
+		@Override
+		public void addListener(EventListener l) {
+		}
+
+		@Override
+		public void addListener(EventListener l,
+				Collection<Class<? extends Event>> eventTypes) {
+		}
+
+		@Override
+		public void addListener(EventListener l, Executor executor,
+				Collection<Class<? extends Event>> eventTypes) {
+		}
+
+		@Override
+		public void addListener(CoalescingEventListener l, Executor executor,
+				int capacity, Collection<Class<? extends Event>> eventTypes) {
+		}
+
+		@Override
+		public void removeListener(EventListener l) {
+		}
+
+		@Override
+		public void broadcast(Event e) {
+		}
+	}
+}
@@ -388,6 +388,76 @@ public abstract class JdbcDatabaseTest extends BrambleTestCase {
 		db.close();
 	}
 
+	@Test
+	public void testSendableMessagesMustNotBeDeleted() throws Exception {
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+
+		// Add a contact, a shared group and a shared message
+		db.addIdentity(txn, identity);
+		assertEquals(contactId,
+				db.addContact(txn, author, localAuthor.getId(), null, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+		db.addMessage(txn, message, DELIVERED, true, false, null);
+
+		// The message has not been deleted, so it should be sendable
+		Collection<MessageId> ids =
+				db.getMessagesToSend(txn, contactId, ONE_MEGABYTE, MAX_LATENCY);
+		assertEquals(singletonList(messageId), ids);
+
+		// Deleting the message should make it unsendable
+		db.deleteMessage(txn, messageId);
+		ids = db.getMessagesToSend(txn, contactId, ONE_MEGABYTE, MAX_LATENCY);
+		assertTrue(ids.isEmpty());
+		ids = db.getMessagesToOffer(txn, contactId, 100, MAX_LATENCY);
+		assertTrue(ids.isEmpty());
+		assertEquals(Long.MAX_VALUE, db.getNextSendTime(txn, contactId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testRequestedMessagesAreSentButNotOffered() throws Exception {
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+
+		// Add a contact, a shared group and a shared message
+		db.addIdentity(txn, identity);
+		assertEquals(contactId,
+				db.addContact(txn, author, localAuthor.getId(), null, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+		db.addMessage(txn, message, DELIVERED, true, false, null);
+
+		// The message has not been requested
+		Collection<MessageId> ids = db.getRequestedMessagesToSend(txn,
+				contactId, ONE_MEGABYTE, MAX_LATENCY);
+		assertTrue(ids.isEmpty());
+		ids = db.getMessagesToOffer(txn, contactId, 100, MAX_LATENCY);
+		assertEquals(singletonList(messageId), ids);
+
+		// Raising the requested flag should stop the message being offered
+		db.raiseRequestedFlag(txn, contactId, messageId);
+		ids = db.getRequestedMessagesToSend(txn, contactId, ONE_MEGABYTE,
+				MAX_LATENCY);
+		assertEquals(singletonList(messageId), ids);
+		ids = db.getMessagesToOffer(txn, contactId, 100, MAX_LATENCY);
+		assertTrue(ids.isEmpty());
+
+		// Lowering the requested flag should allow the message to be offered
+		db.lowerRequestedFlag(txn, contactId, singletonList(messageId));
+		ids = db.getRequestedMessagesToSend(txn, contactId, ONE_MEGABYTE,
+				MAX_LATENCY);
+		assertTrue(ids.isEmpty());
+		ids = db.getMessagesToOffer(txn, contactId, 100, MAX_LATENCY);
+		assertEquals(singletonList(messageId), ids);
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
 	@Test
 	public void testMessagesToAck() throws Exception {
 		Database<Connection> db = open(false);
@@ -1551,6 +1621,44 @@ public abstract class JdbcDatabaseTest extends BrambleTestCase {
 		db.close();
 	}
 
+	@Test
+	public void testEmptyMetadataQueryIncludesMessagesWithoutMetadata()
+			throws Exception {
+		Message message1 = getMessage(groupId);
+		MessageId messageId1 = message1.getId();
+
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+
+		// Add a group and two messages
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, DELIVERED, true, false, null);
+		db.addMessage(txn, message1, DELIVERED, true, false, null);
+
+		// Attach some metadata to the first message only
+		Metadata metadata = new Metadata();
+		metadata.put("foo", new byte[] {'b', 'a', 'r'});
+		metadata.put("baz", new byte[] {'b', 'a', 'm'});
+		db.mergeMessageMetadata(txn, messageId, metadata);
+
+		// An empty query should return both messages
+		Map<MessageId, Metadata> all =
+				db.getMessageMetadata(txn, groupId, new Metadata());
+		assertEquals(2, all.size());
+		assertMetadataEquals(metadata, all.get(messageId));
+		assertMetadataEquals(new Metadata(), all.get(messageId1));
+
+		// A non-empty query should only return the first message
+		Metadata query = new Metadata();
+		query.put("foo", new byte[] {'b', 'a', 'r'});
+		all = db.getMessageMetadata(txn, groupId, query);
+		assertEquals(1, all.size());
+		assertMetadataEquals(metadata, all.get(messageId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
 	private void assertMetadataEquals(Metadata m1, Metadata m2) {
 		assertEquals(m1.keySet(), m2.keySet());
 		for (Entry<String, byte[]> e : m1.entrySet()) {
@@ -2065,6 +2173,59 @@ public abstract class JdbcDatabaseTest extends BrambleTestCase {
 		db.close();
 	}
 
+	@Test
+	public void testGetMessagesAndUpdateExpiryTimesInBatches()
+			throws Exception {
+		long now = System.currentTimeMillis();
+		Database<Connection> db = open(false, new TestMessageFactory(),
+				new StoppedClock(now));
+		Connection txn = db.startTransaction();
+
+		// Add a contact and a group shared with the contact
+		db.addIdentity(txn, identity);
+		assertEquals(contactId,
+				db.addContact(txn, author, localAuthor.getId(), null, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+
+		// Add more shared messages than fit in one query
+		List<Message> messages = new ArrayList<>();
+		List<MessageId> ids = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			Message m = getMessage(groupId);
+			db.addMessage(txn, m, DELIVERED, true, false, null);
+			messages.add(0, m);
+			ids.add(0, m.getId());
+		}
+
+		// The messages should be returned in the order of the IDs
+		List<Message> retrieved = db.getMessages(txn, ids);
+		assertEquals(messages.size(), retrieved.size());
+		for (int i = 0; i < messages.size(); i++) {
+			assertEquals(messages.get(i).getId(), retrieved.get(i).getId());
+			assertArrayEquals(messages.get(i).getBody(),
+					retrieved.get(i).getBody());
+		}
+
+		// Update the expiry times as though we sent the messages - now the
+		// messages should be sendable after one round-trip
+		assertEquals(0, db.getNextSendTime(txn, contactId));
+		db.updateExpiryTimeAndEta(txn, contactId, ids, 1000);
+		assertEquals(now + 2000, db.getNextSendTime(txn, contactId));
+
+		// Delete one of the messages - it can't be retrieved any more
+		db.deleteMessage(txn, ids.get(50));
+		try {
+			db.getMessages(txn, ids);
+			fail();
+		} catch (MessageDeletedException expected) {
+			// Expected
+		}
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
 	@Test
 	public void testGetGroups() throws Exception {
 		Database<Connection> db = open(false);
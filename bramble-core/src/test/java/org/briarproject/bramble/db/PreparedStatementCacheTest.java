@@ -0,0 +1,116 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.test.BrambleMockTestCase;
+import org.jmock.Expectations;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class PreparedStatementCacheTest extends BrambleMockTestCase {
+
+	private final Connection connection = context.mock(Connection.class);
+	private final PreparedStatement statement =
+			context.mock(PreparedStatement.class, "statement");
+	private final PreparedStatement statement1 =
+			context.mock(PreparedStatement.class, "statement1");
+
+	private final String sql = "SELECT foo FROM bar WHERE baz = ?";
+	private final String sql1 = "SELECT bam FROM bar WHERE baz = ?";
+
+	@Test
+	public void testStatementIsReusedAfterClosing() throws Exception {
+		PreparedStatementCache cache = new PreparedStatementCache(10);
+		Connection wrapped = cache.wrap(connection);
+
+		context.checking(new Expectations() {{
+			oneOf(connection).prepareStatement(sql);
+			will(returnValue(statement));
+			oneOf(statement).setInt(1, 123);
+			exactly(2).of(statement).clearParameters();
+			exactly(2).of(statement).clearBatch();
+		}});
+
+		PreparedStatement ps = wrapped.prepareStatement(sql);
+		ps.setInt(1, 123);
+		ps.close();
+		PreparedStatement ps1 = wrapped.prepareStatement(sql);
+		assertSame(ps, ps1);
+		ps1.close();
+
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testStatementIsNotSharedWhileInUse() throws Exception {
+		PreparedStatementCache cache = new PreparedStatementCache(10);
+		Connection wrapped = cache.wrap(connection);
+
+		context.checking(new Expectations() {{
+			oneOf(connection).prepareStatement(sql);
+			will(returnValue(statement));
+			oneOf(connection).prepareStatement(sql);
+			will(returnValue(statement1));
+			// The uncached statement should be closed
+			oneOf(statement1).close();
+			oneOf(statement).clearParameters();
+			oneOf(statement).clearBatch();
+		}});
+
+		PreparedStatement ps = wrapped.prepareStatement(sql);
+		PreparedStatement ps1 = wrapped.prepareStatement(sql);
+		assertNotSame(ps, ps1);
+		ps1.close();
+		ps.close();
+
+		assertEquals(0, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testEldestStatementIsClosedWhenEvicted() throws Exception {
+		PreparedStatementCache cache = new PreparedStatementCache(1);
+		Connection wrapped = cache.wrap(connection);
+
+		context.checking(new Expectations() {{
+			oneOf(connection).prepareStatement(sql);
+			will(returnValue(statement));
+			oneOf(statement).clearParameters();
+			oneOf(statement).clearBatch();
+			oneOf(connection).prepareStatement(sql1);
+			will(returnValue(statement1));
+			// Adding the second statement should evict the first
+			oneOf(statement).close();
+		}});
+
+		wrapped.prepareStatement(sql).close();
+		wrapped.prepareStatement(sql1);
+
+		assertEquals(0, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testCachedStatementsAreClosedWithConnection()
+			throws Exception {
+		PreparedStatementCache cache = new PreparedStatementCache(10);
+		Connection wrapped = cache.wrap(connection);
+
+		context.checking(new Expectations() {{
+			oneOf(connection).prepareStatement(sql);
+			will(returnValue(statement));
+			oneOf(statement).clearParameters();
+			oneOf(statement).clearBatch();
+			oneOf(statement).close();
+			oneOf(connection).close();
+		}});
+
+		wrapped.prepareStatement(sql).close();
+		wrapped.close();
+	}
+}
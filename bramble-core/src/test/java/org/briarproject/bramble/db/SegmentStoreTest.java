@@ -0,0 +1,223 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.crypto.CryptoComponent;
+import org.briarproject.bramble.api.crypto.SecretKey;
+import org.briarproject.bramble.api.transport.StreamContext;
+import org.briarproject.bramble.api.transport.StreamReaderFactory;
+import org.briarproject.bramble.api.transport.StreamWriter;
+import org.briarproject.bramble.api.transport.StreamWriterFactory;
+import org.briarproject.bramble.db.SegmentStore.Location;
+import org.briarproject.bramble.test.BrambleMockTestCase;
+import org.briarproject.bramble.test.TestStreamWriter;
+import org.jmock.Expectations;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.briarproject.bramble.db.SegmentStore.SEGMENT_KEY_LABEL;
+import static org.briarproject.bramble.test.TestUtils.deleteTestDirectory;
+import static org.briarproject.bramble.test.TestUtils.getRandomBytes;
+import static org.briarproject.bramble.test.TestUtils.getSecretKey;
+import static org.briarproject.bramble.test.TestUtils.getTestDirectory;
+import static org.briarproject.bramble.util.IoUtils.read;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentStoreTest extends BrambleMockTestCase {
+
+	private final CryptoComponent crypto = context.mock(CryptoComponent.class);
+
+	private final File testDir = getTestDirectory();
+	private final File segmentDir = new File(testDir, "segments");
+	private final SecretKey databaseKey = getSecretKey();
+	private final SecretKey segmentKey = getSecretKey();
+
+	private SegmentStore store;
+
+	@Before
+	public void setUp() {
+		// The streams aren't encrypted, so the tests can check the layout
+		store = new SegmentStore(segmentDir, crypto,
+				new PlaintextStreamReaderFactory(),
+				new PlaintextStreamWriterFactory());
+	}
+
+	@After
+	public void tearDown() {
+		deleteTestDirectory(testDir);
+	}
+
+	@Test
+	public void testAppendedBodiesCanBeRead() throws Exception {
+		expectDeriveKey();
+		store.open(databaseKey, emptyList());
+		assertEquals(1, store.getActiveSegment());
+
+		byte[] body = getRandomBytes(1234);
+		byte[] body1 = getRandomBytes(5678);
+		Location loc = store.append(body);
+		Location loc1 = store.append(body1);
+
+		assertEquals(1, loc.getSegment());
+		assertEquals(0, loc.getOffset());
+		assertEquals(body.length, loc.getLength());
+		assertEquals(1, loc1.getSegment());
+		assertEquals(body.length, loc1.getOffset());
+		assertEquals(body1.length, loc1.getLength());
+		assertEquals(body.length + body1.length, store.getSegmentLength(1));
+
+		// Each body should be read without reading past its end
+		assertArrayEquals(body, store.readFully(loc));
+		assertArrayEquals(body1, store.readFully(loc1));
+	}
+
+	@Test
+	public void testReadingSkipsRequestedBytes() throws Exception {
+		expectDeriveKey();
+		store.open(databaseKey, emptyList());
+
+		byte[] body = getRandomBytes(1000);
+		Location loc = store.append(body);
+
+		InputStream in = store.read(loc, 100);
+		byte[] rest = new byte[body.length - 100];
+		read(in, rest);
+		assertEquals(-1, in.read());
+		in.close();
+		assertArrayEquals(Arrays.copyOfRange(body, 100, body.length), rest);
+	}
+
+	@Test
+	public void testCopiedBodiesCanBeRead() throws Exception {
+		expectDeriveKey();
+		store.open(databaseKey, emptyList());
+
+		byte[] body = getRandomBytes(1000);
+		byte[] body1 = getRandomBytes(2000);
+		byte[] body2 = getRandomBytes(3000);
+		store.append(body);
+		Location loc1 = store.append(body1);
+		Location loc2 = store.append(body2);
+
+		// The bodies should be copied in the order given
+		List<Location> copied = store.copy(asList(loc2, loc1));
+		assertEquals(2, copied.size());
+		Location copied2 = copied.get(0), copied1 = copied.get(1);
+		long end = body.length + body1.length + body2.length;
+		assertEquals(1, copied2.getSegment());
+		assertEquals(end, copied2.getOffset());
+		assertEquals(body2.length, copied2.getLength());
+		assertEquals(1, copied1.getSegment());
+		assertEquals(end + body2.length, copied1.getOffset());
+		assertEquals(body1.length, copied1.getLength());
+		assertArrayEquals(body1, store.readFully(copied1));
+		assertArrayEquals(body2, store.readFully(copied2));
+	}
+
+	@Test
+	public void testSyncingDoesNotRecreateDeletedSegments()
+			throws Exception {
+		context.checking(new Expectations() {{
+			exactly(2).of(crypto).deriveKey(SEGMENT_KEY_LABEL, databaseKey);
+			will(returnValue(segmentKey));
+		}});
+
+		store.open(databaseKey, emptyList());
+		byte[] body = getRandomBytes(1000);
+		Location loc = store.append(body);
+		assertTrue(new File(segmentDir, "1.seg").exists());
+		store.sync();
+		assertArrayEquals(body, store.readFully(loc));
+
+		// Append another body without syncing, then reopen the store while
+		// nothing is referenced, which deletes the segment
+		store.append(getRandomBytes(1000));
+		store.open(databaseKey, emptyList());
+		assertFalse(new File(segmentDir, "1.seg").exists());
+		store.sync();
+		assertFalse(new File(segmentDir, "1.seg").exists());
+	}
+
+	@Test
+	public void testUnreferencedSegmentsAreDeletedWhenOpened()
+			throws Exception {
+		context.checking(new Expectations() {{
+			exactly(2).of(crypto).deriveKey(SEGMENT_KEY_LABEL, databaseKey);
+			will(returnValue(segmentKey));
+		}});
+
+		store.open(databaseKey, emptyList());
+		Location loc = store.append(getRandomBytes(1000));
+		assertEquals(1, loc.getSegment());
+
+		// Reopen the store while the first segment is referenced, and
+		// append a body to the second segment
+		store.open(databaseKey, singletonList(1));
+		assertEquals(2, store.getActiveSegment());
+		byte[] body = getRandomBytes(1000);
+		Location loc1 = store.append(body);
+		assertEquals(2, loc1.getSegment());
+		assertTrue(new File(segmentDir, "1.seg").exists());
+
+		// Reopen the store while only the second segment is referenced
+		context.checking(new Expectations() {{
+			oneOf(crypto).deriveKey(SEGMENT_KEY_LABEL, databaseKey);
+			will(returnValue(segmentKey));
+		}});
+		store.open(databaseKey, singletonList(2));
+		assertFalse(new File(segmentDir, "1.seg").exists());
+		assertEquals(3, store.getActiveSegment());
+		assertArrayEquals(body, store.readFully(loc1));
+	}
+
+	private void expectDeriveKey() {
+		context.checking(new Expectations() {{
+			oneOf(crypto).deriveKey(SEGMENT_KEY_LABEL, databaseKey);
+			will(returnValue(segmentKey));
+		}});
+	}
+
+	private static class PlaintextStreamReaderFactory
+			implements StreamReaderFactory {
+
+		@Override
+		public InputStream createStreamReader(InputStream in,
+				StreamContext ctx) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public InputStream createContactExchangeStreamReader(InputStream in,
+				SecretKey headerKey) {
+			return in;
+		}
+	}
+
+	private static class PlaintextStreamWriterFactory
+			implements StreamWriterFactory {
+
+		@Override
+		public StreamWriter createStreamWriter(OutputStream out,
+				StreamContext ctx) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public StreamWriter createContactExchangeStreamWriter(
+				OutputStream out, SecretKey headerKey) {
+			return new TestStreamWriter(out);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.test.BrambleTestCase;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StripedTransactionLockTest extends BrambleTestCase {
+
+	private static final int STRIPES = 4;
+
+	private final StripedTransactionLock lock =
+			new StripedTransactionLock(STRIPES);
+	// These contacts map onto different stripes
+	private final ContactId contactId = new ContactId(1);
+	private final ContactId contactId1 = new ContactId(2);
+
+	@Test
+	public void testWritersForDifferentContactsCanShareTheLock()
+			throws Exception {
+		lock.lock(false, contactId);
+		try {
+			assertTrue(tryLockOnOtherThread(false, contactId1));
+		} finally {
+			lock.unlock(false);
+		}
+	}
+
+	@Test
+	public void testWritersForTheSameContactCannotShareTheLock()
+			throws Exception {
+		lock.lock(false, contactId);
+		try {
+			assertFalse(tryLockOnOtherThread(false, contactId));
+		} finally {
+			lock.unlock(false);
+		}
+	}
+
+	@Test
+	public void testReadersForTheSameContactCanShareTheLock()
+			throws Exception {
+		lock.lock(true, contactId);
+		try {
+			assertTrue(tryLockOnOtherThread(true, contactId));
+		} finally {
+			lock.unlock(true);
+		}
+	}
+
+	@Test
+	public void testUnscopedWriterExcludesScopedWriters() throws Exception {
+		lock.lock(false, null);
+		try {
+			assertFalse(tryLockOnOtherThread(false, contactId));
+		} finally {
+			lock.unlock(false);
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testLockIsNotReentrant() {
+		lock.lock(true, contactId);
+		try {
+			lock.lock(true, contactId1);
+		} finally {
+			lock.unlock(true);
+		}
+	}
+
+	private boolean tryLockOnOtherThread(boolean readOnly, ContactId c)
+			throws Exception {
+		CountDownLatch finished = new CountDownLatch(1);
+		AtomicBoolean acquired = new AtomicBoolean(false);
+		Thread t = new Thread(() -> {
+			lock.lock(readOnly, c);
+			acquired.set(true);
+			lock.unlock(readOnly);
+			finished.countDown();
+		});
+		t.start();
+		// If the other thread is blocked, it will finish when the calling
+		// thread releases its lock
+		if (!finished.await(500, MILLISECONDS)) return false;
+		assertTrue(acquired.get());
+		return true;
+	}
+}
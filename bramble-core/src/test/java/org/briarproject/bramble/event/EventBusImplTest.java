@@ -0,0 +1,295 @@
+package org.briarproject.bramble.event;
+
+import org.briarproject.bramble.api.event.CoalescingEventListener;
+import org.briarproject.bramble.api.event.Event;
+import org.briarproject.bramble.api.event.EventListener;
+import org.briarproject.bramble.test.BrambleTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nullable;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventBusImplTest extends BrambleTestCase {
+
+	private final QueueingExecutor eventExecutor = new QueueingExecutor();
+	private final EventBusImpl eventBus = new EventBusImpl(eventExecutor);
+	private final QueueingExecutor executor = new QueueingExecutor();
+	private final RecordingListener listener = new RecordingListener();
+	private final RecordingListener listener1 = new RecordingListener();
+	private final CoalescingListener coalescingListener =
+			new CoalescingListener();
+
+	@Test
+	public void testListenersAreNotifiedOnEventExecutor() {
+		eventBus.addListener(listener);
+		TestEvent e = new TestEvent(1);
+		eventBus.broadcast(e);
+		assertTrue(listener.events.isEmpty());
+		eventExecutor.runAll();
+		assertEquals(singletonList(e), listener.events);
+	}
+
+	@Test
+	public void testListenersAreOnlyNotifiedOfSubscribedTypes() {
+		eventBus.addListener(listener, singletonList(TestEvent.class));
+		eventBus.addListener(listener1, singletonList(OtherEvent.class));
+		TestEvent e = new TestEvent(1);
+		SubclassEvent e1 = new SubclassEvent(2);
+		OtherEvent e2 = new OtherEvent();
+		eventBus.broadcast(e);
+		eventBus.broadcast(e1);
+		eventBus.broadcast(e2);
+		eventExecutor.runAll();
+		// Subclasses of subscribed types should be delivered
+		assertEquals(asList(e, e1), listener.events);
+		assertEquals(singletonList(e2), listener1.events);
+	}
+
+	@Test
+	public void testNoTaskIsScheduledIfNoListenersAreInterested() {
+		eventBus.addListener(listener, singletonList(OtherEvent.class));
+		eventBus.broadcast(new TestEvent(1));
+		assertTrue(eventExecutor.tasks.isEmpty());
+	}
+
+	@Test
+	public void testRemovedListenerIsNotNotifiedOfBroadcastEvents() {
+		eventBus.addListener(listener, singletonList(TestEvent.class));
+		eventBus.addListener(listener1);
+		TestEvent e = new TestEvent(1);
+		eventBus.broadcast(e);
+		// Remove the listener before the event is delivered
+		eventBus.removeListener(listener);
+		eventExecutor.runAll();
+		assertTrue(listener.events.isEmpty());
+		assertEquals(singletonList(e), listener1.events);
+	}
+
+	@Test
+	public void testListenerAddedAfterEventTypeIsRoutedIsNotified() {
+		eventBus.addListener(listener);
+		eventBus.broadcast(new TestEvent(1));
+		eventExecutor.runAll();
+		// The route for TestEvent has been computed, now add a listener
+		eventBus.addListener(listener1, singletonList(TestEvent.class));
+		TestEvent e = new TestEvent(2);
+		eventBus.broadcast(e);
+		eventExecutor.runAll();
+		assertEquals(singletonList(e), listener1.events);
+	}
+
+	@Test
+	public void testListenerIsNotifiedOnGivenExecutor() {
+		eventBus.addListener(listener, executor, emptyList());
+		TestEvent e = new TestEvent(1);
+		eventBus.broadcast(e);
+		// The listener shouldn't be notified until the executor runs
+		assertTrue(listener.events.isEmpty());
+		executor.runAll();
+		assertEquals(singletonList(e), listener.events);
+	}
+
+	@Test
+	public void testEventsAreFilteredByType() {
+		eventBus.addListener(listener, executor,
+				singletonList(TestEvent.class));
+		TestEvent e = new TestEvent(1);
+		eventBus.broadcast(new OtherEvent());
+		eventBus.broadcast(e);
+		executor.runAll();
+		assertEquals(singletonList(e), listener.events);
+	}
+
+	@Test
+	public void testEventsAreDeliveredInOrderWithOneTask() {
+		Mailbox mailbox = new Mailbox(listener, executor, emptyList());
+		TestEvent e1 = new TestEvent(1), e2 = new TestEvent(2);
+		mailbox.add(e1);
+		mailbox.add(e2);
+		// Only one delivery task should have been scheduled
+		assertEquals(1, executor.tasks.size());
+		executor.runAll();
+		assertEquals(asList(e1, e2), listener.events);
+		assertEquals(2, mailbox.getDeliveredEvents());
+	}
+
+	@Test
+	public void testEventsWithEqualKeysAreCoalesced() {
+		Mailbox mailbox =
+				new Mailbox(coalescingListener, executor, 10, emptyList());
+		TestEvent e1 = new TestEvent(1), e2 = new TestEvent(2);
+		mailbox.add(e1);
+		mailbox.add(e2);
+		mailbox.add(new TestEvent(1));
+		executor.runAll();
+		assertEquals(asList(e1, e2), coalescingListener.events);
+		assertEquals(1, mailbox.getCoalescedEvents());
+		// Once the event has been delivered, an event with an equal key
+		// isn't coalesced
+		mailbox.add(new TestEvent(1));
+		executor.runAll();
+		assertEquals(3, coalescingListener.events.size());
+	}
+
+	@Test
+	public void testEventsWithoutKeysAreNotCoalesced() {
+		Mailbox mailbox = new Mailbox(listener, executor, emptyList());
+		TestEvent e1 = new TestEvent(1), e2 = new TestEvent(1);
+		mailbox.add(e1);
+		mailbox.add(e2);
+		executor.runAll();
+		assertEquals(asList(e1, e2), listener.events);
+		assertEquals(0, mailbox.getCoalescedEvents());
+	}
+
+	@Test
+	public void testEventsWithKeysAreDroppedWhenMailboxIsFull() {
+		Mailbox mailbox =
+				new Mailbox(coalescingListener, executor, 2, emptyList());
+		TestEvent e1 = new TestEvent(1), e2 = new TestEvent(2);
+		OtherEvent e3 = new OtherEvent();
+		mailbox.add(e1);
+		mailbox.add(e2);
+		mailbox.add(new TestEvent(3));
+		// An event without a key should be queued even though the mailbox
+		// is full
+		mailbox.add(e3);
+		executor.runAll();
+		assertEquals(asList(e1, e2, e3), coalescingListener.events);
+		assertEquals(1, mailbox.getDroppedEvents());
+	}
+
+	@Test
+	public void testEventsWithoutKeysAreNeverDropped() {
+		Mailbox mailbox =
+				new Mailbox(coalescingListener, executor, 2, emptyList());
+		for (int i = 0; i < 10; i++) mailbox.add(new OtherEvent());
+		executor.runAll();
+		assertEquals(10, coalescingListener.events.size());
+		assertEquals(0, mailbox.getDroppedEvents());
+	}
+
+	@Test
+	public void testEventsAreNeverDroppedForNonCoalescingListener() {
+		Mailbox mailbox = new Mailbox(listener, executor, emptyList());
+		for (int i = 0; i < 10; i++) mailbox.add(new TestEvent(i));
+		executor.runAll();
+		assertEquals(10, listener.events.size());
+		assertEquals(0, mailbox.getDroppedEvents());
+	}
+
+	@Test
+	public void testEventsAreDeliveredAfterListenerThrowsException() {
+		ThrowingListener throwingListener = new ThrowingListener();
+		Mailbox mailbox =
+				new Mailbox(throwingListener, executor, emptyList());
+		TestEvent e1 = new TestEvent(1), e2 = new TestEvent(2);
+		mailbox.add(e1);
+		mailbox.add(e2);
+		executor.runAll();
+		assertEquals(asList(e1, e2), throwingListener.events);
+		// Later events should schedule another delivery task
+		TestEvent e3 = new TestEvent(3);
+		mailbox.add(e3);
+		assertEquals(1, executor.tasks.size());
+		executor.runAll();
+		assertEquals(asList(e1, e2, e3), throwingListener.events);
+	}
+
+	@Test
+	public void testQueuedEventsAreDiscardedWhenListenerIsRemoved() {
+		eventBus.addListener(listener, executor, emptyList());
+		eventBus.broadcast(new TestEvent(1));
+		eventBus.removeListener(listener);
+		eventBus.broadcast(new TestEvent(2));
+		executor.runAll();
+		assertTrue(listener.events.isEmpty());
+	}
+
+	private static class QueueingExecutor implements Executor {
+
+		private final Queue<Runnable> tasks = new LinkedList<>();
+
+		@Override
+		public void execute(Runnable r) {
+			tasks.add(r);
+		}
+
+		private void runAll() {
+			while (!tasks.isEmpty()) tasks.remove().run();
+		}
+	}
+
+	private static class RecordingListener implements EventListener {
+
+		private final List<Event> events = new ArrayList<>();
+
+		@Override
+		public void eventOccurred(Event e) {
+			events.add(e);
+		}
+	}
+
+	private static class ThrowingListener implements EventListener {
+
+		private final List<Event> events = new ArrayList<>();
+
+		@Override
+		public void eventOccurred(Event e) {
+			events.add(e);
+			throw new RuntimeException();
+		}
+	}
+
+	/**
+	 * Coalesces test events by value and never coalesces other events.
+	 */
+	private static class CoalescingListener
+			implements CoalescingEventListener {
+
+		private final List<Event> events = new ArrayList<>();
+
+		@Override
+		public void eventOccurred(Event e) {
+			events.add(e);
+		}
+
+		@Nullable
+		@Override
+		public Object getCoalescingKey(Event e) {
+			if (e instanceof TestEvent) return ((TestEvent) e).value;
+			return null;
+		}
+	}
+
+	private static class TestEvent extends Event {
+
+		private final int value;
+
+		private TestEvent(int value) {
+			this.value = value;
+		}
+
+	}
+
+	private static class SubclassEvent extends TestEvent {
+
+		private SubclassEvent(int value) {
+			super(value);
+		}
+	}
+
+	private static class OtherEvent extends Event {
+	}
+}
@@ -33,6 +33,7 @@ import java.util.List;
 import java.util.Map;
 
 import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
 import static java.util.Collections.emptyMap;
 import static java.util.Collections.singletonList;
 import static java.util.Collections.singletonMap;
@@ -543,6 +544,55 @@ public class TransportPropertyManagerImplTest extends BrambleMockTestCase {
 		assertEquals(merged, properties.get(contact.getId()));
 	}
 
+	@Test
+	public void testCachesRemotePropertiesUntilContactIsRemoved()
+			throws Exception {
+		Transaction txn1 = new Transaction(null, true);
+		Transaction txn2 = new Transaction(null, false);
+		Transaction txn3 = new Transaction(null, true);
+		Contact contact = getContact();
+		Group contactGroup = getGroup(CLIENT_ID, MAJOR_VERSION);
+		TransportId transportId = new TransportId("foo");
+
+		context.checking(new DbExpectations() {{
+			// Load the properties from the database
+			oneOf(db).transactionWithResult(with(true), withDbCallable(txn1));
+			oneOf(db).getContacts(txn1);
+			will(returnValue(singletonList(contact)));
+			oneOf(contactGroupFactory).createContactGroup(CLIENT_ID,
+					MAJOR_VERSION, contact);
+			will(returnValue(contactGroup));
+			oneOf(clientHelper).getMessageMetadataAsDictionary(txn1,
+					contactGroup.getId());
+			will(returnValue(emptyMap()));
+			oneOf(clientHelper).getGroupMetadataAsDictionary(txn1,
+					contactGroup.getId());
+			will(returnValue(new BdfDictionary()));
+			// Remove the contact
+			oneOf(contactGroupFactory).createContactGroup(CLIENT_ID,
+					MAJOR_VERSION, contact);
+			will(returnValue(contactGroup));
+			oneOf(db).removeGroup(txn2, contactGroup);
+			// Load the properties from the database again
+			oneOf(db).transactionWithResult(with(true), withDbCallable(txn3));
+			oneOf(db).getContacts(txn3);
+			will(returnValue(emptyList()));
+		}});
+
+		TransportPropertyManagerImpl t = createInstance();
+		Map<ContactId, TransportProperties> properties =
+				t.getRemoteProperties(transportId);
+		assertEquals(singletonList(contact.getId()),
+				asList(properties.keySet().toArray()));
+		// The properties should be returned from the cache
+		assertEquals(properties, t.getRemoteProperties(transportId));
+		assertEquals(new TransportProperties(),
+				t.getRemoteProperties(contact.getId(), transportId));
+		// Removing the contact should invalidate the cache
+		t.removingContact(txn2, contact);
+		assertTrue(t.getRemoteProperties(transportId).isEmpty());
+	}
+
 	@Test
 	public void testMergingUnchangedPropertiesDoesNotCreateUpdate()
 			throws Exception {
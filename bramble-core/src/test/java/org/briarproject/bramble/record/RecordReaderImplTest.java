@@ -2,6 +2,7 @@ package org.briarproject.bramble.record;
 
 import org.briarproject.bramble.api.FormatException;
 import org.briarproject.bramble.api.Predicate;
+import org.briarproject.bramble.api.record.BufferedRecord;
 import org.briarproject.bramble.api.record.Record;
 import org.briarproject.bramble.api.record.RecordReader;
 import org.briarproject.bramble.test.BrambleTestCase;
@@ -11,6 +12,7 @@ import org.junit.Test;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
+import java.util.Arrays;
 
 import static org.briarproject.bramble.api.record.Record.MAX_RECORD_PAYLOAD_BYTES;
 import static org.briarproject.bramble.api.record.Record.RECORD_HEADER_BYTES;
@@ -19,6 +21,7 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 public class RecordReaderImplTest extends BrambleTestCase {
@@ -210,4 +213,88 @@ public class RecordReaderImplTest extends BrambleTestCase {
 		// The reader should have reached the end of the stream
 		assertNull(reader.readRecord(accept, ignore));
 	}
+
+	@Test
+	public void testBufferIsReusedForSmallerRecords() throws Exception {
+		byte[] payload1 = getRandomBytes(123);
+		byte[] payload2 = getRandomBytes(45);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		// Version 0, type 0, payload length 123
+		out.write(new byte[] {0, 0, 0, 123});
+		out.write(payload1);
+		// Version 0, type 1, payload length 45
+		out.write(new byte[] {0, 1, 0, 45});
+		out.write(payload2);
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		RecordReader reader = new RecordReaderImpl(in);
+
+		Predicate<BufferedRecord> accept = r -> r.getProtocolVersion() == 0;
+		Predicate<BufferedRecord> ignore = r -> false;
+
+		BufferedRecord r = reader.readBufferedRecord(accept, ignore);
+		assertNotNull(r);
+		assertEquals(0, r.getRecordType());
+		assertEquals(payload1.length, r.getPayloadLength());
+		byte[] buffer = r.getPayloadBuffer();
+		assertArrayEquals(payload1, Arrays.copyOf(buffer, payload1.length));
+
+		// The second record should be read into the same buffer
+		r = reader.readBufferedRecord(accept, ignore);
+		assertNotNull(r);
+		assertEquals(1, r.getRecordType());
+		assertEquals(payload2.length, r.getPayloadLength());
+		assertSame(buffer, r.getPayloadBuffer());
+		assertArrayEquals(payload2, Arrays.copyOf(buffer, payload2.length));
+
+		// The reader should have reached the end of the stream
+		assertNull(reader.readBufferedRecord(accept, ignore));
+	}
+
+	@Test
+	public void testBufferedReadsAcceptIgnoreAndRejectRecords()
+			throws Exception {
+		byte[] payload = getRandomBytes(MAX_RECORD_PAYLOAD_BYTES);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		// Version 0, type 2, empty payload
+		out.write(new byte[] {0, 2, 0, 0});
+		// Version 0, type 0, payload length MAX_RECORD_PAYLOAD_BYTES
+		byte[] header = new byte[] {0, 0, 0, 0};
+		ByteUtils.writeUint16(MAX_RECORD_PAYLOAD_BYTES, header, 2);
+		out.write(header);
+		out.write(payload);
+		// Version 1, type 0, empty payload
+		out.write(new byte[] {1, 0, 0, 0});
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		RecordReader reader = new RecordReaderImpl(in);
+
+		// Accept records with version 0, type 0 or 1
+		Predicate<BufferedRecord> accept = r -> {
+			byte version = r.getProtocolVersion(), type = r.getRecordType();
+			return version == 0 && (type == 0 || type == 1);
+		};
+		// Ignore records with version 0, any other type
+		Predicate<BufferedRecord> ignore = r -> {
+			byte version = r.getProtocolVersion(), type = r.getRecordType();
+			return version == 0 && !(type == 0 || type == 1);
+		};
+
+		// The first record should be ignored, the second should be accepted
+		BufferedRecord r = reader.readBufferedRecord(accept, ignore);
+		assertNotNull(r);
+		assertEquals(0, r.getProtocolVersion());
+		assertEquals(0, r.getRecordType());
+		assertEquals(MAX_RECORD_PAYLOAD_BYTES, r.getPayloadLength());
+		assertArrayEquals(payload, Arrays.copyOf(r.getPayloadBuffer(),
+				MAX_RECORD_PAYLOAD_BYTES));
+
+		// The third record should be rejected
+		try {
+			reader.readBufferedRecord(accept, ignore);
+			fail();
+		} catch (FormatException expected) {
+			// Expected
+		}
+	}
 }
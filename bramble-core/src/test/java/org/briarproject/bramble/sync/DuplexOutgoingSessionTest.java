@@ -0,0 +1,160 @@
+package org.briarproject.bramble.sync;
+
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.Transaction;
+import org.briarproject.bramble.api.event.EventBus;
+import org.briarproject.bramble.api.plugin.TransportId;
+import org.briarproject.bramble.api.sync.GroupId;
+import org.briarproject.bramble.api.sync.Message;
+import org.briarproject.bramble.api.sync.SyncRecordWriter;
+import org.briarproject.bramble.api.sync.SyncSession;
+import org.briarproject.bramble.api.sync.Versions;
+import org.briarproject.bramble.api.system.Clock;
+import org.briarproject.bramble.api.transport.StreamWriter;
+import org.briarproject.bramble.test.BrambleMockTestCase;
+import org.briarproject.bramble.test.DbExpectations;
+import org.briarproject.bramble.test.ImmediateExecutor;
+import org.hamcrest.Description;
+import org.jmock.Expectations;
+import org.jmock.Sequence;
+import org.jmock.api.Action;
+import org.jmock.api.Invocation;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nullable;
+
+import static java.util.Collections.singletonList;
+import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_IDS;
+import static org.briarproject.bramble.sync.DuplexOutgoingSession.MAX_QUEUED_BATCHES;
+import static org.briarproject.bramble.test.TestUtils.getContactId;
+import static org.briarproject.bramble.test.TestUtils.getMessage;
+import static org.briarproject.bramble.test.TestUtils.getRandomId;
+import static org.briarproject.bramble.test.TestUtils.getTransportId;
+
+public class DuplexOutgoingSessionTest extends BrambleMockTestCase {
+
+	private static final int MAX_LATENCY = Integer.MAX_VALUE;
+	private static final int MAX_IDLE_TIME = 30_000;
+
+	private final DatabaseComponent db = context.mock(DatabaseComponent.class);
+	private final EventBus eventBus = context.mock(EventBus.class);
+	private final Clock clock = context.mock(Clock.class);
+	private final StreamWriter streamWriter = context.mock(StreamWriter.class);
+	private final SyncRecordWriter recordWriter =
+			context.mock(SyncRecordWriter.class);
+
+	private final Executor dbExecutor = new ImmediateExecutor();
+	private final Executor ioExecutor = new ImmediateExecutor();
+	private final ContactId contactId = getContactId();
+	private final TransportId transportId = getTransportId();
+	private final GroupId groupId = new GroupId(getRandomId());
+
+	@Test
+	public void testBatchesArePrefetchedUpToTheLimit() throws Exception {
+		DuplexOutgoingSession session = new DuplexOutgoingSession(db,
+				dbExecutor, ioExecutor, eventBus, clock, contactId,
+				transportId, MAX_LATENCY, MAX_IDLE_TIME, streamWriter,
+				recordWriter, null);
+		Transaction txn = new Transaction(null, false);
+		Sequence batches = context.sequence("batches");
+		// One more batch than the limit
+		List<Message> messages = new ArrayList<>();
+		for (int i = 0; i <= MAX_QUEUED_BATCHES; i++)
+			messages.add(getMessage(groupId));
+
+		context.checking(new DbExpectations() {{
+			// Add listener
+			oneOf(eventBus).addListener(with(session), with(ioExecutor),
+					with(any(int.class)), with(any(Collection.class)));
+			// Get the current time
+			allowing(clock).currentTimeMillis();
+			will(returnValue(123_456_789L));
+			// Send the protocol versions
+			oneOf(recordWriter).writeVersions(with(any(Versions.class)));
+			// Run every query in a transaction scoped to the contact
+			allowing(db).transactionWithNullableResult(with(false),
+					with(contactId), withNullableDbCallable(txn));
+			allowing(db).getNextSendTime(txn, contactId);
+			will(returnValue(Long.MAX_VALUE));
+			// No acks, offers or requests to send
+			oneOf(db).generateAck(txn, contactId, MAX_MESSAGE_IDS);
+			will(returnValue(null));
+			oneOf(db).generateOffer(txn, contactId, MAX_MESSAGE_IDS,
+					MAX_LATENCY);
+			will(returnValue(null));
+			oneOf(db).generateRequest(txn, contactId, MAX_MESSAGE_IDS);
+			will(returnValue(null));
+			// Flush the stream if the writer runs out of records
+			allowing(recordWriter).flush();
+		}});
+		// Generate batches until the limit is reached
+		for (int i = 0; i < MAX_QUEUED_BATCHES; i++)
+			expectGenerateBatch(txn, batches, singletonList(messages.get(i)));
+		// Writing the first batch makes room for the last batch
+		expectWriteMessage(batches, messages.get(0), null);
+		expectGenerateBatch(txn, batches,
+				singletonList(messages.get(MAX_QUEUED_BATCHES)));
+		// Writing each of the other batches starts another query, which
+		// returns nothing, until the last batch has been written
+		for (int i = 1; i < MAX_QUEUED_BATCHES; i++) {
+			expectWriteMessage(batches, messages.get(i), null);
+			expectGenerateBatch(txn, batches, null);
+		}
+		expectWriteMessage(batches, messages.get(MAX_QUEUED_BATCHES),
+				session);
+		context.checking(new Expectations() {{
+			// Send the end of stream marker
+			oneOf(streamWriter).sendEndOfStream();
+			// Remove listener
+			oneOf(eventBus).removeListener(session);
+		}});
+
+		session.run();
+	}
+
+	private void expectGenerateBatch(Transaction txn, Sequence batches,
+			@Nullable Collection<Message> batch) throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(db).generateRequestedBatch(with(txn), with(contactId),
+					with(any(int.class)), with(MAX_LATENCY));
+			inSequence(batches);
+			will(returnValue(batch));
+		}});
+	}
+
+	private void expectWriteMessage(Sequence batches, Message m,
+			@Nullable SyncSession interrupt) throws Exception {
+		context.checking(new Expectations() {{
+			oneOf(recordWriter).writeMessage(m);
+			inSequence(batches);
+			// Interrupt the session after writing the message, if required
+			if (interrupt != null) will(new InterruptAction(interrupt));
+		}});
+	}
+
+	private static class InterruptAction implements Action {
+
+		private final SyncSession session;
+
+		private InterruptAction(SyncSession session) {
+			this.session = session;
+		}
+
+		@Override
+		public Object invoke(Invocation invocation) {
+			session.interrupt();
+			return null;
+		}
+
+		@Override
+		public void describeTo(Description description) {
+			description.appendText("interrupts the session");
+		}
+	}
+}
@@ -52,7 +52,8 @@ public class SimplexOutgoingSessionTest extends BrambleMockTestCase {
 
 		context.checking(new DbExpectations() {{
 			// Add listener
-			oneOf(eventBus).addListener(session);
+			oneOf(eventBus).addListener(session,
+					SimplexOutgoingSession.EVENT_TYPES);
 			// Send the protocol versions
 			oneOf(recordWriter).writeVersions(with(any(Versions.class)));
 			// No acks to send
@@ -88,7 +89,8 @@ public class SimplexOutgoingSessionTest extends BrambleMockTestCase {
 
 		context.checking(new DbExpectations() {{
 			// Add listener
-			oneOf(eventBus).addListener(session);
+			oneOf(eventBus).addListener(session,
+					SimplexOutgoingSession.EVENT_TYPES);
 			// Send the protocol versions
 			oneOf(recordWriter).writeVersions(with(any(Versions.class)));
 			// One ack to send
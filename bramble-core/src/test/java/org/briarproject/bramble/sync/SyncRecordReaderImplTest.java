@@ -3,37 +3,47 @@ package org.briarproject.bramble.sync;
 import org.briarproject.bramble.api.FormatException;
 import org.briarproject.bramble.api.Predicate;
 import org.briarproject.bramble.api.UniqueId;
+import org.briarproject.bramble.api.record.BufferedRecord;
 import org.briarproject.bramble.api.record.Record;
 import org.briarproject.bramble.api.record.RecordReader;
 import org.briarproject.bramble.api.sync.Ack;
+import org.briarproject.bramble.api.sync.GroupId;
+import org.briarproject.bramble.api.sync.Message;
 import org.briarproject.bramble.api.sync.MessageFactory;
+import org.briarproject.bramble.api.sync.MessageId;
 import org.briarproject.bramble.api.sync.Offer;
 import org.briarproject.bramble.api.sync.Priority;
 import org.briarproject.bramble.api.sync.Request;
 import org.briarproject.bramble.api.sync.SyncRecordReader;
 import org.briarproject.bramble.api.sync.Versions;
 import org.briarproject.bramble.test.BrambleMockTestCase;
+import org.briarproject.bramble.util.ByteUtils;
 import org.jmock.Expectations;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.annotation.Nullable;
 
 import static org.briarproject.bramble.api.record.Record.MAX_RECORD_PAYLOAD_BYTES;
 import static org.briarproject.bramble.api.sync.RecordTypes.ACK;
+import static org.briarproject.bramble.api.sync.RecordTypes.MESSAGE;
 import static org.briarproject.bramble.api.sync.RecordTypes.OFFER;
 import static org.briarproject.bramble.api.sync.RecordTypes.PRIORITY;
 import static org.briarproject.bramble.api.sync.RecordTypes.REQUEST;
 import static org.briarproject.bramble.api.sync.RecordTypes.VERSIONS;
 import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_IDS;
 import static org.briarproject.bramble.api.sync.SyncConstants.MAX_SUPPORTED_VERSIONS;
+import static org.briarproject.bramble.api.sync.SyncConstants.MESSAGE_HEADER_LENGTH;
 import static org.briarproject.bramble.api.sync.SyncConstants.PRIORITY_NONCE_BYTES;
 import static org.briarproject.bramble.api.sync.SyncConstants.PROTOCOL_VERSION;
 import static org.briarproject.bramble.test.TestUtils.getRandomBytes;
+import static org.briarproject.bramble.test.TestUtils.getMessage;
 import static org.briarproject.bramble.test.TestUtils.getRandomId;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -148,6 +158,38 @@ public class SyncRecordReaderImplTest extends BrambleMockTestCase {
 		assertEquals(PRIORITY_NONCE_BYTES, priority.getNonce().length);
 	}
 
+	@Test
+	public void testMessageIdsAreDecodedFromPayloadOnly() throws Exception {
+		byte[] id1 = getRandomId(), id2 = getRandomId();
+		byte[] payload = new byte[UniqueId.LENGTH * 2];
+		System.arraycopy(id1, 0, payload, 0, UniqueId.LENGTH);
+		System.arraycopy(id2, 0, payload, UniqueId.LENGTH, UniqueId.LENGTH);
+		expectReadRecord(new Record(PROTOCOL_VERSION, ACK, payload));
+
+		List<MessageId> ids =
+				new ArrayList<>(reader.readAck().getMessageIds());
+		assertEquals(2, ids.size());
+		assertArrayEquals(id1, ids.get(0).getBytes());
+		assertArrayEquals(id2, ids.get(1).getBytes());
+	}
+
+	@Test
+	public void testMessageIsCreatedFromPayloadOnly() throws Exception {
+		byte[] payload = getRandomBytes(MESSAGE_HEADER_LENGTH + 123);
+		ByteUtils.writeUint64(System.currentTimeMillis(), payload,
+				UniqueId.LENGTH);
+		Message message = getMessage(new GroupId(getRandomId()));
+		expectReadRecord(new Record(PROTOCOL_VERSION, MESSAGE, payload));
+
+		context.checking(new Expectations() {{
+			oneOf(messageFactory).createMessage(with(any(byte[].class)),
+					with(0), with(payload.length));
+			will(returnValue(message));
+		}});
+
+		assertEquals(message, reader.readMessage());
+	}
+
 	@Test
 	public void testEofReturnsTrueWhenAtEndOfStream() throws Exception {
 		expectReadRecord(createAck());
@@ -164,11 +206,13 @@ public class SyncRecordReaderImplTest extends BrambleMockTestCase {
 	}
 
 	private void expectReadRecord(@Nullable Record record) throws Exception {
+		BufferedRecord buffered =
+				record == null ? null : new PaddedRecord(record);
 		context.checking(new Expectations() {{
 			//noinspection unchecked
-			oneOf(recordReader).readRecord(with(any(Predicate.class)),
+			oneOf(recordReader).readBufferedRecord(with(any(Predicate.class)),
 					with(any(Predicate.class)));
-			will(returnValue(record));
+			will(returnValue(buffered));
 		}});
 	}
 
@@ -214,4 +258,41 @@ public class SyncRecordReaderImplTest extends BrambleMockTestCase {
 		}
 		return payload.toByteArray();
 	}
+
+	/**
+	 * A buffered record whose buffer is longer than its payload, like the
+	 * records returned by a real record reader.
+	 */
+	private static class PaddedRecord implements BufferedRecord {
+
+		private final Record record;
+		private final byte[] buffer;
+
+		private PaddedRecord(Record record) {
+			this.record = record;
+			byte[] payload = record.getPayload();
+			buffer = getRandomBytes(payload.length + UniqueId.LENGTH);
+			System.arraycopy(payload, 0, buffer, 0, payload.length);
+		}
+
+		@Override
+		public byte getProtocolVersion() {
+			return record.getProtocolVersion();
+		}
+
+		@Override
+		public byte getRecordType() {
+			return record.getRecordType();
+		}
+
+		@Override
+		public byte[] getPayloadBuffer() {
+			return buffer;
+		}
+
+		@Override
+		public int getPayloadLength() {
+			return record.getPayload().length;
+		}
+	}
 }
@@ -2,6 +2,7 @@ package org.briarproject.bramble.sync.validation;
 
 import org.briarproject.bramble.api.contact.ContactId;
 import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.db.Metadata;
 import org.briarproject.bramble.api.db.NoSuchGroupException;
 import org.briarproject.bramble.api.db.NoSuchMessageException;
@@ -91,18 +92,19 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 	public void testMessagesAreValidatedAtStartup() throws Exception {
 		Transaction txn = new Transaction(null, true);
 		Transaction txn1 = new Transaction(null, false);
-		Transaction txn2 = new Transaction(null, true);
-		Transaction txn3 = new Transaction(null, false);
+		Transaction txn2 = new Transaction(null, false);
 
 		expectGetMessagesToValidate(messageId, messageId1);
 
 		context.checking(new DbExpectations() {{
-			// Load the first raw message and group
+			// Load both raw messages and their group in one transaction
 			oneOf(db).transactionWithResult(with(true), withDbCallable(txn));
 			oneOf(db).getMessage(txn, messageId);
 			will(returnValue(message));
 			oneOf(db).getGroup(txn, groupId);
 			will(returnValue(group));
+			oneOf(db).getMessage(txn, messageId1);
+			will(returnValue(message1));
 			// Validate the first message: valid
 			oneOf(validator).validateMessage(message, group);
 			will(returnValue(validResult));
@@ -116,24 +118,18 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			// Get any pending dependents
 			oneOf(db).getMessageDependents(txn1, messageId);
 			will(returnValue(emptyMap()));
-			// Load the second raw message and group
-			oneOf(db).transactionWithResult(with(true), withDbCallable(txn2));
-			oneOf(db).getMessage(txn2, messageId1);
-			will(returnValue(message1));
-			oneOf(db).getGroup(txn2, groupId);
-			will(returnValue(group));
 			// Validate the second message: invalid
 			oneOf(validator).validateMessage(message1, group);
 			will(throwException(new InvalidMessageException()));
 			// Store the validation result for the second message
-			oneOf(db).transaction(with(false), withDbRunnable(txn3));
-			oneOf(db).getMessageState(txn3, messageId1);
+			oneOf(db).transaction(with(false), withDbRunnable(txn2));
+			oneOf(db).getMessageState(txn2, messageId1);
 			will(returnValue(UNKNOWN));
-			oneOf(db).setMessageState(txn3, messageId1, INVALID);
-			oneOf(db).deleteMessage(txn3, messageId1);
-			oneOf(db).deleteMessageMetadata(txn3, messageId1);
+			oneOf(db).setMessageState(txn2, messageId1, INVALID);
+			oneOf(db).deleteMessage(txn2, messageId1);
+			oneOf(db).deleteMessageMetadata(txn2, messageId1);
 			// Recursively invalidate any dependents
-			oneOf(db).getMessageDependents(txn3, messageId1);
+			oneOf(db).getMessageDependents(txn2, messageId1);
 			will(returnValue(emptyMap()));
 		}});
 
@@ -199,6 +195,105 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 		vm.startService();
 	}
 
+	@Test
+	public void testPendingMessagesAreDeliveredInOneTransaction()
+			throws Exception {
+		Transaction txn = new Transaction(null, false);
+
+		expectGetMessagesToValidate();
+		expectGetPendingMessages(messageId, messageId1);
+
+		context.checking(new DbExpectations() {{
+			// Check whether the first message is ready to deliver
+			oneOf(db).transaction(with(false), withDbRunnable(txn));
+			oneOf(db).getMessageState(txn, messageId);
+			will(returnValue(PENDING));
+			oneOf(db).getMessageDependencies(txn, messageId);
+			will(returnValue(singletonMap(messageId2, DELIVERED)));
+			// Get the first message and its metadata to deliver
+			oneOf(db).getMessage(txn, messageId);
+			will(returnValue(message));
+			oneOf(db).getGroup(txn, groupId);
+			will(returnValue(group));
+			oneOf(db).getMessageMetadataForValidator(txn, messageId);
+			will(returnValue(metadata));
+			// Deliver the first message
+			oneOf(hook).incomingMessage(txn, message, metadata);
+			will(returnValue(false));
+			oneOf(db).setMessageState(txn, messageId, DELIVERED);
+			oneOf(db).getMessageDependents(txn, messageId);
+			will(returnValue(emptyMap()));
+			// The second message is no longer pending
+			oneOf(db).getMessageState(txn, messageId1);
+			will(returnValue(DELIVERED));
+		}});
+
+		expectGetMessagesToShare();
+
+		vm.startService();
+	}
+
+	@Test
+	public void testDeliveryContinuesAfterNoSuchMessageException()
+			throws Exception {
+		Transaction txn = new Transaction(null, false);
+		Transaction txn1 = new Transaction(null, false);
+		Transaction txn2 = new Transaction(null, false);
+
+		expectGetMessagesToValidate();
+		expectGetPendingMessages(messageId, messageId1);
+
+		context.checking(new DbExpectations() {{
+			// Try to deliver both messages - *gasp* the first is gone!
+			oneOf(db).transaction(with(false), withDbRunnable(txn));
+			oneOf(db).getMessageState(txn, messageId);
+			will(throwException(new NoSuchMessageException()));
+			// Retry the messages one at a time
+			oneOf(db).transaction(with(false), withDbRunnable(txn1));
+			oneOf(db).getMessageState(txn1, messageId);
+			will(throwException(new NoSuchMessageException()));
+			oneOf(db).transaction(with(false), withDbRunnable(txn2));
+			oneOf(db).getMessageState(txn2, messageId1);
+			will(returnValue(PENDING));
+			oneOf(db).getMessageDependencies(txn2, messageId1);
+			will(returnValue(singletonMap(messageId2, UNKNOWN)));
+		}});
+
+		expectGetMessagesToShare();
+
+		vm.startService();
+	}
+
+	@Test
+	public void testDeliveryContinuesAfterDbException() throws Exception {
+		Transaction txn = new Transaction(null, false);
+		Transaction txn1 = new Transaction(null, false);
+		Transaction txn2 = new Transaction(null, false);
+
+		expectGetMessagesToValidate();
+		expectGetPendingMessages(messageId, messageId1);
+
+		context.checking(new DbExpectations() {{
+			// Try to deliver both messages - the first can't be read
+			oneOf(db).transaction(with(false), withDbRunnable(txn));
+			oneOf(db).getMessageState(txn, messageId);
+			will(throwException(new DbException()));
+			// Retry the messages one at a time
+			oneOf(db).transaction(with(false), withDbRunnable(txn1));
+			oneOf(db).getMessageState(txn1, messageId);
+			will(throwException(new DbException()));
+			oneOf(db).transaction(with(false), withDbRunnable(txn2));
+			oneOf(db).getMessageState(txn2, messageId1);
+			will(returnValue(PENDING));
+			oneOf(db).getMessageDependencies(txn2, messageId1);
+			will(returnValue(singletonMap(messageId2, UNKNOWN)));
+		}});
+
+		expectGetMessagesToShare();
+
+		vm.startService();
+	}
+
 	@Test
 	public void testMessagesAreSharedAtStartup() throws Exception {
 		Transaction txn = new Transaction(null, false);
@@ -268,7 +363,6 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 	public void testValidationContinuesAfterNoSuchMessageException()
 			throws Exception {
 		Transaction txn = new Transaction(null, true);
-		Transaction txn1 = new Transaction(null, true);
 		Transaction txn2 = new Transaction(null, false);
 
 		expectGetMessagesToValidate(messageId, messageId1);
@@ -279,10 +373,9 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			oneOf(db).getMessage(txn, messageId);
 			will(throwException(new NoSuchMessageException()));
 			// Load the second raw message and group
-			oneOf(db).transactionWithResult(with(true), withDbCallable(txn1));
-			oneOf(db).getMessage(txn1, messageId1);
+			oneOf(db).getMessage(txn, messageId1);
 			will(returnValue(message1));
-			oneOf(db).getGroup(txn1, groupId);
+			oneOf(db).getGroup(txn, groupId);
 			will(returnValue(group));
 			// Validate the second message: invalid
 			oneOf(validator).validateMessage(message1, group);
@@ -309,7 +402,6 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 	public void testValidationContinuesAfterNoSuchGroupException()
 			throws Exception {
 		Transaction txn = new Transaction(null, true);
-		Transaction txn1 = new Transaction(null, true);
 		Transaction txn2 = new Transaction(null, false);
 
 		expectGetMessagesToValidate(messageId, messageId1);
@@ -323,10 +415,9 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			oneOf(db).getGroup(txn, groupId);
 			will(throwException(new NoSuchGroupException()));
 			// Load the second raw message and group
-			oneOf(db).transactionWithResult(with(true), withDbCallable(txn1));
-			oneOf(db).getMessage(txn1, messageId1);
+			oneOf(db).getMessage(txn, messageId1);
 			will(returnValue(message1));
-			oneOf(db).getGroup(txn1, groupId);
+			oneOf(db).getGroup(txn, groupId);
 			will(returnValue(group));
 			// Validate the second message: invalid
 			oneOf(validator).validateMessage(message1, group);
@@ -349,6 +440,52 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 		vm.startService();
 	}
 
+	@Test
+	public void testValidationContinuesAfterDbException() throws Exception {
+		Transaction txn = new Transaction(null, true);
+		Transaction txn1 = new Transaction(null, false);
+		Transaction txn2 = new Transaction(null, false);
+
+		expectGetMessagesToValidate(messageId, messageId1);
+
+		context.checking(new DbExpectations() {{
+			// Load both raw messages and their group
+			oneOf(db).transactionWithResult(with(true), withDbCallable(txn));
+			oneOf(db).getMessage(txn, messageId);
+			will(returnValue(message));
+			oneOf(db).getGroup(txn, groupId);
+			will(returnValue(group));
+			oneOf(db).getMessage(txn, messageId1);
+			will(returnValue(message1));
+			// Validate the first message: invalid
+			oneOf(validator).validateMessage(message, group);
+			will(throwException(new InvalidMessageException()));
+			// Store the validation result for the first message - it can't
+			// be stored
+			oneOf(db).transaction(with(false), withDbRunnable(txn1));
+			oneOf(db).getMessageState(txn1, messageId);
+			will(throwException(new DbException()));
+			// Validate the second message: invalid
+			oneOf(validator).validateMessage(message1, group);
+			will(throwException(new InvalidMessageException()));
+			// Store the validation result for the second message
+			oneOf(db).transaction(with(false), withDbRunnable(txn2));
+			oneOf(db).getMessageState(txn2, messageId1);
+			will(returnValue(UNKNOWN));
+			oneOf(db).setMessageState(txn2, messageId1, INVALID);
+			oneOf(db).deleteMessage(txn2, messageId1);
+			oneOf(db).deleteMessageMetadata(txn2, messageId1);
+			// Recursively invalidate dependents
+			oneOf(db).getMessageDependents(txn2, messageId1);
+			will(returnValue(emptyMap()));
+		}});
+
+		expectGetPendingMessages();
+		expectGetMessagesToShare();
+
+		vm.startService();
+	}
+
 	@Test
 	public void testNonLocalMessagesAreValidatedWhenAdded() throws Exception {
 		Transaction txn = new Transaction(null, true);
@@ -586,8 +723,6 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 		Transaction txn2 = new Transaction(null, false);
 		Transaction txn3 = new Transaction(null, false);
 		Transaction txn4 = new Transaction(null, false);
-		Transaction txn5 = new Transaction(null, false);
-		Transaction txn6 = new Transaction(null, false);
 
 		context.checking(new DbExpectations() {{
 			// Load the group
@@ -607,7 +742,7 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			// The message has two pending dependents: 1 and 2
 			oneOf(db).getMessageDependents(txn1, messageId);
 			will(returnValue(twoDependents));
-			// Check whether message 1 is ready to be delivered
+			// Check whether messages 1 and 2 are ready to be delivered
 			oneOf(db).transaction(with(false), withDbRunnable(txn2));
 			oneOf(db).getMessageState(txn2, messageId1);
 			will(returnValue(PENDING));
@@ -627,68 +762,63 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			// Message 1 has one pending dependent: 3
 			oneOf(db).getMessageDependents(txn2, messageId1);
 			will(returnValue(singletonMap(messageId3, PENDING)));
-			// Check whether message 2 is ready to be delivered
-			oneOf(db).transaction(with(false), withDbRunnable(txn3));
-			oneOf(db).getMessageState(txn3, messageId2);
+			// Message 2 is delivered in the same transaction
+			oneOf(db).getMessageState(txn2, messageId2);
 			will(returnValue(PENDING));
-			oneOf(db).getMessageDependencies(txn3, messageId2);
+			oneOf(db).getMessageDependencies(txn2, messageId2);
 			will(returnValue(singletonMap(messageId, DELIVERED)));
 			// Get message 2 and its metadata
-			oneOf(db).getMessage(txn3, messageId2);
+			oneOf(db).getMessage(txn2, messageId2);
 			will(returnValue(message2));
-			oneOf(db).getGroup(txn3, groupId);
+			oneOf(db).getGroup(txn2, groupId);
 			will(returnValue(group));
-			oneOf(db).getMessageMetadataForValidator(txn3, messageId2);
+			oneOf(db).getMessageMetadataForValidator(txn2, messageId2);
 			will(returnValue(metadata));
 			// Deliver message 2
-			oneOf(hook).incomingMessage(txn3, message2, metadata);
+			oneOf(hook).incomingMessage(txn2, message2, metadata);
 			will(returnValue(false));
-			oneOf(db).setMessageState(txn3, messageId2, DELIVERED);
+			oneOf(db).setMessageState(txn2, messageId2, DELIVERED);
 			// Message 2 has one pending dependent: 3 (same dependent as 1)
-			oneOf(db).getMessageDependents(txn3, messageId2);
+			oneOf(db).getMessageDependents(txn2, messageId2);
 			will(returnValue(singletonMap(messageId3, PENDING)));
-			// Check whether message 3 is ready to be delivered (via 1)
-			oneOf(db).transaction(with(false), withDbRunnable(txn4));
-			oneOf(db).getMessageState(txn4, messageId3);
+			// Check whether message 3 is ready to be delivered (only once)
+			oneOf(db).transaction(with(false), withDbRunnable(txn3));
+			oneOf(db).getMessageState(txn3, messageId3);
 			will(returnValue(PENDING));
-			oneOf(db).getMessageDependencies(txn4, messageId3);
+			oneOf(db).getMessageDependencies(txn3, messageId3);
 			will(returnValue(twoDependencies));
 			// Get message 3 and its metadata
-			oneOf(db).getMessage(txn4, messageId3);
+			oneOf(db).getMessage(txn3, messageId3);
 			will(returnValue(message3));
-			oneOf(db).getGroup(txn4, groupId);
+			oneOf(db).getGroup(txn3, groupId);
 			will(returnValue(group));
-			oneOf(db).getMessageMetadataForValidator(txn4, messageId3);
+			oneOf(db).getMessageMetadataForValidator(txn3, messageId3);
 			will(returnValue(metadata));
 			// Deliver message 3
-			oneOf(hook).incomingMessage(txn4, message3, metadata);
-			oneOf(db).setMessageState(txn4, messageId3, DELIVERED);
+			oneOf(hook).incomingMessage(txn3, message3, metadata);
+			oneOf(db).setMessageState(txn3, messageId3, DELIVERED);
 			// Message 3 has one pending dependent: 4
-			oneOf(db).getMessageDependents(txn4, messageId3);
+			oneOf(db).getMessageDependents(txn3, messageId3);
 			will(returnValue(singletonMap(messageId4, PENDING)));
-			// Check whether message 3 is ready to be delivered (again, via 2)
-			oneOf(db).transaction(with(false), withDbRunnable(txn5));
-			oneOf(db).getMessageState(txn5, messageId3);
-			will(returnValue(DELIVERED)); // Already delivered
-			// Check whether message 4 is ready to be delivered (via 1 and 3)
-			oneOf(db).transaction(with(false), withDbRunnable(txn6));
-			oneOf(db).getMessageState(txn6, messageId4);
+			// Check whether message 4 is ready to be delivered
+			oneOf(db).transaction(with(false), withDbRunnable(txn4));
+			oneOf(db).getMessageState(txn4, messageId4);
 			will(returnValue(PENDING));
-			oneOf(db).getMessageDependencies(txn6, messageId4);
+			oneOf(db).getMessageDependencies(txn4, messageId4);
 			will(returnValue(singletonMap(messageId3, DELIVERED)));
 			// Get message 4 and its metadata
-			oneOf(db).getMessage(txn6, messageId4);
+			oneOf(db).getMessage(txn4, messageId4);
 			will(returnValue(message4));
-			oneOf(db).getGroup(txn6, groupId);
+			oneOf(db).getGroup(txn4, groupId);
 			will(returnValue(group));
-			oneOf(db).getMessageMetadataForValidator(txn6, messageId4);
+			oneOf(db).getMessageMetadataForValidator(txn4, messageId4);
 			will(returnValue(metadata));
 			// Deliver message 4
-			oneOf(hook).incomingMessage(txn6, message4, metadata);
+			oneOf(hook).incomingMessage(txn4, message4, metadata);
 			will(returnValue(false));
-			oneOf(db).setMessageState(txn6, messageId4, DELIVERED);
+			oneOf(db).setMessageState(txn4, messageId4, DELIVERED);
 			// Message 4 has no pending dependents
-			oneOf(db).getMessageDependents(txn6, messageId4);
+			oneOf(db).getMessageDependents(txn4, messageId4);
 			will(returnValue(emptyMap()));
 		}});
 
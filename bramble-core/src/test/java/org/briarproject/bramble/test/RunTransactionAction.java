@@ -18,7 +18,8 @@ class RunTransactionAction implements Action {
 
 	@Override
 	public Object invoke(Invocation invocation) throws Throwable {
-		DbRunnable task = (DbRunnable) invocation.getParameter(1);
+		DbRunnable task = (DbRunnable) invocation.getParameter(
+				invocation.getParameterCount() - 1);
 		task.run(txn);
 		for (CommitAction action : txn.getActions()) {
 			if (action instanceof TaskAction)
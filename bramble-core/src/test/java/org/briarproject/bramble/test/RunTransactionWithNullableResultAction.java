@@ -18,8 +18,8 @@ class RunTransactionWithNullableResultAction implements Action {
 
 	@Override
 	public Object invoke(Invocation invocation) throws Throwable {
-		NullableDbCallable task =
-				(NullableDbCallable) invocation.getParameter(1);
+		NullableDbCallable task = (NullableDbCallable)
+				invocation.getParameter(invocation.getParameterCount() - 1);
 		Object result = task.call(txn);
 		for (CommitAction action : txn.getActions()) {
 			if (action instanceof TaskAction)
@@ -18,7 +18,8 @@ class RunTransactionWithResultAction implements Action {
 
 	@Override
 	public Object invoke(Invocation invocation) throws Throwable {
-		DbCallable task = (DbCallable) invocation.getParameter(1);
+		DbCallable task = (DbCallable) invocation.getParameter(
+				invocation.getParameterCount() - 1);
 		Object result = task.call(txn);
 		for (CommitAction action : txn.getActions()) {
 			if (action instanceof TaskAction)
@@ -33,4 +33,14 @@ public class TestDatabaseConfig implements DatabaseConfig {
 	public KeyStrengthener getKeyStrengthener() {
 		return null;
 	}
+
+	@Override
+	public boolean isStripedLockingEnabled() {
+		return false;
+	}
+
+	@Override
+	public int getReadOnlyExecutorThreads() {
+		return 2;
+	}
 }
@@ -213,10 +213,8 @@ public class KeyManagerImplTest extends BrambleMockTestCase {
 
 	@Test
 	public void testGetStreamContextForTag() throws Exception {
-		context.checking(new DbExpectations() {{
-			oneOf(db).transactionWithNullableResult(with(false),
-					withNullableDbCallable(txn));
-			oneOf(transportKeyManager).getStreamContext(txn, tag);
+		context.checking(new Expectations() {{
+			oneOf(transportKeyManager).getStreamContext(tag);
 			will(returnValue(contactStreamContext));
 		}});
 
@@ -224,6 +222,16 @@ public class KeyManagerImplTest extends BrambleMockTestCase {
 				keyManager.getStreamContext(transportId, tag));
 	}
 
+	@Test
+	public void testStopServiceSavesChanges() throws Exception {
+		context.checking(new DbExpectations() {{
+			oneOf(db).transaction(with(false), withDbRunnable(txn));
+			oneOf(transportKeyManager).saveChanges(txn);
+		}});
+
+		keyManager.stopService();
+	}
+
 	@Test
 	public void testContactRemovedEvent() {
 		ContactRemovedEvent event = new ContactRemovedEvent(contactId);
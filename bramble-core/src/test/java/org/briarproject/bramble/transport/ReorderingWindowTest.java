@@ -5,8 +5,11 @@ import org.briarproject.bramble.test.TestUtils;
 import org.briarproject.bramble.transport.ReorderingWindow.Change;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 
 import static org.briarproject.bramble.api.transport.TransportConstants.REORDERING_WINDOW_SIZE;
 import static org.junit.Assert.assertArrayEquals;
@@ -105,4 +108,79 @@ public class ReorderingWindowTest extends BrambleTestCase {
 		bitmap[bitmap.length / 2 - 1] = (byte) 0x02; // 0000 0010
 		assertArrayEquals(bitmap, window.getBitmap());
 	}
+
+	@Test
+	public void testBitmapConversionForLongerWindows() {
+		// Windows that span more than one word, with a partial last word
+		for (int bytes = 1; bytes <= 20; bytes++) {
+			byte[] bitmap = TestUtils.getRandomBytes(bytes);
+			ReorderingWindow window = new ReorderingWindow(0L, bitmap);
+			assertArrayEquals(bitmap, window.getBitmap());
+		}
+	}
+
+	@Test
+	public void testUnseenElementsAreVisitedInOrder() {
+		byte[] bitmap = new byte[BITMAP_BYTES];
+		bitmap[0] = (byte) 0xA0; // 1010 0000
+		bitmap[bitmap.length - 1] = (byte) 0x01; // 0000 0001
+		ReorderingWindow window = new ReorderingWindow(10L, bitmap);
+		List<Long> expected = new ArrayList<>();
+		for (int i = 0; i < REORDERING_WINDOW_SIZE; i++) {
+			if (i != 0 && i != 2 && i != REORDERING_WINDOW_SIZE - 1)
+				expected.add(10L + i);
+		}
+		assertEquals(expected, getUnseen(window));
+		// Elements below the base should be skipped
+		assertEquals(11L, window.getNextUnseen(0L));
+		// There are no unseen elements at or above the last element
+		assertEquals(-1L,
+				window.getNextUnseen(10L + REORDERING_WINDOW_SIZE - 1));
+		assertEquals(-1L, window.getNextUnseen(10L + REORDERING_WINDOW_SIZE));
+	}
+
+	@Test
+	public void testWindowMatchesArrayImplementation() {
+		// Compare a window that spans several words with a simple model
+		Random random = new Random();
+		int size = 200;
+		ReorderingWindow window = new ReorderingWindow(0L, new byte[size / 8]);
+		boolean[] seen = new boolean[size];
+		long base = 0;
+		for (int i = 0; i < 10000; i++) {
+			// Pick an unseen element, favouring those near the base
+			List<Long> unseen = getUnseen(window);
+			long index = unseen.get(random.nextInt(
+					Math.min(unseen.size(), 1 + random.nextInt(size / 2))));
+			Change change = window.setSeen(index);
+			// Apply the same change to the model
+			int offset = (int) (index - base);
+			seen[offset] = true;
+			int slide = Math.max(0, offset + 1 - size / 2);
+			while (seen[slide]) slide++;
+			List<Long> added = new ArrayList<>();
+			for (int j = 0; j < slide; j++) added.add(base + size + j);
+			assertEquals(added, change.getAdded());
+			base += slide;
+			System.arraycopy(seen, slide, seen, 0, size - slide);
+			Arrays.fill(seen, size - slide, size, false);
+			// The window should match the model
+			assertEquals(base, window.getBase());
+			List<Long> expected = new ArrayList<>();
+			for (int j = 0; j < size; j++) if (!seen[j]) expected.add(base + j);
+			assertEquals(expected, getUnseen(window));
+			ReorderingWindow copy =
+					new ReorderingWindow(base, window.getBitmap());
+			assertEquals(expected, getUnseen(copy));
+		}
+	}
+
+	private List<Long> getUnseen(ReorderingWindow window) {
+		List<Long> unseen = new ArrayList<>();
+		for (long i = window.getNextUnseen(window.getBase()); i != -1;
+				i = window.getNextUnseen(i + 1)) {
+			unseen.add(i);
+		}
+		return unseen;
+	}
 }
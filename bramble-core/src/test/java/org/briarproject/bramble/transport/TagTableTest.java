@@ -0,0 +1,187 @@
+package org.briarproject.bramble.transport;
+
+import org.briarproject.bramble.api.Bytes;
+import org.briarproject.bramble.test.BrambleTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.briarproject.bramble.api.transport.TransportConstants.TAG_LENGTH;
+import static org.briarproject.bramble.test.TestUtils.getRandomBytes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TagTableTest extends BrambleTestCase {
+
+	private final TagTable<Integer> table = new TagTable<>();
+
+	@Test
+	public void testPutGetAndRemove() {
+		byte[] tag = getRandomBytes(TAG_LENGTH);
+		byte[] tag1 = getRandomBytes(TAG_LENGTH);
+		assertNull(table.get(tag));
+		assertNull(table.put(tag, 1));
+		assertEquals(Integer.valueOf(1), table.get(tag.clone()));
+		assertNull(table.get(tag1));
+		// Replacing the value should return the old value
+		assertEquals(Integer.valueOf(1), table.put(tag, 2));
+		assertEquals(1, table.size());
+		assertEquals(Integer.valueOf(2), table.remove(tag));
+		assertNull(table.remove(tag));
+		assertNull(table.get(tag));
+		assertEquals(0, table.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testShortTagIsRejected() {
+		table.put(new byte[TAG_LENGTH - 1], 1);
+	}
+
+	@Test
+	public void testPutFromBuffer() {
+		byte[] tags = getRandomBytes(TAG_LENGTH * 3);
+		for (int i = 0; i < 3; i++)
+			assertNull(table.put(tags, i * TAG_LENGTH, i));
+		for (int i = 0; i < 3; i++) {
+			byte[] tag = new byte[TAG_LENGTH];
+			System.arraycopy(tags, i * TAG_LENGTH, tag, 0, TAG_LENGTH);
+			assertEquals(Integer.valueOf(i), table.get(tag));
+		}
+		assertEquals(3, table.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTagBeyondEndOfBufferIsRejected() {
+		table.put(new byte[TAG_LENGTH * 2], TAG_LENGTH + 1, 1);
+	}
+
+	@Test
+	public void testTagsWithSameHashCanBeRemovedInAnyOrder() {
+		// All these tags have the same home slot
+		List<byte[]> tags = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			byte[] tag = new byte[TAG_LENGTH];
+			tag[TAG_LENGTH - 1] = (byte) i;
+			tags.add(tag);
+			table.put(tag, i);
+		}
+		// Remove the tags from the middle of the probe sequence outwards
+		Set<Integer> removed = new HashSet<>();
+		for (int i : new int[] {5, 4, 6, 0, 9, 2, 7, 1, 8, 3}) {
+			assertEquals(Integer.valueOf(i), table.remove(tags.get(i)));
+			removed.add(i);
+			// The remaining tags should still be found
+			for (int j = 0; j < 10; j++) {
+				if (removed.contains(j)) assertNull(table.get(tags.get(j)));
+				else assertEquals(Integer.valueOf(j), table.get(tags.get(j)));
+			}
+		}
+		assertEquals(0, table.size());
+	}
+
+	@Test
+	public void testRandomOperationsMatchHashMap() {
+		Random random = new Random();
+		Map<Bytes, Integer> expected = new HashMap<>();
+		List<byte[]> tags = new ArrayList<>();
+		// Use a few hashes at each end of the table to force long probe
+		// sequences, some of which wrap around
+		for (int i = 0; i < 500; i++) {
+			byte[] tag = getRandomBytes(TAG_LENGTH);
+			tag[0] = tag[1] = tag[2] = 0;
+			tag[3] = (byte) (random.nextInt(4) - 2);
+			tags.add(tag);
+		}
+		for (int i = 0; i < 20000; i++) {
+			byte[] tag = tags.get(random.nextInt(tags.size()));
+			Bytes key = new Bytes(tag);
+			if (random.nextBoolean()) {
+				assertEquals(expected.put(key, i), table.put(tag, i));
+			} else {
+				assertEquals(expected.remove(key), table.remove(tag));
+			}
+			assertEquals(expected.size(), table.size());
+		}
+		for (byte[] tag : tags)
+			assertEquals(expected.get(new Bytes(tag)), table.get(tag));
+	}
+
+	@Test
+	public void testRemoveIf() {
+		List<byte[]> tags = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			byte[] tag = getRandomBytes(TAG_LENGTH);
+			tags.add(tag);
+			table.put(tag, i);
+		}
+		// Remove most of the tags so the table shrinks
+		assertEquals(900, table.removeIf(value -> value % 10 != 0));
+		assertEquals(100, table.size());
+		for (int i = 0; i < 1000; i++) {
+			if (i % 10 == 0)
+				assertEquals(Integer.valueOf(i), table.get(tags.get(i)));
+			else assertNull(table.get(tags.get(i)));
+		}
+		// Nothing matches, so nothing should be removed
+		assertEquals(0, table.removeIf(value -> value % 10 != 0));
+		assertEquals(100, table.size());
+	}
+
+	@Test
+	public void testConcurrentLookupsDoNotMissTags() throws Exception {
+		// These tags stay in the table while other tags come and go
+		List<byte[]> stable = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			byte[] tag = getTagWithSmallHash();
+			stable.add(tag);
+			table.put(tag, i);
+		}
+		AtomicBoolean done = new AtomicBoolean(false);
+		AtomicInteger misses = new AtomicInteger(0);
+		List<Thread> readers = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			Thread reader = new Thread(() -> {
+				while (!done.get()) {
+					for (int j = 0; j < stable.size(); j++) {
+						Integer value = table.get(stable.get(j));
+						if (value == null || value != j)
+							misses.incrementAndGet();
+					}
+				}
+			});
+			readers.add(reader);
+			reader.start();
+		}
+		// Add and remove tags in the same probe sequences as the stable
+		// tags, causing the stable tags to move
+		for (int i = 0; i < 200; i++) {
+			List<byte[]> tags = new ArrayList<>();
+			for (int j = 0; j < 200; j++) {
+				byte[] tag = getTagWithSmallHash();
+				tags.add(tag);
+				table.put(tag, -1);
+			}
+			for (int j = 0; j < 100; j++) table.remove(tags.get(j));
+			table.removeIf(value -> value == -1);
+		}
+		done.set(true);
+		for (Thread reader : readers) reader.join();
+		assertEquals(0, misses.get());
+		assertEquals(20, table.size());
+	}
+
+	private byte[] getTagWithSmallHash() {
+		byte[] tag = getRandomBytes(TAG_LENGTH);
+		tag[0] = tag[1] = tag[2] = 0;
+		tag[3] &= 3;
+		return tag;
+	}
+}
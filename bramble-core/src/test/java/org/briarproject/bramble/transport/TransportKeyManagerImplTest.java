@@ -5,6 +5,8 @@ import org.briarproject.bramble.api.contact.PendingContactId;
 import org.briarproject.bramble.api.crypto.SecretKey;
 import org.briarproject.bramble.api.crypto.TransportCrypto;
 import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.TaskAction;
 import org.briarproject.bramble.api.db.Transaction;
 import org.briarproject.bramble.api.plugin.TransportId;
 import org.briarproject.bramble.api.system.Clock;
@@ -16,7 +18,9 @@ import org.briarproject.bramble.api.transport.StreamContext;
 import org.briarproject.bramble.api.transport.TransportKeySet;
 import org.briarproject.bramble.api.transport.TransportKeys;
 import org.briarproject.bramble.test.BrambleMockTestCase;
+import org.briarproject.bramble.test.CaptureArgumentAction;
 import org.briarproject.bramble.test.DbExpectations;
+import org.briarproject.bramble.test.ImmediateExecutor;
 import org.briarproject.bramble.test.RunAction;
 import org.hamcrest.Description;
 import org.jmock.Expectations;
@@ -27,9 +31,11 @@ import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
@@ -55,6 +61,7 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 	private final TransportCrypto transportCrypto =
 			context.mock(TransportCrypto.class);
 	private final Executor dbExecutor = context.mock(Executor.class);
+	private final Executor cryptoExecutor = new ImmediateExecutor();
 	private final TaskScheduler scheduler = context.mock(TaskScheduler.class);
 	private final Clock clock = context.mock(Clock.class);
 
@@ -77,7 +84,8 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 	@Before
 	public void setUp() {
 		transportKeyManager = new TransportKeyManagerImpl(db, transportCrypto,
-				dbExecutor, scheduler, clock, transportId, maxLatency);
+				dbExecutor, cryptoExecutor, scheduler, clock, transportId,
+				maxLatency);
 	}
 
 	@Test
@@ -106,12 +114,11 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 			oneOf(transportCrypto).updateTransportKeys(shouldNotUpdate, 1000);
 			will(returnValue(shouldNotUpdate));
 			// Encode the tags (3 sets per contact)
-			for (long i = 0; i < REORDERING_WINDOW_SIZE; i++) {
-				exactly(6).of(transportCrypto).encodeTag(
-						with(any(byte[].class)), with(tagKey),
-						with(PROTOCOL_VERSION), with(i));
-				will(new EncodeTagAction());
-			}
+			exactly(6).of(transportCrypto).encodeTags(
+					with(any(byte[].class)), with(tagKey),
+					with(PROTOCOL_VERSION), with(0L),
+					with(REORDERING_WINDOW_SIZE));
+			will(new EncodeTagsAction());
 			// Save the keys that were updated
 			oneOf(db).updateTransportKeys(txn, singletonList(
 					new TransportKeySet(keySetId, contactId, null, updated)));
@@ -146,20 +153,19 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 			oneOf(transportCrypto).updateTransportKeys(transportKeys, 1000);
 			will(returnValue(updated));
 			// Encode the tags (3 sets)
-			for (long i = 0; i < REORDERING_WINDOW_SIZE; i++) {
-				exactly(3).of(transportCrypto).encodeTag(
-						with(any(byte[].class)), with(tagKey),
-						with(PROTOCOL_VERSION), with(i));
-				will(new EncodeTagAction());
-			}
+			exactly(3).of(transportCrypto).encodeTags(
+					with(any(byte[].class)), with(tagKey),
+					with(PROTOCOL_VERSION), with(0L),
+					with(REORDERING_WINDOW_SIZE));
+			will(new EncodeTagsAction());
 			// Save the keys
 			oneOf(db).addTransportKeys(txn, contactId, updated);
 			will(returnValue(keySetId));
 		}});
 
 		TransportKeyManager transportKeyManager = new TransportKeyManagerImpl(
-				db, transportCrypto, dbExecutor, scheduler, clock, transportId,
-				maxLatency);
+				db, transportCrypto, dbExecutor, cryptoExecutor, scheduler,
+				clock, transportId, maxLatency);
 		// The timestamp is 1 ms before the start of time period 1000
 		long timestamp = timePeriodLength * 1000 - 1;
 		assertEquals(keySetId, transportKeyManager.addRotationKeys(txn,
@@ -184,12 +190,11 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 					1000, alice);
 			will(returnValue(transportKeys));
 			// Encode the tags (3 sets)
-			for (long i = 0; i < REORDERING_WINDOW_SIZE; i++) {
-				exactly(3).of(transportCrypto).encodeTag(
-						with(any(byte[].class)), with(tagKey),
-						with(PROTOCOL_VERSION), with(i));
-				will(new EncodeTagAction());
-			}
+			exactly(3).of(transportCrypto).encodeTags(
+					with(any(byte[].class)), with(tagKey),
+					with(PROTOCOL_VERSION), with(0L),
+					with(REORDERING_WINDOW_SIZE));
+			will(new EncodeTagsAction());
 			// Save the keys
 			oneOf(db).addTransportKeys(txn, contactId, transportKeys);
 			will(returnValue(keySetId));
@@ -216,12 +221,11 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 					1000, alice);
 			will(returnValue(transportKeys));
 			// Encode the tags (3 sets)
-			for (long i = 0; i < REORDERING_WINDOW_SIZE; i++) {
-				exactly(3).of(transportCrypto).encodeTag(
-						with(any(byte[].class)), with(tagKey),
-						with(PROTOCOL_VERSION), with(i));
-				will(new EncodeTagAction());
-			}
+			exactly(3).of(transportCrypto).encodeTags(
+					with(any(byte[].class)), with(tagKey),
+					with(PROTOCOL_VERSION), with(0L),
+					with(REORDERING_WINDOW_SIZE));
+			will(new EncodeTagsAction());
 			// Save the keys
 			oneOf(db).addTransportKeys(txn, pendingContactId, transportKeys);
 			will(returnValue(keySetId));
@@ -239,8 +243,8 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 		Transaction txn = new Transaction(null, false);
 
 		TransportKeyManager transportKeyManager = new TransportKeyManagerImpl(
-				db, transportCrypto, dbExecutor, scheduler, clock, transportId,
-				maxLatency);
+				db, transportCrypto, dbExecutor, cryptoExecutor, scheduler,
+				clock, transportId, maxLatency);
 		assertNull(transportKeyManager.getStreamContext(txn, contactId));
 		assertFalse(transportKeyManager.canSendOutgoingStreams(contactId));
 	}
@@ -251,8 +255,8 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 		Transaction txn = new Transaction(null, false);
 
 		TransportKeyManager transportKeyManager = new TransportKeyManagerImpl(
-				db, transportCrypto, dbExecutor, scheduler, clock, transportId,
-				maxLatency);
+				db, transportCrypto, dbExecutor, cryptoExecutor, scheduler,
+				clock, transportId, maxLatency);
 		assertNull(transportKeyManager.getStreamContext(txn, pendingContactId));
 		assertFalse(transportKeyManager.canSendOutgoingStreams(
 				pendingContactId));
@@ -328,8 +332,7 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 		assertEquals(active,
 				transportKeyManager.canSendOutgoingStreams(contactId));
 		// The tag should not be recognised
-		assertNull(transportKeyManager.getStreamContext(txn,
-				new byte[TAG_LENGTH]));
+		assertNull(transportKeyManager.getStreamContext(new byte[TAG_LENGTH]));
 	}
 
 	@Test
@@ -349,12 +352,11 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 			oneOf(clock).currentTimeMillis();
 			will(returnValue(timePeriodLength * 1000));
 			// Encode the tags (3 sets)
-			for (long i = 0; i < REORDERING_WINDOW_SIZE; i++) {
-				exactly(3).of(transportCrypto).encodeTag(
-						with(any(byte[].class)), with(tagKey),
-						with(PROTOCOL_VERSION), with(i));
-				will(new EncodeTagAction(tags));
-			}
+			exactly(3).of(transportCrypto).encodeTags(
+					with(any(byte[].class)), with(tagKey),
+					with(PROTOCOL_VERSION), with(0L),
+					with(REORDERING_WINDOW_SIZE));
+			will(new EncodeTagsAction(tags));
 			// Updated the transport keys (the keys are unaffected)
 			oneOf(transportCrypto).updateTransportKeys(transportKeys, 1000);
 			will(returnValue(transportKeys));
@@ -366,6 +368,8 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 					with(tagKey), with(PROTOCOL_VERSION),
 					with((long) REORDERING_WINDOW_SIZE));
 			will(new EncodeTagAction(tags));
+			// Schedule a task to save the reordering window
+			oneOf(dbExecutor).execute(with(any(Runnable.class)));
 			// Save the reordering window (previous time period, base 1)
 			oneOf(db).setReorderingWindow(txn, keySetId, transportId, 999,
 					1, new byte[REORDERING_WINDOW_SIZE / 8]);
@@ -380,7 +384,7 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 		assertEquals(REORDERING_WINDOW_SIZE * 3, tags.size());
 		byte[] tag = tags.get(0);
 		// The first request should return a stream context
-		StreamContext ctx = transportKeyManager.getStreamContext(txn, tag);
+		StreamContext ctx = transportKeyManager.getStreamContext(tag);
 		assertNotNull(ctx);
 		assertEquals(contactId, ctx.getContactId());
 		assertEquals(transportId, ctx.getTransportId());
@@ -390,7 +394,71 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 		// Another tag should have been encoded
 		assertEquals(REORDERING_WINDOW_SIZE * 3 + 1, tags.size());
 		// The second request should return null, the tag has already been used
-		assertNull(transportKeyManager.getStreamContext(txn, tag));
+		assertNull(transportKeyManager.getStreamContext(tag));
+		// Save the reordering window
+		transportKeyManager.saveChanges(txn);
+	}
+
+	@Test
+	public void testChangesAreKeptUntilTheyAreCommitted() throws Exception {
+		boolean alice = random.nextBoolean();
+		TransportKeys transportKeys = createTransportKeys(1000, 0, true);
+		Transaction txn = new Transaction(null, false);
+		Transaction txn1 = new Transaction(null, false);
+		Transaction txn2 = new Transaction(null, false);
+		Transaction txn3 = new Transaction(null, false);
+
+		// Keep a copy of the tags
+		List<byte[]> tags = new ArrayList<>();
+
+		context.checking(new Expectations() {{
+			oneOf(transportCrypto).deriveRotationKeys(transportId, rootKey,
+					1000, alice, true);
+			will(returnValue(transportKeys));
+			// Get the current time (the start of time period 1000)
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(timePeriodLength * 1000));
+			// Encode the tags (3 sets)
+			exactly(3).of(transportCrypto).encodeTags(
+					with(any(byte[].class)), with(tagKey),
+					with(PROTOCOL_VERSION), with(0L),
+					with(REORDERING_WINDOW_SIZE));
+			will(new EncodeTagsAction(tags));
+			// Updated the transport keys (the keys are unaffected)
+			oneOf(transportCrypto).updateTransportKeys(transportKeys, 1000);
+			will(returnValue(transportKeys));
+			// Save the keys
+			oneOf(db).addTransportKeys(txn, contactId, transportKeys);
+			will(returnValue(keySetId));
+			// Encode a new tag after sliding the window
+			oneOf(transportCrypto).encodeTag(with(any(byte[].class)),
+					with(tagKey), with(PROTOCOL_VERSION),
+					with((long) REORDERING_WINDOW_SIZE));
+			will(new EncodeTagAction(tags));
+			// Schedule a task to save the reordering window
+			oneOf(dbExecutor).execute(with(any(Runnable.class)));
+			// Save the reordering window twice, the first transaction
+			// isn't committed
+			oneOf(db).setReorderingWindow(txn1, keySetId, transportId, 999,
+					1, new byte[REORDERING_WINDOW_SIZE / 8]);
+			oneOf(db).setReorderingWindow(txn2, keySetId, transportId, 999,
+					1, new byte[REORDERING_WINDOW_SIZE / 8]);
+		}});
+
+		// The timestamp is at the start of time period 1000
+		long timestamp = timePeriodLength * 1000;
+		assertEquals(keySetId, transportKeyManager.addRotationKeys(
+				txn, contactId, rootKey, timestamp, alice, true));
+		// Use the first tag (previous time period, stream number 0)
+		assertNotNull(transportKeyManager.getStreamContext(tags.get(0)));
+		// Save the reordering window without committing the transaction
+		transportKeyManager.saveChanges(txn1);
+		// Save the reordering window again and commit the transaction
+		transportKeyManager.saveChanges(txn2);
+		assertEquals(1, txn2.getActions().size());
+		((TaskAction) txn2.getActions().get(0)).getTask().run();
+		// There should be nothing left to save
+		transportKeyManager.saveChanges(txn3);
 	}
 
 	@Test
@@ -413,17 +481,19 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 			oneOf(transportCrypto).updateTransportKeys(transportKeys, 1000);
 			will(returnValue(transportKeys));
 			// Encode the tags (3 sets)
-			for (long i = 0; i < REORDERING_WINDOW_SIZE; i++) {
-				exactly(3).of(transportCrypto).encodeTag(
-						with(any(byte[].class)), with(tagKey),
-						with(PROTOCOL_VERSION), with(i));
-				will(new EncodeTagAction());
-			}
+			exactly(3).of(transportCrypto).encodeTags(
+					with(any(byte[].class)), with(tagKey),
+					with(PROTOCOL_VERSION), with(0L),
+					with(REORDERING_WINDOW_SIZE));
+			will(new EncodeTagsAction());
 			// Schedule a key update at the start of the next time period
 			oneOf(scheduler).schedule(with(any(Runnable.class)),
 					with(dbExecutor), with(timePeriodLength),
 					with(MILLISECONDS));
 			will(new RunAction());
+			// Save the updated keys on the DB executor
+			oneOf(dbExecutor).execute(with(any(Runnable.class)));
+			will(new RunAction());
 			// Start a transaction for updating keys
 			oneOf(db).transaction(with(false), withDbRunnable(txn1));
 			// Get the current time (the start of time period 1001)
@@ -433,16 +503,18 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 			oneOf(transportCrypto).updateTransportKeys(
 					with(any(TransportKeys.class)), with(1001L));
 			will(returnValue(updated));
-			// Encode the tags (3 sets)
-			for (long i = 0; i < REORDERING_WINDOW_SIZE; i++) {
-				exactly(3).of(transportCrypto).encodeTag(
-						with(any(byte[].class)), with(tagKey),
-						with(PROTOCOL_VERSION), with(i));
-				will(new EncodeTagAction());
-			}
+			// Encode the tags (1 set, the other windows are carried over)
+			oneOf(transportCrypto).encodeTags(
+					with(any(byte[].class)), with(tagKey),
+					with(PROTOCOL_VERSION), with(0L),
+					with(REORDERING_WINDOW_SIZE));
+			will(new EncodeTagsAction());
 			// Save the keys that were updated
 			oneOf(db).updateTransportKeys(txn1, singletonList(
 					new TransportKeySet(keySetId, contactId, null, updated)));
+			// Get the current time (still the start of time period 1001)
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(timePeriodLength * 1001));
 			// Schedule a key update at the start of the next time period
 			oneOf(scheduler).schedule(with(any(Runnable.class)),
 					with(dbExecutor), with(timePeriodLength),
@@ -453,6 +525,305 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 		assertTrue(transportKeyManager.canSendOutgoingStreams(contactId));
 	}
 
+	@Test
+	public void testKeysForAllContactsAreSavedInOneBatch() throws Exception {
+		TransportKeys transportKeys = createTransportKeys(1000, 0, true);
+		TransportKeys transportKeys1 = createTransportKeys(1000, 0, true);
+		Collection<TransportKeySet> loaded = asList(
+				new TransportKeySet(keySetId, contactId, null, transportKeys),
+				new TransportKeySet(keySetId1, contactId1, null,
+						transportKeys1));
+		TransportKeys updated = createTransportKeys(1001, 0, true);
+		Transaction txn = new Transaction(null, false);
+		Transaction txn1 = new Transaction(null, false);
+		AtomicReference<Runnable> keyUpdate = new AtomicReference<>();
+		AtomicReference<Collection> saved = new AtomicReference<>();
+
+		context.checking(new Expectations() {{
+			// Get the current time (the start of time period 1000)
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(timePeriodLength * 1000));
+			// Load the transport keys
+			oneOf(db).getTransportKeys(txn, transportId);
+			will(returnValue(loaded));
+			// Update the transport keys (the keys are unaffected)
+			oneOf(transportCrypto).updateTransportKeys(transportKeys, 1000);
+			will(returnValue(transportKeys));
+			oneOf(transportCrypto).updateTransportKeys(transportKeys1, 1000);
+			will(returnValue(transportKeys1));
+			// Encode the tags (3 sets per contact)
+			exactly(6).of(transportCrypto).encodeTags(
+					with(any(byte[].class)), with(tagKey),
+					with(PROTOCOL_VERSION), with(0L),
+					with(REORDERING_WINDOW_SIZE));
+			will(new EncodeTagsAction());
+			// Schedule a key update at the start of the next time period
+			oneOf(scheduler).schedule(with(any(Runnable.class)),
+					with(dbExecutor), with(timePeriodLength),
+					with(MILLISECONDS));
+			will(new CaptureArgumentAction<>(keyUpdate, Runnable.class, 0));
+		}});
+
+		transportKeyManager.start(txn);
+
+		context.checking(new DbExpectations() {{
+			// Get the current time (the start of time period 1001)
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(timePeriodLength * 1001));
+			// Update the transport keys
+			exactly(2).of(transportCrypto).updateTransportKeys(
+					with(any(TransportKeys.class)), with(1001L));
+			will(returnValue(updated));
+			// Encode the tags for the new windows (1 set per contact)
+			exactly(2).of(transportCrypto).encodeTags(
+					with(any(byte[].class)), with(tagKey),
+					with(PROTOCOL_VERSION), with(0L),
+					with(REORDERING_WINDOW_SIZE));
+			will(new EncodeTagsAction());
+			// Save the updated keys on the DB executor
+			oneOf(dbExecutor).execute(with(any(Runnable.class)));
+			will(new RunAction());
+			// Start a transaction for updating keys
+			oneOf(db).transaction(with(false), withDbRunnable(txn1));
+			// Save the keys that were updated in a single call
+			oneOf(db).updateTransportKeys(with(txn1),
+					with(any(Collection.class)));
+			will(new CaptureArgumentAction<>(saved, Collection.class, 1));
+			// Get the current time (still the start of time period 1001)
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(timePeriodLength * 1001));
+			// Schedule a key update at the start of the next time period
+			oneOf(scheduler).schedule(with(any(Runnable.class)),
+					with(dbExecutor), with(timePeriodLength),
+					with(MILLISECONDS));
+		}});
+
+		keyUpdate.get().run();
+		assertEquals(new HashSet<>(asList(
+				new TransportKeySet(keySetId, contactId, null, updated),
+				new TransportKeySet(keySetId1, contactId1, null, updated))),
+				new HashSet<Object>(saved.get()));
+	}
+
+	@Test
+	public void testKeyUpdateIsRescheduledIfSavingFails() throws Exception {
+		TransportKeys transportKeys = createTransportKeys(1000, 0, true);
+		Collection<TransportKeySet> loaded = singletonList(
+				new TransportKeySet(keySetId, contactId, null, transportKeys));
+		TransportKeys updated = createTransportKeys(1001, 0, true);
+		Transaction txn = new Transaction(null, false);
+		Transaction txn1 = new Transaction(null, false);
+		Transaction txn2 = new Transaction(null, false);
+		AtomicReference<Runnable> keyUpdate = new AtomicReference<>();
+
+		context.checking(new Expectations() {{
+			// Get the current time (the start of time period 1000)
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(timePeriodLength * 1000));
+			// Load the transport keys
+			oneOf(db).getTransportKeys(txn, transportId);
+			will(returnValue(loaded));
+			// Update the transport keys (the keys are unaffected)
+			oneOf(transportCrypto).updateTransportKeys(transportKeys, 1000);
+			will(returnValue(transportKeys));
+			// Encode the tags (3 sets)
+			exactly(3).of(transportCrypto).encodeTags(
+					with(any(byte[].class)), with(tagKey),
+					with(PROTOCOL_VERSION), with(0L),
+					with(REORDERING_WINDOW_SIZE));
+			will(new EncodeTagsAction());
+			// Schedule a key update at the start of the next time period
+			oneOf(scheduler).schedule(with(any(Runnable.class)),
+					with(dbExecutor), with(timePeriodLength),
+					with(MILLISECONDS));
+			will(new CaptureArgumentAction<>(keyUpdate, Runnable.class, 0));
+		}});
+
+		transportKeyManager.start(txn);
+
+		context.checking(new DbExpectations() {{
+			// Get the current time (the start of time period 1001)
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(timePeriodLength * 1001));
+			// Update the transport keys
+			oneOf(transportCrypto).updateTransportKeys(
+					with(any(TransportKeys.class)), with(1001L));
+			will(returnValue(updated));
+			// Encode the tags for the new window (1 set)
+			oneOf(transportCrypto).encodeTags(
+					with(any(byte[].class)), with(tagKey),
+					with(PROTOCOL_VERSION), with(0L),
+					with(REORDERING_WINDOW_SIZE));
+			will(new EncodeTagsAction());
+			// Save the updated keys on the DB executor
+			oneOf(dbExecutor).execute(with(any(Runnable.class)));
+			will(new RunAction());
+			// Start a transaction for updating keys
+			oneOf(db).transaction(with(false), withDbRunnable(txn1));
+			// Saving the keys fails
+			oneOf(db).updateTransportKeys(txn1, singletonList(
+					new TransportKeySet(keySetId, contactId, null, updated)));
+			will(throwException(new DbException()));
+			// Get the current time (still the start of time period 1001)
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(timePeriodLength * 1001));
+			// Schedule a key update at the start of the next time period
+			oneOf(scheduler).schedule(with(any(Runnable.class)),
+					with(dbExecutor), with(timePeriodLength),
+					with(MILLISECONDS));
+			will(new CaptureArgumentAction<>(keyUpdate, Runnable.class, 0));
+		}});
+
+		keyUpdate.get().run();
+		// The old keys should still be in use
+		assertTrue(transportKeyManager.canSendOutgoingStreams(contactId));
+		assertTrue(txn1.getActions().isEmpty());
+
+		context.checking(new DbExpectations() {{
+			// Get the current time (still the start of time period 1001)
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(timePeriodLength * 1001));
+			// Update the old transport keys again
+			oneOf(transportCrypto).updateTransportKeys(
+					with(any(TransportKeys.class)), with(1001L));
+			will(returnValue(updated));
+			// Encode the tags for the new window (1 set)
+			oneOf(transportCrypto).encodeTags(
+					with(any(byte[].class)), with(tagKey),
+					with(PROTOCOL_VERSION), with(0L),
+					with(REORDERING_WINDOW_SIZE));
+			will(new EncodeTagsAction());
+			// Save the updated keys on the DB executor
+			oneOf(dbExecutor).execute(with(any(Runnable.class)));
+			will(new RunAction());
+			// Start a transaction for updating keys
+			oneOf(db).transaction(with(false), withDbRunnable(txn2));
+			// The keys that weren't saved should be saved this time
+			oneOf(db).updateTransportKeys(txn2, singletonList(
+					new TransportKeySet(keySetId, contactId, null, updated)));
+			// Get the current time (still the start of time period 1001)
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(timePeriodLength * 1001));
+			// Schedule a key update at the start of the next time period
+			oneOf(scheduler).schedule(with(any(Runnable.class)),
+					with(dbExecutor), with(timePeriodLength),
+					with(MILLISECONDS));
+		}});
+
+		keyUpdate.get().run();
+		assertEquals(1, txn2.getActions().size());
+	}
+
+	@Test
+	public void testTagsAreCarriedOverWhenKeysAreUpdated() throws Exception {
+		TransportKeys transportKeys = createTransportKeys(1000, 0, true);
+		Collection<TransportKeySet> loaded = singletonList(
+				new TransportKeySet(keySetId, contactId, null, transportKeys));
+		TransportKeys updated = createTransportKeys(1001, 0, true);
+		Transaction txn = new Transaction(null, false);
+		Transaction txn1 = new Transaction(null, false);
+		AtomicReference<Runnable> keyUpdate = new AtomicReference<>();
+
+		// Keep a copy of the tags
+		List<byte[]> tags = new ArrayList<>();
+
+		context.checking(new Expectations() {{
+			// Get the current time (the start of time period 1000)
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(timePeriodLength * 1000));
+			// Load the transport keys
+			oneOf(db).getTransportKeys(txn, transportId);
+			will(returnValue(loaded));
+			// Update the transport keys (the keys are unaffected)
+			oneOf(transportCrypto).updateTransportKeys(transportKeys, 1000);
+			will(returnValue(transportKeys));
+			// Encode the tags (3 sets)
+			exactly(3).of(transportCrypto).encodeTags(
+					with(any(byte[].class)), with(tagKey),
+					with(PROTOCOL_VERSION), with(0L),
+					with(REORDERING_WINDOW_SIZE));
+			will(new EncodeTagsAction(tags));
+			// Schedule a key update at the start of the next time period
+			oneOf(scheduler).schedule(with(any(Runnable.class)),
+					with(dbExecutor), with(timePeriodLength),
+					with(MILLISECONDS));
+			will(new CaptureArgumentAction<>(keyUpdate, Runnable.class, 0));
+		}});
+
+		transportKeyManager.start(txn);
+		assertEquals(REORDERING_WINDOW_SIZE * 3, tags.size());
+
+		context.checking(new DbExpectations() {{
+			// Get the current time (the start of time period 1001)
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(timePeriodLength * 1001));
+			// Update the transport keys
+			oneOf(transportCrypto).updateTransportKeys(
+					with(any(TransportKeys.class)), with(1001L));
+			will(returnValue(updated));
+			// Encode the tags for the new window (1 set)
+			oneOf(transportCrypto).encodeTags(
+					with(any(byte[].class)), with(tagKey),
+					with(PROTOCOL_VERSION), with(0L),
+					with(REORDERING_WINDOW_SIZE));
+			will(new EncodeTagsAction(tags));
+			// Save the updated keys on the DB executor
+			oneOf(dbExecutor).execute(with(any(Runnable.class)));
+			will(new RunAction());
+			// Start a transaction for updating keys
+			oneOf(db).transaction(with(false), withDbRunnable(txn1));
+			// Save the keys that were updated
+			oneOf(db).updateTransportKeys(txn1, singletonList(
+					new TransportKeySet(keySetId, contactId, null, updated)));
+			// Get the current time (still the start of time period 1001)
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(timePeriodLength * 1001));
+			// Schedule a key update at the start of the next time period
+			oneOf(scheduler).schedule(with(any(Runnable.class)),
+					with(dbExecutor), with(timePeriodLength),
+					with(MILLISECONDS));
+		}});
+
+		keyUpdate.get().run();
+		assertEquals(REORDERING_WINDOW_SIZE * 4, tags.size());
+		// The new tags shouldn't be recognised until the keys are committed
+		assertNull(transportKeyManager.getStreamContext(
+				tags.get(REORDERING_WINDOW_SIZE * 3)));
+		// Replace the keys in memory
+		assertEquals(1, txn1.getActions().size());
+		((TaskAction) txn1.getActions().get(0)).getTask().run();
+
+		context.checking(new Expectations() {{
+			// Encode a new tag after sliding each window
+			exactly(2).of(transportCrypto).encodeTag(with(any(byte[].class)),
+					with(tagKey), with(PROTOCOL_VERSION),
+					with((long) REORDERING_WINDOW_SIZE));
+			will(new EncodeTagAction());
+			// Schedule a task to save both reordering windows
+			oneOf(dbExecutor).execute(with(any(Runnable.class)));
+			// Save the reordering windows (time periods 1000 and 1002)
+			oneOf(db).setReorderingWindow(txn, keySetId, transportId, 1000,
+					1, new byte[REORDERING_WINDOW_SIZE / 8]);
+			oneOf(db).setReorderingWindow(txn, keySetId, transportId, 1002,
+					1, new byte[REORDERING_WINDOW_SIZE / 8]);
+		}});
+
+		// The tags for time period 999 should have been removed
+		assertNull(transportKeyManager.getStreamContext(tags.get(0)));
+		// The tags for time period 1000 should have been carried over
+		StreamContext ctx = transportKeyManager.getStreamContext(
+				tags.get(REORDERING_WINDOW_SIZE));
+		assertNotNull(ctx);
+		assertEquals(0L, ctx.getStreamNumber());
+		// The tags for time period 1002 should have been added
+		ctx = transportKeyManager.getStreamContext(
+				tags.get(REORDERING_WINDOW_SIZE * 3));
+		assertNotNull(ctx);
+		assertEquals(0L, ctx.getStreamNumber());
+		// Save the reordering windows
+		transportKeyManager.saveChanges(txn);
+	}
+
 	@Test
 	public void testActivatingKeys() throws Exception {
 		boolean alice = random.nextBoolean();
@@ -505,12 +876,11 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 			oneOf(clock).currentTimeMillis();
 			will(returnValue(timePeriodLength * 1000));
 			// Encode the tags (3 sets)
-			for (long i = 0; i < REORDERING_WINDOW_SIZE; i++) {
-				exactly(3).of(transportCrypto).encodeTag(
-						with(any(byte[].class)), with(tagKey),
-						with(PROTOCOL_VERSION), with(i));
-				will(new EncodeTagAction(tags));
-			}
+			exactly(3).of(transportCrypto).encodeTags(
+					with(any(byte[].class)), with(tagKey),
+					with(PROTOCOL_VERSION), with(0L),
+					with(REORDERING_WINDOW_SIZE));
+			will(new EncodeTagsAction(tags));
 			// Update the transport keys (the keys are unaffected)
 			oneOf(transportCrypto).updateTransportKeys(transportKeys, 1000);
 			will(returnValue(transportKeys));
@@ -522,6 +892,8 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 					with(tagKey), with(PROTOCOL_VERSION),
 					with((long) REORDERING_WINDOW_SIZE));
 			will(new EncodeTagAction(tags));
+			// Schedule a task to save the changes
+			oneOf(dbExecutor).execute(with(any(Runnable.class)));
 			// Save the reordering window (previous time period, base 1)
 			oneOf(db).setReorderingWindow(txn, keySetId, transportId, 999,
 					1, new byte[REORDERING_WINDOW_SIZE / 8]);
@@ -541,7 +913,7 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 		// Recognising an incoming tag should activate the outgoing keys
 		assertEquals(REORDERING_WINDOW_SIZE * 3, tags.size());
 		byte[] tag = tags.get(0);
-		StreamContext ctx = transportKeyManager.getStreamContext(txn, tag);
+		StreamContext ctx = transportKeyManager.getStreamContext(tag);
 		assertNotNull(ctx);
 		assertEquals(contactId, ctx.getContactId());
 		assertEquals(transportId, ctx.getTransportId());
@@ -557,6 +929,8 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 		assertEquals(tagKey, ctx.getTagKey());
 		assertEquals(headerKey, ctx.getHeaderKey());
 		assertEquals(0L, ctx.getStreamNumber());
+		// Save the reordering window and the activation
+		transportKeyManager.saveChanges(txn);
 	}
 
 	private void expectAddContactKeysNotUpdated(boolean alice, boolean active,
@@ -569,12 +943,11 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 			oneOf(clock).currentTimeMillis();
 			will(returnValue(timePeriodLength * 1000));
 			// Encode the tags (3 sets)
-			for (long i = 0; i < REORDERING_WINDOW_SIZE; i++) {
-				exactly(3).of(transportCrypto).encodeTag(
-						with(any(byte[].class)), with(tagKey),
-						with(PROTOCOL_VERSION), with(i));
-				will(new EncodeTagAction());
-			}
+			exactly(3).of(transportCrypto).encodeTags(
+					with(any(byte[].class)), with(tagKey),
+					with(PROTOCOL_VERSION), with(0L),
+					with(REORDERING_WINDOW_SIZE));
+			will(new EncodeTagsAction());
 			// Upate the transport keys (the keys are unaffected)
 			oneOf(transportCrypto).updateTransportKeys(transportKeys, 1000);
 			will(returnValue(transportKeys));
@@ -637,4 +1010,38 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 			description.appendText("encodes a tag");
 		}
 	}
+
+	private class EncodeTagsAction implements Action {
+
+		private final Collection<byte[]> tags;
+
+		private EncodeTagsAction() {
+			tags = null;
+		}
+
+		private EncodeTagsAction(Collection<byte[]> tags) {
+			this.tags = tags;
+		}
+
+		@Override
+		public Object invoke(Invocation invocation) {
+			byte[] buffer = (byte[]) invocation.getParameter(0);
+			int count = (Integer) invocation.getParameter(4);
+			random.nextBytes(buffer);
+			if (tags != null) {
+				for (int i = 0; i < count; i++) {
+					byte[] tag = new byte[TAG_LENGTH];
+					System.arraycopy(buffer, i * TAG_LENGTH, tag, 0,
+							TAG_LENGTH);
+					tags.add(tag);
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public void describeTo(Description description) {
+			description.appendText("encodes tags");
+		}
+	}
 }
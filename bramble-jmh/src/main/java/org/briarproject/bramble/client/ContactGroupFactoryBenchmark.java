@@ -0,0 +1,90 @@
+package org.briarproject.bramble.client;
+
+import org.briarproject.bramble.api.client.ClientHelper;
+import org.briarproject.bramble.api.contact.Contact;
+import org.briarproject.bramble.api.sync.ClientId;
+import org.briarproject.bramble.api.sync.Group;
+import org.briarproject.bramble.api.sync.GroupFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.briarproject.bramble.test.TestUtils.getClientId;
+import static org.briarproject.bramble.test.TestUtils.getContact;
+
+/**
+ * Measures the contact group lookups made by calls that visit every
+ * contact, such as TransportPropertyManager#getRemoteProperties(TransportId)
+ * or listing private message headers, with and without the cache. Each
+ * such call looks up one client's group for every contact, so each
+ * iteration makes one call per client and cycles through every contact for
+ * every client.
+ * <p/>
+ * The factories use the real BDF encoder and group factory. Lookups by
+ * author pair aren't cached, so they're used as the uncached baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContactGroupFactoryBenchmark {
+
+	private static final int CLIENTS = 8;
+	private static final int MAJOR_VERSION = 0;
+
+	@Param({"10", "100", "1000"})
+	private int contacts;
+
+	private final List<Contact> contactList = new ArrayList<>();
+	private final List<ClientId> clientIds = new ArrayList<>();
+
+	private ContactGroupFactoryImpl uncached, cached;
+
+	@Setup
+	public void setUp() {
+		for (int i = 0; i < contacts; i++) contactList.add(getContact());
+		for (int i = 0; i < CLIENTS; i++) clientIds.add(getClientId());
+		ContactGroupFactoryBenchmarkComponent component =
+				DaggerContactGroupFactoryBenchmarkComponent.builder().build();
+		GroupFactory groupFactory = component.getGroupFactory();
+		ClientHelper clientHelper = component.getClientHelper();
+		uncached = new ContactGroupFactoryImpl(groupFactory, clientHelper);
+		cached = new ContactGroupFactoryImpl(groupFactory, clientHelper);
+	}
+
+	@Benchmark
+	public Group lookUpContactGroupsWithoutCache() {
+		Group last = null;
+		for (ClientId clientId : clientIds) {
+			for (Contact c : contactList) {
+				last = uncached.createContactGroup(clientId, MAJOR_VERSION,
+						c.getLocalAuthorId(), c.getAuthor().getId());
+			}
+		}
+		return last;
+	}
+
+	@Benchmark
+	public Group lookUpContactGroupsWithCache() {
+		Group last = null;
+		for (ClientId clientId : clientIds) {
+			for (Contact c : contactList)
+				last = cached.createContactGroup(clientId, MAJOR_VERSION, c);
+		}
+		return last;
+	}
+}
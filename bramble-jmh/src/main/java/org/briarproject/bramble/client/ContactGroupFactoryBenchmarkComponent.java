@@ -0,0 +1,22 @@
+package org.briarproject.bramble.client;
+
+import org.briarproject.bramble.BrambleCoreModule;
+import org.briarproject.bramble.api.client.ClientHelper;
+import org.briarproject.bramble.api.sync.GroupFactory;
+import org.briarproject.bramble.test.BrambleCoreIntegrationTestModule;
+
+import javax.inject.Singleton;
+
+import dagger.Component;
+
+@Singleton
+@Component(modules = {
+		BrambleCoreIntegrationTestModule.class,
+		BrambleCoreModule.class
+})
+interface ContactGroupFactoryBenchmarkComponent {
+
+	GroupFactory getGroupFactory();
+
+	ClientHelper getClientHelper();
+}
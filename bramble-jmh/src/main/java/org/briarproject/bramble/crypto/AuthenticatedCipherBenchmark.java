@@ -0,0 +1,70 @@
+package org.briarproject.bramble.crypto;
+
+import org.briarproject.bramble.api.crypto.SecretKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.GeneralSecurityException;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.briarproject.bramble.api.transport.TransportConstants.FRAME_NONCE_LENGTH;
+import static org.briarproject.bramble.api.transport.TransportConstants.MAC_LENGTH;
+import static org.briarproject.bramble.test.TestUtils.getRandomBytes;
+import static org.briarproject.bramble.test.TestUtils.getSecretKey;
+
+/**
+ * Measures the cost of encrypting and decrypting a frame header or a
+ * full-size frame body with the same key, as a stream encrypter or
+ * decrypter does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthenticatedCipherBenchmark {
+
+	/**
+	 * The length of the plaintext: a frame header or a full-size payload.
+	 */
+	@Param({"4", "972"})
+	public int length;
+
+	private final AuthenticatedCipher cipher =
+			new XSalsa20Poly1305AuthenticatedCipher();
+	private final SecretKey key = getSecretKey();
+	private final byte[] nonce = getRandomBytes(FRAME_NONCE_LENGTH);
+
+	private byte[] plaintext, ciphertext;
+
+	@Setup
+	public void setUp() throws GeneralSecurityException {
+		plaintext = getRandomBytes(length);
+		ciphertext = new byte[length + MAC_LENGTH];
+		encrypt();
+	}
+
+	@Benchmark
+	public byte[] encrypt() throws GeneralSecurityException {
+		cipher.init(true, key, nonce);
+		cipher.process(plaintext, 0, length, ciphertext, 0);
+		return ciphertext;
+	}
+
+	@Benchmark
+	public byte[] decrypt() throws GeneralSecurityException {
+		cipher.init(false, key, nonce);
+		cipher.process(ciphertext, 0, ciphertext.length, plaintext, 0);
+		return plaintext;
+	}
+}
@@ -0,0 +1,89 @@
+package org.briarproject.bramble.crypto;
+
+import org.briarproject.bramble.api.crypto.SecretKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.briarproject.bramble.api.transport.TransportConstants.MAX_PAYLOAD_LENGTH;
+import static org.briarproject.bramble.api.transport.TransportConstants.STREAM_HEADER_NONCE_LENGTH;
+import static org.briarproject.bramble.test.TestUtils.getRandomBytes;
+import static org.briarproject.bramble.test.TestUtils.getSecretKey;
+
+/**
+ * Measures the cost of encrypting and decrypting a stream of full-size
+ * frames, reported per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamBenchmark {
+
+	/**
+	 * How many frames to write or read per invocation.
+	 */
+	private static final int FRAMES = 16;
+
+	private final AuthenticatedCipher cipher =
+			new XSalsa20Poly1305AuthenticatedCipher();
+	private final FrameBufferPool bufferPool = new FrameBufferPool();
+	private final long streamNumber = 1234;
+	private final byte[] streamHeaderNonce =
+			getRandomBytes(STREAM_HEADER_NONCE_LENGTH);
+	private final SecretKey streamHeaderKey = getSecretKey();
+	private final SecretKey frameKey = getSecretKey();
+	private final byte[] payload = getRandomBytes(MAX_PAYLOAD_LENGTH);
+	private final byte[] readBuffer = new byte[MAX_PAYLOAD_LENGTH];
+
+	private byte[] ciphertext;
+
+	@Setup
+	public void setUp() throws IOException {
+		ciphertext = encrypt();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public byte[] encrypt() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		// The tag is written by the caller, so don't include it here
+		StreamEncrypterImpl e = new StreamEncrypterImpl(out, cipher,
+				bufferPool, streamNumber, null, streamHeaderNonce,
+				streamHeaderKey, frameKey);
+		for (int i = 0; i < FRAMES; i++) {
+			e.writeFrame(payload, MAX_PAYLOAD_LENGTH, 0, i == FRAMES - 1);
+		}
+		e.flush();
+		return out.toByteArray();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public int decrypt() throws IOException {
+		ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+		StreamDecrypterImpl d = new StreamDecrypterImpl(in, cipher,
+				bufferPool, streamNumber, streamHeaderKey);
+		int total = 0;
+		for (int read = d.readFrame(readBuffer); read != -1;
+				read = d.readFrame(readBuffer)) {
+			total += read;
+		}
+		return total;
+	}
+}
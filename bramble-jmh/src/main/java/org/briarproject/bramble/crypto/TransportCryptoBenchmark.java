@@ -0,0 +1,73 @@
+package org.briarproject.bramble.crypto;
+
+import org.briarproject.bramble.api.crypto.SecretKey;
+import org.briarproject.bramble.test.TestSecureRandomProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.briarproject.bramble.api.transport.TransportConstants.PROTOCOL_VERSION;
+import static org.briarproject.bramble.api.transport.TransportConstants.REORDERING_WINDOW_SIZE;
+import static org.briarproject.bramble.api.transport.TransportConstants.TAG_LENGTH;
+import static org.briarproject.bramble.test.TestUtils.getSecretKey;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportCryptoBenchmark {
+
+	private final TransportCryptoImpl transportCrypto =
+			new TransportCryptoImpl(new CryptoComponentImpl(
+					new TestSecureRandomProvider(), null));
+	private final SecretKey tagKey = getSecretKey();
+	private final byte[] tag = new byte[TAG_LENGTH];
+	private final byte[] tags = new byte[REORDERING_WINDOW_SIZE * TAG_LENGTH];
+
+	private long streamNumber = 0;
+
+	@Benchmark
+	public byte[] encodeTag() {
+		transportCrypto.encodeTag(tag, tagKey, PROTOCOL_VERSION,
+				streamNumber++);
+		return tag;
+	}
+
+	/**
+	 * Encodes the tags for a whole reordering window one at a time, as the
+	 * transport key manager did before tags could be encoded in batches.
+	 * Reported per tag.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(REORDERING_WINDOW_SIZE)
+	public byte[] encodeWindowOneAtATime() {
+		for (int i = 0; i < REORDERING_WINDOW_SIZE; i++) {
+			transportCrypto.encodeTag(tag, tagKey, PROTOCOL_VERSION, i);
+			System.arraycopy(tag, 0, tags, i * TAG_LENGTH, TAG_LENGTH);
+		}
+		return tags;
+	}
+
+	/**
+	 * Encodes the tags for a whole reordering window in a single batch, as
+	 * the transport key manager does when adding or rotating keys. Reported
+	 * per tag.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(REORDERING_WINDOW_SIZE)
+	public byte[] encodeWindowInBatch() {
+		transportCrypto.encodeTags(tags, tagKey, PROTOCOL_VERSION, 0,
+				REORDERING_WINDOW_SIZE);
+		return tags;
+	}
+}
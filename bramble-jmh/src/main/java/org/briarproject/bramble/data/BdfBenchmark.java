@@ -0,0 +1,75 @@
+package org.briarproject.bramble.data;
+
+import org.briarproject.bramble.api.data.BdfDictionary;
+import org.briarproject.bramble.api.data.BdfEntry;
+import org.briarproject.bramble.api.data.BdfList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.briarproject.bramble.api.data.BdfReader.DEFAULT_MAX_BUFFER_SIZE;
+import static org.briarproject.bramble.api.data.BdfReader.DEFAULT_NESTED_LIMIT;
+import static org.briarproject.bramble.test.TestUtils.getRandomBytes;
+import static org.briarproject.bramble.test.TestUtils.getRandomId;
+import static org.briarproject.bramble.util.StringUtils.getRandomString;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BdfBenchmark {
+
+	private BdfList list;
+	private byte[] encoded;
+
+	@Setup
+	public void setUp() throws IOException {
+		// Something like a private message: a message type, a dictionary
+		// of attachment headers and the message text
+		BdfDictionary attachment = BdfDictionary.of(
+				new BdfEntry("id", getRandomId()),
+				new BdfEntry("contentType", "image/jpeg"),
+				new BdfEntry("length", 123456L));
+		list = BdfList.of(1, getRandomString(1000),
+				BdfList.of(attachment, attachment, attachment),
+				getRandomBytes(100), 1234567890123L, true);
+		encoded = write();
+	}
+
+	@Benchmark
+	public byte[] write() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BdfWriterImpl w = new BdfWriterImpl(out);
+		w.writeList(list);
+		return out.toByteArray();
+	}
+
+	@Benchmark
+	public BdfList read() throws IOException {
+		ByteArrayInputStream in = new ByteArrayInputStream(encoded);
+		BdfReaderImpl r = new BdfReaderImpl(in, DEFAULT_NESTED_LIMIT,
+				DEFAULT_MAX_BUFFER_SIZE);
+		return r.readList();
+	}
+
+	@Benchmark
+	public BdfList readFromArray() throws IOException {
+		BdfBufferReader r = new BdfBufferReader(encoded, 0, encoded.length,
+				DEFAULT_NESTED_LIMIT, DEFAULT_MAX_BUFFER_SIZE);
+		return r.readList();
+	}
+}
@@ -0,0 +1,60 @@
+package org.briarproject.bramble.data;
+
+import org.briarproject.bramble.api.FormatException;
+import org.briarproject.bramble.api.data.BdfDictionary;
+import org.briarproject.bramble.api.db.Metadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.briarproject.bramble.test.TestUtils.getRandomId;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetadataBenchmark {
+
+	private final MetadataParserImpl parser =
+			new MetadataParserImpl(new BdfReaderFactoryImpl());
+	private final MetadataEncoderImpl encoder =
+			new MetadataEncoderImpl(new BdfWriterFactoryImpl());
+
+	private BdfDictionary dictionary;
+	private Metadata metadata;
+
+	@Setup
+	public void setUp() throws FormatException {
+		// Something like the metadata of a private message header
+		dictionary = new BdfDictionary();
+		dictionary.put("timestamp", 1234567890123L);
+		dictionary.put("contactGroupId", getRandomId());
+		dictionary.put("local", false);
+		dictionary.put("read", true);
+		dictionary.put("messageType", 0);
+		dictionary.put("hasText", true);
+		dictionary.put("attachmentHeaders", 0);
+		dictionary.put("autoDeleteTimer", -1L);
+		metadata = encoder.encode(dictionary);
+	}
+
+	@Benchmark
+	public Metadata encode() throws FormatException {
+		return encoder.encode(dictionary);
+	}
+
+	@Benchmark
+	public BdfDictionary parse() throws FormatException {
+		return parser.parse(metadata);
+	}
+}
@@ -0,0 +1,234 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.Metadata;
+import org.briarproject.bramble.api.identity.Identity;
+import org.briarproject.bramble.api.sync.ClientId;
+import org.briarproject.bramble.api.sync.Group;
+import org.briarproject.bramble.api.sync.GroupId;
+import org.briarproject.bramble.api.sync.Message;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.api.sync.validation.MessageState;
+import org.briarproject.bramble.system.SystemClock;
+import org.briarproject.bramble.test.TestDatabaseConfig;
+import org.briarproject.bramble.test.TestMessageFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.logging.Level.OFF;
+import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_IDS;
+import static org.briarproject.bramble.api.sync.validation.MessageState.DELIVERED;
+import static org.briarproject.bramble.test.TestUtils.deleteTestDirectory;
+import static org.briarproject.bramble.test.TestUtils.getAuthor;
+import static org.briarproject.bramble.test.TestUtils.getClientId;
+import static org.briarproject.bramble.test.TestUtils.getGroup;
+import static org.briarproject.bramble.test.TestUtils.getIdentity;
+import static org.briarproject.bramble.test.TestUtils.getMessage;
+import static org.briarproject.bramble.test.TestUtils.getSecretKey;
+import static org.briarproject.bramble.test.TestUtils.getTestDirectory;
+import static org.briarproject.bramble.util.ByteUtils.writeUint64;
+
+/**
+ * Measures the queries that are run most often during sync and when
+ * loading conversations, against a database populated with a plausible
+ * number of contacts, groups and messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JdbcDatabaseBenchmark {
+
+	private static final int CONTACTS = 20;
+	private static final int GROUPS_PER_CONTACT = 10;
+	private static final int MESSAGES_PER_GROUP = 20;
+
+	// All our transports use a maximum latency of 30 seconds
+	private static final int MAX_LATENCY = 30 * 1000;
+	private static final int MAX_BATCH_LENGTH = 1024 * 1024;
+
+	private static final byte[] TRUE = new byte[] {1}, FALSE = new byte[] {0};
+
+	@Param({"H2", "HyperSQL"})
+	public String database;
+
+	private final Random random = new Random();
+	private final List<ContactId> contacts = new ArrayList<>();
+	private final List<GroupId> groups = new ArrayList<>();
+	private final List<MessageId> messages = new ArrayList<>();
+
+	private File testDir;
+	private JdbcDatabase db;
+	private Metadata query;
+
+	@Setup
+	public void setUp() throws DbException {
+		// Disable logging
+		Logger.getLogger("").setLevel(OFF);
+		testDir = getTestDirectory();
+		if (!testDir.mkdirs()) throw new AssertionError();
+		TestDatabaseConfig config = new TestDatabaseConfig(testDir);
+		TestMessageFactory messageFactory = new TestMessageFactory();
+		if (database.equals("H2")) {
+			db = new H2Database(config, messageFactory, new SystemClock());
+		} else {
+			db = new HyperSqlDatabase(config, messageFactory,
+					new SystemClock());
+		}
+		db.open(getSecretKey(), null);
+		populateDatabase();
+		query = new Metadata();
+		query.put("read", FALSE);
+	}
+
+	@TearDown
+	public void tearDown() throws DbException {
+		db.close();
+		deleteTestDirectory(testDir);
+	}
+
+	@Benchmark
+	public Collection<MessageId> getMessagesToAck() throws DbException {
+		Connection txn = db.startTransaction();
+		Collection<MessageId> ids = db.getMessagesToAck(txn,
+				pickRandom(contacts), MAX_MESSAGE_IDS);
+		db.commitTransaction(txn);
+		return ids;
+	}
+
+	@Benchmark
+	public Collection<MessageId> getMessagesToOffer() throws DbException {
+		Connection txn = db.startTransaction();
+		Collection<MessageId> ids = db.getMessagesToOffer(txn,
+				pickRandom(contacts), MAX_MESSAGE_IDS, MAX_LATENCY);
+		db.commitTransaction(txn);
+		return ids;
+	}
+
+	@Benchmark
+	public Collection<MessageId> getMessagesToSend() throws DbException {
+		Connection txn = db.startTransaction();
+		Collection<MessageId> ids = db.getMessagesToSend(txn,
+				pickRandom(contacts), MAX_BATCH_LENGTH, MAX_LATENCY);
+		db.commitTransaction(txn);
+		return ids;
+	}
+
+	@Benchmark
+	public Collection<MessageId> getRequestedMessagesToSend()
+			throws DbException {
+		Connection txn = db.startTransaction();
+		Collection<MessageId> ids = db.getRequestedMessagesToSend(txn,
+				pickRandom(contacts), MAX_BATCH_LENGTH, MAX_LATENCY);
+		db.commitTransaction(txn);
+		return ids;
+	}
+
+	@Benchmark
+	public Message getMessageByMessageId() throws DbException {
+		Connection txn = db.startTransaction();
+		Message m = db.getMessage(txn, pickRandom(messages));
+		db.commitTransaction(txn);
+		return m;
+	}
+
+	@Benchmark
+	public Metadata getMessageMetadataByMessageId() throws DbException {
+		Connection txn = db.startTransaction();
+		Metadata meta = db.getMessageMetadata(txn, pickRandom(messages));
+		db.commitTransaction(txn);
+		return meta;
+	}
+
+	@Benchmark
+	public Map<MessageId, Metadata> getMessageMetadataByGroupId()
+			throws DbException {
+		Connection txn = db.startTransaction();
+		Map<MessageId, Metadata> meta =
+				db.getMessageMetadata(txn, pickRandom(groups));
+		db.commitTransaction(txn);
+		return meta;
+	}
+
+	@Benchmark
+	public Map<MessageId, Metadata> getMessageMetadataByQuery()
+			throws DbException {
+		Connection txn = db.startTransaction();
+		Map<MessageId, Metadata> meta =
+				db.getMessageMetadata(txn, pickRandom(groups), query);
+		db.commitTransaction(txn);
+		return meta;
+	}
+
+	private <T> T pickRandom(List<T> list) {
+		return list.get(random.nextInt(list.size()));
+	}
+
+	private void populateDatabase() throws DbException {
+		Identity identity = getIdentity();
+		List<ClientId> clientIds = new ArrayList<>();
+		for (int i = 0; i < GROUPS_PER_CONTACT; i++)
+			clientIds.add(getClientId());
+		Connection txn = db.startTransaction();
+		db.addIdentity(txn, identity);
+		for (int i = 0; i < CONTACTS; i++) {
+			ContactId c = db.addContact(txn, getAuthor(),
+					identity.getLocalAuthor().getId(), null, true);
+			contacts.add(c);
+			for (int j = 0; j < GROUPS_PER_CONTACT; j++) {
+				Group g = getGroup(clientIds.get(j), 123);
+				groups.add(g.getId());
+				db.addGroup(txn, g);
+				db.addGroupVisibility(txn, c, g.getId(), true);
+				for (int k = 0; k < MESSAGES_PER_GROUP; k++) {
+					Message m = getMessage(g.getId());
+					messages.add(m.getId());
+					MessageState state = random.nextInt(4) == 0
+							? MessageState.UNKNOWN : DELIVERED;
+					ContactId sender = random.nextBoolean() ? c : null;
+					db.addMessage(txn, m, state, sender == null, false,
+							sender);
+					if (sender != null) db.raiseAckFlag(txn, c, m.getId());
+					if (random.nextInt(10) == 0)
+						db.raiseRequestedFlag(txn, c, m.getId());
+					db.mergeMessageMetadata(txn, m.getId(),
+							getMetadata(m.getTimestamp()));
+				}
+			}
+		}
+		db.commitTransaction(txn);
+	}
+
+	private Metadata getMetadata(long timestamp) {
+		Metadata meta = new Metadata();
+		byte[] timestampBytes = new byte[8];
+		writeUint64(timestamp, timestampBytes, 0);
+		meta.put("timestamp", timestampBytes);
+		meta.put("read", random.nextBoolean() ? TRUE : FALSE);
+		meta.put("local", random.nextBoolean() ? TRUE : FALSE);
+		return meta;
+	}
+}
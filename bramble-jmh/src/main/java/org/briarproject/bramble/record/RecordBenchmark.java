@@ -0,0 +1,84 @@
+package org.briarproject.bramble.record;
+
+import org.briarproject.bramble.api.Predicate;
+import org.briarproject.bramble.api.record.BufferedRecord;
+import org.briarproject.bramble.api.record.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.briarproject.bramble.test.TestUtils.getRandomBytes;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordBenchmark {
+
+	/**
+	 * How many records to write or read per invocation.
+	 */
+	private static final int RECORDS = 100;
+
+	private static final Predicate<BufferedRecord> ACCEPT = r -> true;
+	private static final Predicate<BufferedRecord> IGNORE = r -> false;
+
+	@Param({"32", "1024", "32768"})
+	public int payloadLength;
+
+	private Record record;
+	private byte[] encoded;
+
+	@Setup
+	public void setUp() throws IOException {
+		record = new Record((byte) 0, (byte) 1, getRandomBytes(payloadLength));
+		encoded = write();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public byte[] write() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RecordWriterImpl w = new RecordWriterImpl(out);
+		for (int i = 0; i < RECORDS; i++) w.writeRecord(record);
+		w.flush();
+		return out.toByteArray();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public void read(Blackhole bh) throws IOException {
+		ByteArrayInputStream in = new ByteArrayInputStream(encoded);
+		RecordReaderImpl r = new RecordReaderImpl(in);
+		for (int i = 0; i < RECORDS; i++) bh.consume(r.readRecord());
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public void readBuffered(Blackhole bh) throws IOException {
+		ByteArrayInputStream in = new ByteArrayInputStream(encoded);
+		RecordReaderImpl r = new RecordReaderImpl(in);
+		for (int i = 0; i < RECORDS; i++) {
+			BufferedRecord record = r.readBufferedRecord(ACCEPT, IGNORE);
+			if (record == null) throw new AssertionError();
+			bh.consume(record.getPayloadBuffer()[0]);
+		}
+	}
+}
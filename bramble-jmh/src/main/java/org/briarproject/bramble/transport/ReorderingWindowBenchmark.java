@@ -0,0 +1,58 @@
+package org.briarproject.bramble.transport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.briarproject.bramble.api.transport.TransportConstants.REORDERING_WINDOW_SIZE;
+import static org.briarproject.bramble.util.ByteUtils.MAX_32_BIT_UNSIGNED;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReorderingWindowBenchmark {
+
+	private byte[] bitmap;
+	private ReorderingWindow window;
+
+	@Setup
+	public void setUp() {
+		// Half the elements below the midpoint have been seen
+		bitmap = new byte[REORDERING_WINDOW_SIZE / 8];
+		for (int i = 0; i < bitmap.length / 2; i++) bitmap[i] = 0x55;
+		window = new ReorderingWindow(1, bitmap);
+	}
+
+	@Benchmark
+	public byte[] loadAndSave() {
+		return new ReorderingWindow(1, bitmap).getBitmap();
+	}
+
+	@Benchmark
+	public long visitUnseen() {
+		long sum = 0;
+		for (long i = window.getNextUnseen(window.getBase()); i != -1;
+				i = window.getNextUnseen(i + 1)) {
+			sum += i;
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public ReorderingWindow.Change setSeen() {
+		// Receive the streams in order, sliding the window each time
+		if (window.getBase() == MAX_32_BIT_UNSIGNED) setUp();
+		return window.setSeen(window.getNextUnseen(window.getBase()));
+	}
+}
@@ -0,0 +1,203 @@
+package org.briarproject.bramble.transport;
+
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.crypto.KeyPair;
+import org.briarproject.bramble.api.crypto.PublicKey;
+import org.briarproject.bramble.api.crypto.SecretKey;
+import org.briarproject.bramble.api.crypto.TransportCrypto;
+import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.Transaction;
+import org.briarproject.bramble.api.plugin.TransportId;
+import org.briarproject.bramble.api.system.Clock;
+import org.briarproject.bramble.api.system.TaskScheduler;
+import org.briarproject.bramble.api.transport.IncomingKeys;
+import org.briarproject.bramble.api.transport.KeySetId;
+import org.briarproject.bramble.api.transport.OutgoingKeys;
+import org.briarproject.bramble.api.transport.StreamContext;
+import org.briarproject.bramble.api.transport.TransportKeys;
+import org.briarproject.bramble.system.SystemClock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Executor;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.briarproject.bramble.api.transport.TransportConstants.MAX_CLOCK_DIFFERENCE;
+import static org.briarproject.bramble.api.transport.TransportConstants.PROTOCOL_VERSION;
+import static org.briarproject.bramble.api.transport.TransportConstants.TAG_LENGTH;
+import static org.briarproject.bramble.test.TestUtils.getContactId;
+import static org.briarproject.bramble.test.TestUtils.getSecretKey;
+import static org.briarproject.bramble.test.TestUtils.getTransportId;
+import static org.briarproject.bramble.util.ByteUtils.writeUint64;
+
+/**
+ * Measures the in-memory work done by the transport key manager when keys
+ * are added and when incoming tags are recognised. The DB and the task
+ * scheduler are replaced with stubs that do nothing, and the crypto is
+ * replaced with a cheap fake, so the results are dominated by the key
+ * manager's own work and allocations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportKeyManagerBenchmark {
+
+	private static final long MAX_LATENCY = 30 * 1000; // 30 seconds
+
+	private final TransportCrypto transportCrypto = new FakeTransportCrypto();
+	private final Clock clock = new SystemClock();
+	private final TransportId transportId = getTransportId();
+	private final ContactId contactId = getContactId();
+	private final ContactId contactId1 = getContactId();
+	private final SecretKey rootKey = getSecretKey();
+	private final Transaction txn = new Transaction(null, false);
+	private final byte[] tag = new byte[TAG_LENGTH];
+
+	private TransportKeyManager transportKeyManager;
+	private SecretKey tagKey;
+	private long streamNumber;
+
+	@Setup
+	public void setUp() throws DbException {
+		// Tasks for saving changes are discarded, crypto tasks run at once
+		Executor dbExecutor = task -> {
+		};
+		Executor cryptoExecutor = Runnable::run;
+		transportKeyManager = new TransportKeyManagerImpl(
+				stub(DatabaseComponent.class), transportCrypto, dbExecutor,
+				cryptoExecutor, stub(TaskScheduler.class), clock, transportId,
+				MAX_LATENCY);
+		long now = clock.currentTimeMillis();
+		transportKeyManager.addRotationKeys(txn, contactId, rootKey, now,
+				true, true);
+		// Derive the same keys to find the current incoming tag key
+		long timePeriod = now / (MAX_LATENCY + MAX_CLOCK_DIFFERENCE);
+		tagKey = transportCrypto.deriveRotationKeys(transportId, rootKey,
+				timePeriod, true, true).getCurrentIncomingKeys().getTagKey();
+		streamNumber = 0;
+	}
+
+	@Benchmark
+	public KeySetId addAndRemoveContactKeys() throws DbException {
+		KeySetId keySetId = transportKeyManager.addRotationKeys(txn,
+				contactId1, rootKey, clock.currentTimeMillis(), true, true);
+		transportKeyManager.removeContact(contactId1);
+		return keySetId;
+	}
+
+	@Benchmark
+	public StreamContext recogniseTag() {
+		// Receive the streams in order, sliding the window each time
+		transportCrypto.encodeTag(tag, tagKey, PROTOCOL_VERSION,
+				streamNumber++);
+		StreamContext ctx = transportKeyManager.getStreamContext(tag);
+		if (ctx == null) throw new AssertionError();
+		return ctx;
+	}
+
+	/**
+	 * Returns an implementation of the given interface that does nothing.
+	 * Methods that return key set IDs return a fixed ID, and other methods
+	 * return null.
+	 */
+	private static <T> T stub(Class<T> c) {
+		KeySetId keySetId = new KeySetId(1);
+		return c.cast(Proxy.newProxyInstance(c.getClassLoader(),
+				new Class<?>[] {c}, (proxy, method, args) ->
+						method.getReturnType() == KeySetId.class ?
+								keySetId : null));
+	}
+
+	/**
+	 * Derives keys and tags by mixing the inputs instead of hashing them.
+	 * Tags for different stream numbers differ in their leading bits, like
+	 * real tags.
+	 */
+	private static class FakeTransportCrypto implements TransportCrypto {
+
+		@Override
+		public boolean isAlice(PublicKey theirHandshakePublicKey,
+				KeyPair ourHandshakeKeyPair) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public SecretKey deriveStaticMasterKey(
+				PublicKey theirHandshakePublicKey,
+				KeyPair ourHandshakeKeyPair) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public SecretKey deriveHandshakeRootKey(SecretKey staticMasterKey,
+				boolean pendingContact) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public TransportKeys deriveRotationKeys(TransportId t,
+				SecretKey rootKey, long timePeriod, boolean alice,
+				boolean active) {
+			IncomingKeys inPrev = new IncomingKeys(deriveKey(rootKey,
+					timePeriod - 1), rootKey, timePeriod - 1);
+			IncomingKeys inCurr = new IncomingKeys(deriveKey(rootKey,
+					timePeriod), rootKey, timePeriod);
+			IncomingKeys inNext = new IncomingKeys(deriveKey(rootKey,
+					timePeriod + 1), rootKey, timePeriod + 1);
+			OutgoingKeys outCurr = new OutgoingKeys(rootKey, rootKey,
+					timePeriod, active);
+			return new TransportKeys(t, inPrev, inCurr, inNext, outCurr);
+		}
+
+		@Override
+		public TransportKeys deriveHandshakeKeys(TransportId t,
+				SecretKey rootKey, long timePeriod, boolean alice) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public TransportKeys updateTransportKeys(TransportKeys k,
+				long timePeriod) {
+			return k;
+		}
+
+		@Override
+		public void encodeTag(byte[] tag, SecretKey tagKey,
+				int protocolVersion, long streamNumber) {
+			byte[] key = tagKey.getBytes();
+			System.arraycopy(key, 0, tag, 0, TAG_LENGTH);
+			writeUint64(streamNumber * 0x9E3779B97F4A7C15L, tag, 0);
+		}
+
+		@Override
+		public void encodeTags(byte[] tags, SecretKey tagKey,
+				int protocolVersion, long firstStreamNumber, int count) {
+			byte[] key = tagKey.getBytes();
+			for (int i = 0; i < count; i++) {
+				int offset = i * TAG_LENGTH;
+				System.arraycopy(key, 0, tags, offset, TAG_LENGTH);
+				writeUint64((firstStreamNumber + i) * 0x9E3779B97F4A7C15L,
+						tags, offset);
+			}
+		}
+
+		private SecretKey deriveKey(SecretKey key, long timePeriod) {
+			byte[] derived = key.getBytes().clone();
+			writeUint64(timePeriod, derived, 0);
+			return new SecretKey(derived);
+		}
+	}
+}
@@ -37,4 +37,14 @@ class AndroidDatabaseConfig implements DatabaseConfig {
 	public KeyStrengthener getKeyStrengthener() {
 		return keyStrengthener;
 	}
+
+	@Override
+	public boolean isStripedLockingEnabled() {
+		return false;
+	}
+
+	@Override
+	public int getReadOnlyExecutorThreads() {
+		return 2;
+	}
 }
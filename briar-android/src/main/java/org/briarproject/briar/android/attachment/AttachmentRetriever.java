@@ -18,6 +18,11 @@ import androidx.lifecycle.LiveData;
 @NotNullByDefault
 public interface AttachmentRetriever {
 
+	/**
+	 * Returns the attachment with the given header. The caller must close
+	 * the attachment's {@link InputStream}, for example by passing the
+	 * attachment to {@link #createAttachmentItem(Attachment, boolean)}.
+	 */
 	@DatabaseExecutor
 	Attachment getMessageAttachment(AttachmentHeader h) throws DbException;
 
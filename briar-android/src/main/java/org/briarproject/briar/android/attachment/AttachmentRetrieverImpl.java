@@ -196,6 +196,8 @@ class AttachmentRetrieverImpl implements AttachmentRetriever {
 			tryToClose(is, LOG, WARNING);
 			item = createAttachmentItem(h, size);
 		} else {
+			// The stream isn't needed, but it must still be closed
+			tryToClose(a.getStream(), LOG, WARNING);
 			String extension =
 					imageHelper.getExtensionFromMimeType(h.getContentType());
 			State state = AVAILABLE;
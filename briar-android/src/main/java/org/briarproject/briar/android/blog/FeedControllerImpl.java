@@ -4,6 +4,7 @@ import org.briarproject.bramble.api.db.DatabaseExecutor;
 import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.db.NoSuchGroupException;
 import org.briarproject.bramble.api.db.NoSuchMessageException;
+import org.briarproject.bramble.api.db.ReadOnlyDatabaseExecutor;
 import org.briarproject.bramble.api.event.Event;
 import org.briarproject.bramble.api.event.EventBus;
 import org.briarproject.bramble.api.identity.Author;
@@ -41,17 +42,21 @@ class FeedControllerImpl extends BaseControllerImpl implements FeedController {
 	private static final Logger LOG =
 			Logger.getLogger(FeedControllerImpl.class.getName());
 
+	private final Executor readOnlyDbExecutor;
+
 	// UI thread
 	@Nullable
 	private FeedListener listener;
 
 	@Inject
 	FeedControllerImpl(@DatabaseExecutor Executor dbExecutor,
+			@ReadOnlyDatabaseExecutor Executor readOnlyDbExecutor,
 			LifecycleManager lifecycleManager, EventBus eventBus,
 			AndroidNotificationManager notificationManager,
 			IdentityManager identityManager, BlogManager blogManager) {
 		super(dbExecutor, lifecycleManager, eventBus, notificationManager,
 				identityManager, blogManager);
+		this.readOnlyDbExecutor = readOnlyDbExecutor;
 	}
 
 	@Override
@@ -103,7 +108,8 @@ class FeedControllerImpl extends BaseControllerImpl implements FeedController {
 	@Override
 	public void loadBlogPosts(
 			ResultExceptionHandler<Collection<BlogPostItem>, DbException> handler) {
-		runOnDbThread(() -> {
+		// Loading all blogs shouldn't hold up writes and other tasks
+		runWhenDatabaseOpen(readOnlyDbExecutor, () -> {
 			try {
 				long start = now();
 				Collection<BlogPostItem> posts = new ArrayList<>();
@@ -29,7 +29,15 @@ public class DbControllerImpl implements DbController {
 
 	@Override
 	public void runOnDbThread(Runnable task) {
-		dbExecutor.execute(() -> {
+		runWhenDatabaseOpen(dbExecutor, task);
+	}
+
+	/**
+	 * Runs the given task on the given executor after waiting for the
+	 * database to open.
+	 */
+	protected void runWhenDatabaseOpen(Executor executor, Runnable task) {
+		executor.execute(() -> {
 			try {
 				lifecycleManager.waitForDatabase();
 				task.run();
@@ -46,6 +46,7 @@ import static java.util.Objects.requireNonNull;
 import static java.util.logging.Level.WARNING;
 import static java.util.logging.Logger.getLogger;
 import static org.briarproject.bramble.util.IoUtils.copyAndClose;
+import static org.briarproject.bramble.util.IoUtils.tryToClose;
 import static org.briarproject.bramble.util.LogUtils.logException;
 
 @NotNullByDefault
@@ -210,14 +211,15 @@ public class ImageViewModel extends AndroidViewModel implements EventListener {
 	private void copyImageFromDb(Attachment a, OutputStreamProvider osp,
 			@Nullable Runnable afterCopy) {
 		ioExecutor.execute(() -> {
+			InputStream is = a.getStream();
 			try {
-				InputStream is = a.getStream();
 				OutputStream os = osp.getOutputStream();
 				copyAndClose(is, os);
 				if (afterCopy != null) afterCopy.run();
 				saveState.postEvent(false);
 			} catch (IOException e) {
 				logException(LOG, WARNING, e);
+				tryToClose(is, LOG, WARNING);
 				saveState.postEvent(true);
 			}
 		});
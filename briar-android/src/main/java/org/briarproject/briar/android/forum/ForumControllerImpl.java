@@ -5,6 +5,7 @@ import org.briarproject.bramble.api.contact.ContactId;
 import org.briarproject.bramble.api.crypto.CryptoExecutor;
 import org.briarproject.bramble.api.db.DatabaseExecutor;
 import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.ReadOnlyDatabaseExecutor;
 import org.briarproject.bramble.api.event.Event;
 import org.briarproject.bramble.api.event.EventBus;
 import org.briarproject.bramble.api.identity.IdentityManager;
@@ -54,13 +55,15 @@ class ForumControllerImpl extends
 
 	@Inject
 	ForumControllerImpl(@DatabaseExecutor Executor dbExecutor,
+			@ReadOnlyDatabaseExecutor Executor readOnlyDbExecutor,
 			LifecycleManager lifecycleManager, IdentityManager identityManager,
 			@CryptoExecutor Executor cryptoExecutor,
 			ForumManager forumManager, ForumSharingManager forumSharingManager,
 			EventBus eventBus, Clock clock, MessageTracker messageTracker,
 			AndroidNotificationManager notificationManager) {
-		super(dbExecutor, lifecycleManager, identityManager, cryptoExecutor,
-				eventBus, clock, notificationManager, messageTracker);
+		super(dbExecutor, readOnlyDbExecutor, lifecycleManager,
+				identityManager, cryptoExecutor, eventBus, clock,
+				notificationManager, messageTracker);
 		this.forumManager = forumManager;
 		this.forumSharingManager = forumSharingManager;
 	}
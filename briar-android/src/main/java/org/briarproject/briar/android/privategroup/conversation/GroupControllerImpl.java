@@ -4,6 +4,7 @@ import org.briarproject.bramble.api.contact.ContactId;
 import org.briarproject.bramble.api.crypto.CryptoExecutor;
 import org.briarproject.bramble.api.db.DatabaseExecutor;
 import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.ReadOnlyDatabaseExecutor;
 import org.briarproject.bramble.api.event.Event;
 import org.briarproject.bramble.api.event.EventBus;
 import org.briarproject.bramble.api.identity.IdentityManager;
@@ -58,14 +59,16 @@ class GroupControllerImpl extends
 
 	@Inject
 	GroupControllerImpl(@DatabaseExecutor Executor dbExecutor,
+			@ReadOnlyDatabaseExecutor Executor readOnlyDbExecutor,
 			LifecycleManager lifecycleManager, IdentityManager identityManager,
 			@CryptoExecutor Executor cryptoExecutor,
 			PrivateGroupManager privateGroupManager,
 			GroupMessageFactory groupMessageFactory, EventBus eventBus,
 			MessageTracker messageTracker, Clock clock,
 			AndroidNotificationManager notificationManager) {
-		super(dbExecutor, lifecycleManager, identityManager, cryptoExecutor,
-				eventBus, clock, notificationManager, messageTracker);
+		super(dbExecutor, readOnlyDbExecutor, lifecycleManager,
+				identityManager, cryptoExecutor, eventBus, clock,
+				notificationManager, messageTracker);
 		this.privateGroupManager = privateGroupManager;
 		this.groupMessageFactory = groupMessageFactory;
 	}
@@ -5,6 +5,7 @@ import android.app.Activity;
 import org.briarproject.bramble.api.crypto.CryptoExecutor;
 import org.briarproject.bramble.api.db.DatabaseExecutor;
 import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.ReadOnlyDatabaseExecutor;
 import org.briarproject.bramble.api.event.Event;
 import org.briarproject.bramble.api.event.EventBus;
 import org.briarproject.bramble.api.event.EventListener;
@@ -58,18 +59,20 @@ public abstract class ThreadListControllerImpl<G extends NamedGroup, I extends T
 
 	protected final IdentityManager identityManager;
 	protected final AndroidNotificationManager notificationManager;
-	protected final Executor cryptoExecutor;
+	protected final Executor readOnlyDbExecutor, cryptoExecutor;
 	protected final Clock clock;
 
 	// UI thread
 	protected L listener;
 
 	protected ThreadListControllerImpl(@DatabaseExecutor Executor dbExecutor,
+			@ReadOnlyDatabaseExecutor Executor readOnlyDbExecutor,
 			LifecycleManager lifecycleManager, IdentityManager identityManager,
 			@CryptoExecutor Executor cryptoExecutor, EventBus eventBus,
 			Clock clock, AndroidNotificationManager notificationManager,
 			MessageTracker messageTracker) {
 		super(dbExecutor, lifecycleManager);
+		this.readOnlyDbExecutor = readOnlyDbExecutor;
 		this.identityManager = identityManager;
 		this.cryptoExecutor = cryptoExecutor;
 		this.notificationManager = notificationManager;
@@ -154,7 +157,8 @@ public abstract class ThreadListControllerImpl<G extends NamedGroup, I extends T
 	public void loadItems(
 			ResultExceptionHandler<ThreadItemList<I>, DbException> handler) {
 		checkGroupId();
-		runOnDbThread(() -> {
+		// Loading a large tree shouldn't hold up writes and other tasks
+		runWhenDatabaseOpen(readOnlyDbExecutor, () -> {
 			try {
 				// Load headers
 				long start = now();
@@ -180,10 +184,10 @@ public abstract class ThreadListControllerImpl<G extends NamedGroup, I extends T
 		});
 	}
 
-	@DatabaseExecutor
+	@ReadOnlyDatabaseExecutor
 	protected abstract Collection<H> loadHeaders() throws DbException;
 
-	@DatabaseExecutor
+	@ReadOnlyDatabaseExecutor
 	protected abstract String loadMessageText(H header) throws DbException;
 
 	@Override
@@ -69,6 +69,10 @@ public interface MessagingManager extends ConversationClient {
 
 	/**
 	 * Returns the attachment with the given attachment header.
+	 * <p/>
+	 * The attachment's stream may be backed by an open file, so the caller
+	 * must close the stream when it's no longer needed, even if the stream
+	 * isn't read.
 	 *
 	 * @throws InvalidAttachmentException If the header refers to a message
 	 * that is not an attachment, or to an attachment that does not have the
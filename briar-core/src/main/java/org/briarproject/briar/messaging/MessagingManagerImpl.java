@@ -42,7 +42,6 @@ import org.briarproject.briar.api.messaging.PrivateMessageHeader;
 import org.briarproject.briar.api.messaging.event.AttachmentReceivedEvent;
 import org.briarproject.briar.api.messaging.event.PrivateMessageReceivedEvent;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -52,14 +51,19 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.logging.Logger;
 
 import javax.annotation.concurrent.Immutable;
 import javax.inject.Inject;
 
 import static java.util.Collections.emptyList;
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
 import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_BODY_LENGTH;
 import static org.briarproject.bramble.api.sync.validation.MessageState.DELIVERED;
 import static org.briarproject.bramble.util.IoUtils.copyAndClose;
+import static org.briarproject.bramble.util.IoUtils.read;
+import static org.briarproject.bramble.util.IoUtils.tryToClose;
 import static org.briarproject.briar.client.MessageTrackerConstants.MSG_KEY_READ;
 import static org.briarproject.briar.messaging.MessageTypes.ATTACHMENT;
 import static org.briarproject.briar.messaging.MessageTypes.PRIVATE_MESSAGE;
@@ -78,6 +82,9 @@ class MessagingManagerImpl implements MessagingManager, IncomingMessageHook,
 		ConversationClient, OpenDatabaseHook, ContactHook,
 		ClientVersioningHook {
 
+	private static final Logger LOG =
+			getLogger(MessagingManagerImpl.class.getName());
+
 	private final DatabaseComponent db;
 	private final ClientHelper clientHelper;
 	private final MetadataParser metadataParser;
@@ -402,20 +409,29 @@ class MessagingManagerImpl implements MessagingManager, IncomingMessageHook,
 
 	@Override
 	public Attachment getAttachment(AttachmentHeader h) throws DbException {
-		// TODO: Support large messages
 		MessageId m = h.getMessageId();
-		byte[] body = clientHelper.getMessage(m).getBody();
 		try {
-			BdfDictionary meta = clientHelper.getMessageMetadataAsDictionary(m);
-			Long messageType = meta.getOptionalLong(MSG_KEY_MSG_TYPE);
-			if (messageType == null || messageType != ATTACHMENT)
-				throw new InvalidAttachmentException();
-			String contentType = meta.getString(MSG_KEY_CONTENT_TYPE);
-			if (!contentType.equals(h.getContentType()))
-				throw new InvalidAttachmentException();
-			int offset = meta.getLong(MSG_KEY_DESCRIPTOR_LENGTH).intValue();
-			return new Attachment(h, new ByteArrayInputStream(body, offset,
-					body.length - offset));
+			return db.transactionWithResult(true, txn -> {
+				BdfDictionary meta =
+						clientHelper.getMessageMetadataAsDictionary(txn, m);
+				Long messageType = meta.getOptionalLong(MSG_KEY_MSG_TYPE);
+				if (messageType == null || messageType != ATTACHMENT)
+					throw new InvalidAttachmentException();
+				String contentType = meta.getString(MSG_KEY_CONTENT_TYPE);
+				if (!contentType.equals(h.getContentType()))
+					throw new InvalidAttachmentException();
+				int offset = meta.getLong(MSG_KEY_DESCRIPTOR_LENGTH).intValue();
+				// Stream the body rather than loading it into memory, skipping
+				// the descriptor
+				InputStream in = db.getMessageBody(txn, m);
+				try {
+					read(in, new byte[offset]);
+				} catch (IOException e) {
+					tryToClose(in, LOG, WARNING);
+					throw new DbException(e);
+				}
+				return new Attachment(h, in);
+			});
 		} catch (FormatException e) {
 			throw new DbException(e);
 		}
@@ -12,4 +12,8 @@ internal class HeadlessDatabaseConfig(private val dbDir: File, private val keyDi
     override fun getDatabaseKeyDirectory() = keyDir
 
     override fun getKeyStrengthener(): KeyStrengthener? = null
+
+    override fun isStripedLockingEnabled() = false
+
+    override fun getReadOnlyExecutorThreads() = 4
 }